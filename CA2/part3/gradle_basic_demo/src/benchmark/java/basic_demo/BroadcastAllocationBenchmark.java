@@ -0,0 +1,112 @@
+package basic_demo;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Measures how many bytes the JVM allocates to broadcast one message, as a
+ * function of the number of recipients and the length of the message, for:
+ *
+ *  - the original fan-out, which builds "MESSAGE name: text" and encodes it through
+ *    a separate PrintWriter for every recipient, and
+ *  - the encode-once fan-out, which builds one EncodedMessage and hands every
+ *    recipient a view of it.
+ *
+ * Recipients are in-memory sinks that discard what they are given, so only the
+ * cost of producing the bytes is measured. Allocations are read from the current
+ * thread's allocation counter (com.sun.management.ThreadMXBean). What remains per
+ * recipient with encode-once is the small view object each writer needs, which
+ * unlike a re-encoded line does not grow with the message.
+ *
+ * Usage: BroadcastAllocationBenchmark [room sizes, e.g. 1,10,100,1000,10000] [text lengths, e.g. 48,1024]
+ */
+public class BroadcastAllocationBenchmark {
+
+    private static final int WARMUP_BROADCASTS = 2_000;
+    private static final int MEASURED_BROADCASTS = 200;
+    private static final String NAME = "alice";
+
+    public static void main(String[] args) throws IOException {
+        String[] sizes = (args.length > 0 ? args[0] : "1,10,100,1000,10000").split(",");
+        String[] lengths = (args.length > 1 ? args[1] : "48,1024").split(",");
+        com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+        System.out.printf("%10s %8s %22s %22s%n", "recipients", "chars", "per-writer bytes/msg", "encode-once bytes/msg");
+        for (String length : lengths) {
+            for (String size : sizes) {
+                run(threads, Integer.parseInt(size.trim()), "x".repeat(Integer.parseInt(length.trim())));
+            }
+        }
+    }
+
+    private static void run(com.sun.management.ThreadMXBean threads, int recipients, String text)
+            throws IOException {
+        PrintWriter[] writers = new PrintWriter[recipients];
+        for (int i = 0; i < recipients; i++) {
+            writers[i] = new PrintWriter(new DiscardingStream(), true);
+        }
+        WritableByteChannel[] channels = new WritableByteChannel[recipients];
+        for (int i = 0; i < recipients; i++) {
+            channels[i] = new DiscardingChannel();
+        }
+        byte[] prefix = EncodedMessage.encode(NAME + ": ");
+
+        long perWriter = measure(threads, () -> {
+            for (PrintWriter writer : writers) {
+                writer.println("MESSAGE " + NAME + ": " + text);
+            }
+        }, recipients);
+        long encodeOnce = measure(threads, () -> {
+            EncodedMessage message = EncodedMessage.of(FrameType.MESSAGE, prefix, text, recipients);
+            for (WritableByteChannel channel : channels) {
+                channel.write(message.buffer());
+            }
+        }, recipients);
+
+        System.out.printf("%10d %8d %22d %22d%n", recipients, text.length(), perWriter, encodeOnce);
+    }
+
+    private interface Broadcast {
+        void run() throws IOException;
+    }
+
+    private static long measure(com.sun.management.ThreadMXBean threads, Broadcast broadcast, int recipients)
+            throws IOException {
+        // Fewer rounds for big rooms, so every size warms up on a similar number of writes.
+        int warmup = Math.max(10, WARMUP_BROADCASTS / Math.max(1, recipients / 100));
+        for (int i = 0; i < warmup; i++) {
+            broadcast.run();
+        }
+        long thread = Thread.currentThread().threadId();
+        long before = threads.getThreadAllocatedBytes(thread);
+        for (int i = 0; i < MEASURED_BROADCASTS; i++) {
+            broadcast.run();
+        }
+        return (threads.getThreadAllocatedBytes(thread) - before) / MEASURED_BROADCASTS;
+    }
+
+    private static class DiscardingStream extends OutputStream {
+        public void write(int b) {}
+
+        public void write(byte[] b, int off, int len) {}
+    }
+
+    private static class DiscardingChannel implements WritableByteChannel {
+        public int write(ByteBuffer source) {
+            int written = source.remaining();
+            source.position(source.limit());
+            return written;
+        }
+
+        public boolean isOpen() {
+            return true;
+        }
+
+        public void close() {}
+    }
+}
@@ -0,0 +1,129 @@
+package basic_demo;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * JMH benchmark of the broadcast hot path for rooms of 10 to 10,000 members: a
+ * line as it was read is encoded once, queued on every member's OutboundQueue and
+ * then written by every member's WriteBatch, as their writers would. The sockets
+ * are in-memory sinks that take everything at once, so the score is the server's
+ * own cost of one broadcast, with no network in it. "timed" also times every
+ * broadcast into a LatencyHistogram, as the servers do for their metrics.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class BroadcastBenchmark {
+
+    // A socket that takes every byte it is given.
+    private static class Sink implements GatheringByteChannel {
+        public long write(ByteBuffer[] sources, int offset, int length) {
+            long written = 0;
+            for (int i = offset; i < offset + length; i++) {
+                written += write(sources[i]);
+            }
+            return written;
+        }
+
+        public long write(ByteBuffer[] sources) {
+            return write(sources, 0, sources.length);
+        }
+
+        public int write(ByteBuffer source) {
+            int written = source.remaining();
+            source.position(source.limit());
+            return written;
+        }
+
+        public boolean isOpen() {
+            return true;
+        }
+
+        public void close() {}
+    }
+
+    // A member with a queue and a batch of its own, writing into a sink.
+    private static class Member implements RoomMember {
+        final OutboundQueue<EncodedMessage> outbound = new OutboundQueue<>(1024, OverflowPolicy.DROP_OLDEST);
+        final WriteBatch batch;
+        final Sink sink = new Sink();
+
+        Member(WriteStats stats) {
+            batch = new WriteBatch(64, new WriteStats(stats));
+        }
+
+        public String getName() {
+            return "member";
+        }
+
+        public Room getRoom() {
+            return null;
+        }
+
+        public void setRoom(Room room) {
+        }
+
+        public void send(EncodedMessage message) {
+            outbound.offer(message);
+        }
+
+        public void catchUp(EncodedMessage header, CatchUp catchUp) {
+            catchUp.close();
+        }
+
+        void flush() throws IOException {
+            batch.fill(outbound);
+            batch.writeTo(sink);
+        }
+    }
+
+    @Param({"10", "100", "1000", "10000"})
+    public int members;
+
+    @Param({"false", "true"})
+    public boolean timed;
+
+    private Room room;
+    private Member[] sinks;
+    private byte[] prefix;
+    private ByteBuffer line;
+
+    @Setup
+    public void setUp() {
+        WriteStats stats = new WriteStats();
+        room = new Room("bench", null, null, null, timed ? new LatencyHistogram() : null);
+        sinks = new Member[members];
+        for (int i = 0; i < members; i++) {
+            sinks[i] = new Member(stats);
+            room.add(sinks[i]);
+        }
+        prefix = EncodedMessage.encode("alice: ");
+        line = ByteBuffer.wrap(EncodedMessage.encode("a line of about the length people chat in"));
+    }
+
+    @Benchmark
+    public void broadcast() throws IOException {
+        room.broadcast(prefix, line);
+        for (Member member : sinks) {
+            member.flush();
+        }
+    }
+}
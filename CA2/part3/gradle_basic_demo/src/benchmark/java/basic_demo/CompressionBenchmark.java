@@ -0,0 +1,216 @@
+package basic_demo;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.core.config.Configurator;
+
+/**
+ * Measures what compressing large messages (see MessageCompressor) costs and saves.
+ *
+ * Payloads: a chat line, pasted logs of 4 and 32 KB and 8 KB of random bytes, each
+ * compressed again and again at deflate levels 1, 6 and 9, for the ratio, the time
+ * one compression takes and the time the client then takes to inflate it. The chat
+ * line is under the threshold and the random bytes don't get smaller, so both are
+ * sent as they are, but only the random bytes pay for finding that out.
+ *
+ * Broadcast: one client pastes a log into a room where every other member is a
+ * framed client, once with none of them asking for compression and once with all
+ * of them asking, against the virtual thread and the NIO servers. It reports the
+ * bytes the server wrote, how long until every member had every message, and what
+ * the server spent compressing, which it did once per message, not per member.
+ *
+ * Usage: CompressionBenchmark [members] [messages] [log KB]
+ */
+public class CompressionBenchmark {
+
+    private static final long TIMEOUT_MILLIS = 120_000;
+    private static final int ROUNDS = 2000;
+
+    public static void main(String[] args) throws Exception {
+        int members = args.length > 0 ? Integer.parseInt(args[0]) : 50;
+        int messages = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+        int logKilobytes = args.length > 2 ? Integer.parseInt(args[2]) : 16;
+        // A log line per join and leave would time the console rather than compression.
+        Configurator.setRootLevel(Level.WARN);
+
+        System.out.printf("%-11s %5s %9s %9s %8s %14s %14s %10s%n", "payload", "level", "bytes", "deflated",
+                "ratio", "deflate us", "inflate us", "MB/s");
+        byte[] random = new byte[8192];
+        new Random(1).nextBytes(random);
+        String[] names = {"chat line", "log 4 KB", "log 32 KB", "random 8 KB"};
+        byte[][] payloads = {
+                utf8("alice: a message of about the length people type in a chat, give or take a few words"),
+                utf8(log(4 * 1024)), utf8(log(32 * 1024)), random};
+        for (int level : new int[] {1, 6, 9}) {
+            for (int i = 0; i < payloads.length; i++) {
+                payload(names[i], payloads[i], level);
+            }
+        }
+
+        System.out.printf("%n%-8s %-10s %8s %8s %12s %10s %8s %12s%n", "mode", "clients", "members", "messages",
+                "MB written", "millis", "ratio", "deflate us");
+        String log = log(logKilobytes * 1024);
+        for (ServerMode mode : new ServerMode[] {ServerMode.VIRTUAL, ServerMode.NIO}) {
+            ServerOptions options = new ServerOptions(ConnectionScalingBenchmark.freePort());
+            options.setMode(mode);
+            options.setHistoryLines(0);
+            // Early members also hear everyone after them join.
+            options.setQueueCapacity(messages + 2 * members);
+            Server server = start(options);
+            for (boolean compress : new boolean[] {false, true}) {
+                // Warm up, so the first round doesn't pay for the JIT.
+                broadcast(server, options, compress, members, messages / 10, log, "warm-up");
+                broadcast(server, options, compress, members, messages, log, null);
+            }
+        }
+        System.exit(0);
+    }
+
+    private static byte[] utf8(String text) {
+        return text.getBytes(StandardCharsets.UTF_8);
+    }
+
+    // Lines alike but for times, threads and numbers, as a pasted server log is.
+    private static String log(int length) {
+        Random random = new Random(length);
+        String[] levels = {"INFO ", "INFO ", "INFO ", "DEBUG", "WARN "};
+        String[] events = {"has joined the lobby", "has left the chat", "is too slow, disconnecting",
+                "resumed the session, 12 messages replayed", "lost the connection, keeping the session"};
+        StringBuilder log = new StringBuilder();
+        while (log.length() < length) {
+            log.append(String.format("2026-10-17 12:%02d:%02d.%03d %s [pool-%d-thread-%d] basic_demo.ChatServer - "
+                            + "user%d %s%n", random.nextInt(60), random.nextInt(60), random.nextInt(1000),
+                    levels[random.nextInt(levels.length)], 1 + random.nextInt(4), 1 + random.nextInt(16),
+                    random.nextInt(100_000), events[random.nextInt(events.length)]));
+        }
+        return log.substring(0, length);
+    }
+
+    private static void payload(String name, byte[] payload, int level) throws IOException {
+        MessageCompressor compressor = new MessageCompressor(MessageCompressor.DEFAULT_MIN_BYTES, level);
+        byte[] deflated = null;
+        for (int i = 0; i < ROUNDS; i++) {
+            deflated = compressor.deflate(ByteBuffer.wrap(payload));
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < ROUNDS; i++) {
+            deflated = compressor.deflate(ByteBuffer.wrap(payload));
+        }
+        double deflateMicros = (System.nanoTime() - start) / 1e3 / ROUNDS;
+        double inflateMicros = 0;
+        if (deflated != null) {
+            for (int i = 0; i < ROUNDS; i++) {
+                MessageCompressor.inflate(deflated, FrameType.MAX_PAYLOAD_LENGTH);
+            }
+            start = System.nanoTime();
+            for (int i = 0; i < ROUNDS; i++) {
+                MessageCompressor.inflate(deflated, FrameType.MAX_PAYLOAD_LENGTH);
+            }
+            inflateMicros = (System.nanoTime() - start) / 1e3 / ROUNDS;
+        }
+        int length = deflated != null ? deflated.length : payload.length;
+        boolean tried = payload.length >= compressor.minBytes();
+        System.out.printf("%-11s %5d %9d %9s %8.2f %14.2f %14.2f %10s%n", name, level, payload.length,
+                deflated != null ? String.valueOf(length) : "-", (double) payload.length / length, deflateMicros,
+                inflateMicros, tried ? String.format("%.0f", payload.length / deflateMicros) : "-");
+    }
+
+    // What a round needs of the server under test.
+    private static final class Server {
+        final Supplier<WriteStats> writeStats;
+        final MessageCompressor compressor;
+
+        Server(Supplier<WriteStats> writeStats, MessageCompressor compressor) {
+            this.writeStats = writeStats;
+            this.compressor = compressor;
+        }
+    }
+
+    private static Server start(ServerOptions options) throws Exception {
+        Runnable server;
+        Server measured;
+        if (options.getMode() == ServerMode.NIO) {
+            NioChatServer nio = new NioChatServer(options);
+            measured = new Server(nio::getWriteStats, nio.getCompressor());
+            server = nio;
+        } else {
+            ChatServer threads = new ChatServer(options);
+            measured = new Server(threads::getWriteStats, threads.getCompressor());
+            server = threads;
+        }
+        Thread thread = new Thread(server, "Benchmark " + options.getMode() + " server");
+        thread.setDaemon(true);
+        thread.start();
+        Thread.sleep(500);
+        return measured;
+    }
+
+    /**
+     * Has one client paste the log into a room of members and prints what it took,
+     * unless given a round name for a round not to be printed.
+     */
+    private static void broadcast(Server server, ServerOptions options, boolean compress, int members,
+                                  int messages, String log, String round) throws Exception {
+        String name = (compress ? "deflate" : "plain") + (round != null ? "-" + round : "");
+        CountDownLatch received = new CountDownLatch(members * messages);
+        List<ChatConnection> connections = new ArrayList<>();
+        try {
+            for (int i = 0; i < members; i++) {
+                ChatConnection member = new ChatConnection("localhost", options.getPort(), true,
+                        NameChooser.fixed(name + "-" + i), message -> {
+                            if (message.startsWith(name + "-s: ")) {
+                                received.countDown();
+                            }
+                        });
+                if (compress) {
+                    member.useCompression();
+                }
+                connections.add(member);
+                member.connect().get(10, TimeUnit.SECONDS);
+            }
+            ChatConnection sender = new ChatConnection("localhost", options.getPort(), true,
+                    NameChooser.fixed(name + "-s"), message -> { }, messages);
+            connections.add(sender);
+            sender.connect().get(10, TimeUnit.SECONDS);
+
+            long bytes = server.writeStats.get().bytes();
+            long compressed = server.compressor.compressed();
+            long nanos = server.compressor.nanos();
+            long bytesIn = server.compressor.bytesIn();
+            long bytesOut = server.compressor.bytesOut();
+            long start = System.nanoTime();
+            for (int i = 0; i < messages; i++) {
+                if (!sender.send(log)) {
+                    throw new IOException("The sender was disconnected");
+                }
+            }
+            if (!received.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+                throw new IOException("Only " + (members * messages - received.getCount()) + " messages arrived");
+            }
+            double millis = (System.nanoTime() - start) / 1e6;
+            if (round != null) {
+                return;
+            }
+            long deflated = server.compressor.compressed() - compressed;
+            long out = server.compressor.bytesOut() - bytesOut;
+            System.out.printf("%-8s %-10s %8d %8d %12.1f %10.0f %8.2f %12.1f%n", options.getMode(),
+                    compress ? "deflate" : "plain", members, messages,
+                    (server.writeStats.get().bytes() - bytes) / 1e6, millis,
+                    out == 0 ? 1.0 : (double) (server.compressor.bytesIn() - bytesIn) / out,
+                    deflated == 0 ? 0.0 : (server.compressor.nanos() - nanos) / 1e3 / deflated);
+        } finally {
+            for (ChatConnection connection : connections) {
+                connection.close();
+            }
+        }
+    }
+}
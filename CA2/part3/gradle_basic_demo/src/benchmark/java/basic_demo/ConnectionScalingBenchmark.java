@@ -0,0 +1,98 @@
+package basic_demo;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+
+/**
+ * Compares the thread-per-client ChatServer with the NioChatServer as the number
+ * of connected clients grows. For every client count it measures:
+ *
+ *  - how long it takes for all clients to complete the SUBMITNAME handshake, or
+ *    how many got through before the server stopped answering new ones,
+ *  - how long one client's burst of messages takes to reach everybody,
+ *  - how many threads the JVM needs while all of them are connected.
+ *
+ * Both servers run inside this JVM on free local ports, with the simulated clients
+ * on the other end of loopback sockets. Every connection therefore uses two file
+ * descriptors, so raise "ulimit -n" before trying very large counts.
+ *
+ * Usage: ConnectionScalingBenchmark [client counts, e.g. 250,1000,2000] [messages]
+ */
+public class ConnectionScalingBenchmark {
+
+    // Well within any listen backlog, so SYN retries are not what gets measured (see ReconnectStormBenchmark).
+    private static final int MAX_PENDING_HANDSHAKES = 32;
+    private static final long STALL_MILLIS = 10_000;
+    private static final long DELIVERY_TIMEOUT_MILLIS = 120_000;
+
+    public static void main(String[] args) throws Exception {
+        String[] counts = (args.length > 0 ? args[0] : "250,1000,2000").split(",");
+        int messages = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+
+        int threadsPort = freePort();
+        start(new ChatServer(threadsPort), "threads");
+        int nioPort = freePort();
+        NioChatServer nio = new NioChatServer(nioPort, Runtime.getRuntime().availableProcessors());
+        start(nio, "nio");
+
+        System.out.printf("%-8s %8s %10s %14s %16s %12s%n",
+                "mode", "clients", "connected", "handshake ms", "deliveries/s", "jvm threads");
+        int round = 0;
+        for (String count : counts) {
+            int clients = Integer.parseInt(count.trim());
+            run("threads", threadsPort, clients, messages, round++);
+            run("nio", nioPort, clients, messages, round++);
+        }
+
+        nio.shutdown();
+        System.exit(0);
+    }
+
+    private static void run(String mode, int port, int clients, int messages, int round) throws IOException {
+        String prefix = "r" + round;
+        try (SimulatedClients simulated = new SimulatedClients(new InetSocketAddress("localhost", port), prefix, 0)) {
+            long start = System.nanoTime();
+            boolean connected = simulated.connect(clients, MAX_PENDING_HANDSHAKES, STALL_MILLIS);
+            long handshakeMillis = (System.nanoTime() - start) / 1_000_000;
+            if (!connected) {
+                handshakeMillis -= STALL_MILLIS;
+            }
+            int threads = ManagementFactory.getThreadMXBean().getThreadCount();
+
+            String throughput = "-";
+            if (connected) {
+                start = System.nanoTime();
+                for (int i = 0; i < messages; i++) {
+                    simulated.send(0, "message " + i);
+                }
+                long expected = (long) messages * clients;
+                if (simulated.awaitCounted(expected, DELIVERY_TIMEOUT_MILLIS)) {
+                    double seconds = (System.nanoTime() - start) / 1e9;
+                    throughput = String.format("%.0f", expected / seconds);
+                }
+            }
+
+            System.out.printf("%-8s %8d %10s %14s %16s %12d%n", mode, clients,
+                    simulated.accepted() + (connected ? "" : " (stalled)"),
+                    handshakeMillis,
+                    throughput, threads);
+        }
+        // Give the servers a moment to notice the disconnects before the next round.
+        try { Thread.sleep(1000); } catch (InterruptedException e) {}
+    }
+
+    private static void start(Runnable server, String name) throws InterruptedException {
+        Thread thread = new Thread(server, "Benchmark " + name + " server");
+        thread.setDaemon(true);
+        thread.start();
+        Thread.sleep(200);
+    }
+
+    static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package basic_demo;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * JMH benchmark of encoding one message, the part of a broadcast that is paid once
+ * whatever the size of the room: from a String (commands, frames), straight from
+ * the bytes a line arrived in, for a text of several lines, and turning a line
+ * into its frame for the framed clients. "-prof gc" adds the bytes allocated per
+ * message.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class EncodedMessageBenchmark {
+
+    @Param({"16", "128", "1024"})
+    public int textLength;
+
+    // Below and above EncodedMessage.DIRECT_THRESHOLD, i.e. heap and direct buffers.
+    @Param({"1", "100"})
+    public int recipients;
+
+    private byte[] prefix;
+    private String text;
+    private String lines;
+    private ByteBuffer received;
+
+    @Setup
+    public void setUp() {
+        prefix = EncodedMessage.encode("alice: ");
+        text = "x".repeat(textLength);
+        lines = "x".repeat(textLength / 2) + "\n" + "x".repeat(textLength / 2);
+        received = ByteBuffer.wrap(EncodedMessage.encode(text));
+    }
+
+    @Benchmark
+    public EncodedMessage fromString() {
+        return EncodedMessage.of(FrameType.MESSAGE, prefix, text, recipients);
+    }
+
+    @Benchmark
+    public EncodedMessage fromReceivedBytes() {
+        return EncodedMessage.of(FrameType.MESSAGE, prefix, received, recipients);
+    }
+
+    @Benchmark
+    public EncodedMessage twoLines() {
+        return EncodedMessage.of(FrameType.MESSAGE, prefix, lines, recipients);
+    }
+
+    @Benchmark
+    public EncodedMessage lineAndFrame() {
+        return EncodedMessage.of(FrameType.MESSAGE, prefix, received, recipients).framed();
+    }
+}
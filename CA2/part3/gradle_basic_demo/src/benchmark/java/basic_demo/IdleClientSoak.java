@@ -0,0 +1,88 @@
+package basic_demo;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.net.InetSocketAddress;
+
+/**
+ * Soak test for the virtual thread mode: parks tens of thousands of idle clients
+ * on one ChatServer and checks that a couple of active clients can still chat
+ * while they are all connected.
+ *
+ * Idle clients connect and receive SUBMITNAME but never answer it, so every one of
+ * them keeps a Handler blocked in Scanner.nextLine(), which is exactly the state
+ * that costs a platform thread per client in the pooled mode. (They deliberately
+ * stay anonymous: named clients would each be told about every other one joining,
+ * which is a quadratic amount of traffic unrelated to what is being soaked.)
+ * A server given an idle timeout disconnects clients that never logged in once it
+ * is over (see Heartbeats), so hold them for less than that.
+ *
+ * With no address the server runs in this JVM in the given mode, which needs two
+ * file descriptors per client; give the address of a server started separately to
+ * halve that, e.g. "20000 threads" or "20000 virtual 60 localhost:59001".
+ *
+ * Usage: IdleClientSoak [idle clients] [threads|virtual] [seconds to hold] [host:port]
+ */
+public class IdleClientSoak {
+
+    private static final int MAX_PENDING_HANDSHAKES = 32;
+    private static final long STALL_MILLIS = 10_000;
+
+    public static void main(String[] args) throws Exception {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 20_000;
+        ServerMode mode = args.length > 1 ? ServerMode.fromString(args[1]) : ServerMode.VIRTUAL;
+        int holdSeconds = args.length > 2 ? Integer.parseInt(args[2]) : 30;
+
+        InetSocketAddress address;
+        if (args.length > 3) {
+            String[] hostAndPort = args[3].split(":");
+            address = new InetSocketAddress(hostAndPort[0], Integer.parseInt(hostAndPort[1]));
+        } else {
+            int port = ConnectionScalingBenchmark.freePort();
+            Thread server = new Thread(new ChatServer(port, mode == ServerMode.VIRTUAL), "Soak server");
+            server.setDaemon(true);
+            server.start();
+            Thread.sleep(200);
+            address = new InetSocketAddress("localhost", port);
+        }
+
+        try (SimulatedClients idle = new SimulatedClients(address);
+             SimulatedClients active = new SimulatedClients(address, "soak", 0)) {
+            long start = System.nanoTime();
+            boolean connected = idle.connect(count, MAX_PENDING_HANDSHAKES, STALL_MILLIS);
+            long seconds = (System.nanoTime() - start) / 1_000_000_000L;
+            report(connected ? "all idle clients connected" : "no new client was greeted for 10s",
+                    idle.greeted() + " of " + count + " greeted in " + seconds + "s");
+
+            if (!active.connect(2, 2, STALL_MILLIS)) {
+                report("FAILED", "active clients could not join next to " + idle.greeted() + " idle ones");
+                System.exit(1);
+            }
+
+            long deadline = System.currentTimeMillis() + holdSeconds * 1000L;
+            int round = 0;
+            while (System.currentTimeMillis() < deadline) {
+                long sent = System.nanoTime();
+                active.send(0, "still here " + round++);
+                if (!active.awaitCounted(2L * round, STALL_MILLIS)) {
+                    report("FAILED", "a message between active clients was not delivered");
+                    System.exit(1);
+                }
+                report("round trip", (System.nanoTime() - sent) / 1000 + "us with "
+                        + idle.greeted() + " idle clients, " + stats());
+                Thread.sleep(1000);
+            }
+        }
+        System.exit(0);
+    }
+
+    private static String stats() {
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        return ManagementFactory.getThreadMXBean().getThreadCount() + " platform threads, "
+                + memory.getHeapMemoryUsage().getUsed() / (1024 * 1024) + " MB heap";
+    }
+
+    private static void report(String what, String detail) {
+        System.out.println(what + ": " + detail);
+    }
+}
@@ -0,0 +1,90 @@
+package basic_demo;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Scanner;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * JMH benchmark of the server's read path: splitting what a client sent into lines
+ * with Scanner.nextLine(), as the handlers used to, against the LineDecoder, both
+ * handing out views and decoding every line into a String. Scores are per line;
+ * run with "-prof gc" (as runLineDecoderBenchmark does) to see the bytes allocated
+ * per line next to the time.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class LineDecoderBenchmark {
+
+    private static final int LINES = 1000;
+
+    @Param({"16", "128", "1024"})
+    public int lineLength;
+
+    private byte[] input;
+    private BufferPool pool;
+
+    @Setup
+    public void setUp() {
+        StringBuilder text = new StringBuilder();
+        String line = "x".repeat(lineLength);
+        for (int i = 0; i < LINES; i++) {
+            text.append(line).append(i % 2 == 0 ? "\n" : "\r\n");
+        }
+        input = text.toString().getBytes(StandardCharsets.UTF_8);
+        pool = new BufferPool(1024, 16);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(LINES)
+    public void scanner(Blackhole blackhole) {
+        Scanner scanner = new Scanner(new ByteArrayInputStream(input));
+        while (scanner.hasNextLine()) {
+            blackhole.consume(scanner.nextLine());
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(LINES)
+    public void lineDecoderView(Blackhole blackhole) throws IOException {
+        ByteArrayInputStream in = new ByteArrayInputStream(input);
+        LineDecoder decoder = new LineDecoder(pool);
+        ByteBuffer line;
+        while ((line = decoder.readLine(in)) != null) {
+            blackhole.consume(line.remaining());
+        }
+        decoder.release();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(LINES)
+    public void lineDecoderString(Blackhole blackhole) throws IOException {
+        ByteArrayInputStream in = new ByteArrayInputStream(input);
+        LineDecoder decoder = new LineDecoder(pool);
+        ByteBuffer line;
+        while ((line = decoder.readLine(in)) != null) {
+            blackhole.consume(LineDecoder.decode(line));
+        }
+        decoder.release();
+    }
+}
@@ -0,0 +1,452 @@
+package basic_demo;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A headless load generator for a running chat server. It opens thousands of
+ * simulated clients, takes each of them through the SUBMITNAME handshake (and
+ * into a room, if asked to), then has them talk at a fixed total rate for a while
+ * and reports:
+ *
+ *  - the messages sent, and the rate actually reached against the one asked for,
+ *  - the deliveries, i.e. messages received by any client, per second,
+ *  - the drop rate: the deliveries that never arrived, counting every message as
+ *    due to every client connected when it was sent,
+ *  - the delivery latency (p50, p99, p999, max) from sending a message to each
+ *    client receiving it.
+ *
+ * Every message starts with the System.nanoTime() at which it was sent, which the
+ * receiving clients, in the same JVM, subtract from the time they read it. The
+ * clients are shared out over a few threads with a selector each, so the generator
+ * needs a handful of threads whatever the number of clients. A client whose socket
+ * can't take its next message right away skips that turn instead of queueing it,
+ * which shows up as a rate below the target.
+ *
+ * Usage: LoadGenerator host port [--clients=1000] [--senders=N] [--rate=1000]
+ *        [--duration=30] [--size=64] [--room=name] [--threads=4]
+ *
+ * --rate is messages per second over all senders, --senders how many of the clients
+ * talk (all of them by default), --duration the seconds of sending and --size the
+ * length of a message in bytes. A server in the default threads mode serves 500
+ * clients at most; the generator carries on with those that got through.
+ */
+public class LoadGenerator {
+
+    // The default listen backlog is 50, so more concurrent handshakes just measure SYN retries.
+    private static final int MAX_PENDING_HANDSHAKES = 32;
+    private static final long STALL_MILLIS = 10_000;
+    private static final long DRAIN_MILLIS = 5_000;
+    private static final int MAX_SIZE = 4000;
+
+    private static final byte[] SUBMITNAME = "SUBMITNAME".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] NAMEACCEPTED = "NAMEACCEPTED".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] IN_ROOM = "MESSAGE [server] you are in ".getBytes(StandardCharsets.US_ASCII);
+
+    private final InetSocketAddress server;
+    private final int clients;
+    private final int senders;
+    private final int rate;
+    private final int durationSeconds;
+    private final int size;
+    private final String room;
+    private final int threads;
+
+    // Names are "prefix-index"; the prefix is new for every run, so lines replayed
+    // from an earlier run's history are not mistaken for this one's.
+    private final String prefix = "load" + Long.toString(System.nanoTime() & 0xffffff, 36);
+    private final byte[] messageStart = ("MESSAGE " + prefix + "-").getBytes(StandardCharsets.US_ASCII);
+
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private final AtomicInteger ready = new AtomicInteger();
+    private final AtomicInteger lost = new AtomicInteger();
+    private final AtomicInteger refused = new AtomicInteger();
+    private final AtomicLong sent = new AtomicLong();
+    private final AtomicLong skipped = new AtomicLong();
+    private final AtomicLong due = new AtomicLong();
+    private final AtomicLong received = new AtomicLong();
+
+    private volatile boolean sending;
+    private volatile boolean stopped;
+
+    LoadGenerator(InetSocketAddress server, int clients, int senders, int rate, int durationSeconds, int size,
+                  String room, int threads) {
+        this.server = server;
+        this.clients = clients;
+        this.senders = senders;
+        this.rate = rate;
+        this.durationSeconds = durationSeconds;
+        this.size = size;
+        this.room = room;
+        this.threads = threads;
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.err.println("Usage: LoadGenerator host port [--clients=1000] [--senders=N] [--rate=1000]"
+                    + " [--duration=30] [--size=64] [--room=name] [--threads=4]");
+            System.exit(1);
+        }
+        InetSocketAddress server = new InetSocketAddress(args[0], ServerOptions.parseInt("port", args[1]));
+        int clients = 1000;
+        int senders = -1;
+        int rate = 1000;
+        int duration = 30;
+        int size = 64;
+        String room = null;
+        int threads = Math.min(4, Runtime.getRuntime().availableProcessors());
+        for (int i = 2; i < args.length; i++) {
+            String arg = args[i];
+            int separator = arg.indexOf('=');
+            if (!arg.startsWith("--") || separator < 0) {
+                throw new IllegalArgumentException("Options must look like --name=value: " + arg);
+            }
+            String name = arg.substring(2, separator);
+            String value = arg.substring(separator + 1);
+            switch (name) {
+                case "clients":
+                    clients = ServerOptions.parsePositive(name, value);
+                    break;
+                case "senders":
+                    senders = ServerOptions.parsePositive(name, value);
+                    break;
+                case "rate":
+                    rate = ServerOptions.parsePositive(name, value);
+                    break;
+                case "duration":
+                    duration = ServerOptions.parsePositive(name, value);
+                    break;
+                case "size":
+                    size = Math.min(ServerOptions.parsePositive(name, value), MAX_SIZE);
+                    break;
+                case "room":
+                    room = value;
+                    break;
+                case "threads":
+                    threads = ServerOptions.parsePositive(name, value);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option: --" + name);
+            }
+        }
+        new LoadGenerator(server, clients, senders < 0 ? clients : Math.min(senders, clients), rate, duration,
+                size, room, Math.min(threads, clients)).run();
+        System.exit(0);
+    }
+
+    void run() throws IOException, InterruptedException {
+        List<Worker> workers = new ArrayList<>();
+        for (int i = 0; i < threads; i++) {
+            // Clients i, i + threads, i + 2 * threads, ... belong to worker i.
+            int share = clients / threads + (i < clients % threads ? 1 : 0);
+            int talking = senders / threads + (i < senders % threads ? 1 : 0);
+            double perWorker = (double) rate * talking / Math.max(1, senders);
+            Worker worker = new Worker(i, share, talking, perWorker);
+            workers.add(worker);
+            worker.start();
+        }
+
+        long start = System.nanoTime();
+        long lastProgress = System.currentTimeMillis();
+        int readyBefore = 0;
+        while (ready.get() + refused.get() < clients && System.currentTimeMillis() - lastProgress < STALL_MILLIS) {
+            Thread.sleep(100);
+            if (ready.get() > readyBefore) {
+                readyBefore = ready.get();
+                lastProgress = System.currentTimeMillis();
+            }
+        }
+        System.out.printf("%d of %d clients ready in %d ms%s%n", ready.get(), clients,
+                (System.nanoTime() - start) / 1_000_000,
+                refused.get() > 0 ? " (" + refused.get() + " refused)" : ready.get() < clients ? " (stalled)" : "");
+
+        start = System.nanoTime();
+        sending = true;
+        Thread.sleep(durationSeconds * 1000L);
+        sending = false;
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        // Let what is still on its way arrive, as long as it keeps arriving.
+        long drainUntil = System.currentTimeMillis() + DRAIN_MILLIS;
+        long receivedBefore = -1;
+        while (received.get() < due.get() && System.currentTimeMillis() < drainUntil
+                && received.get() != receivedBefore) {
+            receivedBefore = received.get();
+            Thread.sleep(500);
+        }
+        stopped = true;
+        for (Worker worker : workers) {
+            worker.join();
+        }
+        report(seconds);
+    }
+
+    private void report(double seconds) {
+        LatencyHistogram.Snapshot snapshot = latency.snapshot();
+        long dueCount = due.get();
+        long receivedCount = received.get();
+        System.out.printf(Locale.ROOT, "clients   %d ready, %d lost during the run, %d talking%n",
+                ready.get(), lost.get(), senders);
+        System.out.printf(Locale.ROOT, "sent      %d messages of %d bytes in %.1f s: %.0f/s of %d/s asked (%d turns skipped)%n",
+                sent.get(), size, seconds, sent.get() / seconds, rate, skipped.get());
+        System.out.printf(Locale.ROOT, "delivered %d of %d: %.0f deliveries/s, %.3f%% dropped%n",
+                receivedCount, dueCount, receivedCount / seconds,
+                dueCount == 0 ? 0.0 : 100.0 * Math.max(0, dueCount - receivedCount) / dueCount);
+        System.out.printf(Locale.ROOT, "latency   p50=%.3f ms p99=%.3f ms p999=%.3f ms max=%.3f ms%n",
+                snapshot.valueAt(0.5) / 1e6, snapshot.valueAt(0.99) / 1e6, snapshot.valueAt(0.999) / 1e6,
+                snapshot.max() / 1e6);
+    }
+
+    /**
+     * A thread with a selector of its own, driving its share of the clients: their
+     * handshakes, their reads and, while sending, their messages at its share of the
+     * rate.
+     */
+    private class Worker extends Thread {
+        private final int index;
+        private final int count;
+        private final int talking;
+        private final long intervalNanos;
+        private final Selector selector;
+        private final List<Client> all = new ArrayList<>();
+        private final List<Client> speakers = new ArrayList<>();
+        private int opened;
+        private int pending;
+        private int nextSpeaker;
+        private long nextSend;
+
+        Worker(int index, int count, int talking, double rate) throws IOException {
+            super("Load generator " + index);
+            this.index = index;
+            this.count = count;
+            this.talking = talking;
+            this.intervalNanos = rate > 0 ? (long) (1e9 / rate) : Long.MAX_VALUE;
+            this.selector = Selector.open();
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (!stopped) {
+                    while (opened < count && pending < MAX_PENDING_HANDSHAKES) {
+                        open();
+                    }
+                    long timeout = 100;
+                    if (sending && !speakers.isEmpty()) {
+                        long now = System.nanoTime();
+                        if (nextSend == 0) {
+                            nextSend = now;
+                        }
+                        while (nextSend <= now) {
+                            speak();
+                            nextSend += intervalNanos;
+                        }
+                        timeout = Math.max(1, (nextSend - now) / 1_000_000);
+                    }
+                    selector.select(timeout);
+                    for (SelectionKey key : selector.selectedKeys()) {
+                        Client client = (Client) key.attachment();
+                        try {
+                            if (key.isConnectable()) {
+                                client.channel.finishConnect();
+                                key.interestOps(SelectionKey.OP_READ);
+                            } else if (key.isReadable()) {
+                                client.read();
+                            } else if (key.isWritable()) {
+                                client.flush();
+                            }
+                        } catch (IOException e) {
+                            client.close();
+                        }
+                    }
+                    selector.selectedKeys().clear();
+                }
+            } catch (IOException e) {
+                System.err.println(getName() + ": " + e);
+            } finally {
+                for (Client client : all) {
+                    try { client.channel.close(); } catch (IOException e) {}
+                }
+                try { selector.close(); } catch (IOException e) {}
+            }
+        }
+
+        private void open() throws IOException {
+            SocketChannel channel = SocketChannel.open();
+            channel.configureBlocking(false);
+            Client client = new Client(this, index + opened * threads, channel);
+            all.add(client);
+            opened++;
+            pending++;
+            if (channel.connect(server)) {
+                client.key = channel.register(selector, SelectionKey.OP_READ, client);
+            } else {
+                client.key = channel.register(selector, SelectionKey.OP_CONNECT, client);
+            }
+        }
+
+        void ready(Client client) {
+            pending--;
+            ready.incrementAndGet();
+            if (speakers.size() < talking) {
+                speakers.add(client);
+            }
+        }
+
+        void failed() {
+            pending--;
+        }
+
+        // The next speaker in turn says something stamped with the time.
+        private void speak() {
+            Client speaker = speakers.get(nextSpeaker);
+            nextSpeaker = (nextSpeaker + 1) % speakers.size();
+            if (speaker.closed || speaker.out.hasRemaining()) {
+                skipped.incrementAndGet();
+                return;
+            }
+            StringBuilder line = new StringBuilder(size + 1).append('t').append(System.nanoTime()).append(' ');
+            while (line.length() < size) {
+                line.append('x');
+            }
+            due.addAndGet(ready.get() - lost.get());
+            sent.incrementAndGet();
+            try {
+                speaker.write(line.toString());
+            } catch (IOException e) {
+                speaker.close();
+            }
+        }
+    }
+
+    private class Client {
+        private final Worker worker;
+        private final int index;
+        private final SocketChannel channel;
+        private final ByteBuffer in = ByteBuffer.allocate(8192);
+        private ByteBuffer out = ByteBuffer.allocate(0);
+        private SelectionKey key;
+        private boolean ready;
+        private boolean closed;
+
+        Client(Worker worker, int index, SocketChannel channel) {
+            this.worker = worker;
+            this.index = index;
+            this.channel = channel;
+        }
+
+        void read() throws IOException {
+            if (channel.read(in) < 0) {
+                close();
+                return;
+            }
+            in.flip();
+            long now = System.nanoTime();
+            int start = 0;
+            for (int i = 0; i < in.limit(); i++) {
+                if (in.get(i) == '\n') {
+                    line(start, i, now);
+                    start = i + 1;
+                }
+            }
+            in.position(start);
+            in.compact();
+            if (!in.hasRemaining()) {
+                throw new IOException("Line longer than " + in.capacity() + " bytes");
+            }
+        }
+
+        private void line(int start, int end, long now) throws IOException {
+            if (ready) {
+                if (startsWith(start, end, messageStart)) {
+                    delivered(start + messageStart.length, end, now);
+                }
+            } else if (startsWith(start, end, SUBMITNAME)) {
+                write(prefix + "-" + index);
+            } else if (startsWith(start, end, NAMEACCEPTED)) {
+                if (room == null) {
+                    becomeReady();
+                } else {
+                    write("/join " + room);
+                }
+            } else if (room != null && startsWith(start, end, IN_ROOM)) {
+                becomeReady();
+            }
+        }
+
+        private void becomeReady() {
+            ready = true;
+            worker.ready(this);
+        }
+
+        // The line is "MESSAGE prefix-index: t<nanos> xxx", with the start of "index" at from.
+        private void delivered(int from, int end, long now) {
+            int i = from;
+            while (i < end && in.get(i) != ':') {
+                i++;
+            }
+            i += 2;
+            if (i >= end || in.get(i) != 't') {
+                return;
+            }
+            long stamp = 0;
+            for (i++; i < end && in.get(i) >= '0' && in.get(i) <= '9'; i++) {
+                stamp = stamp * 10 + (in.get(i) - '0');
+            }
+            received.incrementAndGet();
+            latency.record(now - stamp);
+        }
+
+        private boolean startsWith(int start, int end, byte[] expected) {
+            if (end - start < expected.length) {
+                return false;
+            }
+            for (int i = 0; i < expected.length; i++) {
+                if (in.get(start + i) != expected[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        void write(String line) throws IOException {
+            out = ByteBuffer.wrap((line + "\n").getBytes(StandardCharsets.UTF_8));
+            flush();
+        }
+
+        // What the socket can't take now goes out when the selector says it is writable.
+        void flush() throws IOException {
+            channel.write(out);
+            if (out.hasRemaining()) {
+                key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+            } else {
+                key.interestOps(SelectionKey.OP_READ);
+            }
+        }
+
+        void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            if (ready) {
+                lost.incrementAndGet();
+            } else {
+                refused.incrementAndGet();
+                worker.failed();
+            }
+            try { channel.close(); } catch (IOException e) {}
+        }
+    }
+}
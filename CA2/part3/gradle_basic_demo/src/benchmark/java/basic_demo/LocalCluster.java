@@ -0,0 +1,123 @@
+package basic_demo;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Starts a cluster of chat servers on localhost, every node in a JVM of its own,
+ * and checks that messages said on one node reach the clients of every node
+ * exactly once. Each node gets the same number of simulated clients, all in the
+ * lobby; one client of the first node sends lines, and the clients on every node
+ * count the lines they receive from it.
+ *
+ * Usage: LocalCluster [nodes] [clients per node] [lines]
+ */
+public class LocalCluster {
+
+    private static final long TIMEOUT_MILLIS = 60_000;
+
+    public static void main(String[] args) throws Exception {
+        int nodes = args.length > 0 ? Integer.parseInt(args[0]) : 3;
+        int clients = args.length > 1 ? Integer.parseInt(args[1]) : 50;
+        int lines = args.length > 2 ? Integer.parseInt(args[2]) : 1000;
+
+        int[] ports = new int[nodes];
+        int[] peerPorts = new int[nodes];
+        for (int i = 0; i < nodes; i++) {
+            ports[i] = ConnectionScalingBenchmark.freePort();
+            peerPorts[i] = ConnectionScalingBenchmark.freePort();
+        }
+        // Room for every line and every join, should a link come up late.
+        int queueCapacity = lines + nodes * clients + 16;
+
+        List<Process> processes = new ArrayList<>();
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> processes.forEach(Process::destroy)));
+        for (int i = 0; i < nodes; i++) {
+            processes.add(startNode(ports[i], peerPorts, i, queueCapacity));
+        }
+        for (int port : ports) {
+            awaitListening(port);
+        }
+        // Give the links time to come up.
+        Thread.sleep(500);
+
+        List<SimulatedClients> simulated = new ArrayList<>();
+        try {
+            for (int i = 0; i < nodes; i++) {
+                SimulatedClients node = new SimulatedClients(new InetSocketAddress("localhost", ports[i]), "c", 0);
+                simulated.add(node);
+                if (!node.connect(clients, 32, TIMEOUT_MILLIS)) {
+                    System.out.println("node " + i + ": clients could not connect");
+                    return;
+                }
+            }
+            // Let the joins settle before counting.
+            Thread.sleep(500);
+
+            long start = System.nanoTime();
+            for (int i = 0; i < lines; i++) {
+                simulated.get(0).send(0, "line " + i);
+            }
+            System.out.printf("%-6s %10s %12s %12s %10s%n", "node", "clients", "expected", "received", "millis");
+            long expected = (long) lines * clients;
+            for (int i = 0; i < nodes; i++) {
+                SimulatedClients node = simulated.get(i);
+                boolean delivered = node.awaitCounted(expected, TIMEOUT_MILLIS);
+                long millis = (System.nanoTime() - start) / 1_000_000;
+                // Anything arriving after the expected total would be a duplicate.
+                node.awaitCounted(expected + 1, 500);
+                System.out.printf("%-6d %10d %12d %12d %10s%n", i, clients, expected, node.counted(),
+                        delivered ? millis : "timeout");
+            }
+        } finally {
+            simulated.forEach(SimulatedClients::close);
+            processes.forEach(Process::destroy);
+        }
+        System.exit(0);
+    }
+
+    private static void awaitListening(int port) throws IOException, InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (true) {
+            try {
+                new Socket("localhost", port).close();
+                return;
+            } catch (ConnectException e) {
+                if (System.currentTimeMillis() > deadline) {
+                    throw e;
+                }
+                Thread.sleep(100);
+            }
+        }
+    }
+
+    private static Process startNode(int port, int[] peerPorts, int node, int queueCapacity) throws IOException {
+        List<String> peers = new ArrayList<>();
+        for (int i = 0; i < peerPorts.length; i++) {
+            if (i != node) {
+                peers.add("localhost:" + peerPorts[i]);
+            }
+        }
+        List<String> command = new ArrayList<>();
+        command.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add("basic_demo.ChatServerApp");
+        command.add(String.valueOf(port));
+        command.add("--mode=nio");
+        command.add("--queue-capacity=" + queueCapacity);
+        command.add("--peer-port=" + peerPorts[node]);
+        if (!peers.isEmpty()) {
+            command.add("--peers=" + String.join(",", peers));
+        }
+        return new ProcessBuilder(command)
+                .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+                .redirectError(ProcessBuilder.Redirect.INHERIT)
+                .start();
+    }
+}
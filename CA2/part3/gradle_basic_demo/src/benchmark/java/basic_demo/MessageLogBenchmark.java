@@ -0,0 +1,118 @@
+package basic_demo;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * JMH benchmark of appends per second to a room's MessageLog, on its own and as
+ * part of a broadcast to the room's members, for every fsync policy. "off" runs
+ * the same broadcast without a transcript, which is what the log's cost on the
+ * broadcasting path is measured against.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class MessageLogBenchmark {
+
+    // A member that takes messages as fast as they come.
+    private static class Member implements RoomMember {
+        long received;
+
+        public String getName() {
+            return "member";
+        }
+
+        public Room getRoom() {
+            return null;
+        }
+
+        public void setRoom(Room room) {
+        }
+
+        public void send(EncodedMessage message) {
+            received++;
+        }
+
+        public void catchUp(EncodedMessage header, CatchUp catchUp) {
+            catchUp.close();
+        }
+    }
+
+    @Param({"off", "none", "interval", "message"})
+    public String fsync;
+
+    @Param({"100"})
+    public int members;
+
+    private Path directory;
+    private Transcript transcript;
+    private MessageLog log;
+    private Room room;
+    private EncodedMessage message;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("transcript");
+        if (!fsync.equals("off")) {
+            ServerOptions options = new ServerOptions(0);
+            options.setLogDirectory(directory.toString());
+            options.setLogFsync(FsyncPolicy.fromString(fsync));
+            options.setLogSegmentMegabytes(64);
+            options.setLogRetainedSegments(2);
+            transcript = new Transcript(options);
+            log = transcript.log("bench");
+        }
+        room = new Room("bench", null, null, log, null);
+        for (int i = 0; i < members; i++) {
+            room.add(new Member());
+        }
+        message = EncodedMessage.of(FrameType.MESSAGE, EncodedMessage.encode("alice: "),
+                "a line of about the length people chat in", members);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        if (transcript != null) {
+            transcript.close();
+        }
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.sorted(Comparator.reverseOrder()).forEach(file -> file.toFile().delete());
+        }
+    }
+
+    @Benchmark
+    public long append() {
+        if (log == null) {
+            return -1;
+        }
+        long sequence = log.append(message);
+        log.commit();
+        return sequence;
+    }
+
+    @Benchmark
+    public void broadcast() {
+        room.deliver(message);
+    }
+}
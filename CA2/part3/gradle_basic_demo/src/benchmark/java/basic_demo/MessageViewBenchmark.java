@@ -0,0 +1,114 @@
+package basic_demo;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import javax.swing.JTextArea;
+import javax.swing.SwingUtilities;
+
+/**
+ * Measures how the Swing client's message area copes with a busy room, headless.
+ * A producer thread plays the connection's reader, handing the area a steady rate
+ * of messages, first the way the client used to (an invokeLater and an append per
+ * message, the area growing forever) and then through a MessageView.
+ *
+ * For each it reports the refreshes the EDT did per second, how late a probe event
+ * queued every 10 ms ran (the delay a click or key press would see), how long the
+ * EDT needed after the last message to catch up (for the batched view that includes
+ * waiting for its next tick), and the lines left in the area.
+ *
+ * Usage: MessageViewBenchmark [messages per second] [seconds] [frames per second] [scrollback]
+ */
+public class MessageViewBenchmark {
+
+    private static final long PROBE_NANOS = 10_000_000L;
+
+    public static void main(String[] args) throws Exception {
+        System.setProperty("java.awt.headless", "true");
+        int rate = args.length > 0 ? Integer.parseInt(args[0]) : 20_000;
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+        int framesPerSecond = args.length > 2 ? Integer.parseInt(args[2]) : MessageView.DEFAULT_FRAMES_PER_SECOND;
+        int scrollback = args.length > 3 ? Integer.parseInt(args[3]) : MessageView.DEFAULT_SCROLLBACK;
+
+        System.out.printf("%-9s %10s %12s %14s %14s %12s %10s%n", "view", "messages", "refreshes/s",
+                "probe avg ms", "probe max ms", "catch-up ms", "lines");
+        run("per line", rate, seconds, null, 0);
+        run("batched", rate, seconds, area -> new MessageView(area, framesPerSecond, scrollback), framesPerSecond);
+        System.exit(0);
+    }
+
+    private interface ViewFactory {
+        MessageView create(JTextArea area);
+    }
+
+    private static void run(String label, int rate, int seconds, ViewFactory factory, int framesPerSecond)
+            throws Exception {
+        JTextArea area = new JTextArea(16, 50);
+        MessageView view = factory == null ? null : factory.create(area);
+        AtomicLong perLineRefreshes = new AtomicLong();
+        if (view != null) {
+            SwingUtilities.invokeAndWait(view::start);
+        }
+
+        AtomicLong probes = new AtomicLong();
+        AtomicLong probeDelay = new AtomicLong();
+        AtomicLong probeMax = new AtomicLong();
+        Thread prober = new Thread(() -> {
+            while (!Thread.currentThread().isInterrupted()) {
+                long queued = System.nanoTime();
+                SwingUtilities.invokeLater(() -> {
+                    long delay = System.nanoTime() - queued;
+                    probes.incrementAndGet();
+                    probeDelay.addAndGet(delay);
+                    probeMax.accumulateAndGet(delay, Math::max);
+                });
+                LockSupport.parkNanos(PROBE_NANOS);
+            }
+        }, "Probe");
+        prober.setDaemon(true);
+        prober.start();
+
+        long total = (long) rate * seconds;
+        long interval = 1_000_000_000L / rate;
+        long start = System.nanoTime();
+        for (long i = 0; i < total; i++) {
+            long due = start + i * interval;
+            long wait = due - System.nanoTime();
+            if (wait > 0) {
+                LockSupport.parkNanos(wait);
+            }
+            String message = "user" + (i % 100) + ": message number " + i;
+            if (view != null) {
+                view.append(message);
+            } else {
+                SwingUtilities.invokeLater(() -> {
+                    area.append(message + "\n");
+                    perLineRefreshes.incrementAndGet();
+                });
+            }
+        }
+        long produced = System.nanoTime();
+        if (view != null) {
+            // Whatever arrived after the last tick goes in on the next one.
+            LockSupport.parkNanos(2_000_000_000L / framesPerSecond);
+        }
+        SwingUtilities.invokeAndWait(() -> { });
+        long caughtUp = System.nanoTime();
+        prober.interrupt();
+        prober.join();
+        int[] lines = new int[1];
+        SwingUtilities.invokeAndWait(() -> {
+            if (view != null) {
+                view.stop();
+                view.flush();
+            }
+            lines[0] = area.getLineCount() - 1;
+        });
+
+        double elapsed = (produced - start) / 1e9;
+        long refreshes = view != null ? view.refreshes() : perLineRefreshes.get();
+        long probeCount = Math.max(1, probes.get());
+        System.out.printf("%-9s %10d %12.0f %14.2f %14.2f %12.1f %10d%n", label, total, refreshes / elapsed,
+                probeDelay.get() / 1e6 / probeCount, probeMax.get() / 1e6, (caughtUp - produced) / 1e6, lines[0]);
+    }
+}
@@ -0,0 +1,95 @@
+package basic_demo;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * JMH benchmark of the login path under a connection storm: every thread keeps
+ * reserving a name of its own, checking a taken one and releasing its name again,
+ * against a HashSet guarded by one monitor as the server used to and against the
+ * NameRegistry. Run it with -t 1, 2, 4, ... (up to the number of cores) to see how
+ * logins per second scale; with the monitor they flatten out, with the registry
+ * they grow with the threads.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(Threads.MAX)
+public class NameRegistryBenchmark {
+
+    private static final String TAKEN = "alice";
+
+    @State(Scope.Benchmark)
+    public static class Shared {
+        final Set<String> synchronizedNames = new HashSet<>();
+        final NameRegistry<Object> registry = new NameRegistry<>();
+        final AtomicInteger threads = new AtomicInteger();
+
+        @Setup
+        public void setUp() {
+            synchronizedNames.add(TAKEN);
+            registry.reserve(TAKEN, this);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Client {
+        final Object connection = new Object();
+        String name;
+        int login;
+        String[] names = new String[64];
+
+        @Setup
+        public void setUp(Shared shared) {
+            int thread = shared.threads.incrementAndGet();
+            for (int i = 0; i < names.length; i++) {
+                names[i] = "user-" + thread + "-" + i;
+            }
+        }
+
+        String next() {
+            return names[login++ & (names.length - 1)];
+        }
+    }
+
+    @Benchmark
+    public boolean synchronizedSet(Shared shared, Client client) {
+        String name = client.next();
+        boolean taken;
+        synchronized (shared.synchronizedNames) {
+            taken = !shared.synchronizedNames.add(TAKEN);
+        }
+        synchronized (shared.synchronizedNames) {
+            shared.synchronizedNames.add(name);
+        }
+        synchronized (shared.synchronizedNames) {
+            shared.synchronizedNames.remove(name);
+        }
+        return taken;
+    }
+
+    @Benchmark
+    public boolean nameRegistry(Shared shared, Client client) {
+        String name = client.next();
+        boolean taken = !shared.registry.reserve(TAKEN, client.connection);
+        shared.registry.reserve(name, client.connection);
+        shared.registry.release(name, client.connection);
+        return taken;
+    }
+}
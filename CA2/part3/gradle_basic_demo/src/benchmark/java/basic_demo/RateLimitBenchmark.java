@@ -0,0 +1,93 @@
+package basic_demo;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * JMH benchmark of what flood control adds to every message said: every thread is
+ * a client that keeps saying messages in the same room, with limits too high to
+ * ever throttle it, so only the bookkeeping is measured. It compares
+ *
+ *  - a client's own FloodControl, which only its reader uses,
+ *  - that and the room's RateLimit, one compare-and-set on state shared with
+ *    everybody else in the room,
+ *  - a token bucket counted the usual way, tokens and the time of the last refill,
+ *    behind one monitor for the room.
+ *
+ * Run it with -t 1, 2, 4, ... (up to the number of cores) to see how the room's
+ * bucket holds up when its members talk at once.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(Threads.MAX)
+public class RateLimitBenchmark {
+
+    private static final int LENGTH = 80;
+    private static final int UNREACHABLE = 1_000_000_000;
+
+    @State(Scope.Benchmark)
+    public static class Room {
+        final RateLimit limit = RateLimit.of(UNREACHABLE, UNREACHABLE, UNREACHABLE);
+        final SynchronizedBucket messages = new SynchronizedBucket(UNREACHABLE, UNREACHABLE);
+        final SynchronizedBucket bytes = new SynchronizedBucket(UNREACHABLE * 1024.0, UNREACHABLE * 1024.0);
+    }
+
+    @State(Scope.Thread)
+    public static class Client {
+        final FloodControl flood = new FloodControl(RateLimit.of(UNREACHABLE, UNREACHABLE, UNREACHABLE),
+                FloodControl.DEFAULT_STRIKES, TimeUnit.SECONDS.toNanos(FloodControl.DEFAULT_MUTE_SECONDS));
+    }
+
+    // The textbook bucket: refill from the time passed, then take, all under a lock.
+    static final class SynchronizedBucket {
+        private final double perNano;
+        private final double capacity;
+        private double tokens;
+        private long refilledAt = System.nanoTime();
+
+        SynchronizedBucket(double perSecond, double capacity) {
+            this.perNano = perSecond / 1e9;
+            this.capacity = capacity;
+            this.tokens = capacity;
+        }
+
+        synchronized boolean tryTake(long now, double taken) {
+            tokens = Math.min(capacity, tokens + (now - refilledAt) * perNano);
+            refilledAt = now;
+            if (tokens < taken) {
+                return false;
+            }
+            tokens -= taken;
+            return true;
+        }
+    }
+
+    @Benchmark
+    public FloodControl.Verdict client(Client client) {
+        return client.flood.admit(System.nanoTime(), LENGTH, null);
+    }
+
+    @Benchmark
+    public FloodControl.Verdict clientAndRoom(Room room, Client client) {
+        return client.flood.admit(System.nanoTime(), LENGTH, room.limit);
+    }
+
+    @Benchmark
+    public boolean synchronizedRoom(Room room) {
+        long now = System.nanoTime();
+        return room.messages.tryTake(now, 1) & room.bytes.tryTake(now, LENGTH);
+    }
+}
@@ -0,0 +1,120 @@
+package basic_demo;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.core.config.Configurator;
+
+/**
+ * Measures how long a server takes to get every client back after a network blip,
+ * when all of them reconnect at the same moment. For each server mode it compares
+ * the old single acceptor with the listen backlog of 50 the JDK asks for by
+ * default, a single acceptor with a deeper backlog, and several acceptors (see
+ * Acceptors) with the deeper backlog each.
+ *
+ * Each round connects all the clients at once, disconnects them together, waits
+ * for the server to see them all leave and connects them all at once again,
+ * reporting the time until the last of them had its name accepted, both times.
+ * That includes announcing every join to the lobby, as a real storm would.
+ *
+ * A connection that arrives while the backlog is full is dropped by the kernel and
+ * only comes back after a SYN retry, a second or more later; worse, Linux may drop
+ * the last packet of the handshake instead, leaving a client that believes it is
+ * connected waiting for a SUBMITNAME that never comes. Rounds in which clients stop
+ * getting through for 20 seconds are reported as stalled, with how many did.
+ *
+ * The thread pool server is left out: with more clients than its 500 threads, the
+ * rest would wait for a thread rather than for an acceptor. Every connection uses
+ * two file descriptors, so raise "ulimit -n" before trying very large counts.
+ *
+ * Usage: ReconnectStormBenchmark [clients] [acceptors] [backlog]
+ */
+public class ReconnectStormBenchmark {
+
+    private static final int DEFAULT_BACKLOG = 50;
+    // Longer than the gap between the kernel's first SYN retries, so that dropped
+    // connections coming back late are not taken for a server that stopped answering.
+    private static final long STALL_MILLIS = 20_000;
+    private static final long DRAIN_MILLIS = 60_000;
+
+    public static void main(String[] args) throws Exception {
+        int clients = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+        int acceptors = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+        int backlog = args.length > 2 ? Integer.parseInt(args[2]) : 1024;
+        // A log line per join and leave would time the console rather than the acceptors,
+        // and thousands of virtual threads contending for it can pin every carrier.
+        Configurator.setRootLevel(Level.WARN);
+
+        System.out.printf("%-8s %10s %8s %10s %12s %14s %s%n", "mode", "acceptors", "backlog", "connected",
+                "connect ms", "reconnect ms", "accepted per acceptor");
+        int round = 0;
+        for (ServerMode mode : new ServerMode[] {ServerMode.VIRTUAL, ServerMode.NIO}) {
+            run(mode, 1, DEFAULT_BACKLOG, clients, round++);
+            run(mode, 1, backlog, clients, round++);
+            run(mode, acceptors, backlog, clients, round++);
+        }
+        System.exit(0);
+    }
+
+    private static void run(ServerMode mode, int acceptors, int backlog, int clients, int round) throws Exception {
+        ServerOptions options = new ServerOptions(ConnectionScalingBenchmark.freePort());
+        options.setMode(mode);
+        options.setAcceptors(acceptors);
+        options.setAcceptBacklog(backlog);
+        options.setHistoryLines(0);
+        Acceptors accepting;
+        NameRegistry<?> names;
+        Runnable server;
+        NioChatServer nio = null;
+        if (mode == ServerMode.NIO) {
+            nio = new NioChatServer(options);
+            accepting = nio.getAcceptors();
+            names = nio.getNames();
+            server = nio;
+        } else {
+            ChatServer threads = new ChatServer(options);
+            accepting = threads.getAcceptors();
+            names = threads.getNames();
+            server = threads;
+        }
+        Thread thread = new Thread(server, "Benchmark " + mode + " server");
+        thread.setDaemon(true);
+        thread.start();
+        Thread.sleep(200);
+
+        InetSocketAddress address = new InetSocketAddress("localhost", options.getPort());
+        long[] connected = new long[1];
+        long connectMillis = storm(address, "r" + round + "a", clients, connected);
+        // Let the server see everybody leave first, so the second wave is not timed
+        // against the first one's departures.
+        long drained = System.currentTimeMillis() + DRAIN_MILLIS;
+        while (names.size() > 0 && System.currentTimeMillis() < drained) {
+            Thread.sleep(100);
+        }
+        Thread.sleep(1000);
+        long reconnectMillis = storm(address, "r" + round + "b", clients, connected);
+
+        System.out.printf("%-8s %10d %8d %10s %12s %14s %s%n", mode, acceptors, backlog,
+                connected[0] + "/" + clients, connectMillis < 0 ? "stalled" : connectMillis,
+                reconnectMillis < 0 ? "stalled" : reconnectMillis, accepting);
+        if (nio != null) {
+            nio.shutdown();
+        }
+    }
+
+    /**
+     * Opens every connection at once and returns the time until all of them were
+     * accepted, or -1 if the server stopped answering.
+     */
+    private static long storm(InetSocketAddress address, String prefix, int clients, long[] connected)
+            throws IOException {
+        try (SimulatedClients simulated = new SimulatedClients(address, prefix, 0)) {
+            long start = System.nanoTime();
+            boolean all = simulated.connect(clients, clients, STALL_MILLIS);
+            long millis = (System.nanoTime() - start) / 1_000_000;
+            connected[0] = simulated.accepted();
+            return all ? millis : -1;
+        }
+    }
+}
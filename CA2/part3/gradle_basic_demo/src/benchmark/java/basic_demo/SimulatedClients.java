@@ -0,0 +1,231 @@
+package basic_demo;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Many simulated chat clients driven from a single selector, so that a benchmark
+ * can open thousands of connections without needing thousands of threads of its
+ * own. Every client answers SUBMITNAME with "prefix-index" and counts the MESSAGE
+ * lines it receives from a chosen sender. Idle clients never answer SUBMITNAME:
+ * they just hold their connection open, each tying up whatever the server keeps
+ * per waiting client.
+ *
+ * Not thread safe: the selector is only polled from the thread calling the await
+ * methods.
+ */
+class SimulatedClients implements Closeable {
+
+    private static final byte[] SUBMITNAME = "SUBMITNAME".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] NAMEACCEPTED = "NAMEACCEPTED".getBytes(StandardCharsets.US_ASCII);
+
+    private final InetSocketAddress server;
+    private final String prefix;
+    private final byte[] countedPrefix;
+    private final boolean idle;
+    private final Selector selector;
+    private final List<Client> clients = new ArrayList<>();
+
+    private int greeted;
+    private int accepted;
+    private long counted;
+
+    /**
+     * @param sender index of the client whose messages are counted
+     */
+    SimulatedClients(InetSocketAddress server, String prefix, int sender) throws IOException {
+        this.server = server;
+        this.prefix = prefix;
+        this.countedPrefix = ("MESSAGE " + prefix + "-" + sender + ": ").getBytes(StandardCharsets.UTF_8);
+        this.idle = false;
+        this.selector = Selector.open();
+    }
+
+    /**
+     * Creates idle clients, which stop at the SUBMITNAME prompt.
+     */
+    SimulatedClients(InetSocketAddress server) throws IOException {
+        this.server = server;
+        this.prefix = null;
+        this.countedPrefix = new byte[0];
+        this.idle = true;
+        this.selector = Selector.open();
+    }
+
+    /** The number of clients that have been sent SUBMITNAME at least once. */
+    int greeted() {
+        return greeted;
+    }
+
+    int accepted() {
+        return accepted;
+    }
+
+    long counted() {
+        return counted;
+    }
+
+    /**
+     * Opens count connections, keeping at most maxPending handshakes in flight so that
+     * the listen backlog is not what gets measured. A handshake is complete at
+     * NAMEACCEPTED, or at the first SUBMITNAME for idle clients. Returns false once no
+     * handshake has completed for stallMillis.
+     */
+    boolean connect(int count, int maxPending, long stallMillis) throws IOException {
+        long deadline = System.currentTimeMillis() + stallMillis;
+        while (completed() < count) {
+            while (clients.size() < count && clients.size() - completed() < maxPending) {
+                open();
+            }
+            int before = completed();
+            if (!poll(deadline)) {
+                return false;
+            }
+            if (completed() > before) {
+                deadline = System.currentTimeMillis() + stallMillis;
+            }
+        }
+        return true;
+    }
+
+    private int completed() {
+        return idle ? greeted : accepted;
+    }
+
+    /**
+     * Waits until the counted messages reach the expected total. Returns false on timeout.
+     */
+    boolean awaitCounted(long expected, long timeoutMillis) throws IOException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (counted < expected) {
+            if (!poll(deadline)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    void send(int client, String line) throws IOException {
+        clients.get(client).write(line);
+    }
+
+    /**
+     * Sends all lines in one write, the way a pasted block or a script would arrive.
+     */
+    void sendBurst(int client, String[] lines) throws IOException {
+        clients.get(client).write(String.join("\n", lines));
+    }
+
+    private void open() throws IOException {
+        SocketChannel channel = SocketChannel.open();
+        channel.configureBlocking(false);
+        Client client = new Client(clients.size(), channel);
+        clients.add(client);
+        if (channel.connect(server)) {
+            channel.register(selector, SelectionKey.OP_READ, client);
+        } else {
+            channel.register(selector, SelectionKey.OP_CONNECT, client);
+        }
+    }
+
+    private boolean poll(long deadline) throws IOException {
+        long remaining = deadline - System.currentTimeMillis();
+        if (remaining <= 0) {
+            return false;
+        }
+        selector.select(Math.min(remaining, 100));
+        for (SelectionKey key : selector.selectedKeys()) {
+            Client client = (Client) key.attachment();
+            if (key.isConnectable()) {
+                client.channel.finishConnect();
+                key.interestOps(SelectionKey.OP_READ);
+            } else if (key.isReadable()) {
+                client.read();
+            }
+        }
+        selector.selectedKeys().clear();
+        return true;
+    }
+
+    public void close() {
+        for (Client client : clients) {
+            try { client.channel.close(); } catch (IOException e) {}
+        }
+        clients.clear();
+        try { selector.close(); } catch (IOException e) {}
+    }
+
+    private class Client {
+        private final int index;
+        private final SocketChannel channel;
+        private final ByteBuffer in = ByteBuffer.allocate(4096);
+
+        Client(int index, SocketChannel channel) {
+            this.index = index;
+            this.channel = channel;
+        }
+
+        void read() throws IOException {
+            if (channel.read(in) < 0) {
+                channel.close();
+                return;
+            }
+            in.flip();
+            int start = 0;
+            for (int i = 0; i < in.limit(); i++) {
+                if (in.get(i) == '\n') {
+                    line(start, i);
+                    start = i + 1;
+                }
+            }
+            in.position(start);
+            in.compact();
+        }
+
+        private boolean greetedOnce;
+
+        private void line(int start, int end) throws IOException {
+            if (startsWith(start, end, SUBMITNAME)) {
+                if (!greetedOnce) {
+                    greetedOnce = true;
+                    greeted++;
+                }
+                if (!idle) {
+                    write(prefix + "-" + index);
+                }
+            } else if (startsWith(start, end, NAMEACCEPTED)) {
+                accepted++;
+            } else if (startsWith(start, end, countedPrefix)) {
+                counted++;
+            }
+        }
+
+        private boolean startsWith(int start, int end, byte[] expected) {
+            if (end - start < expected.length) {
+                return false;
+            }
+            for (int i = 0; i < expected.length; i++) {
+                if (in.get(start + i) != expected[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        // Lines and bursts are small enough to always fit in an empty socket buffer.
+        void write(String line) throws IOException {
+            ByteBuffer data = ByteBuffer.wrap((line + "\n").getBytes(StandardCharsets.UTF_8));
+            while (data.hasRemaining()) {
+                channel.write(data);
+            }
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package basic_demo;
+
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * JMH benchmark of what a connection costs the timer that watches it for silence,
+ * with as many other connections already watched: a connection arriving and
+ * leaving again schedules a timeout and cancels it. It compares
+ *
+ *  - the TimingWheel the Heartbeats use, which takes constant time however many
+ *    timeouts are pending,
+ *  - a ScheduledThreadPoolExecutor, the usual timer, whose queue is a heap behind
+ *    one lock: scheduling and removing a cancelled task take up to logarithmic
+ *    time in the pending ones, and every thread scheduling contends for the lock.
+ *
+ * Scores are per connection. On one core both stay flat from a thousand to a
+ * hundred thousand pending timeouts, a new timeout rarely having far to climb in
+ * the heap; the wheel's gain is that its thread never sorts anything and that
+ * threads scheduling at once don't queue behind each other, so run it with -t
+ * as well.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class TimingWheelBenchmark {
+
+    private static final Runnable NOTHING = () -> { };
+    private static final long HEARTBEAT_NANOS = TimeUnit.SECONDS.toNanos(30);
+
+    @Param({"1000", "100000"})
+    public int connections;
+
+    private TimingWheel wheel;
+    private ScheduledThreadPoolExecutor executor;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        wheel = new TimingWheel("Benchmark wheel", TimeUnit.MILLISECONDS.toNanos(100), 512);
+        wheel.start();
+        executor = new ScheduledThreadPoolExecutor(1);
+        executor.setRemoveOnCancelPolicy(true);
+        // Spread over an interval, as connections that came at different times are.
+        for (int i = 0; i < connections; i++) {
+            long delay = HEARTBEAT_NANOS + HEARTBEAT_NANOS * i / connections;
+            wheel.schedule(NOTHING, delay);
+            executor.schedule(NOTHING, delay, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        wheel.close();
+        executor.shutdownNow();
+    }
+
+    @Benchmark
+    public void timingWheel() {
+        wheel.schedule(NOTHING, HEARTBEAT_NANOS).cancel();
+    }
+
+    @Benchmark
+    public void scheduledExecutor() {
+        executor.schedule(NOTHING, HEARTBEAT_NANOS, TimeUnit.NANOSECONDS).cancel(false);
+    }
+}
@@ -0,0 +1,233 @@
+package basic_demo;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.StandardSocketOptions;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.net.ssl.SSLContext;
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.core.config.Configurator;
+
+/**
+ * Measures what TLS (see TlsChannel) costs the chat servers, with a self-signed
+ * certificate made for the run.
+ *
+ * Handshakes: a few clients at a time connect to the TLS port, each waiting for the
+ * server's SUBMITNAME and hanging up, over and over. Once with every connection
+ * doing a full handshake, as a client that forgets its sessions would, and once
+ * with every connection but the first resuming the last session, as a reconnecting
+ * ChatConnection does. The server's metrics count which kind each one was.
+ *
+ * Messages: one client sends a stream of messages that another one receives, once
+ * over the plain port and once over the TLS port, to show what encrypting and
+ * decrypting every message adds on both ends.
+ *
+ * Both run against the virtual thread and the NIO servers. Client and server share
+ * the machine, so the rates are for both ends together.
+ *
+ * Usage: TlsBenchmark [handshakes] [concurrent clients] [messages]
+ */
+public class TlsBenchmark {
+
+    private static final char[] PASSWORD = "changeit".toCharArray();
+    private static final long TIMEOUT_MILLIS = 120_000;
+
+    public static void main(String[] args) throws Exception {
+        int handshakes = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        int concurrency = args.length > 1 ? Integer.parseInt(args[1]) : 8;
+        int messages = args.length > 2 ? Integer.parseInt(args[2]) : 200_000;
+        // A log line per join and leave would time the console rather than TLS.
+        Configurator.setRootLevel(Level.WARN);
+
+        Path directory = Files.createTempDirectory("tls-benchmark");
+        Path keystore = TlsContexts.selfSigned(directory.resolve("chat.p12"), PASSWORD);
+        try {
+            System.out.printf("%-8s %-9s %10s %12s %14s %10s %10s %10s%n", "mode", "handshake", "count",
+                    "per second", "server full", "resumed", "p50 ms", "p99 ms");
+            List<ServerOptions> servers = new ArrayList<>();
+            for (ServerMode mode : new ServerMode[] {ServerMode.VIRTUAL, ServerMode.NIO}) {
+                ServerOptions options = new ServerOptions(ConnectionScalingBenchmark.freePort());
+                options.setMode(mode);
+                options.setHistoryLines(0);
+                options.setQueueCapacity(messages);
+                options.setTlsPort(ConnectionScalingBenchmark.freePort());
+                options.setTlsKeystore(keystore.toString());
+                options.setTlsPassword(new String(PASSWORD));
+                ServerMetrics metrics = start(options);
+
+                for (boolean resume : new boolean[] {false, true}) {
+                    handshakes(options, metrics, keystore, resume, handshakes, concurrency);
+                }
+                servers.add(options);
+            }
+
+            System.out.printf("%n%-8s %-9s %10s %10s %14s %14s%n", "mode", "transport", "messages", "millis",
+                    "messages/s", "us/message");
+            for (ServerOptions options : servers) {
+                for (boolean tls : new boolean[] {false, true}) {
+                    // Warm up, so the first transport doesn't pay for the JIT.
+                    messages(options, keystore, tls, messages / 10, "warm-up");
+                    messages(options, keystore, tls, messages, null);
+                }
+            }
+        } finally {
+            Files.deleteIfExists(keystore);
+            Files.deleteIfExists(directory);
+        }
+        System.exit(0);
+    }
+
+    private static ServerMetrics start(ServerOptions options) throws Exception {
+        Runnable server;
+        ServerMetrics metrics;
+        if (options.getMode() == ServerMode.NIO) {
+            NioChatServer nio = new NioChatServer(options);
+            metrics = nio.getMetrics();
+            server = nio;
+        } else {
+            ChatServer threads = new ChatServer(options);
+            metrics = threads.getMetrics();
+            server = threads;
+        }
+        Thread thread = new Thread(server, "Benchmark " + options.getMode() + " server");
+        thread.setDaemon(true);
+        thread.start();
+        // The TLS port is bound once the keystore is loaded.
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (true) {
+            try (Socket probe = new Socket()) {
+                probe.connect(new InetSocketAddress("localhost", options.getTlsPort()));
+                return metrics;
+            } catch (IOException e) {
+                if (System.currentTimeMillis() > deadline) {
+                    throw e;
+                }
+                Thread.sleep(50);
+            }
+        }
+    }
+
+    private static void handshakes(ServerOptions options, ServerMetrics metrics, Path keystore, boolean resume,
+                                   int count, int concurrency) throws Exception {
+        // Warm up, so the first rounds of neither kind pay for the JIT.
+        connectAll(options, keystore, resume, count / 10, concurrency, new LatencyHistogram());
+
+        long full = metrics.fullHandshakes();
+        long resumed = metrics.resumedHandshakes();
+        LatencyHistogram latency = new LatencyHistogram();
+        long start = System.nanoTime();
+        connectAll(options, keystore, resume, count, concurrency, latency);
+        double seconds = (System.nanoTime() - start) / 1e9;
+        LatencyHistogram.Snapshot snapshot = latency.snapshot();
+        System.out.printf("%-8s %-9s %10d %12.0f %14d %10d %10.2f %10.2f%n", options.getMode(),
+                resume ? "resumed" : "full", count, count / seconds, metrics.fullHandshakes() - full,
+                metrics.resumedHandshakes() - resumed, snapshot.valueAt(0.5) / 1e6, snapshot.valueAt(0.99) / 1e6);
+    }
+
+    /**
+     * Makes count connections over concurrency threads, each thread with an SSLContext
+     * of its own, so that it resumes only its own sessions.
+     */
+    private static void connectAll(ServerOptions options, Path keystore, boolean resume, int count,
+                                   int concurrency, LatencyHistogram latency) throws Exception {
+        AtomicInteger remaining = new AtomicInteger(count);
+        List<Thread> threads = new ArrayList<>();
+        List<Exception> failures = new ArrayList<>();
+        for (int i = 0; i < concurrency; i++) {
+            SSLContext context = TlsContexts.trusting(keystore, PASSWORD);
+            threads.add(Thread.ofPlatform().name("Handshaking client " + i).start(() -> {
+                try {
+                    while (remaining.getAndDecrement() > 0) {
+                        long start = System.nanoTime();
+                        connect(options, context, resume);
+                        latency.record(System.nanoTime() - start);
+                    }
+                } catch (Exception e) {
+                    synchronized (failures) {
+                        failures.add(e);
+                    }
+                }
+            }));
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        if (!failures.isEmpty()) {
+            throw failures.get(0);
+        }
+    }
+
+    // Connects, reads the SUBMITNAME that follows the handshake, and hangs up.
+    private static void connect(ServerOptions options, SSLContext context, boolean resume) throws IOException {
+        try (SocketChannel channel = SocketChannel.open(new InetSocketAddress("localhost", options.getTlsPort()))) {
+            // As ChatConnection does.
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            TlsChannel tls = TlsChannel.client(channel, context, "localhost", options.getTlsPort());
+            InputStream in = tls.inputStream();
+            int read;
+            while ((read = in.read()) != '\n') {
+                if (read < 0) {
+                    throw new IOException("The server hung up before SUBMITNAME");
+                }
+            }
+            if (!resume) {
+                // Forgotten, so the next connection has nothing to resume.
+                tls.getSession().invalidate();
+            }
+        }
+    }
+
+    /**
+     * Sends the messages from one client to another and prints how long they took,
+     * unless given a round name for a round not to be printed.
+     */
+    private static void messages(ServerOptions options, Path keystore, boolean tls, int messages, String round)
+            throws Exception {
+        int port = tls ? options.getTlsPort() : options.getPort();
+        CountDownLatch received = new CountDownLatch(messages);
+        String name = (tls ? "tls" : "plain") + "-" + options.getMode() + (round != null ? "-" + round : "");
+        try (ChatConnection receiver = new ChatConnection("localhost", port, true, NameChooser.fixed(name + "-r"),
+                     message -> {
+                         if (message.startsWith(name + "-s: ")) {
+                             received.countDown();
+                         }
+                     });
+             ChatConnection sender = new ChatConnection("localhost", port, true, NameChooser.fixed(name + "-s"),
+                     message -> { }, messages)) {
+            if (tls) {
+                SSLContext context = TlsContexts.trusting(keystore, PASSWORD);
+                receiver.useTls(context);
+                sender.useTls(context);
+            }
+            receiver.connect().get(10, TimeUnit.SECONDS);
+            sender.connect().get(10, TimeUnit.SECONDS);
+            String text = "a message of about the length people type in a chat, give or take";
+            long start = System.nanoTime();
+            for (int i = 0; i < messages; i++) {
+                if (!sender.send(text)) {
+                    throw new IOException("The sender was disconnected");
+                }
+            }
+            if (!received.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+                throw new IOException("Only " + (messages - received.getCount()) + " messages arrived");
+            }
+            double millis = (System.nanoTime() - start) / 1e6;
+            if (round != null) {
+                return;
+            }
+            System.out.printf("%-8s %-9s %10d %10.0f %14.0f %14.2f%n", options.getMode(), tls ? "tls" : "plain",
+                    messages, millis, messages / millis * 1000, millis * 1000 / messages);
+        }
+    }
+}
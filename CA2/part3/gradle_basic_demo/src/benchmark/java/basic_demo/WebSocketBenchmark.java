@@ -0,0 +1,164 @@
+package basic_demo;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.WebSocket.Listener;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.core.config.Configurator;
+
+/**
+ * Measures what browsers cost the NIO server next to text clients.
+ *
+ * One text client sends messages to a room of members that are all text clients,
+ * all browsers on the WebSocket port (the JDK's WebSocket client), or half and half.
+ * It reports how long until every member had every message and the bytes the server
+ * wrote per message delivered. A WebSocket frame of a chat line is as long as the
+ * line or a byte longer, and is built once per message for all the browsers in the
+ * room, so the three rooms should come out close.
+ *
+ * Usage: WebSocketBenchmark [members] [messages]
+ */
+public class WebSocketBenchmark {
+
+    private static final long TIMEOUT_MILLIS = 120_000;
+    private static final String LINE = "a message of about the length people type in a chat, give or take a few words";
+
+    public static void main(String[] args) throws Exception {
+        int members = args.length > 0 ? Integer.parseInt(args[0]) : 100;
+        int messages = args.length > 1 ? Integer.parseInt(args[1]) : 500;
+        // A log line per join and leave would time the console rather than the server.
+        Configurator.setRootLevel(Level.WARN);
+
+        ServerOptions options = new ServerOptions(ConnectionScalingBenchmark.freePort());
+        options.setMode(ServerMode.NIO);
+        options.setWebSocketPort(ConnectionScalingBenchmark.freePort());
+        options.setHistoryLines(0);
+        // Early members also hear everyone after them join.
+        options.setQueueCapacity(messages + 2 * members);
+        NioChatServer server = new NioChatServer(options);
+        Thread thread = new Thread(server, "Benchmark NIO server");
+        thread.setDaemon(true);
+        thread.start();
+        Thread.sleep(500);
+
+        HttpClient http = HttpClient.newHttpClient();
+        System.out.printf("%-8s %8s %8s %10s %14s %14s%n", "room", "members", "messages", "millis",
+                "messages/s", "bytes/message");
+        String[] rooms = {"text", "web", "mixed"};
+        for (String room : rooms) {
+            // Warm up, so the first room doesn't pay for the JIT.
+            room(server, options, http, room, members, Math.max(1, messages / 10), "warm-up");
+        }
+        for (String room : rooms) {
+            room(server, options, http, room, members, messages, null);
+        }
+        System.exit(0);
+    }
+
+    // A browser that counts the messages of the sender.
+    private static final class Browser implements Listener {
+        private final String name;
+        private final String from;
+        private final CountDownLatch received;
+        private final StringBuilder text = new StringBuilder();
+
+        Browser(String name, String from, CountDownLatch received) {
+            this.name = name;
+            this.from = from;
+            this.received = received;
+        }
+
+        public CompletionStage<?> onText(java.net.http.WebSocket webSocket, CharSequence data, boolean last) {
+            text.append(data);
+            if (last) {
+                String message = text.toString();
+                text.setLength(0);
+                if (message.equals("SUBMITNAME")) {
+                    webSocket.sendText(name, true);
+                } else if (message.startsWith(from)) {
+                    received.countDown();
+                }
+            }
+            webSocket.request(1);
+            return null;
+        }
+    }
+
+    /**
+     * Has one text client send messages to a room of members and prints what it took,
+     * unless given a round name for a round not to be printed.
+     */
+    private static void room(NioChatServer server, ServerOptions options, HttpClient http, String room,
+                             int members, int messages, String round) throws Exception {
+        String name = room + (round != null ? "-" + round : "");
+        CountDownLatch received = new CountDownLatch(members * messages);
+        List<ChatConnection> connections = new ArrayList<>();
+        List<java.net.http.WebSocket> browsers = new ArrayList<>();
+        try {
+            for (int i = 0; i < members; i++) {
+                String member = name + "-" + i;
+                boolean web = room.equals("web") || room.equals("mixed") && i % 2 == 1;
+                if (web) {
+                    browsers.add(http.newWebSocketBuilder()
+                            .buildAsync(URI.create("ws://localhost:" + options.getWebSocketPort() + "/"),
+                                    new Browser(member, "MESSAGE " + name + "-s: ", received))
+                            .get(10, TimeUnit.SECONDS));
+                } else {
+                    ChatConnection text = new ChatConnection("localhost", options.getPort(), false,
+                            NameChooser.fixed(member), message -> {
+                                if (message.startsWith(name + "-s: ")) {
+                                    received.countDown();
+                                }
+                            });
+                    connections.add(text);
+                    text.connect().get(10, TimeUnit.SECONDS);
+                }
+            }
+            // Every browser has its name once the server knows them all.
+            long deadline = System.currentTimeMillis() + 10_000;
+            while (server.getNames().size() < members && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            ChatConnection sender = new ChatConnection("localhost", options.getPort(), false,
+                    NameChooser.fixed(name + "-s"), message -> { }, messages);
+            connections.add(sender);
+            sender.connect().get(10, TimeUnit.SECONDS);
+
+            long bytes = server.getWriteStats().bytes();
+            long start = System.nanoTime();
+            for (int i = 0; i < messages; i++) {
+                if (!sender.send(LINE)) {
+                    throw new IOException("The sender was disconnected");
+                }
+            }
+            if (!received.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+                throw new IOException("Only " + (members * messages - received.getCount()) + " messages arrived");
+            }
+            double millis = (System.nanoTime() - start) / 1e6;
+            if (round != null) {
+                return;
+            }
+            long delivered = (long) members * messages;
+            System.out.printf("%-8s %8d %8d %10.0f %14.0f %14.1f%n", room, members, messages, millis,
+                    delivered / millis * 1000, (double) (server.getWriteStats().bytes() - bytes) / delivered);
+        } finally {
+            for (ChatConnection connection : connections) {
+                connection.close();
+            }
+            for (java.net.http.WebSocket browser : browsers) {
+                browser.abort();
+            }
+            long deadline = System.currentTimeMillis() + 10_000;
+            while (server.getNames().size() > 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+        }
+    }
+}
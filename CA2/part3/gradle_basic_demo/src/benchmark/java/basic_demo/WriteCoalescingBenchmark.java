@@ -0,0 +1,96 @@
+package basic_demo;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+
+/**
+ * Measures socket writes (system calls) per delivered message with and without
+ * write coalescing. One client of a room pastes bursts of lines; every line is
+ * broadcast to the whole room, so each client's queue fills up faster than a
+ * write per message can drain it. The server's WriteStats then tell how many
+ * writes the deliveries took.
+ *
+ * Every server mode is run with --max-batch=1 (a write per message, as before)
+ * and with the given batch size, optionally with a flush window.
+ *
+ * Usage: WriteCoalescingBenchmark [clients] [bursts] [lines per burst] [max batch] [flush window us]
+ */
+public class WriteCoalescingBenchmark {
+
+    private static final long TIMEOUT_MILLIS = 60_000;
+
+    public static void main(String[] args) throws Exception {
+        int clients = args.length > 0 ? Integer.parseInt(args[0]) : 100;
+        int bursts = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+        int burstLines = args.length > 2 ? Integer.parseInt(args[2]) : 50;
+        int maxBatch = args.length > 3 ? Integer.parseInt(args[3]) : 64;
+        int windowMicros = args.length > 4 ? Integer.parseInt(args[4]) : 0;
+
+        System.out.printf("%-8s %9s %10s %12s %12s %15s %10s%n", "mode", "max batch", "window us",
+                "messages", "writes", "writes/message", "millis");
+        int round = 0;
+        for (ServerMode mode : new ServerMode[] {ServerMode.VIRTUAL, ServerMode.NIO}) {
+            for (int batch : new int[] {1, maxBatch}) {
+                ServerOptions options = new ServerOptions(ConnectionScalingBenchmark.freePort());
+                options.setMode(mode);
+                options.setMaxBatch(batch);
+                options.setFlushWindowMicros(batch == 1 ? 0 : windowMicros);
+                options.setQueueCapacity(bursts * burstLines);
+                run(options, clients, bursts, burstLines, round++);
+            }
+        }
+        System.exit(0);
+    }
+
+    private static void run(ServerOptions options, int clients, int bursts, int burstLines, int round)
+            throws IOException, InterruptedException {
+        WriteStats stats;
+        Runnable server;
+        if (options.getMode() == ServerMode.NIO) {
+            NioChatServer nio = new NioChatServer(options);
+            stats = nio.getWriteStats();
+            server = nio;
+        } else {
+            ChatServer blocking = new ChatServer(options);
+            stats = blocking.getWriteStats();
+            server = blocking;
+        }
+        Thread thread = new Thread(server, "Benchmark server");
+        thread.setDaemon(true);
+        thread.start();
+        Thread.sleep(200);
+
+        String prefix = "w" + round;
+        try (SimulatedClients simulated = new SimulatedClients(
+                new InetSocketAddress("localhost", options.getPort()), prefix, 0)) {
+            if (!simulated.connect(clients, 32, TIMEOUT_MILLIS)) {
+                System.out.println(options.getMode() + ": clients could not connect");
+                return;
+            }
+            Thread.sleep(500);
+            long writesBefore = stats.writes();
+            long messagesBefore = stats.messages();
+            long start = System.nanoTime();
+
+            String[] lines = new String[burstLines];
+            for (int burst = 0; burst < bursts; burst++) {
+                for (int i = 0; i < burstLines; i++) {
+                    lines[i] = "burst " + burst + " line " + i;
+                }
+                simulated.sendBurst(0, lines);
+            }
+            long expected = (long) bursts * burstLines * clients;
+            boolean delivered = simulated.awaitCounted(expected, TIMEOUT_MILLIS);
+            long millis = (System.nanoTime() - start) / 1_000_000;
+
+            long writes = stats.writes() - writesBefore;
+            long messages = stats.messages() - messagesBefore;
+            System.out.printf("%-8s %9d %10d %12d %12d %15.3f %10s%n", options.getMode(), options.getMaxBatch(),
+                    options.getFlushWindowMicros(), messages, writes,
+                    messages == 0 ? 0.0 : (double) writes / messages, delivered ? millis : "timeout");
+        }
+        if (server instanceof NioChatServer) {
+            ((NioChatServer) server).shutdown();
+        }
+    }
+}
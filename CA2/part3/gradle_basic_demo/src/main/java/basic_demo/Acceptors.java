@@ -0,0 +1,173 @@
+package basic_demo;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.LogManager;
+
+/**
+ * The threads that accept a server's connections. After a restart or a network
+ * blip every client reconnects at once, and a single accept loop, with the default
+ * listen backlog of 50, turns that into a queue: connections beyond the backlog
+ * are dropped by the kernel and only come back after a SYN retry a second or more
+ * later.
+ *
+ * With more than one acceptor, where the platform supports SO_REUSEPORT (Linux,
+ * the BSDs, macOS), every acceptor binds a listening socket of its own to the port
+ * and the kernel spreads incoming connections across them, each with its own
+ * backlog. Elsewhere the acceptors take turns accepting from a single socket, which
+ * still keeps one slow hand-off from holding up the rest.
+ *
+ * An acceptor hands every connection it accepts to its own group (see Handoff), so
+ * a server can give each acceptor a share of its handler threads or event loops
+ * rather than have them all contend for the same ones.
+ */
+final class Acceptors {
+
+    /** Takes over a connection an acceptor accepted. Called on the acceptor's thread. */
+    interface Handoff {
+        /**
+         * @param group the index of the acceptor, from 0 to count - 1
+         */
+        void accepted(SocketChannel channel, int group) throws IOException;
+    }
+
+    private final static Logger LOGGER = LogManager.getLogger(Acceptors.class);
+
+    private final String name;
+    private final int port;
+    private final int count;
+    private final int backlog;
+    private final AtomicLongArray accepted;
+    private ServerSocketChannel[] listeners;
+
+    Acceptors(String name, ServerOptions options) {
+        this(name, options.getPort(), options);
+    }
+
+    /** Acceptors for another port than the options' own, with the same settings. */
+    Acceptors(String name, int port, ServerOptions options) {
+        this.name = name;
+        this.port = port;
+        this.count = options.getAcceptors();
+        this.backlog = options.getAcceptBacklog();
+        this.accepted = new AtomicLongArray(count);
+    }
+
+    /**
+     * Opens and binds the listening sockets: one per acceptor if they can share the
+     * port, otherwise one for all of them.
+     */
+    void bind() throws IOException {
+        boolean reusePort = count > 1 && supportsReusePort();
+        listeners = new ServerSocketChannel[reusePort ? count : 1];
+        try {
+            for (int i = 0; i < listeners.length; i++) {
+                listeners[i] = ServerSocketChannel.open();
+                if (reusePort) {
+                    listeners[i].setOption(StandardSocketOptions.SO_REUSEPORT, true);
+                }
+                listeners[i].bind(new InetSocketAddress(port), backlog);
+            }
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+        LOGGER.info(name + " accepting on port " + port + " with " + count + " acceptor(s), "
+                + (reusePort ? "a socket each (SO_REUSEPORT)" : "one socket") + ", backlog " + backlog);
+    }
+
+    private static boolean supportsReusePort() {
+        try (ServerSocketChannel probe = ServerSocketChannel.open()) {
+            return probe.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /** Whether every acceptor has a socket of its own. */
+    boolean reusesPort() {
+        return listeners != null && listeners.length > 1;
+    }
+
+    /**
+     * Starts the other acceptors and becomes the first one, returning once the
+     * sockets are closed or accepting fails.
+     */
+    void run(Handoff handoff) {
+        startFrom(1, handoff);
+        accept(0, handoff);
+    }
+
+    /** Starts every acceptor on a thread of its own and returns at once. */
+    void start(Handoff handoff) {
+        startFrom(0, handoff);
+    }
+
+    private void startFrom(int first, Handoff handoff) {
+        for (int i = first; i < count; i++) {
+            int acceptor = i;
+            Thread thread = new Thread(() -> accept(acceptor, handoff), name + " Acceptor " + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    private void accept(int acceptor, Handoff handoff) {
+        ServerSocketChannel listener = listeners[acceptor % listeners.length];
+        while (true) {
+            SocketChannel channel;
+            try {
+                channel = listener.accept();
+            } catch (IOException e) {
+                if (listener.isOpen()) {
+                    LOGGER.error(name + " acceptor " + acceptor + " failed", e);
+                }
+                return;
+            }
+            accepted.incrementAndGet(acceptor);
+            try {
+                handoff.accepted(channel, acceptor);
+            } catch (IOException e) {
+                // The client went away before it could be set up; the others still count.
+                LOGGER.debug("Could not set up a connection: " + e);
+                try { channel.close(); } catch (IOException ignored) {}
+            }
+        }
+    }
+
+    /** The connections the given acceptor has accepted so far. */
+    long accepted(int acceptor) {
+        return accepted.get(acceptor);
+    }
+
+    int count() {
+        return count;
+    }
+
+    /** Stops accepting: closes the listening sockets, which ends every acceptor. */
+    void close() {
+        if (listeners == null) {
+            return;
+        }
+        for (ServerSocketChannel listener : listeners) {
+            if (listener != null) {
+                try { listener.close(); } catch (IOException e) {}
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder text = new StringBuilder("accepted");
+        for (int i = 0; i < count; i++) {
+            text.append(i == 0 ? " " : "/").append(accepted.get(i));
+        }
+        return text.toString();
+    }
+}
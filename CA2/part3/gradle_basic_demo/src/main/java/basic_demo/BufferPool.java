@@ -0,0 +1,43 @@
+package basic_demo;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * A pool of equally sized heap buffers, so that clients coming and going don't each
+ * allocate (and leave behind) a read buffer of their own. At most maxIdle buffers
+ * are kept; buffers released beyond that, or of another size, are left to the
+ * garbage collector.
+ */
+final class BufferPool {
+
+    private final int bufferSize;
+    private final ArrayBlockingQueue<ByteBuffer> idle;
+
+    BufferPool(int bufferSize, int maxIdle) {
+        this.bufferSize = bufferSize;
+        this.idle = new ArrayBlockingQueue<>(maxIdle);
+    }
+
+    int bufferSize() {
+        return bufferSize;
+    }
+
+    /** Returns a cleared buffer of bufferSize bytes. */
+    ByteBuffer acquire() {
+        ByteBuffer buffer = idle.poll();
+        return buffer != null ? buffer.clear() : ByteBuffer.allocate(bufferSize);
+    }
+
+    /** Hands a buffer back. The caller must not use it any more. */
+    void release(ByteBuffer buffer) {
+        if (buffer.capacity() == bufferSize && !buffer.isDirect()) {
+            idle.offer(buffer);
+        }
+    }
+
+    /** The number of buffers waiting to be reused. */
+    int idle() {
+        return idle.size();
+    }
+}
@@ -0,0 +1,213 @@
+package basic_demo;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.List;
+
+/**
+ * A stretch of a room's transcript on its way to one client, e.g. everything said
+ * since the client was last in the room. The lines go from the segment files to
+ * the socket with FileChannel.transferTo, which the kernel carries out without the
+ * bytes ever entering the JVM's heap.
+ *
+ * The transfer happens in chunks of about CHUNK_BYTES that always end at the end of
+ * a line, so a writer can send live messages in between chunks: a long catch-up
+ * delays what the room says meanwhile by a chunk at most, and never holds up any
+ * other client. A chunk that the socket took only part of has to be finished
+ * before anything else is written.
+ *
+ * The transcript holds text lines, so a client that speaks frames gets every line
+ * turned into a MESSAGE frame instead, and a WebSocket client into a WebSocket text
+ * frame, which does go through a heap buffer.
+ */
+final class CatchUp implements Closeable {
+
+    static final int CHUNK_BYTES = 64 * 1024;
+
+    private static final byte NEWLINE = '\n';
+
+    /** How the client the lines go to takes them. */
+    enum Wire {
+        LINES, FRAMES, WEB_SOCKET
+    }
+
+    /** A stretch of one segment file, from a byte offset to the end of its last line. */
+    static final class Part {
+        final FileChannel file;
+        final MappedByteBuffer lines;
+        long position;
+        final long end;
+
+        Part(FileChannel file, MappedByteBuffer lines, long position, long end) {
+            this.file = file;
+            this.lines = lines;
+            this.position = position;
+            this.end = end;
+        }
+    }
+
+    private final List<Part> parts;
+    private final long from;
+    private final long to;
+    private int current;
+    private long chunkEnd = -1;
+    private ByteBuffer frames;
+    private long framesStarted;
+
+    /**
+     * @param from the sequence number of the first line
+     * @param to the sequence number after the last line
+     */
+    CatchUp(List<Part> parts, long from, long to) {
+        this.parts = parts;
+        this.from = from;
+        this.to = to;
+    }
+
+    long from() {
+        return from;
+    }
+
+    long to() {
+        return to;
+    }
+
+    boolean isDone() {
+        skipFinishedParts();
+        return current == parts.size() && chunkEnd < 0;
+    }
+
+    /**
+     * The MESSAGE frames in the chunks started so far, for a client that speaks
+     * frames. A chunk that is under way counts in full.
+     */
+    long framesStarted() {
+        return framesStarted;
+    }
+
+    /** Whether a chunk was started and not yet written completely. */
+    boolean inChunk() {
+        return chunkEnd >= 0;
+    }
+
+    /**
+     * Writes the rest of the current chunk, or the next chunk if none is under way.
+     *
+     * @param framed whether to write the lines as MESSAGE frames
+     * @return true if the chunk has been written completely
+     */
+    boolean writeTo(WritableByteChannel channel, boolean framed) throws IOException {
+        return writeTo(channel, framed ? Wire.FRAMES : Wire.LINES);
+    }
+
+    boolean writeTo(WritableByteChannel channel, Wire wire) throws IOException {
+        if (chunkEnd < 0) {
+            skipFinishedParts();
+            if (current == parts.size()) {
+                return true;
+            }
+            startChunk(wire);
+        }
+        Part part = parts.get(current);
+        if (frames != null) {
+            channel.write(frames);
+            if (frames.hasRemaining()) {
+                return false;
+            }
+            frames = null;
+            part.position = chunkEnd;
+        } else {
+            while (part.position < chunkEnd) {
+                long written = part.file.transferTo(part.position, chunkEnd - part.position, channel);
+                if (written == 0) {
+                    return false;
+                }
+                part.position += written;
+            }
+        }
+        chunkEnd = -1;
+        return true;
+    }
+
+    private void skipFinishedParts() {
+        while (current < parts.size() && parts.get(current).position >= parts.get(current).end) {
+            current++;
+        }
+    }
+
+    // A chunk ends at the first line end after CHUNK_BYTES, or at the end of the part.
+    private void startChunk(Wire wire) {
+        Part part = parts.get(current);
+        long end = Math.min(part.position + CHUNK_BYTES, part.end);
+        while (end < part.end && part.lines.get((int) end - 1) != NEWLINE) {
+            end++;
+        }
+        chunkEnd = end;
+        if (wire != Wire.LINES) {
+            int count = countLines(part.lines, (int) part.position, (int) end);
+            frames = wire == Wire.FRAMES
+                    ? toFrames(part.lines, (int) part.position, (int) end, count)
+                    : toWebSocketFrames(part.lines, (int) part.position, (int) end, count);
+            framesStarted += count;
+        }
+    }
+
+    private static int countLines(MappedByteBuffer lines, int start, int end) {
+        int count = 0;
+        for (int i = start; i < end; i++) {
+            if (lines.get(i) == NEWLINE) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    // Every "MESSAGE payload" line becomes a MESSAGE frame with the payload.
+    private static ByteBuffer toFrames(MappedByteBuffer lines, int start, int end, int count) {
+        int skip = FrameType.MESSAGE.keyword().length + 1;
+        ByteBuffer frames = ByteBuffer.allocate(end - start + count * FrameType.HEADER_LENGTH);
+        int lineStart = start;
+        for (int i = start; i < end; i++) {
+            if (lines.get(i) == NEWLINE) {
+                int payload = Math.min(lineStart + skip, i);
+                frames.put(FrameType.MESSAGE.code()).putInt(i - payload);
+                frames.put(lines.slice(payload, i - payload));
+                lineStart = i + 1;
+            }
+        }
+        return frames.flip();
+    }
+
+    // Every line becomes a text frame of the line without its newline.
+    private static ByteBuffer toWebSocketFrames(MappedByteBuffer lines, int start, int end, int count) {
+        // The newlines make way for the headers, which take up to 10 bytes on a long line.
+        int length = end - start - count;
+        int lineStart = start;
+        for (int i = start; i < end; i++) {
+            if (lines.get(i) == NEWLINE) {
+                length += WebSocket.headerLength(i - lineStart);
+                lineStart = i + 1;
+            }
+        }
+        ByteBuffer frames = ByteBuffer.allocate(length);
+        lineStart = start;
+        for (int i = start; i < end; i++) {
+            if (lines.get(i) == NEWLINE) {
+                WebSocket.putHeader(frames, WebSocket.TEXT, i - lineStart);
+                frames.put(lines.slice(lineStart, i - lineStart));
+                lineStart = i + 1;
+            }
+        }
+        return frames.flip();
+    }
+
+    public void close() {
+        for (Part part : parts) {
+            try { part.file.close(); } catch (IOException e) {}
+        }
+    }
+}
@@ -3,16 +3,17 @@ package basic_demo;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.io.IOException;
-import java.io.PrintWriter;
-import java.net.Socket;
-import java.util.Scanner;
+import java.lang.reflect.InvocationTargetException;
+import java.util.concurrent.CountDownLatch;
 
 import java.awt.BorderLayout;
 import javax.swing.JFrame;
+import javax.swing.JLabel;
 import javax.swing.JOptionPane;
 import javax.swing.JScrollPane;
 import javax.swing.JTextArea;
 import javax.swing.JTextField;
+import javax.swing.SwingUtilities;
 
 /**
  * A simple Swing-based client for the chat server. Graphically it is a frame with a text
@@ -25,16 +26,30 @@ import javax.swing.JTextField;
  * sending the server arbitrary strings to be broadcast to all chatters connected to the
  * server. When the server sends a line beginning with "MESSAGE" then all characters
  * following this string should be displayed in its message area.
+ *
+ * Constructed with framed set, the client switches to the binary form of the protocol
+ * (see FrameType) after the server's first SUBMITNAME: the same exchange, carried in
+ * length-prefixed frames instead of lines, and asks for large messages to come
+ * compressed.
+ *
+ * The protocol itself is handled by a ChatConnection; this class only asks for the
+ * screen name in a dialog and shows what the connection's ChatListener hears. The
+ * listener runs on the connection's reader thread, so every change to the window is
+ * handed to the event dispatch thread. Messages are not handed over one by one: a
+ * MessageView collects them and adds them to the message area in batches, at most
+ * 30 times a second, keeping the last 5000 lines. The line above the messages shows
+ * how many arrive, and how many refreshes they took, each second.
  */
 public class ChatClient implements Runnable{
 
-    private String serverAddress;
-    private int serverPort;
-    private Scanner in;
-    private PrintWriter out;
+    private final ChatConnection connection;
+    private final CountDownLatch disconnected = new CountDownLatch(1);
     private JFrame frame = new JFrame("Chatter");
     private JTextField textField = new JTextField(50);
     private JTextArea messageArea = new JTextArea(16, 50);
+    private JLabel status = new JLabel(" ");
+    private final MessageView view = new MessageView(messageArea,
+            MessageView.DEFAULT_FRAMES_PER_SECOND, MessageView.DEFAULT_SCROLLBACK);
 
     /**
      * Constructs the client by laying out the GUI and registering a listener with the
@@ -44,63 +59,83 @@ public class ChatClient implements Runnable{
      * the server.
      */
     public ChatClient(String serverAddress, int serverPort) {
-        this.serverAddress = serverAddress;
-        this.serverPort = serverPort;
+        this(serverAddress, serverPort, false);
+    }
+
+    public ChatClient(String serverAddress, int serverPort, boolean framed) {
+        this.connection = new ChatConnection(serverAddress, serverPort, framed, attempt -> getName(),
+                new ChatListener() {
+                    public void nameAccepted(String name) {
+                        SwingUtilities.invokeLater(() -> {
+                            frame.setTitle("Chatter - " + name);
+                            textField.setEditable(true);
+                        });
+                    }
+
+                    public void messageReceived(String message) {
+                        view.append(message);
+                    }
+
+                    public void disconnected(IOException cause) {
+                        if (cause != null) {
+                            cause.printStackTrace();
+                        }
+                        disconnected.countDown();
+                    }
+                });
+        // Pasted logs are what make a chat window slow to fill, and they compress well.
+        connection.useCompression();
 
         textField.setEditable(false);
         messageArea.setEditable(false);
+        view.setStatsListener(status::setText);
+        frame.getContentPane().add(status, BorderLayout.NORTH);
         frame.getContentPane().add(textField, BorderLayout.SOUTH);
         frame.getContentPane().add(new JScrollPane(messageArea), BorderLayout.CENTER);
         frame.pack();
 
         frame.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
         frame.setVisible(true);
+        view.start();
 
         // Send on enter then clear to prepare for next message
         textField.addActionListener(new ActionListener() {
             public void actionPerformed(ActionEvent e) {
-                out.println(textField.getText());
+                connection.send(textField.getText());
                 textField.setText("");
             }
         });
     }
 
+    /**
+     * Asks for a screen name. Called on the connection's reader thread, so the dialog
+     * is shown on the event dispatch thread and waited for. Cancelling it disconnects.
+     */
     private String getName() {
-        return JOptionPane.showInputDialog(
-            frame,
-            "Choose a screen name:",
-            "Screen name selection",
-            JOptionPane.PLAIN_MESSAGE
-        );
+        String[] chosen = new String[1];
+        try {
+            SwingUtilities.invokeAndWait(() -> chosen[0] = JOptionPane.showInputDialog(
+                frame,
+                "Choose a screen name:",
+                "Screen name selection",
+                JOptionPane.PLAIN_MESSAGE
+            ));
+        } catch (InterruptedException | InvocationTargetException e) {
+            return null;
+        }
+        return chosen[0];
     }
 
     public void run() {
         try {
-            Socket socket = new Socket(serverAddress, serverPort);
-            in = new Scanner(socket.getInputStream());
-            out = new PrintWriter(socket.getOutputStream(), true);
-
-            while (in.hasNextLine()) {
-                String line = in.nextLine();
-                if (line.startsWith("SUBMITNAME")) {
-                    out.println(getName());
-                } else if (line.startsWith("NAMEACCEPTED")) {
-                    this.frame.setTitle("Chatter - " + line.substring(13));
-                    textField.setEditable(true);
-                } else if (line.startsWith("MESSAGE")) {
-                    messageArea.append(line.substring(8) + "\n");
-                }
-            }
-
-            socket.close();
-        }
-        catch(IOException e){
-            e.printStackTrace();
+            connection.connect();
+            disconnected.await();
+        } catch (InterruptedException e) {
+            connection.close();
         } finally {
+            SwingUtilities.invokeLater(view::stop);
             frame.setVisible(false);
             frame.dispose();
         }
     }
-
-    
-}
\ No newline at end of file
+}
@@ -2,20 +2,21 @@ package basic_demo;
 
 
 /**
- * A simple app that launches a chat client that connects to a chat room server. 
+ * A simple app that launches a chat client that connects to a chat room server.
+ * An optional third argument, --framed, makes the client use the binary protocol.
  */
 public class ChatClientApp {
 
     
     public static void main(String[] args) {
         
-        if (args.length != 2) {
-            System.err.println("Pass the server IP and Port as command line arguments");
+        if (args.length < 2 || args.length > 3 || (args.length == 3 && !args[2].equals("--framed"))) {
+            System.err.println("Pass the server IP and Port as command line arguments, optionally followed by --framed");
             return;
         }
 
         int serverPort = Integer.parseInt(args[1]);
-        ChatClient client = new ChatClient(args[0], serverPort);
+        ChatClient client = new ChatClient(args[0], serverPort, args.length == 3);
 
         Thread t = new Thread(client,"Chat client thread");
         t.start();
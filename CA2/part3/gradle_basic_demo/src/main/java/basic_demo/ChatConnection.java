@@ -0,0 +1,469 @@
+package basic_demo;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+
+import javax.net.ssl.SSLContext;
+
+/**
+ * A headless chat client, for bots, integrations and the Swing ChatClient alike.
+ * It speaks the same protocol as ChatClient always has, in lines or, constructed
+ * with framed set, in frames (see FrameType), but leaves what to do with it to the
+ * caller:
+ *
+ *  - the screen name comes from a NameChooser, asked again whenever the server
+ *    refuses a name,
+ *  - everything the server sends is handed to a ChatListener,
+ *  - send() never blocks: it queues the message on a bounded OutboundQueue, which
+ *    a writer thread of the connection's own empties, as many messages per write as
+ *    have queued up.
+ *
+ * connect() returns at once; the connection is made, and the name negotiated, on a
+ * reader thread, which goes on to read everything the server sends and call the
+ * listener. Reader and writer are virtual threads, so thousands of connections in
+ * one JVM cost little more than their sockets.
+ *
+ * A framed connection to a server that keeps sessions (see Session) can survive its
+ * socket: after the listener hears of the disconnect, reconnect() connects again and
+ * resumes the session, which gets the name back and the messages missed meanwhile.
+ * Messages sent while disconnected wait in the queue and go out once it is resumed;
+ * one that was already on its way when the connection dropped may be lost.
+ *
+ * Told to use TLS, the connection talks to the server's TLS port through a
+ * TlsChannel. Connections through the same SSLContext resume the TLS session of the
+ * one before, so reconnecting, or a bot opening many connections, only pays for one
+ * full handshake.
+ *
+ * A framed connection may ask the server to compress large messages, which pays
+ * off on slow links and in rooms where people paste logs.
+ */
+public class ChatConnection implements Closeable {
+
+    /** How many messages send() may queue ahead of the writer by default. */
+    public static final int DEFAULT_QUEUE_CAPACITY = 4096;
+
+    // The most messages the writer gathers into one write.
+    private static final int MAX_BATCH = 64;
+
+    private static final String SUBMITNAME = "SUBMITNAME";
+    private static final String NAMEACCEPTED = "NAMEACCEPTED";
+    private static final byte[] MESSAGE = "MESSAGE ".getBytes(StandardCharsets.US_ASCII);
+
+    // Read buffers of connections that closed, for the next ones in this JVM.
+    private static final BufferPool READ_BUFFERS = new BufferPool(1024, 256);
+
+    private final String host;
+    private final int port;
+    private final boolean framed;
+    private final NameChooser names;
+    private final ChatListener listener;
+    private final OutboundQueue<ByteBuffer> outbound;
+    private volatile CompletableFuture<String> accepted = new CompletableFuture<>();
+
+    private volatile SocketChannel channel;
+    // What is written to: the channel itself, or TLS on top of it.
+    private volatile GatheringByteChannel out;
+    private volatile SSLContext tlsContext;
+    // Whether to ask for compression, and whether the server agreed to it.
+    private volatile boolean compression;
+    private volatile boolean compressed;
+    private volatile Thread reader;
+    private volatile Thread writer;
+    private volatile String name;
+    // Set by close(), or when the connection ends with no session to resume.
+    private volatile boolean closed;
+    private volatile boolean reading;
+
+    // The session's token, or null if there is none, and the sequence number of the
+    // last MESSAGE frame received in it.
+    private volatile String session;
+    private volatile long lastSeen;
+
+    // What the writer took off the queue and has not written yet. Only one writer runs
+    // at a time, so what a dropped connection left unwritten goes out on the next.
+    private final ByteBuffer[] batch = new ByteBuffer[MAX_BATCH];
+    private int batched;
+
+    public ChatConnection(String host, int port, boolean framed, NameChooser names, ChatListener listener) {
+        this(host, port, framed, names, listener, DEFAULT_QUEUE_CAPACITY);
+    }
+
+    public ChatConnection(String host, int port, boolean framed, NameChooser names, ChatListener listener,
+                          int queueCapacity) {
+        this.host = host;
+        this.port = port;
+        this.framed = framed;
+        this.names = names;
+        this.listener = listener;
+        this.outbound = new OutboundQueue<>(queueCapacity, OverflowPolicy.DISCONNECT);
+    }
+
+    /**
+     * Speaks TLS to the server from the next connect() on, trusting the certificates
+     * the context trusts.
+     */
+    public void useTls(SSLContext context) {
+        this.tlsContext = context;
+    }
+
+    /**
+     * Asks the server for large messages to come compressed, from the next connect()
+     * on. Only a framed connection can; a text one ignores it.
+     */
+    public void useCompression() {
+        this.compression = true;
+    }
+
+    /** Whether the server agreed to compress messages on the current connection. */
+    public boolean isCompressed() {
+        return compressed;
+    }
+
+    /**
+     * Connects to the server and negotiates a name in the background.
+     *
+     * @return completes with the accepted name, or exceptionally if the connection
+     *         fails or the NameChooser gives up first
+     */
+    public CompletableFuture<String> connect() {
+        CompletableFuture<String> result = accepted;
+        reading = true;
+        reader = Thread.ofVirtual().name("Chat connection reader").start(this::read);
+        return result;
+    }
+
+    /**
+     * Connects again after the connection dropped, resuming the session: the server
+     * accepts the same name again and sends the messages missed meanwhile before any
+     * new ones. Should the server no longer hold the session, a name is negotiated
+     * anew, as on connect(). May be called from the listener's disconnected().
+     *
+     * @return completes with the accepted name, like connect()
+     * @throws IllegalStateException if the connection is still up, was closed, or has
+     *         no session to resume
+     */
+    public CompletableFuture<String> reconnect() {
+        if (reading || closed || session == null) {
+            throw new IllegalStateException(reading ? "Still connected" : "No session to resume");
+        }
+        accepted = new CompletableFuture<>();
+        channel = null;
+        return connect();
+    }
+
+    /** Whether the server gave this connection a session that reconnect() can resume. */
+    public boolean hasSession() {
+        return session != null;
+    }
+
+    /** The accepted screen name, or null while it is being negotiated. */
+    public String getName() {
+        return name;
+    }
+
+    public boolean isFramed() {
+        return framed;
+    }
+
+    /** Messages queued by send() and not yet written. */
+    public int queued() {
+        return outbound.depth();
+    }
+
+    /**
+     * Queues a message, or a command such as "/join dev", for the server. Messages sent
+     * before the name is accepted wait until it is.
+     *
+     * @return false if the connection is closed or the queue is full, in which case the
+     *         message is not sent
+     * @throws IllegalArgumentException if the message is too long for the protocol
+     */
+    public boolean send(String message) {
+        return !closed && outbound.offer(encode(FrameType.SEND, message));
+    }
+
+    /** Asks the server to end the session; the listener hears of it once it has. */
+    public void quit() {
+        if (!closed) {
+            session = null;
+            outbound.offer(framed ? encode(FrameType.QUIT, "") : encode(FrameType.SEND, "/quit"));
+        }
+    }
+
+    /**
+     * Closes the connection straight away, dropping whatever is still queued. A server
+     * that keeps sessions holds on to this one until it expires.
+     */
+    public void close() {
+        closed = true;
+        closeChannel();
+        Thread thread = reader;
+        if (thread != null && channel == null) {
+            // Still connecting: the reader closes the channel as soon as it has one.
+            thread.interrupt();
+        }
+    }
+
+    private ByteBuffer encode(FrameType type, String text) {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        if (framed) {
+            if (bytes.length > FrameType.MAX_PAYLOAD_LENGTH) {
+                throw new IllegalArgumentException("Message of " + bytes.length + " bytes exceeds "
+                        + FrameType.MAX_PAYLOAD_LENGTH);
+            }
+            return ByteBuffer.allocate(FrameType.HEADER_LENGTH + bytes.length)
+                    .put(type.code()).putInt(bytes.length).put(bytes).flip();
+        }
+        if (bytes.length >= LineDecoder.MAX_LINE_LENGTH) {
+            throw new IllegalArgumentException("Message of " + bytes.length + " bytes exceeds "
+                    + LineDecoder.MAX_LINE_LENGTH);
+        }
+        return ByteBuffer.allocate(bytes.length + 1).put(bytes).put((byte) '\n').flip();
+    }
+
+    // The reader: connects, negotiates the name, then hands everything read to the listener.
+    private void read() {
+        IOException cause = null;
+        try {
+            SocketChannel opened = SocketChannel.open(new InetSocketAddress(host, port));
+            opened.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            channel = opened;
+            if (closed) {
+                return;
+            }
+            // Not the channel itself: a read that blocks inside a monitor would pin the
+            // virtual thread to its carrier. The stream adaptors do not.
+            InputStream in;
+            SSLContext context = tlsContext;
+            if (context != null) {
+                TlsChannel tls = TlsChannel.client(opened, context, host, port);
+                out = tls;
+                in = tls.inputStream();
+            } else {
+                out = opened;
+                in = opened.socket().getInputStream();
+            }
+            if (framed) {
+                readFrames(in);
+            } else {
+                readLines(in);
+            }
+        } catch (EOFException e) {
+            // The server closed the connection.
+        } catch (IOException e) {
+            if (!closed) {
+                cause = e;
+            }
+        } finally {
+            if (session == null) {
+                closed = true;
+            }
+            closeChannel();
+            Thread thread = writer;
+            if (thread != null) {
+                thread.interrupt();
+                try {
+                    thread.join();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            reading = false;
+            accepted.completeExceptionally(cause != null ? cause : new IOException("Connection closed"));
+            listener.disconnected(cause);
+        }
+    }
+
+    private void readLines(InputStream in) throws IOException {
+        LineDecoder lines = new LineDecoder(READ_BUFFERS, FrameType.MAX_MESSAGE_LENGTH);
+        try {
+            int attempt = 0;
+            ByteBuffer line;
+            while ((line = lines.readLine(in)) != null) {
+                if (name != null && startsWith(line, MESSAGE)) {
+                    // The common case: decode the payload only.
+                    line.position(line.position() + MESSAGE.length);
+                    listener.messageReceived(LineDecoder.decode(line));
+                    continue;
+                }
+                String text = LineDecoder.decode(line);
+                if (text.startsWith(SUBMITNAME)) {
+                    write(encode(FrameType.NAME, chooseName(attempt++)));
+                } else if (text.startsWith(NAMEACCEPTED)) {
+                    accept(text.substring(NAMEACCEPTED.length()).trim());
+                } else if (text.equals("MESSAGE")) {
+                    listener.messageReceived("");
+                }
+            }
+        } finally {
+            lines.release();
+        }
+    }
+
+    private void readFrames(InputStream stream) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(stream));
+        // The greeting is always a text line; skip it and answer in frames.
+        while (in.readByte() != '\n') {
+            // Still in "SUBMITNAME".
+        }
+        boolean resuming = session != null;
+        ByteBuffer first = resuming
+                ? encode(FrameType.RESUME, session + " " + lastSeen)
+                : encode(FrameType.NAME, chooseName(0));
+        // Asked for ahead of the name, so that a resumed session replays compressed too.
+        ByteBuffer compress = compression
+                ? encode(FrameType.COMPRESS, MessageCompressor.DEFLATE)
+                : ByteBuffer.allocate(0);
+        compressed = false;
+        write(ByteBuffer.allocate(1 + compress.remaining() + first.remaining())
+                .put(FrameType.MAGIC).put(compress).put(first).flip());
+        int attempt = resuming ? 0 : 1;
+        long lost = 0;
+        while (true) {
+            Frame frame = Frame.read(in, FrameType.MAX_MESSAGE_LENGTH);
+            switch (frame.getType()) {
+                case COMPRESS:
+                    compressed = !frame.getPayload().isEmpty();
+                    break;
+                case PING:
+                    // The server's heartbeat: answering shows the connection is still alive.
+                    outbound.offer(encode(FrameType.PONG, frame.getPayload()));
+                    break;
+                case MESSAGE:
+                    // Compressed or not: Frame.read() inflates DEFLATED frames.
+                    lastSeen++;
+                    listener.messageReceived(frame.getPayload());
+                    break;
+                case SUBMITNAME:
+                    // The name is taken, or the session is gone.
+                    session = null;
+                    resuming = false;
+                    write(encode(FrameType.NAME, chooseName(attempt++)));
+                    break;
+                case SESSION:
+                    String[] parts = frame.getPayload().split(" ");
+                    long next = Long.parseLong(parts[1]);
+                    lost = next - lastSeen - 1;
+                    session = parts[0];
+                    lastSeen = next - 1;
+                    break;
+                case NAMEACCEPTED:
+                    accept(frame.getPayload());
+                    if (resuming) {
+                        listener.resumed(lost);
+                    }
+                    break;
+                default:
+                    break;
+            }
+        }
+    }
+
+    private String chooseName(int attempt) throws IOException {
+        String chosen = names.chooseName(attempt);
+        if (chosen == null) {
+            throw new IOException("No screen name was accepted");
+        }
+        return chosen;
+    }
+
+    private static boolean startsWith(ByteBuffer line, byte[] prefix) {
+        if (line.remaining() < prefix.length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if (line.get(line.position() + i) != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Until the name is accepted only the reader writes; afterwards only the writer does.
+    private void write(ByteBuffer data) throws IOException {
+        while (data.hasRemaining()) {
+            out.write(data);
+        }
+    }
+
+    private void accept(String acceptedName) {
+        name = acceptedName;
+        GatheringByteChannel open = out;
+        writer = Thread.ofVirtual().name("Chat connection writer " + acceptedName).start(() -> drain(open));
+        listener.nameAccepted(acceptedName);
+        accepted.complete(acceptedName);
+    }
+
+    /**
+     * The writer: waits for a message, then writes it along with whatever else has
+     * queued up by then in one gathering write. A writer only ever writes to the
+     * channel it was started for, and the reader waits for it to finish before the
+     * connection can be made again, so writers never overlap. Should the channel fail,
+     * the messages not yet written stay in the batch for the next writer, the one cut
+     * short starting over from its beginning.
+     */
+    private void drain(GatheringByteChannel channel) {
+        try {
+            resumeBatch();
+            while (true) {
+                if (batched == 0) {
+                    ByteBuffer first = outbound.take();
+                    batch[batched++] = first;
+                }
+                ByteBuffer next;
+                while (batched < MAX_BATCH && (next = outbound.poll()) != null) {
+                    batch[batched++] = next;
+                }
+                while (batch[batched - 1].hasRemaining()) {
+                    channel.write(batch, 0, batched);
+                }
+                Arrays.fill(batch, 0, batched, null);
+                batched = 0;
+            }
+        } catch (InterruptedException e) {
+            return;
+        } catch (IOException e) {
+            // Closing the channel ends the reader, which tells the listener.
+            try { channel.close(); } catch (IOException ignored) {}
+        }
+    }
+
+    // Drops what the last writer did write, and rewinds the message it was in the middle of.
+    private void resumeBatch() {
+        int kept = 0;
+        for (int i = 0; i < batched; i++) {
+            if (batch[i].hasRemaining()) {
+                batch[kept++] = batch[i].rewind();
+            }
+        }
+        Arrays.fill(batch, kept, batched, null);
+        batched = kept;
+    }
+
+    /**
+     * Breaks the connection the way a failing network would, leaving the session to
+     * be resumed. For tests.
+     */
+    void drop() {
+        closeChannel();
+    }
+
+    private void closeChannel() {
+        SocketChannel open = channel;
+        if (open != null) {
+            try { open.close(); } catch (IOException e) {}
+        }
+    }
+}
@@ -0,0 +1,39 @@
+package basic_demo;
+
+import java.io.IOException;
+
+/**
+ * Receives what happens on a ChatConnection. Every callback runs on the
+ * connection's reader thread, one at a time and in the order the server sent
+ * things, so a listener needs no locking of its own but should hand anything slow
+ * (or anything for a GUI) over to another thread rather than hold up the reads.
+ */
+public interface ChatListener {
+
+    /** The server accepted the name; messages may be sent from now on. */
+    default void nameAccepted(String name) {
+    }
+
+    /**
+     * A message from the room, e.g. "alice: hi" or "bob has joined". A framed client
+     * gets a message of several lines in one call; a text client gets a call per line.
+     */
+    void messageReceived(String message);
+
+    /**
+     * The connection was made again and its session resumed, just after nameAccepted().
+     * The messages missed while disconnected follow.
+     *
+     * @param lost how many missed messages the server no longer had, and won't follow
+     */
+    default void resumed(long lost) {
+    }
+
+    /**
+     * The connection is gone, whether the server closed it or close() was called.
+     *
+     * @param cause what broke the connection, or null if it was closed in an orderly way
+     */
+    default void disconnected(IOException cause) {
+    }
+}
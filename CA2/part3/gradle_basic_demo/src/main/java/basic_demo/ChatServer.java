@@ -1,15 +1,26 @@
 package basic_demo;
 
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
 import java.io.IOException;
-import java.io.PrintWriter;
-import java.net.ServerSocket;
-import java.net.Socket;
-import java.util.Set;
-import java.util.HashSet;
-import java.util.NoSuchElementException;
-import java.util.Scanner;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.net.ssl.SSLContext;
 
 import org.apache.logging.log4j.Logger;
 import org.apache.logging.log4j.LogManager;
@@ -23,46 +34,277 @@ import org.apache.logging.log4j.LogManager;
  * from that client will be broadcast to all other clients that have submitted a
  * unique screen name. The broadcast messages are prefixed with "MESSAGE".
  *
+ * A client may answer the first SUBMITNAME with FrameType.MAGIC instead of a name
+ * and speak the binary, length-prefixed form of the same protocol from then on
+ * (see FrameType); the server answers it in frames, while text clients on the same
+ * port keep getting lines.
+ *
+ * Each client is serviced by a Handler that blocks on the client's socket. The
+ * handlers run either on a fixed pool of platform threads or, when constructed
+ * with virtualThreads set, on a virtual thread each, which removes the pool's
+ * ceiling on concurrent clients and the cost of a platform stack per client. The
+ * shared names and room members are kept in concurrent collections rather than
+ * behind synchronized blocks, so a virtual thread that blocks while broadcasting never
+ * pins its carrier thread on a monitor. Names are reserved in a NameRegistry with a
+ * single atomic operation, so logins don't queue up behind one another.
+ *
+ * Clients talk in rooms (see RoomRegistry): a message goes to the members of the
+ * sender's room only, so its cost grows with the room rather than the server.
+ * Given a peer port, the server joins a cluster of chat servers (see Federation)
+ * and its rooms span every node.
+ *
+ * Lines are read with a LineDecoder, whose buffers come from a pool shared by all
+ * handlers; an ordinary message is broadcast straight from the bytes it arrived in,
+ * without being decoded into a String.
+ *
+ * Broadcasting never writes to another client's socket directly. Every client
+ * owns a bounded OutboundQueue drained by a writer task of its own, so a client
+ * that stops reading only ever delays itself; when its queue fills up the
+ * configured OverflowPolicy decides what to give up. A broadcast line is encoded
+ * only once into an EncodedMessage, and every writer sends the same bytes through
+ * its own view of them. Sockets are accepted through a (blocking)
+ * ServerSocketChannel so that writers can hand those buffers straight to the
+ * socket's channel; a configurable number of Acceptors accept them, each handing
+ * its clients to a pool of handler threads of its own. A writer sends everything
+ * that has queued up since its last write in one gathering write, optionally
+ * waiting a short flush window for more.
+ *
+ * A framed client's connection may drop without it leaving: the server gives every
+ * framed client a Session, numbering the MESSAGE frames written to it, and holds on
+ * to a client whose connection dropped for a grace period. A client that reconnects
+ * in time with the session's token and the last number it saw gets its name back,
+ * without its room hearing it leave or join, and is sent the frames it missed.
+ *
+ * Given a TLS port, the server accepts clients there too, with acceptors of their
+ * own. Their handlers and writers read and write through a TlsChannel, which does
+ * TLS with an SSLEngine in those same threads, and a client that reconnects can
+ * resume its TLS session rather than pay for a full handshake again.
+ *
+ * A framed client may ask for large messages to come compressed (see
+ * MessageCompressor). A message is then compressed once, by the thread that
+ * broadcasts it, for every member of the room that asked.
+ *
+ * Given rate limits, every handler keeps its client from flooding its room (see
+ * FloodControl): a client over its limit has its handler wait before reading on,
+ * and one that keeps at it is muted and in the end disconnected.
+ *
+ * A client the server hasn't heard from for a while is sent a PING, and one that
+ * could have answered but stays silent is disconnected (see Heartbeats), so a
+ * connection that died without closing doesn't keep its handler, name and writer
+ * for good.
+ *
+ * The server keeps ServerMetrics on its connections, messages and broadcast
+ * latencies, which a client gets with "/metrics" and, given a metrics port, a
+ * MetricsEndpoint serves over HTTP.
+ *
  * This is just a teaching example so it can be enhanced in many ways, e.g.,
  * better logging. Another is to accept a lot of fun commands, like Slack.
  */
 public class ChatServer implements Runnable{
 
-    // All client names, so we can check for duplicates upon registration.
-    private static Set<String> names;
+    // The name of every client, so we can check for duplicates upon registration.
+    private final NameRegistry<Handler> names = new NameRegistry<>();
+
+    // The rooms, each with the clients in it, used for broadcast.
+    private final RoomRegistry rooms;
 
-    // The set of all the print writers for all the clients, used for broadcast.
-    private static Set<PrintWriter> writers;
+    // The other nodes of the cluster, or null if the server runs on its own.
+    private final Federation federation;
 
-    private int serverPort;
+    // The rooms' logs on disk, or null if none are kept.
+    private final Transcript transcript;
+
+    // The sessions whose connection dropped, by token, until they are resumed or expire.
+    private final ConcurrentHashMap<String, Handler> detached = new ConcurrentHashMap<>();
+
+    // Ends the sessions nobody resumed, or null if clients get no sessions.
+    private final ScheduledExecutorService expiries;
+
+    // Pings the silent clients and disconnects the dead ones, or null if it is off.
+    private final Heartbeats heartbeats;
+
+    private static final EncodedMessage SUBMITNAME = EncodedMessage.of(FrameType.SUBMITNAME, "");
+
+    private static final int HANDLER_THREADS = 500;
+
+    private ServerOptions options;
+    private final WriteStats writeStats = new WriteStats();
+    private final ServerMetrics metrics;
+    // Compresses large messages for the clients that ask for it, or null if the server won't.
+    private final MessageCompressor compressor;
+
+    // Read buffers of clients that left, for the next clients to come.
+    private final BufferPool readBuffers = new BufferPool(1024, 1024);
+
+    private final Acceptors acceptors;
+    // Those of the TLS port, or null if there is none, and the context of its sessions.
+    private final Acceptors tlsAcceptors;
+    private SSLContext tlsContext;
+    // The handlers of each acceptor's clients, and the writers of all clients; set by run().
+    private ExecutorService[] pools;
+    private ExecutorService writerPool;
 
     public ChatServer(int serverPort){
-        names = new HashSet<String>();
-        writers = new HashSet<PrintWriter>();
-        this.serverPort = serverPort;
+        this(serverPort, false);
+    }
+
+    public ChatServer(int serverPort, boolean virtualThreads){
+        this(withMode(new ServerOptions(serverPort), virtualThreads ? ServerMode.VIRTUAL : ServerMode.THREADS));
+    }
+
+    public ChatServer(ServerOptions options){
+        this.options = options;
+        this.federation = options.getPeerPort() > 0 ? new Federation(options) : null;
+        this.transcript = options.getLogDirectory() != null ? new Transcript(options) : null;
+        this.expiries = options.getSessionGraceMillis() > 0
+                ? Executors.newSingleThreadScheduledExecutor(task -> {
+                    Thread thread = new Thread(task, "Session expiry");
+                    thread.setDaemon(true);
+                    return thread;
+                })
+                : null;
+        this.compressor = MessageCompressor.of(options);
+        this.metrics = new ServerMetrics(writeStats,
+                () -> names.holders().stream().mapToInt(handler -> handler.outbound.depth()), compressor);
+        this.heartbeats = Heartbeats.of(options, metrics);
+        this.rooms = new RoomRegistry(federation, options.getHistoryLines(), options.getHistoryKilobytes() * 1024,
+                transcript, metrics.getBroadcastLatency(), () -> RateLimit.ofRoom(options),
+                options.getMaxRooms());
+        this.acceptors = new Acceptors("Chat server", options);
+        this.tlsAcceptors = options.getTlsPort() > 0
+                ? new Acceptors("Chat server TLS", options.getTlsPort(), options) : null;
+    }
+
+    /** Socket writes against messages written, over all clients. */
+    public WriteStats getWriteStats() {
+        return writeStats;
+    }
+
+    /** Connections, message rates, queue depths and broadcast latencies. */
+    ServerMetrics getMetrics() {
+        return metrics;
+    }
+
+    /** What compresses messages for the clients that ask, or null if compression is off. */
+    MessageCompressor getCompressor() {
+        return compressor;
+    }
+
+    /** The names in use, with counters of how contended reserving them has been. */
+    NameRegistry<?> getNames() {
+        return names;
+    }
+
+    private static ServerOptions withMode(ServerOptions options, ServerMode mode) {
+        options.setMode(mode);
+        return options;
     }
 
     public void run() {
-        ExecutorService pool = Executors.newFixedThreadPool(500);
-        ServerSocket listener;
+        boolean virtualThreads = options.getMode() == ServerMode.VIRTUAL;
+        // Every acceptor hands its clients to a pool of its own, the platform threads
+        // split evenly between them.
+        pools = new ExecutorService[acceptors.count()];
+        ExecutorService virtualPool = virtualThreads ? Executors.newVirtualThreadPerTaskExecutor() : null;
+        for (int i = 0; i < pools.length; i++) {
+            pools[i] = virtualThreads
+                    ? virtualPool
+                    : Executors.newFixedThreadPool(Math.max(1, HANDLER_THREADS / pools.length));
+        }
+        // Writers only exist for clients whose handler is running, so they are bounded by the pool too.
+        writerPool = virtualThreads
+                ? Executors.newVirtualThreadPerTaskExecutor()
+                : Executors.newCachedThreadPool();
         try {
-            listener = new ServerSocket(serverPort);
-            while (true) {
-                pool.execute(new Handler(listener.accept()));
+            if (tlsAcceptors != null) {
+                // A keystore that won't do stops the server before anyone connects.
+                tlsContext = TlsContexts.server(options);
             }
+            acceptors.bind();
+            if (tlsAcceptors != null) {
+                tlsAcceptors.bind();
+                tlsAcceptors.start(this::acceptedTls);
+            }
+            if (federation != null) {
+                federation.start(rooms);
+            }
+            if (options.getMetricsPort() > 0) {
+                MetricsEndpoint.start(options.getMetricsPort(), metrics);
+            }
+            acceptors.run(this::accepted);
         } catch (IOException e) {
             e.printStackTrace();
-        }        
+        }
+    }
+
+    private void accepted(SocketChannel socket, int group) {
+        metrics.accepted();
+        pools[group].execute(new Handler(socket, null, options, writerPool, writeStats, readBuffers));
+    }
+
+    private void acceptedTls(SocketChannel socket, int group) throws IOException {
+        metrics.accepted();
+        // The handshake ends with the server writing twice running, its session ticket
+        // and then SUBMITNAME; Nagle's algorithm would hold the second back until the
+        // client's delayed ACK.
+        socket.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        TlsChannel tls = TlsChannel.server(socket, tlsContext, metrics::handshake);
+        pools[group].execute(new Handler(socket, tls, options, writerPool, writeStats, readBuffers));
+    }
+
+    /** The threads accepting connections, with how many each has accepted. */
+    Acceptors getAcceptors() {
+        return acceptors;
     }
 
     /**
      * The client handler task.
+     *
+     * A framed client gets a Session while sessions are on. When its connection drops
+     * without a QUIT, the handler does not clean up but detaches: the client keeps its
+     * name and room, the room goes on queueing messages for it, and nobody hears that
+     * it left. A new connection that presents the session's token within the grace
+     * period takes the handler over (see resume()); otherwise the session expires and
+     * the client leaves as usual.
      */
-    private static class Handler implements Runnable {
+    private class Handler implements Runnable, RoomMember, Heartbeats.Client {
         private String name;
-        private Socket socket;
-        private Scanner in;
-        private PrintWriter out;
+        private volatile Room room;
+        private volatile SocketChannel socket;
+        // What is written to: the socket itself, or TLS on top of it.
+        private volatile GatheringByteChannel out;
+        private final TlsChannel tls;
+        private InputStream in;
+        private final LineDecoder lines;
+        private volatile DataInputStream frames;
+        private volatile boolean framed;
+        // The server's compressor once the client asked for compression, otherwise null.
+        private volatile MessageCompressor compression;
+        private final OutboundQueue<EncodedMessage> outbound;
+        private final ExecutorService writerPool;
+        private Future<?> writer;
+        private final WriteStats writeStats;
+        private final WriteStats serverWriteStats;
+        private final WriteBatch batch;
+        private final long flushWindowNanos;
+        // Keeps the client within its rate limits, or null if there are none.
+        private final FloodControl flood;
+
+        // Held for every write once the writer task runs. Fair, so a catch-up and the
+        // writer take turns.
+        private final ReentrantLock writeLock = new ReentrantLock(true);
+
+        // The client's session, or null if it has none; guarded by the write lock. A
+        // writer whose socket failed waits on reattached for the session to be resumed.
+        private Session session;
+        private final Condition reattached = writeLock.newCondition();
+        // Counts the detaches, so that only the expiry of the latest one ends the session.
+        private volatile long detaches;
+        private volatile boolean quit;
+        private volatile boolean evicted;
+        // When the client last sent anything, and whether it got past the name request.
+        private volatile long lastHeard = System.nanoTime();
+        private volatile boolean loggedIn;
 
         private final static Logger LOGGER = LogManager.getLogger(Handler.class);
 
@@ -71,80 +313,553 @@ public class ChatServer implements Runnable{
          * work is done in the run method. Remember the constructor is called from the
          * server's main method, so this has to be as short as possible.
          */
-        public Handler(Socket socket) {
+        public Handler(SocketChannel socket, TlsChannel tls, ServerOptions options, ExecutorService writerPool,
+                       WriteStats serverWriteStats, BufferPool readBuffers) {
             this.socket = socket;
+            this.tls = tls;
+            this.out = tls != null ? tls : socket;
+            this.lines = new LineDecoder(readBuffers);
+            this.outbound = new OutboundQueue<>(options.getQueueCapacity(), options.getOverflowPolicy());
+            this.writerPool = writerPool;
+            this.serverWriteStats = serverWriteStats;
+            this.writeStats = new WriteStats(serverWriteStats);
+            this.batch = new WriteBatch(options.getMaxBatch(), writeStats);
+            this.flushWindowNanos = options.getFlushWindowMicros() * 1000L;
+            this.flood = FloodControl.of(options);
         }
 
         /**
-         * Services this thread's client by repeatedly requesting a screen name until a
-         * unique one has been submitted, then acknowledges the name and registers the
-         * output stream for the client in a global set, then repeatedly gets inputs and
-         * broadcasts them.
+         * Services this thread's client: finds out whether it speaks lines or frames,
+         * logs it in, then serves it, or the session it resumed, until it leaves.
          */
         public void run() {
+            Handler client = null;
+            Heartbeats.Watch watch = heartbeats != null ? heartbeats.watch(this) : null;
             try {
-                in = new Scanner(socket.getInputStream());
-                out = new PrintWriter(socket.getOutputStream(), true);
+                // Not the channel itself: a read that blocks inside a monitor would pin a
+                // virtual thread to its carrier. The stream adaptors do not.
+                in = tls != null ? tls.inputStream() : socket.socket().getInputStream();
 
-                // Keep requesting a name until we get a unique one.
-                while (true) {
-                    out.println("SUBMITNAME");
-                    name = in.nextLine();
-                    if (name == null) {
-                        return;
-                    }
-                    synchronized (names) {
-                        if (!name.isEmpty() && !names.contains(name)) {
-                            names.add(name);
-                            LOGGER.info("A new user has joined: " + name);
-                            break;
-                        }
+                // The answer to the first name request also tells whether the client
+                // speaks lines or frames.
+                write(SUBMITNAME);
+                if (lines.readFrom(in) < 0) {
+                    return;
+                }
+                if (lines.peek() == FrameType.MAGIC) {
+                    framed = true;
+                    byte[] unread = lines.drain();
+                    frames = new DataInputStream(new SequenceInputStream(
+                            new ByteArrayInputStream(unread, 1, unread.length - 1), new BufferedInputStream(in)));
+                }
+                client = login();
+            } catch (EOFException e){
+                return;
+            } catch (IOException e) {
+                LOGGER.debug("A client logging in went away: " + e);
+            } catch (RuntimeException e) {
+                LOGGER.error("Could not log a client in", e);
+            } finally {
+                if (watch != null) {
+                    watch.cancel();
+                }
+                if (client == null) {
+                    if (name != null) {
+                        names.release(name, this);
                     }
+                    lines.release();
+                    try { socket.close(); } catch (IOException e) {}
+                    metrics.disconnected();
                 }
+            }
+            if (client != null) {
+                client.serve();
+            }
+        }
 
-                // Now that a successful name has been chosen, add the socket's print writer
-                // to the set of all writers so this client can receive broadcast messages.
-                // But BEFORE THAT, let everyone else know that the new person has joined!
-                out.println("NAMEACCEPTED " + name);
-                for (PrintWriter writer : writers) {
-                    writer.println("MESSAGE " + name + " has joined");
+        /**
+         * Keeps requesting a name until a unique one has been submitted, then
+         * acknowledges the name and puts the client in the lobby, so it can receive
+         * broadcast messages. A framed client may instead resume a session.
+         *
+         * @return the handler to serve the client from now on, which is this one unless
+         *         a session was resumed, or null if the client hung up
+         */
+        private Handler login() throws IOException {
+            while (true) {
+                if (framed) {
+                    Frame frame = nextFrame();
+                    if (frame == null) {
+                        return null;
+                    }
+                    if (frame.getType() == FrameType.RESUME) {
+                        Handler resumed = resume(frame.getPayload());
+                        if (resumed != null) {
+                            lines.release();
+                            return resumed;
+                        }
+                        write(SUBMITNAME);
+                        continue;
+                    }
+                    name = frame.getPayload();
+                } else {
+                    name = nextInput();
+                    if (name == null) {
+                        return null;
+                    }
                 }
-                synchronized(writers){
-                    writers.add(out);
+                if (NameRegistry.isValidName(name) && names.reserve(name, this)) {
+                    LOGGER.info("A new user has joined: " + name);
+                    break;
                 }
- 
-                // Accept messages from this client and broadcast them.
+                write(SUBMITNAME);
+            }
+
+            // Entering lets everyone in the lobby know that the new person has joined
+            // first. From here on only the writer task writes to the socket.
+            if (framed && expiries != null) {
+                session = new Session(options.getSessionReplayLines());
+                write(EncodedMessage.of(FrameType.SESSION, session.token() + " " + session.nextSequence()));
+            }
+            write(EncodedMessage.of(FrameType.NAMEACCEPTED, name));
+            writer = writerPool.submit(this::drain);
+            loggedIn = true;
+            rooms.enter(this);
+            return this;
+        }
+
+        /**
+         * Accepts messages from the client and broadcasts them until it quits or its
+         * connection ends, and then either detaches the client's session or lets the
+         * client leave.
+         */
+        private void serve() {
+            // Watched anew: the connection may be one that resumed the session.
+            Heartbeats.Watch watch = heartbeats != null ? heartbeats.watch(this) : null;
+            try {
+                // Everything this client says starts the same way, so encode that part only once.
+                byte[] messagePrefix = EncodedMessage.encode(name + ": ");
+
                 while (true) {
-                    String input = in.nextLine();
-                    if (input.toLowerCase().startsWith("/quit")) {
+                    String input;
+                    if (framed) {
+                        input = nextInput();
+                    } else {
+                        ByteBuffer line = lines.readLine(in);
+                        lastHeard = System.nanoTime();
+                        if (line != null && !LineDecoder.startsWith(line, '/')) {
+                            // Not a command, so it never needs to become a String.
+                            FloodControl.Verdict verdict = admit(line.remaining());
+                            if (verdict == FloodControl.Verdict.DISCONNECT) {
+                                return;
+                            }
+                            if (verdict == FloodControl.Verdict.SEND) {
+                                metrics.received();
+                                room.broadcast(messagePrefix, line);
+                            }
+                            throttle();
+                            continue;
+                        }
+                        input = line == null ? null : LineDecoder.decode(line);
+                    }
+                    if (input == null || input.toLowerCase().startsWith("/quit")) {
+                        quit = true;
+                        return;
+                    }
+                    if (input.toLowerCase().startsWith("/stats")) {
+                        send(EncodedMessage.of(FrameType.MESSAGE, "[server] outbound queue " + outbound
+                                + ", writes " + writeStats + ", server writes " + serverWriteStats
+                                + ", " + names + (federation != null ? ", " + federation : "")));
+                        continue;
+                    }
+                    if (input.toLowerCase().startsWith("/metrics")) {
+                        send(EncodedMessage.of(FrameType.MESSAGE, "[server] " + metrics.summary()));
+                        continue;
+                    }
+                    if (rooms.command(this, input)) {
+                        continue;
+                    }
+                    FloodControl.Verdict verdict = admit(EncodedMessage.encodedLength(input));
+                    if (verdict == FloodControl.Verdict.DISCONNECT) {
                         return;
                     }
-                    for (PrintWriter writer : writers) {
-                        writer.println("MESSAGE " + name + ": " + input);
+                    if (verdict == FloodControl.Verdict.SEND) {
+                        metrics.received();
+                        room.broadcast(messagePrefix, input);
                     }
+                    throttle();
                 }
-            } catch (NoSuchElementException e){
+            } catch (EOFException e){
                 return;
             }
             catch (Exception e) {
                 System.out.println(e);
             } finally {
-                if (out != null) {
-                    synchronized(writers){
-                       writers.remove(out);
+                if (watch != null) {
+                    watch.cancel();
+                }
+                try { socket.close(); } catch (IOException e) {}
+                metrics.disconnected();
+                if (session != null && !quit && !evicted) {
+                    detach();
+                } else {
+                    leave();
+                }
+            }
+        }
+
+        /**
+         * Has the flood control decide on a message of the given length that the client
+         * said, telling the client if that got it muted and marking it evicted if it is
+         * to be disconnected.
+         */
+        private FloodControl.Verdict admit(int length) {
+            if (flood == null) {
+                return FloodControl.Verdict.SEND;
+            }
+            FloodControl.Verdict verdict = flood.admit(System.nanoTime(), length, room.getLimit());
+            if (verdict == FloodControl.Verdict.MUTE) {
+                metrics.muted();
+                LOGGER.info(name + " is flooding " + room.getName() + ", muted for " + flood.muteSeconds() + " s");
+                send(EncodedMessage.of(FrameType.MESSAGE,
+                        "[server] you are muted for " + flood.muteSeconds() + " s for flooding"));
+            } else if (verdict == FloodControl.Verdict.DISCONNECT) {
+                metrics.flooded();
+                LOGGER.info(name + " kept flooding while muted, disconnecting");
+                evicted = true;
+            }
+            return verdict;
+        }
+
+        // Waits before reading on from a client over its limits, until it is back within them.
+        private void throttle() throws InterruptedException {
+            long pause = flood != null ? flood.pause() : 0;
+            if (pause > 0) {
+                metrics.throttled();
+                TimeUnit.NANOSECONDS.sleep(pause);
+            }
+        }
+
+        // The client is gone for good: its name is free again and its room hears it left.
+        private void leave() {
+            if (writer != null) {
+                writer.cancel(true);
+            }
+            LOGGER.info(name + " has left the chat"
+                    + (outbound.dropped() > 0 ? " (" + outbound.dropped() + " messages dropped)" : ""));
+            names.release(name, this);
+            rooms.exit(this);
+            lines.release();
+        }
+
+        // The connection dropped: keep the client as it is until it resumes or the grace period ends.
+        private void detach() {
+            long detach = ++detaches;
+            detached.put(session.token(), this);
+            expiries.schedule(() -> expire(detach), options.getSessionGraceMillis(), TimeUnit.MILLISECONDS);
+            LOGGER.info(name + " lost the connection, keeping the session for "
+                    + options.getSessionGraceMillis() + " ms");
+        }
+
+        private void expire(long detach) {
+            if (detach == detaches && detached.remove(session.token(), this)) {
+                LOGGER.info("The session of " + name + " expired");
+                leave();
+            }
+        }
+
+        /**
+         * Hands this connection over to the detached session the client presents, if
+         * there is one and the last sequence number the client saw is one the session
+         * could have written. Taking the session out of the detached ones is what
+         * decides between a resume and an expiry that happen at the same time.
+         *
+         * @param request the RESUME payload, "token lastSeen"
+         * @return the handler of the session, now serving this connection, or null if
+         *         the session can't be resumed
+         */
+        private Handler resume(String request) {
+            int space = request.indexOf(' ');
+            if (space < 0) {
+                return null;
+            }
+            String token = request.substring(0, space);
+            long lastSeen;
+            try {
+                lastSeen = Long.parseLong(request.substring(space + 1));
+            } catch (NumberFormatException e) {
+                return null;
+            }
+            Handler client = detached.get(token);
+            if (client == null || !client.canResume(lastSeen) || !detached.remove(token, client)) {
+                return null;
+            }
+            client.attach(socket, out, frames, compression, lastSeen);
+            return client;
+        }
+
+        private boolean canResume(long lastSeen) {
+            writeLock.lock();
+            try {
+                return session.replayFrom(lastSeen) >= 0;
+            } finally {
+                writeLock.unlock();
+            }
+        }
+
+        /**
+         * Moves the session to a new connection: acknowledges the session and the name
+         * again, writes the MESSAGE frames after lastSeen that are still kept, and lets
+         * the writer carry on with the new socket, compressing as the new connection
+         * asked. The room never heard of the client
+         * leaving, so nobody hears of it coming back either.
+         */
+        private void attach(SocketChannel channel, GatheringByteChannel output, DataInputStream input,
+                            MessageCompressor compression, long lastSeen) {
+            writeLock.lock();
+            try {
+                socket = channel;
+                out = output;
+                frames = input;
+                lastHeard = System.nanoTime();
+                this.compression = compression;
+                long from = session.replayFrom(lastSeen);
+                long replayed = session.nextSequence() - from;
+                write(EncodedMessage.of(FrameType.SESSION, session.token() + " " + from));
+                write(EncodedMessage.of(FrameType.NAMEACCEPTED, name));
+                for (long sequence = from; sequence < session.nextSequence(); sequence++) {
+                    write(session.get(sequence));
+                }
+                LOGGER.info(name + " resumed the session, " + replayed + " messages replayed"
+                        + (from > lastSeen + 1 ? ", " + (from - lastSeen - 1) + " lost" : ""));
+            } catch (IOException e) {
+                // The new connection failed too; serve() finds out and detaches again.
+                try { channel.close(); } catch (IOException ignored) {}
+            } finally {
+                reattached.signalAll();
+                writeLock.unlock();
+            }
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long lastHeard() {
+            return lastHeard;
+        }
+
+        // A text client can't answer a PING, so its silence says nothing.
+        public boolean answersHeartbeats() {
+            return framed;
+        }
+
+        public boolean isLoggedIn() {
+            return loggedIn;
+        }
+
+        public void heartbeat() {
+            send(Heartbeats.HEARTBEAT);
+        }
+
+        // Closing the socket wakes up the reader, which detaches the session or lets the client leave.
+        public void reap() {
+            LOGGER.info((loggedIn ? name : "A client logging in") + " has been silent too long, disconnecting");
+            try { socket.close(); } catch (IOException e) {}
+        }
+
+        public Room getRoom() {
+            return room;
+        }
+
+        public void setRoom(Room room) {
+            this.room = room;
+        }
+
+        /**
+         * Reads the next name or message from the client, answering any PING on the
+         * way, or returns null if the client has quit or hung up.
+         *
+         * @throws EOFException when a framed client hangs up without QUIT
+         */
+        private String nextInput() throws IOException {
+            if (!framed) {
+                ByteBuffer line = lines.readLine(in);
+                lastHeard = System.nanoTime();
+                return line == null ? null : LineDecoder.decode(line);
+            }
+            Frame frame = nextFrame();
+            if (frame == null) {
+                return null;
+            }
+            if (frame.getType() == FrameType.RESUME) {
+                throw new IOException("Unexpected RESUME frame from " + name);
+            }
+            return frame.getPayload();
+        }
+
+        /**
+         * Reads the next NAME, SEND or RESUME frame from a framed client, answering any
+         * PING or COMPRESS on the way, or returns null if the client has quit.
+         */
+        private Frame nextFrame() throws IOException {
+            while (true) {
+                Frame frame = Frame.read(frames);
+                lastHeard = System.nanoTime();
+                switch (frame.getType()) {
+                    case NAME:
+                    case SEND:
+                    case RESUME:
+                        return frame;
+                    case QUIT:
+                        return null;
+                    case PING:
+                        answer(EncodedMessage.of(FrameType.PONG, frame.getPayload()));
+                        break;
+                    case PONG:
+                        // The answer to a heartbeat, which only had to be heard.
+                        break;
+                    case COMPRESS:
+                        compression = compressor != null && frame.getPayload().equals(MessageCompressor.DEFLATE)
+                                ? compressor : null;
+                        answer(EncodedMessage.of(FrameType.COMPRESS,
+                                compression != null ? MessageCompressor.DEFLATE : ""));
+                        break;
+                    default:
+                        throw new IOException("Unexpected " + frame.getType() + " frame from client");
+                }
+            }
+        }
+
+        private void answer(EncodedMessage message) throws IOException {
+            if (writer == null) {
+                write(message);
+            } else {
+                send(message);
+            }
+        }
+
+        // Framed clients get every message in its binary form, compressed if they asked.
+        private EncodedMessage onWire(EncodedMessage message) {
+            if (!framed) {
+                return message;
+            }
+            MessageCompressor deflating = compression;
+            return deflating != null ? message.deflated(deflating) : message.framed();
+        }
+
+        /**
+         * Queues a message for this client. A client whose queue overflows under the
+         * DISCONNECT policy has its socket closed, which ends its handler, or, if its
+         * session is detached, has the session ended.
+         */
+        public void send(EncodedMessage message) {
+            if (!outbound.offer(onWire(message))) {
+                LOGGER.info(name + " is too slow, disconnecting (outbound queue " + outbound + ")");
+                evicted = true;
+                try { socket.close(); } catch (IOException e) {}
+                if (session != null && detached.remove(session.token(), this)) {
+                    // Not from the broadcast that overflowed, which holds the room's lock.
+                    expiries.execute(this::leave);
+                }
+            }
+        }
+
+        /**
+         * The writer task: moves queued messages onto the socket until cancelled. Each
+         * round waits for a message, gives others up to the flush window to join it,
+         * then writes everything queued by then with as few writes as the batch allows.
+         *
+         * With a session, every MESSAGE frame is numbered and kept just before it is
+         * written, under the write lock, so the numbers follow the order on the wire.
+         * A failed write then loses nothing the session can't replay: the writer drops
+         * the batch and waits for the session to be resumed on a new socket.
+         */
+        private void drain() {
+            try {
+                while (true) {
+                    batch.fill(outbound, flushWindowNanos);
+                    writeLock.lock();
+                    try {
+                        SocketChannel channel = socket;
+                        GatheringByteChannel output = out;
+                        if (session != null) {
+                            batch.forEach(session::sent);
+                        }
+                        try {
+                            while (!batch.writeTo(output)) {
+                                // A blocking channel may still write only part of a large batch.
+                            }
+                        } catch (IOException e) {
+                            if (session == null) {
+                                throw e;
+                            }
+                            batch.clear();
+                            // Closing the socket wakes up the reader, which detaches the session.
+                            try { channel.close(); } catch (IOException ignored) {}
+                            while (socket == channel) {
+                                reattached.await();
+                            }
+                        }
+                    } finally {
+                        writeLock.unlock();
                     }
                 }
-                if (name != null) {
-                    LOGGER.info(name + " has left the chat");
-                    synchronized(names){
-                        names.remove(name);
+            } catch (InterruptedException e) {
+                return;
+            } catch (IOException e) {
+                // Closing the socket wakes up the reader so the client is cleaned up.
+                try { socket.close(); } catch (IOException ignored) {}
+            }
+        }
+
+        /**
+         * Writes the catch-up from this client's reader, a chunk at a time, letting the
+         * writer task send a batch of live messages between chunks. The client's input
+         * waits meanwhile; everybody else carries on as usual.
+         *
+         * The lines of the catch-up are numbered in a session like any MESSAGE frame, but
+         * not kept, so a session resumed later replays nothing from before them.
+         */
+        public void catchUp(EncodedMessage header, CatchUp catchUp) {
+            try {
+                writeLock.lock();
+                try {
+                    if (session != null) {
+                        session.sent(header);
                     }
-                    for (PrintWriter writer : writers) {
-                        writer.println("MESSAGE " + name + " has left");
+                    write(header);
+                } finally {
+                    writeLock.unlock();
+                }
+                while (!catchUp.isDone()) {
+                    writeLock.lock();
+                    long started = catchUp.framesStarted();
+                    try {
+                        while (!catchUp.writeTo(out, framed)) {
+                            // A blocking channel may still take only part of a chunk.
+                        }
+                    } finally {
+                        if (session != null) {
+                            session.skip(catchUp.framesStarted() - started);
+                        }
+                        writeLock.unlock();
                     }
                 }
-                try { socket.close(); } catch (IOException e) {}
+            } catch (IOException e) {
+                try { socket.close(); } catch (IOException ignored) {}
+            } finally {
+                catchUp.close();
+            }
+        }
+
+        // Before NAMEACCEPTED the handler writes; afterwards the writer task does, but
+        // for catch-ups, which take turns with it, and a resume, which the writer waits for.
+        private void write(EncodedMessage message) throws IOException {
+            ByteBuffer view = onWire(message).buffer();
+            while (view.hasRemaining()) {
+                out.write(view);
             }
         }
     }
-}
\ No newline at end of file
+}
@@ -1,24 +1,58 @@
 package basic_demo;
 
 /**
- * A simple app that launches a multithreaded chat room server. 
+ * A simple app that launches a multithreaded chat room server.
+ *
+ * The port is the first command line argument. An optional "--mode=virtual" runs
+ * every client on its own virtual thread instead of the pool of platform threads,
+ * "--mode=nio" switches to the selector based server, and "--event-loops=N" sets
+ * how many event loops the latter uses. "--queue-capacity=N" bounds how many
+ * messages may wait for each client and "--overflow=drop-oldest|drop-newest|
+ * disconnect" says what happens to clients that fall further behind.
+ * "--peer-port=N --peers=host:port,..." joins the server to a cluster whose other
+ * nodes listen for peers at the given addresses. "--history=N" sets how many of
+ * its last messages a room replays to a client that joins it, and "--history-kb=N"
+ * caps the memory each room keeps them in; "--max-rooms=N" caps the number of
+ * rooms. "--log-dir=path" writes a transcript of
+ * every room to disk, tuned with "--log-segment-mb", "--log-retain-segments" and
+ * "--log-fsync=message|interval|none" (with "--log-fsync-ms"). "--acceptors=N"
+ * accepts connections on N threads, each with a socket of its own where
+ * SO_REUSEPORT is supported, and "--accept-backlog=N" sets the listen backlog.
+ * "--tls-port=N --tls-keystore=path --tls-password=secret" also accepts TLS clients
+ * on port N, with "--tls-session-cache" and "--tls-session-timeout-s" bounding the
+ * sessions they can resume. "--compress-min-bytes=N" sets the size from which
+ * messages are compressed for the framed clients that ask, 0 for none, and
+ * "--compress-level=N" the deflate level. In the NIO mode, "--ws-port=N" also
+ * accepts browsers, which speak WebSocket, on port N. "--rate-limit=N",
+ * "--rate-burst=N" and "--rate-limit-kb=N" limit what each client may say per
+ * second, "--room-rate-limit=N" and "--room-rate-limit-kb=N" what each room may
+ * hear, and "--mute-after=N" and "--mute-s=N" how soon and for how long a client
+ * that floods its room is muted. "--heartbeat-s=N" sets how long a client may be
+ * silent before the server pings it, and "--idle-timeout-s=N" how long before one
+ * that could have answered is disconnected; both are off unless given.
  */
 public class ChatServerApp{
 
     public static void main(String[] args) throws Exception {
 
-        if (args.length != 1) {
-            System.err.println("Pass the server port as the sole command line argument");
+        ServerOptions options;
+        try {
+            options = ServerOptions.parse(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
             return;
         }
 
-        int serverPort = Integer.parseInt(args[0]);
-
-        ChatServer chatServer = new ChatServer(serverPort);
-        Thread t = new Thread(chatServer,"Chat Server Main Thread");        
+        Runnable chatServer;
+        if (options.getMode() == ServerMode.NIO) {
+            chatServer = new NioChatServer(options);
+        } else {
+            chatServer = new ChatServer(options);
+        }
+        Thread t = new Thread(chatServer,"Chat Server Main Thread");
         t.start();
 
-        System.out.println("The chat server is running...");
+        System.out.println("The chat server is running in " + options.getMode() + " mode...");
     }
 
-}
\ No newline at end of file
+}
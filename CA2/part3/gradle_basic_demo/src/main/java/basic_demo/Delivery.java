@@ -0,0 +1,51 @@
+package basic_demo;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Times one broadcast from the moment its room takes it until the last of its
+ * recipients has had it written to their socket, and records that into a
+ * LatencyHistogram.
+ *
+ * The room does not know how many members it queued the message for until it has
+ * gone through them all, while their writers may already be at work. So the count
+ * of writes still to come starts out at GUARD, far above any room size, every
+ * write takes one off, and once the room has queued the message it takes off GUARD
+ * less the number of recipients. The count can therefore only reach zero after
+ * that, on the last write, or on the room's own adjustment if every write was
+ * already done; whichever gets it there records the time. That costs one atomic
+ * decrement per recipient and nothing per recipient while fanning out.
+ *
+ * A broadcast that some recipient never gets, because its queue overflowed or it
+ * left, is never recorded.
+ */
+final class Delivery {
+
+    private static final int GUARD = 1 << 30;
+
+    private final LatencyHistogram histogram;
+    private final long start = System.nanoTime();
+    private final AtomicInteger pending = new AtomicInteger(GUARD);
+
+    Delivery(LatencyHistogram histogram) {
+        this.histogram = histogram;
+    }
+
+    /** Called by the room once it has queued the message for all its recipients. */
+    void queued(int recipients) {
+        if (pending.addAndGet(recipients - GUARD) == 0 && recipients > 0) {
+            record();
+        }
+    }
+
+    /** Called by a writer once the message is on one recipient's socket. */
+    void written() {
+        if (pending.decrementAndGet() == 0) {
+            record();
+        }
+    }
+
+    private void record() {
+        histogram.record(System.nanoTime() - start);
+    }
+}
@@ -0,0 +1,342 @@
+package basic_demo;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * A protocol message encoded to its wire form exactly once. However many clients a
+ * message is broadcast to, they all write the same immutable bytes, each through
+ * a view of its own (see buffer()), so a broadcast to N clients costs one encode
+ * and no copies of the payload.
+ *
+ * A message has two wire forms: the text line, e.g. "MESSAGE alice: hi", which is
+ * what an EncodedMessage holds, and the binary frame for clients that negotiated
+ * framing (see FrameType), which framed() encodes the first time one of them needs
+ * it. A text that spans several lines becomes several MESSAGE lines for text
+ * clients and a single frame for the others. The frame of a single line message is
+ * cut from the line itself, so the text does not have to be kept around for it.
+ * A large MESSAGE has a third form for clients that asked for compression, a
+ * DEFLATED frame, which deflated() compresses, just as once, for all of them.
+ * WebSocket clients get the text of the line(s) as a single WebSocket text frame
+ * (see WebSocket), which webSocket() frames once for all of them.
+ *
+ * Messages meant for many recipients are encoded into a direct buffer: the socket
+ * can then write from it as is, whereas every write of a heap buffer is first
+ * copied into a temporary direct buffer by the JDK.
+ *
+ * A broadcast may be timed on its way to its recipients with a Delivery, which
+ * both wire forms of the message report their writes to.
+ */
+final class EncodedMessage {
+
+    // Above this many recipients the direct buffer saves more copying than it costs to allocate.
+    static final int DIRECT_THRESHOLD = 16;
+
+    private static final byte NEWLINE = '\n';
+    private static final byte SPACE = ' ';
+    private static final byte[] NO_PREFIX = new byte[0];
+
+    private final ByteBuffer bytes;
+    private final FrameType type;
+    private final boolean frame;
+    private final int recipients;
+
+    // Only kept for a text of several lines; otherwise the frame's payload is in the line.
+    private final byte[] prefix;
+    private final byte[] text;
+    private volatile EncodedMessage framed;
+    private volatile EncodedMessage deflated;
+    private volatile EncodedMessage webSocket;
+
+    // The text form of the message's other forms, which keeps the Delivery for all.
+    private final EncodedMessage origin;
+    // Set before the message is queued for anyone, so writers see it.
+    private Delivery delivery;
+
+    private EncodedMessage(ByteBuffer bytes, FrameType type, boolean frame, int recipients,
+                           byte[] prefix, byte[] text) {
+        this(bytes, type, frame, recipients, prefix, text, null);
+    }
+
+    private EncodedMessage(ByteBuffer bytes, FrameType type, boolean frame, int recipients,
+                           byte[] prefix, byte[] text, EncodedMessage origin) {
+        this.bytes = bytes.asReadOnlyBuffer();
+        this.origin = origin != null ? origin : this;
+        this.type = type;
+        this.frame = frame;
+        this.recipients = recipients;
+        this.prefix = prefix;
+        this.text = text;
+    }
+
+    /**
+     * Encodes a message for one recipient, e.g. SUBMITNAME with an empty payload or
+     * NAMEACCEPTED with the accepted name.
+     */
+    static EncodedMessage of(FrameType type, String payload) {
+        return of(type, NO_PREFIX, payload, 1);
+    }
+
+    /**
+     * Encodes a message whose payload is made of an already encoded prefix, e.g.
+     * "alice: ", and the text following it.
+     *
+     * @param recipients how many clients the message is going to, which decides
+     *                   whether a direct buffer is worth it
+     */
+    static EncodedMessage of(FrameType type, byte[] prefix, String text, int recipients) {
+        byte[] encoded = text.getBytes(StandardCharsets.UTF_8);
+        return of(type, prefix, encoded, 0, encoded.length, recipients, true);
+    }
+
+    /**
+     * Like of(type, prefix, text, recipients) for text that is already UTF-8, such as
+     * a line from a LineDecoder. The bytes are copied; the buffer is left as it was.
+     */
+    static EncodedMessage of(FrameType type, byte[] prefix, ByteBuffer text, int recipients) {
+        if (text.hasArray()) {
+            return of(type, prefix, text.array(), text.arrayOffset() + text.position(), text.remaining(),
+                    recipients, false);
+        }
+        byte[] copy = new byte[text.remaining()];
+        text.duplicate().get(copy);
+        return of(type, prefix, copy, 0, copy.length, recipients, true);
+    }
+
+    // Owned says whether the text array may be kept, should the text span several lines.
+    private static EncodedMessage of(FrameType type, byte[] prefix, byte[] text, int offset, int length,
+                                     int recipients, boolean owned) {
+        byte[] keyword = type.keyword();
+        int end = offset + length;
+        int lines = 1;
+        for (int i = offset; i < end; i++) {
+            if (text[i] == NEWLINE) {
+                lines++;
+            }
+        }
+        boolean empty = prefix.length + length == 0;
+        int perLine = keyword.length + (empty ? 0 : 1 + prefix.length) + 1;
+        ByteBuffer buffer = allocate(lines * perLine + length - (lines - 1), recipients);
+
+        int lineStart = offset;
+        for (int i = offset; i <= end; i++) {
+            if (i == end || text[i] == NEWLINE) {
+                buffer.put(keyword);
+                if (!empty) {
+                    buffer.put(SPACE).put(prefix);
+                }
+                buffer.put(text, lineStart, i - lineStart).put(NEWLINE);
+                lineStart = i + 1;
+            }
+        }
+        buffer.flip();
+        if (lines == 1) {
+            return new EncodedMessage(buffer, type, false, recipients, null, null);
+        }
+        byte[] kept = owned && offset == 0 && length == text.length
+                ? text
+                : Arrays.copyOfRange(text, offset, end);
+        return new EncodedMessage(buffer, type, false, recipients, prefix, kept);
+    }
+
+    /**
+     * Encodes a frame whose payload is an encoded prefix followed by the payload of
+     * another message, e.g. a RELAY of a MESSAGE, prefixed with the room's name.
+     */
+    static EncodedMessage frame(FrameType type, byte[] prefix, EncodedMessage message, int recipients) {
+        ByteBuffer payload = message.framed().buffer();
+        payload.position(FrameType.HEADER_LENGTH);
+        int length = prefix.length + payload.remaining();
+        ByteBuffer buffer = allocate(FrameType.HEADER_LENGTH + length, recipients);
+        buffer.put(type.code()).putInt(length).put(prefix).put(payload).flip();
+        return new EncodedMessage(buffer, type, true, recipients, null, null);
+    }
+
+    static byte[] encode(String text) {
+        return text.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /** The length of the text once encoded, without encoding it. */
+    static int encodedLength(String text) {
+        int length = text.length();
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c >= 0x800) {
+                // Three bytes, or four for a surrogate pair, which counts two chars already.
+                length += Character.isSurrogate(c) ? 1 : 2;
+            } else if (c >= 0x80) {
+                length++;
+            }
+        }
+        return length;
+    }
+
+    private static ByteBuffer allocate(int length, int recipients) {
+        return recipients > DIRECT_THRESHOLD
+                ? ByteBuffer.allocateDirect(length)
+                : ByteBuffer.allocate(length);
+    }
+
+    /**
+     * Returns the message as a binary frame, encoding it on first use. Concurrent
+     * first uses may each encode it, which is harmless: the frames are identical.
+     */
+    EncodedMessage framed() {
+        if (frame) {
+            return isDeflated() || isWebSocket() ? origin.framed() : this;
+        }
+        EncodedMessage encoded = framed;
+        if (encoded == null) {
+            ByteBuffer payload;
+            if (text != null) {
+                payload = ByteBuffer.allocate(prefix.length + text.length).put(prefix).put(text).flip();
+            } else {
+                // The line is "KEYWORD payload\n", or just "KEYWORD\n" for an empty payload.
+                payload = buffer();
+                int start = Math.min(type.keyword().length + 1, payload.limit() - 1);
+                payload.limit(payload.limit() - 1).position(start);
+            }
+            ByteBuffer buffer = allocate(FrameType.HEADER_LENGTH + payload.remaining(), recipients);
+            buffer.put(type.code()).putInt(payload.remaining()).put(payload).flip();
+            encoded = new EncodedMessage(buffer, type, true, recipients, null, null, this);
+            framed = encoded;
+        }
+        return encoded;
+    }
+
+    /**
+     * Returns the message as a DEFLATED frame, compressing it on first use, or as its
+     * plain frame if it is not a MESSAGE, is under the compressor's threshold or would
+     * not get any smaller. As with framed(), concurrent first uses may each compress
+     * it, but as the room broadcasts from one thread, it seldom happens.
+     */
+    EncodedMessage deflated(MessageCompressor compressor) {
+        if (origin != this) {
+            // The plain or the compressed frame of a text line.
+            return origin.deflated(compressor);
+        }
+        if (type != FrameType.MESSAGE) {
+            return framed();
+        }
+        EncodedMessage encoded = deflated;
+        if (encoded == null) {
+            EncodedMessage plain = framed();
+            byte[] compressed = compressor.deflate(plain.buffer().position(FrameType.HEADER_LENGTH));
+            if (compressed == null) {
+                encoded = plain;
+            } else {
+                ByteBuffer buffer = allocate(FrameType.HEADER_LENGTH + compressed.length, recipients);
+                buffer.put(FrameType.DEFLATED.code()).putInt(compressed.length).put(compressed).flip();
+                encoded = new EncodedMessage(buffer, type, true, recipients, null, null, this);
+            }
+            deflated = encoded;
+        }
+        return encoded;
+    }
+
+    /**
+     * Returns the message as a WebSocket text frame, framing it on first use. Its
+     * payload is the text line without the newline, e.g. "MESSAGE alice: hi", or,
+     * for a text of several lines, all of them in one payload.
+     */
+    EncodedMessage webSocket() {
+        if (origin != this) {
+            return origin.webSocket();
+        }
+        EncodedMessage encoded = webSocket;
+        if (encoded == null) {
+            byte[] keyword = type.keyword();
+            ByteBuffer line;
+            if (frame) {
+                // A frame of its own, such as a RELAY.
+                ByteBuffer payload = buffer().position(FrameType.HEADER_LENGTH);
+                line = ByteBuffer.allocate(keyword.length + 1 + payload.remaining());
+                line.put(keyword).put(SPACE).put(payload).flip();
+            } else if (text != null) {
+                line = ByteBuffer.allocate(keyword.length + 1 + prefix.length + text.length);
+                line.put(keyword).put(SPACE).put(prefix).put(text).flip();
+            } else {
+                line = buffer();
+                line.limit(line.limit() - 1);
+            }
+            ByteBuffer buffer = allocate(WebSocket.headerLength(line.remaining()) + line.remaining(), recipients);
+            WebSocket.putHeader(buffer, WebSocket.TEXT, line.remaining());
+            buffer.put(line).flip();
+            encoded = new EncodedMessage(buffer, type, true, recipients, null, null, this);
+            webSocket = encoded;
+        }
+        return encoded;
+    }
+
+    /**
+     * Starts timing the message's way to its recipients. Has to be called before the
+     * message is queued for any of them.
+     */
+    Delivery track(LatencyHistogram histogram) {
+        delivery = new Delivery(histogram);
+        return delivery;
+    }
+
+    /** Called by a writer once the message, in either form, is on a recipient's socket. */
+    void written() {
+        Delivery timed = origin.delivery;
+        if (timed != null) {
+            timed.written();
+        }
+    }
+
+    FrameType getType() {
+        return type;
+    }
+
+    /** Whether this is the frame form of a message rather than its text line(s). */
+    boolean isFrame() {
+        return frame;
+    }
+
+    /** Whether this is the WebSocket frame of a message. */
+    boolean isWebSocket() {
+        return frame && WebSocket.isText(bytes.get(0));
+    }
+
+    /** Whether this is the compressed frame of a MESSAGE, which getType() still calls a MESSAGE. */
+    boolean isDeflated() {
+        return frame && bytes.get(0) == FrameType.DEFLATED.code();
+    }
+
+    /**
+     * Returns a fresh read-only view of the encoded message, positioned at its start.
+     * Every writer needs its own view, since writing advances the view's position;
+     * the bytes themselves are shared.
+     */
+    ByteBuffer buffer() {
+        return bytes.duplicate();
+    }
+
+    /** The size of the message on the wire, newlines or frame header included. */
+    int length() {
+        return bytes.remaining();
+    }
+
+    boolean isDirect() {
+        return bytes.isDirect();
+    }
+
+    @Override
+    public String toString() {
+        if (isDeflated() || isWebSocket()) {
+            return origin.framed().toString();
+        }
+        ByteBuffer view = buffer();
+        if (isFrame()) {
+            view.position(FrameType.HEADER_LENGTH);
+            byte[] copy = new byte[view.remaining()];
+            view.get(copy);
+            return type + (copy.length == 0 ? "" : " " + new String(copy, StandardCharsets.UTF_8));
+        }
+        byte[] copy = new byte[view.remaining() - 1];
+        view.get(copy);
+        return new String(copy, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,185 @@
+package basic_demo;
+
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.LogManager;
+
+/**
+ * A single threaded reactor: one Selector, the thread that polls it, and a queue
+ * of tasks handed over by other threads. A channel registered with a loop is only
+ * ever read, written or closed by that loop's thread, so the per-connection state
+ * needs no locking. Other threads talk to a connection by calling execute().
+ *
+ * Output is not written the moment it is produced: connections ask for a flush
+ * with flushLater() and the loop flushes them all once per iteration, after every
+ * ready key and task has been dealt with. Everything that became due for a client
+ * in one iteration therefore leaves in a single write.
+ */
+class EventLoop implements Runnable {
+
+    /**
+     * Whatever is attached to a registered SelectionKey. The loop calls it back
+     * whenever the key is selected.
+     */
+    interface KeyHandler {
+        void handle(SelectionKey key);
+
+        /** Called once when the loop shuts down with the key still registered. */
+        void close();
+    }
+
+    /**
+     * Something with output waiting to be flushed at the end of an iteration.
+     */
+    interface Flushable {
+        /**
+         * Writes the pending output if it is due.
+         *
+         * @return 0 if done, otherwise how many nanoseconds to wait before asking again
+         */
+        long flushIfDue(long now);
+    }
+
+    private final static Logger LOGGER = LogManager.getLogger(EventLoop.class);
+
+    private final Selector selector;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean wakeupPending = new AtomicBoolean();
+    private final ArrayDeque<Flushable> pendingFlushes = new ArrayDeque<>();
+    private final ArrayDeque<Flushable> notYetDue = new ArrayDeque<>();
+    private final Thread thread;
+    private volatile boolean running = true;
+
+    EventLoop(String name) throws IOException {
+        this.selector = Selector.open();
+        this.thread = new Thread(this, name);
+    }
+
+    void start() {
+        thread.start();
+    }
+
+    boolean inEventLoop() {
+        return Thread.currentThread() == thread;
+    }
+
+    /**
+     * Runs the task on the loop's thread. Only the first of a burst of
+     * submissions pays for a selector wakeup.
+     */
+    void execute(Runnable task) {
+        tasks.add(task);
+        if (!inEventLoop() && wakeupPending.compareAndSet(false, true)) {
+            selector.wakeup();
+        }
+    }
+
+    /**
+     * Registers a channel with this loop's selector. Must be called on the loop thread.
+     */
+    SelectionKey register(SelectableChannel channel, int ops, KeyHandler handler) throws ClosedChannelException {
+        return channel.register(selector, ops, handler);
+    }
+
+    /**
+     * Flushes the target at the end of this iteration, or as soon after as it says it
+     * is due. Must be called on the loop thread, at most once until it is flushed.
+     */
+    void flushLater(Flushable target) {
+        pendingFlushes.add(target);
+    }
+
+    void shutdown() {
+        running = false;
+        selector.wakeup();
+    }
+
+    public void run() {
+        long flushDelay = 0;
+        while (running) {
+            try {
+                if (flushDelay > 0) {
+                    // Selectors wait in whole milliseconds, so shorter flush windows round up.
+                    selector.select(Math.max(1, flushDelay / 1_000_000));
+                } else {
+                    selector.select();
+                }
+            } catch (IOException e) {
+                LOGGER.error("Selector failed on " + thread.getName(), e);
+                break;
+            }
+            wakeupPending.set(false);
+
+            Set<SelectionKey> selected = selector.selectedKeys();
+            for (SelectionKey key : selected) {
+                handle(key);
+            }
+            selected.clear();
+
+            runTasks();
+            flushDelay = flushPending();
+        }
+        for (SelectionKey key : selector.keys()) {
+            ((KeyHandler) key.attachment()).close();
+        }
+        try { selector.close(); } catch (IOException e) {}
+    }
+
+    // A handler that fails is closed, so one bad connection doesn't stop the others.
+    private void handle(SelectionKey key) {
+        KeyHandler handler = (KeyHandler) key.attachment();
+        try {
+            handler.handle(key);
+        } catch (RuntimeException e) {
+            LOGGER.error("Event loop handler failed, closing it", e);
+            key.cancel();
+            try {
+                handler.close();
+            } catch (RuntimeException closing) {
+                LOGGER.error("Could not close a failed handler", closing);
+            }
+        }
+    }
+
+    /**
+     * Flushes whatever is due and returns the nanoseconds until the next flush falls
+     * due, or 0 if nothing is left waiting.
+     */
+    private long flushPending() {
+        long now = System.nanoTime();
+        long next = 0;
+        // A flush can close a client and so queue up flushes for others; they go out in this pass too.
+        Flushable target;
+        while ((target = pendingFlushes.poll()) != null) {
+            long wait = target.flushIfDue(now);
+            if (wait > 0) {
+                notYetDue.add(target);
+                next = next == 0 ? wait : Math.min(next, wait);
+            }
+        }
+        pendingFlushes.addAll(notYetDue);
+        notYetDue.clear();
+        return next;
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                LOGGER.error("Event loop task failed", e);
+            }
+        }
+    }
+}
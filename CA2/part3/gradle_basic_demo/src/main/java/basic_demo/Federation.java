@@ -0,0 +1,194 @@
+package basic_demo;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.LogManager;
+
+/**
+ * Makes a server one node of a cluster of chat servers, so that clients on
+ * different nodes can talk in the same rooms. Every node listens on a peer port of
+ * its own and keeps a PeerLink to each of the other nodes, which together make a
+ * full mesh over TCP.
+ *
+ * Whatever is said in a room on this node is encoded once as a RELAY frame and
+ * queued on every link. A node delivers the RELAYs it receives to its own members
+ * of the room only and never forwards them, so each message crosses every link
+ * exactly once and reaches every member of the room in the cluster once. Messages
+ * from one sender arrive everywhere in the order they were said, since they follow
+ * each other through the same queue and connection to each node.
+ *
+ * Names and rooms are still kept by each node for its own clients: the same name
+ * may be taken on two nodes, and "/rooms" lists the rooms of this node.
+ */
+final class Federation implements Room.Relay {
+
+    // A RELAY carries a room name and a whole MESSAGE payload, which may be as long as a client may be sent.
+    static final int MAX_RELAY_PAYLOAD = FrameType.MAX_MESSAGE_LENGTH + 4 * RoomRegistry.MAX_NAME_LENGTH + 1;
+
+    private final static Logger LOGGER = LogManager.getLogger(Federation.class);
+
+    private static final byte[] NO_PREFIX = new byte[0];
+
+    private final String nodeName;
+    private final int peerPort;
+    private final List<PeerLink> links = new ArrayList<>();
+    private final Set<SocketChannel> inbound = ConcurrentHashMap.newKeySet();
+    private final LongAdder forwarded = new LongAdder();
+    private final LongAdder received = new LongAdder();
+    private volatile RoomRegistry rooms;
+    private volatile ServerSocketChannel listener;
+
+    Federation(ServerOptions options) {
+        this.nodeName = "node-" + options.getPort();
+        this.peerPort = options.getPeerPort();
+        for (InetSocketAddress peer : options.getPeers()) {
+            links.add(new PeerLink(peer, nodeName, options));
+        }
+    }
+
+    /**
+     * Starts listening for the other nodes and connecting to them. What they relay is
+     * delivered to the rooms given.
+     *
+     * @throws IOException if the peer port can't be bound
+     */
+    void start(RoomRegistry rooms) throws IOException {
+        this.rooms = rooms;
+        listener = ServerSocketChannel.open();
+        listener.bind(new InetSocketAddress(peerPort));
+        Thread acceptor = new Thread(this::accept, "Peer acceptor " + nodeName);
+        acceptor.setDaemon(true);
+        acceptor.start();
+        for (PeerLink link : links) {
+            link.start();
+        }
+        LOGGER.info(nodeName + " listening for peers on port " + peerPort + ", linking to " + links);
+    }
+
+    /**
+     * Queues the message for every other node, as a single RELAY frame they all share.
+     */
+    public void forward(Room room, EncodedMessage message) {
+        if (links.isEmpty()) {
+            return;
+        }
+        EncodedMessage relay = EncodedMessage.frame(FrameType.RELAY,
+                EncodedMessage.encode(room.getName() + " "), message, links.size());
+        for (PeerLink link : links) {
+            link.forward(relay);
+        }
+        forwarded.increment();
+    }
+
+    /** The number of links to other nodes that are currently connected. */
+    int linksUp() {
+        int up = 0;
+        for (PeerLink link : links) {
+            if (link.isConnected()) {
+                up++;
+            }
+        }
+        return up;
+    }
+
+    long forwarded() {
+        return forwarded.sum();
+    }
+
+    long received() {
+        return received.sum();
+    }
+
+    /**
+     * Stops listening for other nodes and closes every link, in and out.
+     */
+    void shutdown() {
+        try {
+            if (listener != null) {
+                listener.close();
+            }
+        } catch (IOException e) {}
+        for (PeerLink link : links) {
+            link.shutdown();
+        }
+        for (SocketChannel channel : inbound) {
+            try { channel.close(); } catch (IOException e) {}
+        }
+    }
+
+    private void accept() {
+        try {
+            while (true) {
+                SocketChannel channel = listener.accept();
+                inbound.add(channel);
+                Thread.ofVirtual().name("Peer receiver " + nodeName).start(() -> receive(channel));
+            }
+        } catch (IOException e) {
+            if (listener.isOpen()) {
+                LOGGER.info(nodeName + " stopped accepting peers: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Reads what one other node relays, after it has introduced itself with PEER, and
+     * delivers every message to this node's members of the room.
+     */
+    private void receive(SocketChannel channel) {
+        String peer = null;
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(channel.socket().getInputStream()));
+            Frame hello = Frame.read(in);
+            if (hello.getType() != FrameType.PEER) {
+                throw new IOException("Expected PEER but got " + hello.getType());
+            }
+            peer = hello.getPayload();
+            LOGGER.info(nodeName + " accepted the link from " + peer);
+            while (true) {
+                Frame frame = Frame.read(in, MAX_RELAY_PAYLOAD);
+                if (frame.getType() != FrameType.RELAY) {
+                    throw new IOException("Unexpected " + frame.getType() + " frame from " + peer);
+                }
+                String payload = frame.getPayload();
+                int separator = payload.indexOf(' ');
+                if (separator < 0) {
+                    throw new IOException("RELAY without a room from " + peer);
+                }
+                received.increment();
+                // Nobody here is in a room that doesn't exist here.
+                Room room = rooms.get(payload.substring(0, separator));
+                if (room != null) {
+                    room.deliver(EncodedMessage.of(FrameType.MESSAGE, NO_PREFIX,
+                            payload.substring(separator + 1), room.size()));
+                }
+            }
+        } catch (EOFException e) {
+            LOGGER.info(nodeName + " lost the link from " + (peer != null ? peer : channel));
+        } catch (IOException e) {
+            if (channel.isOpen()) {
+                LOGGER.info(nodeName + " dropped the link from " + (peer != null ? peer : channel) + ": " + e.getMessage());
+            }
+        } finally {
+            inbound.remove(channel);
+            try { channel.close(); } catch (IOException e) {}
+        }
+    }
+
+    @Override
+    public String toString() {
+        return nodeName + " links up=" + linksUp() + "/" + links.size() + " forwarded=" + forwarded()
+                + " received=" + received();
+    }
+}
@@ -0,0 +1,119 @@
+package basic_demo;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps one client from flooding its room. Every message the client says is
+ * counted against the client's RateLimit and its room's, and a client over its
+ * limit is dealt with in three steps:
+ *
+ *  - throttled: the message still goes out, since the limit already counts it, but
+ *    the server stops reading from the client until the client is back within its
+ *    limit, so TCP holds back whatever the client sends meanwhile,
+ *  - muted: a client throttled too often (more than the strikes allowed, of which
+ *    it regains one a second) has its messages dropped for the mute period, and is
+ *    told so once,
+ *  - disconnected: a muted client that uses up its strikes all over again.
+ *
+ * A room over its limit throttles whoever speaks in it, without counting that
+ * against them: it is busy, but no one of them need be flooding it. Commands are
+ * not counted, since only what is said is sent to the whole room.
+ *
+ * A FloodControl belongs to a single client and is only used by the thread that
+ * reads from it, the client's handler or its event loop, so its state needs no
+ * locking and its buckets never see their compare-and-set fail. The only state
+ * shared with others is the room's RateLimit, one compare-and-set per message.
+ */
+final class FloodControl {
+
+    /** What becomes of a message. */
+    enum Verdict {
+        /** It goes out, with the client throttled if pause() says so. */
+        SEND,
+        /** It is dropped and the client is muted from now on, which it should be told. */
+        MUTE,
+        /** It is dropped, as the client is muted. */
+        DROP,
+        /** The client is to be disconnected. */
+        DISCONNECT
+    }
+
+    static final int DEFAULT_BURST = 10;
+    static final int DEFAULT_STRIKES = 20;
+    static final int DEFAULT_MUTE_SECONDS = 60;
+
+    private static final int STRIKES_PER_SECOND = 1;
+
+    private final RateLimit client;
+    private final TokenBucket strikes;
+    private final long muteNanos;
+    private boolean muted;
+    private long mutedUntil;
+    private long pause;
+
+    /**
+     * @param client the client's own limit, or null for none
+     * @param strikes how many times running the client may be throttled before it is
+     *                muted, and once muted before it is disconnected
+     */
+    FloodControl(RateLimit client, int strikes, long muteNanos) {
+        this.client = client;
+        this.strikes = new TokenBucket(STRIKES_PER_SECOND, strikes);
+        this.muteNanos = muteNanos;
+    }
+
+    /**
+     * The flood control of a new client, or null if the options set no limit for
+     * either clients or rooms.
+     */
+    static FloodControl of(ServerOptions options) {
+        RateLimit client = RateLimit.of(options.getRateLimit(), options.getRateBurst(),
+                options.getRateLimitKilobytes());
+        if (client == null && options.getRoomRateLimit() <= 0 && options.getRoomRateLimitKilobytes() <= 0) {
+            return null;
+        }
+        return new FloodControl(client, options.getMuteAfter(), TimeUnit.SECONDS.toNanos(options.getMuteSeconds()));
+    }
+
+    /**
+     * Decides what becomes of a message of the given length that the client says in
+     * a room with the given limit, or null for none, and how long to pause the client
+     * for after it (see pause()).
+     */
+    Verdict admit(long now, int length, RateLimit room) {
+        if (muted && now - mutedUntil >= 0) {
+            muted = false;
+        }
+        long wait = client != null ? client.reserve(now, length) : 0;
+        pause = wait;
+        if (wait > 0 && !strikes.tryTake(now, 1)) {
+            if (muted) {
+                return Verdict.DISCONNECT;
+            }
+            muted = true;
+            mutedUntil = now + muteNanos;
+            strikes.fill(now);
+            return Verdict.MUTE;
+        }
+        if (muted) {
+            return Verdict.DROP;
+        }
+        if (room != null) {
+            pause = Math.max(pause, room.reserve(now, length));
+        }
+        return Verdict.SEND;
+    }
+
+    /**
+     * The nanoseconds the server should stop reading from the client for, after the
+     * message last admitted; 0 if the client is within its limits.
+     */
+    long pause() {
+        return pause;
+    }
+
+    /** The mute period, in whole seconds. */
+    long muteSeconds() {
+        return TimeUnit.NANOSECONDS.toSeconds(muteNanos);
+    }
+}
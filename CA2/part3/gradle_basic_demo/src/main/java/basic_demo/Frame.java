@@ -0,0 +1,68 @@
+package basic_demo;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * One decoded frame of the binary protocol (see FrameType), with a blocking read
+ * helper for stream based peers such as ChatConnection and ChatServer's handlers.
+ * Frames go out as EncodedMessages, and the NioChatServer decodes them straight
+ * from its read buffers.
+ */
+final class Frame {
+
+    private final FrameType type;
+    private final String payload;
+
+    Frame(FrameType type, String payload) {
+        this.type = type;
+        this.payload = payload;
+    }
+
+    FrameType getType() {
+        return type;
+    }
+
+    String getPayload() {
+        return payload;
+    }
+
+    /**
+     * Reads the next frame.
+     *
+     * @throws java.io.EOFException if the stream ends, even halfway through a frame
+     * @throws IOException if the frame has an unknown type or is too long
+     */
+    static Frame read(DataInputStream in) throws IOException {
+        return read(in, FrameType.MAX_PAYLOAD_LENGTH);
+    }
+
+    /**
+     * Reads the next frame, accepting payloads of up to maxPayload bytes. A DEFLATED
+     * frame is inflated and returned as the MESSAGE it stands for.
+     */
+    static Frame read(DataInputStream in, int maxPayload) throws IOException {
+        byte code = in.readByte();
+        FrameType type = FrameType.fromCode(code);
+        if (type == null) {
+            throw new IOException("Unknown frame type " + code);
+        }
+        int length = in.readInt();
+        if (length < 0 || length > maxPayload) {
+            throw new IOException("Frame payload of " + length + " bytes exceeds " + maxPayload);
+        }
+        byte[] payload = new byte[length];
+        in.readFully(payload);
+        if (type == FrameType.DEFLATED) {
+            type = FrameType.MESSAGE;
+            payload = MessageCompressor.inflate(payload, maxPayload);
+        }
+        return new Frame(type, new String(payload, StandardCharsets.UTF_8));
+    }
+
+    @Override
+    public String toString() {
+        return payload.isEmpty() ? type.name() : type + " " + payload;
+    }
+}
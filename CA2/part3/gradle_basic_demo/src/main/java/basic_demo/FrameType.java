@@ -0,0 +1,140 @@
+package basic_demo;
+
+/**
+ * The kinds of frame in the binary form of the "Chat Protocol". The server always
+ * greets a client with a text "SUBMITNAME" line; a client that answers with the
+ * MAGIC byte instead of a name speaks frames for the rest of the connection, and
+ * so does the server to it. Clients that answer with a name keep the line protocol,
+ * so both kinds share the same port.
+ *
+ * A frame is the type's code (one byte), the payload's length in bytes (a
+ * big-endian int) and the payload itself in UTF-8. Unlike a line, a payload may
+ * contain newlines.
+ *
+ * A server that keeps sessions gives every framed client one, so that a client
+ * whose connection drops can reconnect with RESUME instead of a NAME and get the
+ * MESSAGE frames it missed.
+ *
+ * A framed client may ask for large messages to come compressed, with COMPRESS.
+ */
+enum FrameType {
+
+    /** Server to client: choose a (different) screen name. No payload. */
+    SUBMITNAME(1),
+
+    /** Client to server: the screen name the client would like. */
+    NAME(2),
+
+    /** Server to client: the name was accepted. The payload is the name. */
+    NAMEACCEPTED(3),
+
+    /** Server to client: something said in the room, e.g. "alice: hello". */
+    MESSAGE(4),
+
+    /** Client to server: text to broadcast, or a command such as "/stats". */
+    SEND(5),
+
+    /** Client to server: leaving the room. No payload. */
+    QUIT(6),
+
+    /**
+     * Either way: asks for a PONG with the same payload. The server pings a client
+     * that has been silent for a while (see Heartbeats).
+     */
+    PING(7),
+
+    /** Either way: the answer to a PING. */
+    PONG(8),
+
+    /** Node to node: the first frame on a cluster link. The payload names the sending node. */
+    PEER(9),
+
+    /**
+     * Node to node: a message said in a room on the sending node, for the receiving
+     * node's members of that room. The payload is the room's name, a space and the
+     * MESSAGE payload.
+     */
+    RELAY(10),
+
+    /**
+     * Server to client, just before NAMEACCEPTED: the client's session (see
+     * Session). The payload is the session's token, a space and the sequence number
+     * of the next MESSAGE frame; every MESSAGE frame after that one has the next
+     * number.
+     */
+    SESSION(11),
+
+    /**
+     * Client to server, in place of NAME: takes back a session whose connection
+     * dropped. The payload is the token, a space and the sequence number of the last
+     * MESSAGE frame the client got. A server that can't resume the session asks for a
+     * name instead.
+     */
+    RESUME(12),
+
+    /**
+     * Client to server, usually right after MAGIC: the compression the client can
+     * inflate, "deflate" being the only one (see MessageCompressor), or nothing to
+     * turn compression off again. The server answers with a COMPRESS frame naming the
+     * compression it is going to use, empty if none, and from then on may send large
+     * messages as DEFLATED frames.
+     */
+    COMPRESS(13),
+
+    /**
+     * Server to client, once the client asked for compression: a MESSAGE frame whose
+     * payload is compressed with raw DEFLATE (RFC 1951). It is numbered in a session
+     * like any MESSAGE frame, and Frame.read() hands it on inflated, as a MESSAGE.
+     */
+    DEFLATED(14);
+
+    /** Sent by a client in place of its first name to switch to frames. */
+    static final byte MAGIC = 0;
+
+    /** The type byte and the length. */
+    static final int HEADER_LENGTH = 5;
+
+    // The same bound as on a text line, so a client can't grow the server's heap with a huge frame.
+    static final int MAX_FRAME_LENGTH = 64 * 1024;
+    static final int MAX_PAYLOAD_LENGTH = MAX_FRAME_LENGTH - HEADER_LENGTH;
+
+    /**
+     * The longest MESSAGE a client may be sent, as a line or as a frame's payload: the
+     * server puts "MESSAGE " and the sender's name ahead of text that may already have
+     * been as long as a line allows.
+     */
+    static final int MAX_MESSAGE_LENGTH = LineDecoder.MAX_LINE_LENGTH + "MESSAGE ".length()
+            + 4 * NameRegistry.MAX_NAME_LENGTH + ": ".length();
+
+    private static final FrameType[] BY_CODE = new FrameType[values().length + 1];
+
+    static {
+        for (FrameType type : values()) {
+            BY_CODE[type.code] = type;
+        }
+    }
+
+    private final byte code;
+    private final byte[] keyword;
+
+    FrameType(int code) {
+        this.code = (byte) code;
+        this.keyword = EncodedMessage.encode(name());
+    }
+
+    byte code() {
+        return code;
+    }
+
+    /** The word that starts the type's line in the text protocol, e.g. "MESSAGE". */
+    byte[] keyword() {
+        return keyword;
+    }
+
+    /**
+     * Returns the type with the given code, or null if there is none.
+     */
+    static FrameType fromCode(byte code) {
+        return code > 0 && code < BY_CODE.length ? BY_CODE[code] : null;
+    }
+}
@@ -0,0 +1,38 @@
+package basic_demo;
+
+/**
+ * When the message log forces what was appended to it out to the disk. Until then
+ * appended messages are in the page cache, where they survive the server crashing
+ * but not the machine.
+ */
+public enum FsyncPolicy {
+
+    /**
+     * Force every message before the broadcast that appended it returns; the slowest,
+     * but nothing is ever lost. Broadcasts in the same room at the same time share a
+     * force.
+     */
+    MESSAGE,
+
+    /** Force from a background thread every so often, off the broadcasting path. */
+    INTERVAL,
+
+    /** Leave it to the operating system. */
+    NONE;
+
+    /**
+     * Parses a policy given on the command line, e.g. "interval".
+     */
+    public static FsyncPolicy fromString(String value) {
+        try {
+            return FsyncPolicy.valueOf(value.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Unknown fsync policy: " + value);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return name().toLowerCase();
+    }
+}
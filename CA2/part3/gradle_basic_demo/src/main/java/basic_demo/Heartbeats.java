@@ -0,0 +1,183 @@
+package basic_demo;
+
+import java.io.Closeable;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Finds the connections that died without closing: a client that unplugged, a NAT
+ * that forgot the connection or a host that crashed leaves the server with a socket
+ * that never reads anything again, and, on ChatServer, a handler blocked on it for
+ * good, holding the client's name and room.
+ *
+ * Every connection is watched on one TimingWheel for the whole server, by a single
+ * timeout that comes due when the connection next needs looking at. Reading from a
+ * client only notes the time (see Client.lastHeard()); it never touches the wheel.
+ * So the wheel sees every connection once per heartbeat interval at most, quiet or
+ * busy, and the cost of a connection stays the same at a hundred thousand.
+ *
+ * When the server hasn't heard from a client for the heartbeat interval, it sends
+ * it a PING (see HEARTBEAT):
+ *
+ *  - framed clients answer with a PONG frame,
+ *  - browsers get a WebSocket ping, which they answer on their own,
+ *  - text clients get a "PING" line, which they can't answer; but writing it is
+ *    what finds out that a connection is gone, once TCP gives up on it.
+ *
+ * A client that could have answered but hasn't been heard from for the idle timeout
+ * is disconnected, as is one that has not even logged in by then. A text client
+ * that is merely quiet is not, as it can't tell the server it is still there.
+ *
+ * Both are off unless the server is given them: the PINGs are an addition to the
+ * protocol that older clients don't expect, and the idle timeout also disconnects a
+ * person who takes that long to choose a name.
+ */
+final class Heartbeats implements Closeable {
+
+    /**
+     * A connection as the heartbeats see it. Implemented by the connections of both
+     * servers; its methods are called on the wheel's thread.
+     */
+    interface Client {
+
+        /** The System.nanoTime() at which the client last sent anything. */
+        long lastHeard();
+
+        /** Whether the client answers a PING, so that silence means it is gone. */
+        boolean answersHeartbeats();
+
+        boolean isLoggedIn();
+
+        /** Sends the client a PING; must not block. */
+        void heartbeat();
+
+        /** Disconnects the client; must not block. */
+        void reap();
+    }
+
+    /** The heartbeat of every client, encoded once. */
+    static final EncodedMessage HEARTBEAT = EncodedMessage.of(FrameType.PING, "");
+
+    // A turn of the wheel is 51.2 s, so most timeouts wait less than one.
+    private static final long TICK_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+    private static final int SLOTS = 512;
+
+    private final TimingWheel wheel;
+    private final long heartbeatNanos;
+    private final long idleNanos;
+    private final ServerMetrics metrics;
+
+    /**
+     * @param heartbeatNanos how long a client may be silent before it gets a PING, 0
+     *                       for never
+     * @param idleNanos how long a client that answers PINGs may be silent before it is
+     *                  disconnected, 0 for ever
+     */
+    Heartbeats(long heartbeatNanos, long idleNanos, ServerMetrics metrics) {
+        this.heartbeatNanos = heartbeatNanos;
+        this.idleNanos = idleNanos;
+        this.metrics = metrics;
+        this.wheel = new TimingWheel("Heartbeats", TICK_NANOS, SLOTS);
+        this.wheel.start();
+    }
+
+    /**
+     * The heartbeats the options ask for, or null if they turn off both heartbeats
+     * and the idle timeout.
+     */
+    static Heartbeats of(ServerOptions options, ServerMetrics metrics) {
+        if (options.getHeartbeatSeconds() <= 0 && options.getIdleTimeoutSeconds() <= 0) {
+            return null;
+        }
+        return new Heartbeats(TimeUnit.SECONDS.toNanos(options.getHeartbeatSeconds()),
+                TimeUnit.SECONDS.toNanos(options.getIdleTimeoutSeconds()), metrics);
+    }
+
+    /** The connections being watched. */
+    int watched() {
+        return wheel.pending();
+    }
+
+    /**
+     * Watches the client from now until the returned watch is cancelled.
+     */
+    Watch watch(Client client) {
+        return new Watch(client);
+    }
+
+    /**
+     * The timeout of one client, scheduled again each time it comes due.
+     */
+    final class Watch implements Runnable {
+        private final Client client;
+        private volatile TimingWheel.Timeout timeout;
+        private volatile boolean cancelled;
+        // When the last PING went out; only the wheel's thread uses it.
+        private long pinged;
+
+        private Watch(Client client) {
+            this.client = client;
+            this.pinged = System.nanoTime();
+            schedule(Math.min(positive(heartbeatNanos), positive(idleNanos)));
+        }
+
+        private void schedule(long delayNanos) {
+            if (!cancelled) {
+                timeout = wheel.schedule(this, delayNanos);
+            }
+        }
+
+        /** Stops watching; the connection has closed, or another one took over the client. */
+        void cancel() {
+            cancelled = true;
+            TimingWheel.Timeout current = timeout;
+            if (current != null) {
+                current.cancel();
+            }
+        }
+
+        public void run() {
+            if (cancelled) {
+                return;
+            }
+            long now = System.nanoTime();
+            long heard = client.lastHeard();
+            boolean loggedIn = client.isLoggedIn();
+            boolean reapable = idleNanos > 0 && (client.answersHeartbeats() || !loggedIn);
+            if (reapable && now - heard >= idleNanos) {
+                metrics.reaped();
+                client.reap();
+                return;
+            }
+            long delay = Long.MAX_VALUE;
+            if (heartbeatNanos > 0) {
+                // Quiet since the last word from the client or the last PING, whichever is later.
+                long quietSince = heard - pinged > 0 ? heard : pinged;
+                if (now - quietSince >= heartbeatNanos) {
+                    // One yet to log in isn't pinged, but looked at again a heartbeat later.
+                    if (loggedIn) {
+                        metrics.heartbeat();
+                        client.heartbeat();
+                    }
+                    pinged = now;
+                    quietSince = now;
+                }
+                delay = quietSince + heartbeatNanos - now;
+            }
+            if (reapable) {
+                delay = Math.min(delay, heard + idleNanos - now);
+            }
+            if (delay != Long.MAX_VALUE) {
+                schedule(Math.max(TICK_NANOS, delay));
+            }
+        }
+    }
+
+    private static long positive(long nanos) {
+        return nanos > 0 ? nanos : Long.MAX_VALUE;
+    }
+
+    /** Stops the wheel, and with it every watch. */
+    public void close() {
+        wheel.close();
+    }
+}
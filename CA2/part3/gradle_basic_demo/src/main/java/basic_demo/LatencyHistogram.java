@@ -0,0 +1,120 @@
+package basic_demo;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A histogram of durations in nanoseconds, cheap enough to record into from every
+ * writer thread. Recording a value is one increment of a bucket in an
+ * AtomicLongArray, found with a few shifts: below 64 ns every nanosecond has a
+ * bucket of its own, above that every power of two is split into SUB_BUCKETS equal
+ * buckets, so a percentile is never off by more than 1/SUB_BUCKETS (about 3%) of
+ * its value. Values from MAX_VALUE (about 18 minutes) up are counted as MAX_VALUE.
+ *
+ * Reading a percentile walks all the buckets, which is meant for the occasional
+ * scrape rather than the hot path. The counts are never reset, so percentiles cover
+ * everything recorded since the histogram was created.
+ */
+final class LatencyHistogram {
+
+    static final long MAX_VALUE = (1L << 40) - 1;
+
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(indexOf(MAX_VALUE) + 1);
+    private final LongAdder sum = new LongAdder();
+
+    /**
+     * What a histogram held at one moment, so that several percentiles can be read
+     * from the same counts.
+     */
+    static final class Snapshot {
+        private final long[] counts;
+        private final long count;
+        private final long sum;
+
+        private Snapshot(long[] counts, long sum) {
+            long total = 0;
+            for (long bucket : counts) {
+                total += bucket;
+            }
+            this.counts = counts;
+            this.count = total;
+            this.sum = sum;
+        }
+
+        long count() {
+            return count;
+        }
+
+        /** The sum of the recorded values, in nanoseconds. */
+        long sum() {
+            return sum;
+        }
+
+        /**
+         * Returns the value below which the given fraction of the recorded values lie,
+         * e.g. 0.99 for the 99th percentile, or 0 if nothing was recorded. The value is
+         * the top of its bucket, so it errs on the high side.
+         */
+        long valueAt(double quantile) {
+            if (count == 0) {
+                return 0;
+            }
+            long rank = Math.max(1, (long) Math.ceil(quantile * count));
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    return highestValueAt(i);
+                }
+            }
+            return MAX_VALUE;
+        }
+
+        /** The largest recorded value, to within its bucket. */
+        long max() {
+            for (int i = counts.length - 1; i >= 0; i--) {
+                if (counts[i] > 0) {
+                    return highestValueAt(i);
+                }
+            }
+            return 0;
+        }
+    }
+
+    void record(long nanos) {
+        long value = Math.min(Math.max(nanos, 0), MAX_VALUE);
+        counts.incrementAndGet(indexOf(value));
+        sum.add(value);
+    }
+
+    Snapshot snapshot() {
+        long[] copy = new long[counts.length()];
+        for (int i = 0; i < copy.length; i++) {
+            copy[i] = counts.get(i);
+        }
+        return new Snapshot(copy, sum.sum());
+    }
+
+    // Values up to 2 * SUB_BUCKETS map to themselves; above, the SUB_BUCKET_BITS below the
+    // highest one bit pick the bucket within the value's power of two.
+    static int indexOf(long value) {
+        int magnitude = 63 - Long.numberOfLeadingZeros(value | 1);
+        if (magnitude <= SUB_BUCKET_BITS) {
+            return (int) value;
+        }
+        int shift = magnitude - SUB_BUCKET_BITS;
+        return shift * SUB_BUCKETS + (int) (value >>> shift);
+    }
+
+    static long highestValueAt(int index) {
+        if (index < 2 * SUB_BUCKETS) {
+            return index;
+        }
+        int shift = index / SUB_BUCKETS - 1;
+        long top = index % SUB_BUCKETS + SUB_BUCKETS;
+        return ((top + 1) << shift) - 1;
+    }
+}
@@ -0,0 +1,181 @@
+package basic_demo;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Splits the bytes read from a client into lines by looking for '\n' directly,
+ * instead of running Scanner's regular expressions over decoded characters. The
+ * decoder reads into a buffer taken from a BufferPool and hands out each line as a
+ * view of that buffer, so decoding a line allocates nothing: the caller decides
+ * whether the line needs to become a String at all. A broadcast, for instance,
+ * can copy the bytes straight into the EncodedMessage.
+ *
+ * The view returned by nextLine() is only valid until the decoder is next used.
+ * The buffer grows for long lines, but never beyond the maximum line length, so a
+ * client that never sends a newline can't grow the heap without limit.
+ *
+ * A decoder is used by one thread at a time: a client's handler or its event loop.
+ */
+final class LineDecoder {
+
+    // The longest line accepted, terminator included.
+    static final int MAX_LINE_LENGTH = 64 * 1024;
+
+    private static final byte NEWLINE = '\n';
+    private static final byte RETURN = '\r';
+
+    private final BufferPool pool;
+    private final int maxLineLength;
+
+    // The unread bytes lie between position and limit.
+    private ByteBuffer buffer;
+    private ByteBuffer line;
+
+    // How many of the unread bytes are known not to hold a newline.
+    private int scanned;
+
+    LineDecoder(BufferPool pool) {
+        this(pool, MAX_LINE_LENGTH);
+    }
+
+    LineDecoder(BufferPool pool, int maxLineLength) {
+        this.pool = pool;
+        this.maxLineLength = maxLineLength;
+        setBuffer(pool.acquire());
+        buffer.limit(0);
+    }
+
+    /**
+     * Returns the next complete line without its "\n" or "\r\n", or null if the
+     * bytes read so far don't complete one.
+     *
+     * @throws IOException if the line being read is already too long
+     */
+    ByteBuffer nextLine() throws IOException {
+        byte[] bytes = buffer.array();
+        int start = buffer.position();
+        int limit = buffer.limit();
+        for (int i = start + scanned; i < limit; i++) {
+            if (bytes[i] == NEWLINE) {
+                int end = i > start && bytes[i - 1] == RETURN ? i - 1 : i;
+                line.limit(end).position(start);
+                buffer.position(i + 1);
+                scanned = 0;
+                return line;
+            }
+        }
+        scanned = limit - start;
+        if (scanned >= maxLineLength) {
+            throw new IOException("Line exceeds " + maxLineLength + " bytes");
+        }
+        return null;
+    }
+
+    /**
+     * Blocks until a whole line has been read, see nextLine().
+     *
+     * @return the line, or null if the stream ended first
+     */
+    ByteBuffer readLine(InputStream in) throws IOException {
+        ByteBuffer next;
+        while ((next = nextLine()) == null) {
+            if (readFrom(in) < 0) {
+                return null;
+            }
+        }
+        return next;
+    }
+
+    /**
+     * Reads whatever the stream has to give, blocking until there is something.
+     *
+     * @return the number of bytes read, or -1 at the end of the stream
+     */
+    int readFrom(InputStream in) throws IOException {
+        makeRoom();
+        int read = in.read(buffer.array(), buffer.limit(), buffer.capacity() - buffer.limit());
+        if (read > 0) {
+            buffer.limit(buffer.limit() + read);
+        }
+        return read;
+    }
+
+    /**
+     * Reads whatever the channel has to give; a non-blocking channel may give nothing.
+     *
+     * @return the number of bytes read, or -1 at the end of the stream
+     */
+    int readFrom(ReadableByteChannel channel) throws IOException {
+        makeRoom();
+        int unread = buffer.position();
+        buffer.position(buffer.limit()).limit(buffer.capacity());
+        int read = channel.read(buffer);
+        buffer.limit(buffer.position()).position(unread);
+        return read;
+    }
+
+    /** Returns the next unread byte without consuming it, or -1 if there is none. */
+    int peek() {
+        return buffer.hasRemaining() ? buffer.get(buffer.position()) : -1;
+    }
+
+    /**
+     * Returns the bytes read but not yet decoded and gives the buffer back to the pool,
+     * for a connection that stops speaking lines.
+     */
+    byte[] drain() {
+        byte[] unread = new byte[buffer.remaining()];
+        buffer.get(unread);
+        release();
+        return unread;
+    }
+
+    /** Gives the buffer back to the pool. The decoder can't be used afterwards. */
+    void release() {
+        if (buffer != null) {
+            pool.release(buffer);
+            buffer = null;
+            line = null;
+        }
+    }
+
+    private void makeRoom() throws IOException {
+        if (!buffer.hasRemaining()) {
+            buffer.position(0).limit(0);
+        }
+        if (buffer.limit() < buffer.capacity()) {
+            return;
+        }
+        if (buffer.position() > 0) {
+            buffer.compact().flip();
+            return;
+        }
+        if (buffer.capacity() >= maxLineLength) {
+            throw new IOException("Line exceeds " + maxLineLength + " bytes");
+        }
+        ByteBuffer larger = ByteBuffer.allocate(Math.min(buffer.capacity() * 2, maxLineLength));
+        larger.put(buffer).flip();
+        pool.release(buffer);
+        setBuffer(larger);
+    }
+
+    private void setBuffer(ByteBuffer buffer) {
+        this.buffer = buffer;
+        this.line = buffer.duplicate();
+    }
+
+    /** Decodes a line from nextLine() into a String. */
+    static String decode(ByteBuffer line) {
+        return new String(line.array(), line.arrayOffset() + line.position(), line.remaining(),
+                StandardCharsets.UTF_8);
+    }
+
+    /** Whether the line starts with the given ASCII character, e.g. '/' for a command. */
+    static boolean startsWith(ByteBuffer line, char c) {
+        return line.hasRemaining() && line.get(line.position()) == (byte) c;
+    }
+}
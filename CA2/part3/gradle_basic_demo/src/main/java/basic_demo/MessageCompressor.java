@@ -0,0 +1,205 @@
+package basic_demo;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compresses large MESSAGE payloads for the framed clients that asked for it with a
+ * COMPRESS frame, and inflates them again on the client's side (see
+ * FrameType.DEFLATED).
+ *
+ * A message is compressed at most once however many clients it goes to: its
+ * DEFLATED frame is one more wire form of the EncodedMessage (see
+ * EncodedMessage.deflated()), which every client that takes compressed frames
+ * shares, as they share the plain frame. Payloads under the threshold go out as
+ * they are, since deflating a short line saves a few bytes for more CPU than the
+ * bytes cost to write, and so do payloads that would not get any smaller.
+ *
+ * Payloads are raw DEFLATE, without the zlib header and checksum, which TCP and TLS
+ * make redundant, and each is compressed on its own, so a frame inflates without
+ * the ones before it and a session can replay frames in any order.
+ *
+ * A Deflater holds a few hundred KB of memory outside the heap, too much to make
+ * one per message or keep one per thread when every client may have a virtual
+ * thread of its own, so they are pooled.
+ *
+ * The compressor counts the messages it compressed, their bytes before and after,
+ * and the time it took, which ServerMetrics reports as the compression ratio and
+ * the cost per message.
+ */
+final class MessageCompressor {
+
+    /** The one compression there is, as named in COMPRESS frames. */
+    static final String DEFLATE = "deflate";
+
+    static final int DEFAULT_MIN_BYTES = 1024;
+    static final int DEFAULT_LEVEL = Deflater.BEST_SPEED;
+
+    // Enough for every thread that broadcasts at the same time on a busy server.
+    private static final int POOLED_DEFLATERS = 16;
+
+    private final int minBytes;
+    private final int level;
+    private final BlockingQueue<Deflater> deflaters = new ArrayBlockingQueue<>(POOLED_DEFLATERS);
+
+    private final LongAdder compressed = new LongAdder();
+    private final LongAdder incompressible = new LongAdder();
+    private final LongAdder bytesIn = new LongAdder();
+    private final LongAdder bytesOut = new LongAdder();
+    private final LongAdder nanos = new LongAdder();
+
+    /**
+     * @param minBytes the smallest payload worth compressing
+     * @param level the deflate level, from 1 (fastest) to 9 (smallest)
+     */
+    MessageCompressor(int minBytes, int level) {
+        this.minBytes = minBytes;
+        this.level = level;
+    }
+
+    /**
+     * The compressor the options ask for, or null if they turn compression off.
+     */
+    static MessageCompressor of(ServerOptions options) {
+        return options.getCompressMinBytes() > 0
+                ? new MessageCompressor(options.getCompressMinBytes(), options.getCompressLevel())
+                : null;
+    }
+
+    int minBytes() {
+        return minBytes;
+    }
+
+    int level() {
+        return level;
+    }
+
+    /**
+     * Compresses the payload between the buffer's position and its limit, leaving the
+     * buffer as it was.
+     *
+     * @return the compressed payload, or null if the payload is under the threshold or
+     *         would not get any smaller
+     */
+    byte[] deflate(ByteBuffer payload) {
+        int length = payload.remaining();
+        if (length < minBytes) {
+            return null;
+        }
+        long start = System.nanoTime();
+        Deflater deflater = deflaters.poll();
+        if (deflater == null) {
+            deflater = new Deflater(level, true);
+        }
+        byte[] result;
+        try {
+            deflater.setInput(payload.duplicate());
+            deflater.finish();
+            // No room for more than the payload itself: past that, compressing lost.
+            byte[] output = new byte[length];
+            int written = 0;
+            while (!deflater.finished() && written < length) {
+                written += deflater.deflate(output, written, length - written);
+            }
+            result = deflater.finished() && written < length ? Arrays.copyOf(output, written) : null;
+        } finally {
+            deflater.reset();
+            if (!deflaters.offer(deflater)) {
+                deflater.end();
+            }
+        }
+        nanos.add(System.nanoTime() - start);
+        if (result == null) {
+            incompressible.increment();
+            return null;
+        }
+        compressed.increment();
+        bytesIn.add(length);
+        bytesOut.add(result.length);
+        return result;
+    }
+
+    /**
+     * Inflates the payload of a DEFLATED frame.
+     *
+     * @throws IOException if the payload is not raw DEFLATE, is cut short, or inflates
+     *                     to more than maxLength bytes
+     */
+    static byte[] inflate(byte[] payload, int maxLength) throws IOException {
+        Inflater inflater = new Inflater(true);
+        try {
+            inflater.setInput(payload);
+            byte[] output = new byte[Math.min(maxLength, Math.max(1024, 4 * payload.length))];
+            int inflated = 0;
+            while (!inflater.finished()) {
+                if (inflated == output.length) {
+                    if (output.length == maxLength) {
+                        throw new IOException("Compressed payload inflates to more than " + maxLength + " bytes");
+                    }
+                    output = Arrays.copyOf(output, Math.min(maxLength, 2 * output.length));
+                }
+                int count = inflater.inflate(output, inflated, output.length - inflated);
+                if (count == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new IOException("Compressed payload is cut short");
+                }
+                inflated += count;
+            }
+            return Arrays.copyOf(output, inflated);
+        } catch (DataFormatException e) {
+            throw new IOException("Compressed payload is corrupt", e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    /** Messages sent compressed. */
+    long compressed() {
+        return compressed.sum();
+    }
+
+    /** Messages over the threshold that compressing did not make smaller, so went out as they were. */
+    long incompressible() {
+        return incompressible.sum();
+    }
+
+    long bytesIn() {
+        return bytesIn.sum();
+    }
+
+    long bytesOut() {
+        return bytesOut.sum();
+    }
+
+    /** Bytes before over bytes after, of the messages sent compressed; 0 before the first. */
+    double ratio() {
+        long out = bytesOut();
+        return out == 0 ? 0 : (double) bytesIn() / out;
+    }
+
+    /**
+     * The time spent compressing, incompressible messages included, per message
+     * compressed or tried. It is spent in the thread that broadcasts.
+     */
+    long nanosPerMessage() {
+        long messages = compressed() + incompressible();
+        return messages == 0 ? 0 : nanos.sum() / messages;
+    }
+
+    long nanos() {
+        return nanos.sum();
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.ROOT, "%d compressed, %d incompressible, ratio %.2f, %dus per message",
+                compressed(), incompressible(), ratio(), nanosPerMessage() / 1000);
+    }
+}
@@ -0,0 +1,446 @@
+package basic_demo;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.LogManager;
+
+/**
+ * The transcript of one room on disk: an append-only log of every line said in the
+ * room, exactly as the text protocol sends it, e.g. "MESSAGE alice: hi\n". Every
+ * line has a sequence number, counting from 0 for the first line ever logged.
+ *
+ * The log is a directory of segment files, each named after the sequence number of
+ * its first line. Only the newest segment is written to, through a memory mapping
+ * of the whole segment, so an append is a copy into memory the page cache already
+ * holds: no system call. Under the MESSAGE FsyncPolicy, commit() then forces it out,
+ * outside the room's lock, so the appends of broadcasts going on at the same time
+ * share one force.
+ * A message that doesn't fit in what is left of the segment starts a new one, and
+ * once there are more segments than the retention allows the oldest are deleted.
+ *
+ * Segments are created at their full size and trimmed to what was written when
+ * they are rolled or the log is closed. After a crash the log is recovered by
+ * reading the newest segment up to the first line that is missing or incomplete.
+ *
+ * The log also remembers where it was when each client last left the room, so a
+ * client coming back can catch up on what it missed (see since()).
+ *
+ * A log whose room is gone gives its segment back with release(), so that rooms
+ * nobody is in hold no file or mapping open; the next append or since() opens the
+ * segment again where it left off.
+ */
+final class MessageLog implements Closeable {
+
+    static final String SUFFIX = ".log";
+
+    // The most clients whose departure is remembered; the longest gone are forgotten first.
+    static final int MAX_DEPARTURES = 10_000;
+
+    private final static Logger LOGGER = LogManager.getLogger(MessageLog.class);
+
+    private final Path directory;
+    private final int segmentBytes;
+    private final int retainedSegments;
+    private final FsyncPolicy fsync;
+
+    // Appends and rolls hold the lock; forcing the current segment out only needs syncLock.
+    private final ReentrantLock lock = new ReentrantLock();
+    private final ReentrantLock syncLock = new ReentrantLock();
+
+    private final TreeMap<Long, Path> segments = new TreeMap<>();
+    private FileChannel channel;
+    private volatile MappedByteBuffer mapped;
+    private long nextSequence;
+    private volatile boolean dirty;
+    private boolean closed;
+    private final AtomicLong appended = new AtomicLong();
+    private final AtomicLong skipped = new AtomicLong();
+    private final Map<String, Long> departures = new LinkedHashMap<String, Long>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+            return size() > MAX_DEPARTURES;
+        }
+    };
+
+    private MessageLog(Path directory, int segmentBytes, int retainedSegments, FsyncPolicy fsync) {
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+        this.retainedSegments = retainedSegments;
+        this.fsync = fsync;
+    }
+
+    /**
+     * Opens the log in the directory, creating it if need be, and recovers where the
+     * last server to use it left off.
+     *
+     * @param segmentBytes the size of a segment file
+     * @param retainedSegments how many segments to keep, the one being written included
+     */
+    static MessageLog open(Path directory, int segmentBytes, int retainedSegments, FsyncPolicy fsync)
+            throws IOException {
+        MessageLog log = new MessageLog(directory, segmentBytes, retainedSegments, fsync);
+        Files.createDirectories(directory);
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + SUFFIX)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                try {
+                    log.segments.put(Long.parseLong(name.substring(0, name.length() - SUFFIX.length())), file);
+                } catch (NumberFormatException e) {
+                    // Not a segment.
+                }
+            }
+        }
+        if (log.segments.isEmpty()) {
+            log.startSegment(0);
+        } else {
+            log.recover(log.segments.lastKey());
+        }
+        return log;
+    }
+
+    /**
+     * Appends a message, which may be several lines.
+     *
+     * @return the sequence number of the message's first line, or -1 if it was not logged
+     */
+    long append(EncodedMessage message) {
+        ByteBuffer bytes = message.buffer();
+        int length = bytes.remaining();
+        if (length > segmentBytes) {
+            skipped.incrementAndGet();
+            return -1;
+        }
+        int lines = 0;
+        for (int i = bytes.position(); i < bytes.limit(); i++) {
+            if (bytes.get(i) == '\n') {
+                lines++;
+            }
+        }
+        lock.lock();
+        try {
+            if (closed) {
+                skipped.incrementAndGet();
+                return -1;
+            }
+            if (channel == null) {
+                reopen();
+            }
+            if (mapped.remaining() < length) {
+                roll();
+            }
+            mapped.put(bytes);
+            long sequence = nextSequence;
+            nextSequence += lines;
+            dirty = true;
+            appended.incrementAndGet();
+            return sequence;
+        } catch (IOException e) {
+            LOGGER.error("Could not write the log in " + directory + ": " + e.getMessage());
+            skipped.incrementAndGet();
+            return -1;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Under the MESSAGE policy, forces what was appended out to the disk before
+     * returning; otherwise does nothing. Called after append(), without the room's
+     * lock: a thread that finds another already forcing waits for it, and only forces
+     * again if its own message came too late for that force.
+     */
+    void commit() {
+        if (fsync == FsyncPolicy.MESSAGE) {
+            sync();
+        }
+    }
+
+    /**
+     * Forces what was appended since the last sync out to the disk. Appends carry on
+     * meanwhile.
+     */
+    void sync() {
+        syncLock.lock();
+        try {
+            if (dirty) {
+                dirty = false;
+                mapped.force();
+            }
+        } finally {
+            syncLock.unlock();
+        }
+    }
+
+    /**
+     * Returns the lines from the given sequence number on, as far as they have been
+     * logged by now, ready to be written to a client. Lines older than the retention
+     * kept are skipped.
+     *
+     * Only finding the segments happens under the lock; locating the first line
+     * within its segment does not hold up appends.
+     *
+     * @return the catch-up, which the caller must close, or null if there is nothing
+     *         to catch up on
+     */
+    CatchUp since(long sequence) throws IOException {
+        List<Long> bases = new ArrayList<>();
+        List<FileChannel> files = new ArrayList<>();
+        long from;
+        long to;
+        long lastEnd;
+        lock.lock();
+        try {
+            if (closed) {
+                throw new IOException("The log in " + directory + " is closed");
+            }
+            if (channel == null) {
+                reopen();
+            }
+            to = nextSequence;
+            from = Math.max(sequence, segments.firstKey());
+            if (from >= to) {
+                return null;
+            }
+            try {
+                for (Map.Entry<Long, Path> segment : segments.tailMap(segments.floorKey(from), true).entrySet()) {
+                    bases.add(segment.getKey());
+                    files.add(FileChannel.open(segment.getValue(), StandardOpenOption.READ));
+                }
+            } catch (IOException e) {
+                for (FileChannel file : files) {
+                    file.close();
+                }
+                throw e;
+            }
+            lastEnd = mapped.position();
+        } finally {
+            lock.unlock();
+        }
+
+        List<CatchUp.Part> parts = new ArrayList<>();
+        for (int i = 0; i < files.size(); i++) {
+            FileChannel file = files.get(i);
+            long end = i == files.size() - 1 ? lastEnd : file.size();
+            MappedByteBuffer lines = file.map(FileChannel.MapMode.READ_ONLY, 0, end);
+            long position = 0;
+            if (i == 0) {
+                // Skip the lines of the first segment that come before the one asked for.
+                for (long skip = from - bases.get(0); skip > 0 && position < end; position++) {
+                    if (lines.get((int) position) == '\n') {
+                        skip--;
+                    }
+                }
+            }
+            parts.add(new CatchUp.Part(file, lines, position, end));
+        }
+        return new CatchUp(parts, from, to);
+    }
+
+    /** Remembers where the log was when the client left the room. */
+    void departed(String name) {
+        lock.lock();
+        try {
+            departures.put(name, nextSequence);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the sequence number of the first line the client missed since it last
+     * left the room, or -1 if the log doesn't know of it.
+     */
+    long departure(String name) {
+        lock.lock();
+        try {
+            Long sequence = departures.get(name);
+            return sequence != null ? sequence : -1;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** The sequence number the next line will get. */
+    long nextSequence() {
+        lock.lock();
+        try {
+            return nextSequence;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** The sequence number of the oldest line still kept. */
+    long firstSequence() {
+        lock.lock();
+        try {
+            return segments.firstKey();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** The number of segment files. */
+    int segments() {
+        lock.lock();
+        try {
+            return segments.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    long appended() {
+        return appended.get();
+    }
+
+    /** Messages that were not logged, being larger than a segment or failing to roll. */
+    long skipped() {
+        return skipped.get();
+    }
+
+    /**
+     * Trims and closes the segment being written. Messages appended afterwards are
+     * skipped.
+     */
+    public void close() throws IOException {
+        lock.lock();
+        try {
+            closed = true;
+            finishSegment();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Trims and closes the segment being written, until the next append or since()
+     * opens it again.
+     */
+    void release() throws IOException {
+        lock.lock();
+        try {
+            if (!closed) {
+                finishSegment();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Whether the log holds its segment open, i.e. has not been released since it was last used. */
+    boolean isOpen() {
+        lock.lock();
+        try {
+            return channel != null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Called with the lock held.
+    private void roll() throws IOException {
+        finishSegment();
+        startSegment(nextSequence);
+        while (segments.size() > retainedSegments) {
+            Map.Entry<Long, Path> oldest = segments.pollFirstEntry();
+            Files.deleteIfExists(oldest.getValue());
+        }
+    }
+
+    private void startSegment(long firstSequence) throws IOException {
+        Path file = directory.resolve(String.format("%020d", firstSequence) + SUFFIX);
+        segments.put(firstSequence, file);
+        map(file);
+        nextSequence = firstSequence;
+    }
+
+    // Maps the newest segment again after a release, which trimmed it to what was written.
+    private void reopen() throws IOException {
+        Path file = segments.lastEntry().getValue();
+        int end = (int) Files.size(file);
+        map(file);
+        mapped.position(end);
+    }
+
+    private void recover(long firstSequence) throws IOException {
+        Path file = segments.get(firstSequence);
+        map(file);
+        // Every line starts with a keyword, so a zero byte where a line should start is unwritten space.
+        int end = 0;
+        long lines = 0;
+        int i = 0;
+        for (; i < mapped.limit(); i++) {
+            byte b = mapped.get(i);
+            if (i == end && b == 0) {
+                break;
+            }
+            if (b == '\n') {
+                end = i + 1;
+                lines++;
+            }
+        }
+        // Clear a line that was cut short, lest it join whatever is appended next.
+        for (int torn = end; torn < i; torn++) {
+            mapped.put(torn, (byte) 0);
+        }
+        mapped.position(end);
+        nextSequence = firstSequence + lines;
+        LOGGER.info("Recovered " + directory + " up to line " + nextSequence);
+    }
+
+    private void map(Path file) throws IOException {
+        channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        int size = (int) Math.max(segmentBytes, channel.size());
+        syncLock.lock();
+        try {
+            mapped = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        } finally {
+            syncLock.unlock();
+        }
+    }
+
+    // Forces and trims the segment being written, and closes it.
+    private void finishSegment() throws IOException {
+        if (channel == null) {
+            return;
+        }
+        syncLock.lock();
+        try {
+            if (fsync != FsyncPolicy.NONE) {
+                mapped.force();
+            }
+            dirty = false;
+            channel.truncate(mapped.position());
+            channel.close();
+            channel = null;
+            // Unmapped once collected.
+            mapped = null;
+        } finally {
+            syncLock.unlock();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return directory.getFileName() + " lines=" + nextSequence() + " segments=" + segments()
+                + " appended=" + appended() + " skipped=" + skipped();
+    }
+}
@@ -0,0 +1,151 @@
+package basic_demo;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+import javax.swing.JTextArea;
+import javax.swing.Timer;
+import javax.swing.text.BadLocationException;
+
+/**
+ * Shows incoming messages in a JTextArea without letting a busy room swamp the
+ * event dispatch thread. Any thread may append lines; they wait in a concurrent
+ * queue until a Swing Timer, at most framesPerSecond times a second, appends
+ * everything that arrived since its last tick in one go. However many messages
+ * arrive, the EDT does at most framesPerSecond document updates a second.
+ *
+ * The area only keeps the last scrollback lines: older ones are removed from the
+ * top of the document as new ones come in, so memory stays flat however long the
+ * client runs. Lines that would scroll out within the same refresh are never
+ * inserted at all.
+ *
+ * Once a second the view reports the lines received and the refreshes done in that
+ * second to a stats listener, on the EDT.
+ */
+final class MessageView {
+
+    static final int DEFAULT_FRAMES_PER_SECOND = 30;
+    static final int DEFAULT_SCROLLBACK = 5000;
+
+    private final JTextArea area;
+    private final int scrollback;
+    private final ConcurrentLinkedQueue<String> pending = new ConcurrentLinkedQueue<>();
+    private final LongAdder received = new LongAdder();
+    private final Timer timer;
+    private Consumer<String> statsListener = stats -> { };
+
+    // Only touched on the EDT.
+    private final ArrayDeque<String> batch = new ArrayDeque<>();
+    private long refreshes;
+    private long skipped;
+    private long statsAt = System.nanoTime();
+    private long lastReceived;
+    private long lastRefreshes;
+    private double refreshRate;
+    private double lineRate;
+
+    MessageView(JTextArea area, int framesPerSecond, int scrollback) {
+        this.area = area;
+        this.scrollback = scrollback;
+        this.timer = new Timer(1000 / framesPerSecond, event -> tick());
+        timer.setCoalesce(true);
+    }
+
+    /** Called on the EDT with a line such as "250 messages/s, 30 refreshes/s" every second. */
+    void setStatsListener(Consumer<String> statsListener) {
+        this.statsListener = statsListener;
+    }
+
+    void start() {
+        timer.start();
+    }
+
+    void stop() {
+        timer.stop();
+    }
+
+    /** Queues a line for the next refresh. Safe to call from any thread. */
+    void append(String line) {
+        pending.add(line);
+        received.increment();
+    }
+
+    private void tick() {
+        flush();
+        long now = System.nanoTime();
+        if (now - statsAt >= 1_000_000_000L) {
+            double seconds = (now - statsAt) / 1e9;
+            long receivedNow = received.sum();
+            lineRate = (receivedNow - lastReceived) / seconds;
+            refreshRate = (refreshes - lastRefreshes) / seconds;
+            lastReceived = receivedNow;
+            lastRefreshes = refreshes;
+            statsAt = now;
+            statsListener.accept(String.format("%.0f messages/s, %.0f refreshes/s", lineRate, refreshRate));
+        }
+    }
+
+    /**
+     * Moves everything queued into the area in one update and trims the area to the
+     * scrollback. Runs on the EDT.
+     *
+     * @return the number of lines taken off the queue
+     */
+    int flush() {
+        String line;
+        int taken = 0;
+        while ((line = pending.poll()) != null) {
+            batch.add(line);
+            taken++;
+            if (batch.size() > scrollback) {
+                batch.poll();
+                skipped++;
+            }
+        }
+        if (taken == 0) {
+            return 0;
+        }
+        StringBuilder text = new StringBuilder();
+        for (String queued : batch) {
+            text.append(queued).append('\n');
+        }
+        batch.clear();
+        area.append(text.toString());
+        trim();
+        refreshes++;
+        return taken;
+    }
+
+    // The document always ends with a newline, so it has one (empty) line more than it shows.
+    private void trim() {
+        int excess = area.getLineCount() - 1 - scrollback;
+        if (excess > 0) {
+            try {
+                area.getDocument().remove(0, area.getLineStartOffset(excess));
+            } catch (BadLocationException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+
+    /** Refreshes done in the last full second. */
+    double refreshesPerSecond() {
+        return refreshRate;
+    }
+
+    /** Lines received in the last full second. */
+    double linesPerSecond() {
+        return lineRate;
+    }
+
+    long refreshes() {
+        return refreshes;
+    }
+
+    /** Lines that scrolled out within the refresh they arrived in, so were never shown. */
+    long skipped() {
+        return skipped;
+    }
+}
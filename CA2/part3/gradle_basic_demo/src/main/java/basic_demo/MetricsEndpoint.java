@@ -0,0 +1,65 @@
+package basic_demo;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Serves a server's metrics at http://localhost:port/metrics in the Prometheus text
+ * format, with the HTTP server that comes with the JDK. It only listens on the
+ * loopback address: the numbers are for whoever runs the server, not for its
+ * clients. A scrape is answered on the HTTP server's own thread and never touches
+ * the chat's threads.
+ */
+final class MetricsEndpoint {
+
+    static final String PATH = "/metrics";
+
+    private static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    private final HttpServer http;
+
+    private MetricsEndpoint(HttpServer http) {
+        this.http = http;
+    }
+
+    /**
+     * Starts serving the metrics on the given port.
+     *
+     * @throws IOException if the port can't be bound
+     */
+    static MetricsEndpoint start(int port, ServerMetrics metrics) throws IOException {
+        HttpServer http = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        http.createContext(PATH, exchange -> serve(exchange, metrics));
+        http.start();
+        return new MetricsEndpoint(http);
+    }
+
+    private static void serve(HttpExchange exchange, ServerMetrics metrics) throws IOException {
+        try (exchange) {
+            if (!exchange.getRequestMethod().equals("GET")) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+            byte[] body = metrics.toPrometheus().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        }
+    }
+
+    InetSocketAddress getAddress() {
+        return http.getAddress();
+    }
+
+    void stop() {
+        http.stop(0);
+    }
+}
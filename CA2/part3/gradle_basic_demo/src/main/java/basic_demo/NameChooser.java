@@ -0,0 +1,29 @@
+package basic_demo;
+
+/**
+ * Picks the screen name a ChatConnection submits whenever the server asks for one
+ * with SUBMITNAME: first when the client connects, then again every time the name
+ * it submitted was already taken.
+ */
+@FunctionalInterface
+public interface NameChooser {
+
+    /**
+     * @param attempt 0 for the first request, 1 after the first name was refused, ...
+     * @return the name to submit, or null to give up and disconnect
+     */
+    String chooseName(int attempt);
+
+    /** Submits the given name once and gives up if it is taken. */
+    static NameChooser fixed(String name) {
+        return attempt -> attempt == 0 ? name : null;
+    }
+
+    /**
+     * Submits the given name, then name2, name3, ... until one is free, e.g. for many
+     * bots sharing a base name.
+     */
+    static NameChooser numbered(String name) {
+        return attempt -> attempt == 0 ? name : name + (attempt + 1);
+    }
+}
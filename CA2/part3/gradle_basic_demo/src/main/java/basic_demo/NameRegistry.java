@@ -0,0 +1,118 @@
+package basic_demo;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The screen names in use, each mapped to the connection that holds it. Reserving
+ * a name is a single putIfAbsent on a ConcurrentHashMap, so logins only ever
+ * contend when they hash to the same bin, rather than all queueing on one monitor.
+ * A name can only be released by the connection holding it, which keeps a client
+ * that is leaving from freeing a name someone else has taken since.
+ *
+ * A name is at most MAX_NAME_LENGTH characters long, which bounds the prefix the
+ * server puts ahead of everything its holder says (see FrameType.MAX_MESSAGE_LENGTH).
+ *
+ * The registry also counts reservations, rejections (the name was taken) and
+ * releases, as a measure of how contended logins are.
+ *
+ * @param <C> the type of connection holding a name
+ */
+final class NameRegistry<C> {
+
+    static final int MAX_NAME_LENGTH = 64;
+
+    private final ConcurrentHashMap<String, C> owners = new ConcurrentHashMap<>();
+    private final LongAdder reserved = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder released = new LongAdder();
+
+    /** Whether a client may go by the name at all, taken or not. */
+    static boolean isValidName(String name) {
+        return !name.isEmpty() && name.length() <= MAX_NAME_LENGTH;
+    }
+
+    /**
+     * Atomically gives the name to the connection, unless it is already in use.
+     *
+     * @return true if the connection now holds the name
+     */
+    boolean reserve(String name, C connection) {
+        if (owners.putIfAbsent(name, connection) == null) {
+            reserved.increment();
+            return true;
+        }
+        rejected.increment();
+        return false;
+    }
+
+    /**
+     * Frees the name if the connection holds it.
+     *
+     * @return true if the name was released
+     */
+    boolean release(String name, C connection) {
+        if (owners.remove(name, connection)) {
+            released.increment();
+            return true;
+        }
+        return false;
+    }
+
+    /** Returns the connection holding the name, or null if nobody does. */
+    C lookup(String name) {
+        return owners.get(name);
+    }
+
+    /**
+     * Looks up several names at once, e.g. the members of a room.
+     *
+     * @return the connections of the names in use; names nobody holds are left out
+     */
+    Map<String, C> lookupAll(Collection<String> names) {
+        Map<String, C> found = new HashMap<>();
+        for (String name : names) {
+            C connection = owners.get(name);
+            if (connection != null) {
+                found.put(name, connection);
+            }
+        }
+        return found;
+    }
+
+    /** The connections holding a name, as they are at the moment of iterating them. */
+    Collection<C> holders() {
+        return owners.values();
+    }
+
+    boolean contains(String name) {
+        return owners.containsKey(name);
+    }
+
+    /** The number of names in use. */
+    int size() {
+        return owners.size();
+    }
+
+    long reserved() {
+        return reserved.sum();
+    }
+
+    /** The number of reservations refused because the name was in use. */
+    long rejected() {
+        return rejected.sum();
+    }
+
+    long released() {
+        return released.sum();
+    }
+
+    @Override
+    public String toString() {
+        return "names=" + size() + " reserved=" + reserved() + " rejected=" + rejected()
+                + " released=" + released();
+    }
+}
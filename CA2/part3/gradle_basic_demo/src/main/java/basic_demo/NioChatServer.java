@@ -0,0 +1,402 @@
+package basic_demo;
+
+import java.io.IOException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+import javax.net.ssl.SSLContext;
+
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.LogManager;
+
+/**
+ * A non-blocking version of the chat room server. It speaks exactly the same
+ * "Chat Protocol" as ChatServer (SUBMITNAME, NAMEACCEPTED, MESSAGE), in lines or in
+ * frames as each client chooses, but instead of
+ * parking one thread per client in a blocking read it multiplexes all of them over a
+ * small, fixed number of event loops. An idle client therefore costs a socket and a
+ * few buffers instead of a whole thread, which lets one server hold tens of thousands
+ * of connections.
+ *
+ * The thread calling run(), and any more Acceptors configured, accept connections;
+ * each deals them out in turn to a share of the event loops of its own, and from
+ * then on everything about a client happens on its loop. Given a TLS port, as
+ * many acceptors again accept TLS clients there, whose reads and writes then go
+ * through a TlsChannel on the same loops. Given a WebSocket port, browsers can
+ * join the same rooms there (see WebSocket), also on the same loops.
+ * Clients talk in rooms (see RoomRegistry), and a message only goes to the sender's
+ * room. Broadcasts only enqueue onto each recipient's bounded outbound queue, with the
+ * configured OverflowPolicy deciding what happens to clients that fall behind.
+ * Given a peer port, the server joins a cluster of chat servers (see Federation)
+ * and its rooms span every node. Framed clients that ask for compression get large
+ * messages compressed, once per message for all of them (see MessageCompressor).
+ * Given rate limits, a client over its limit has its reads paused, and one that
+ * keeps at it is muted and in the end disconnected (see FloodControl). Clients that
+ * go silent are sent PINGs, and those that could have answered and didn't are
+ * disconnected (see Heartbeats), all from one timing wheel rather than a timer each.
+ *
+ * Like ChatServer, it keeps ServerMetrics for "/metrics" and, given a metrics port,
+ * serves them over HTTP.
+ */
+public class NioChatServer implements Runnable {
+
+    private final static Logger LOGGER = LogManager.getLogger(NioChatServer.class);
+
+    private static final EncodedMessage SUBMITNAME = EncodedMessage.of(FrameType.SUBMITNAME, "");
+
+    // The name of every client, so we can check for duplicates upon registration.
+    private final NameRegistry<NioConnection> names = new NameRegistry<>();
+
+    // The rooms, each with the clients in it, used for broadcast.
+    private final RoomRegistry rooms;
+
+    // The other nodes of the cluster, or null if the server runs on its own.
+    private final Federation federation;
+
+    // The rooms' logs on disk, or null if none are kept.
+    private final Transcript transcript;
+
+    private final ServerOptions options;
+    private final WriteStats writeStats = new WriteStats();
+    private final ServerMetrics metrics;
+    // Compresses large messages for the clients that ask for it, or null if the server won't.
+    private final MessageCompressor compressor;
+    // Pings the silent clients and disconnects the dead ones, or null if it is off.
+    private final Heartbeats heartbeats;
+    private volatile MetricsEndpoint metricsEndpoint;
+
+    // Read buffers of clients that left, for the next clients to come.
+    private final BufferPool readBuffers = new BufferPool(1024, 1024);
+    private final EventLoop[] loops;
+    private final Acceptors acceptors;
+    // Those of the TLS port, or null if there is none, and the context of its sessions.
+    private final Acceptors tlsAcceptors;
+    private SSLContext tlsContext;
+    // Those of the WebSocket port, or null if there is none.
+    private final Acceptors webSocketAcceptors;
+    // The event loops each acceptor deals its connections out to, and where it is up to.
+    private EventLoop[][] groups;
+    private int[] nextInGroup;
+    private int[] nextTlsInGroup;
+    private int[] nextWebSocketInGroup;
+
+    public NioChatServer(int serverPort, int eventLoops) {
+        this(withEventLoops(new ServerOptions(serverPort), eventLoops));
+    }
+
+    public NioChatServer(ServerOptions options) {
+        this.options = options;
+        this.federation = options.getPeerPort() > 0 ? new Federation(options) : null;
+        this.transcript = options.getLogDirectory() != null ? new Transcript(options) : null;
+        this.compressor = MessageCompressor.of(options);
+        this.metrics = new ServerMetrics(writeStats,
+                () -> names.holders().stream().mapToInt(connection -> connection.getOutbound().depth()), compressor);
+        this.heartbeats = Heartbeats.of(options, metrics);
+        this.rooms = new RoomRegistry(federation, options.getHistoryLines(), options.getHistoryKilobytes() * 1024,
+                transcript, metrics.getBroadcastLatency(), () -> RateLimit.ofRoom(options),
+                options.getMaxRooms());
+        this.loops = new EventLoop[options.getEventLoops()];
+        this.acceptors = new Acceptors("NIO chat server", options);
+        this.tlsAcceptors = options.getTlsPort() > 0
+                ? new Acceptors("NIO chat server TLS", options.getTlsPort(), options) : null;
+        this.webSocketAcceptors = options.getWebSocketPort() > 0
+                ? new Acceptors("NIO chat server WebSocket", options.getWebSocketPort(), options) : null;
+    }
+
+    private static ServerOptions withEventLoops(ServerOptions options, int eventLoops) {
+        options.setEventLoops(eventLoops);
+        return options;
+    }
+
+    public void run() {
+        try {
+            for (int i = 0; i < loops.length; i++) {
+                loops[i] = new EventLoop("Chat Server Event Loop " + i);
+                loops[i].start();
+            }
+            groups = group(loops, acceptors.count());
+            nextInGroup = new int[groups.length];
+            nextTlsInGroup = new int[groups.length];
+            nextWebSocketInGroup = new int[groups.length];
+            if (tlsAcceptors != null) {
+                // A keystore that won't do stops the server before anyone connects.
+                tlsContext = TlsContexts.server(options);
+            }
+            acceptors.bind();
+            if (tlsAcceptors != null) {
+                tlsAcceptors.bind();
+                tlsAcceptors.start(this::acceptedTls);
+            }
+            if (webSocketAcceptors != null) {
+                webSocketAcceptors.bind();
+                webSocketAcceptors.start(this::acceptedWebSocket);
+            }
+            if (federation != null) {
+                federation.start(rooms);
+            }
+            if (options.getMetricsPort() > 0) {
+                metricsEndpoint = MetricsEndpoint.start(options.getMetricsPort(), metrics);
+            }
+            acceptors.run(this::accepted);
+        } catch (IOException e) {
+            LOGGER.error("NIO chat server could not start", e);
+        } finally {
+            shutdown();
+        }
+    }
+
+    /**
+     * Splits the event loops between the acceptors, every loop going to one of them
+     * only; with more acceptors than loops, some acceptors share a loop.
+     */
+    static EventLoop[][] group(EventLoop[] loops, int acceptors) {
+        EventLoop[][] groups = new EventLoop[acceptors][];
+        for (int group = 0; group < acceptors; group++) {
+            int size = loops.length <= acceptors ? 1 : (loops.length - group + acceptors - 1) / acceptors;
+            groups[group] = new EventLoop[size];
+            for (int i = 0; i < size; i++) {
+                groups[group][i] = loops[(group + i * acceptors) % loops.length];
+            }
+        }
+        return groups;
+    }
+
+    private void accepted(SocketChannel channel, int group) throws IOException {
+        open(channel, null, false, group, nextInGroup);
+    }
+
+    private void acceptedTls(SocketChannel channel, int group) throws IOException {
+        open(channel, TlsChannel.server(channel, tlsContext, metrics::handshake), false, group, nextTlsInGroup);
+    }
+
+    private void acceptedWebSocket(SocketChannel channel, int group) throws IOException {
+        open(channel, null, true, group, nextWebSocketInGroup);
+    }
+
+    // Called on the acceptor's own thread, so its place in its group needs no locking.
+    private void open(SocketChannel channel, TlsChannel tls, boolean webSocket, int group, int[] next)
+            throws IOException {
+        metrics.accepted();
+        channel.configureBlocking(false);
+        channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+
+        EventLoop[] loops = groups[group];
+        EventLoop loop = loops[next[group]];
+        next[group] = (next[group] + 1) % loops.length;
+        NioConnection connection = new NioConnection(this, loop, channel, tls, webSocket, options, writeStats,
+                readBuffers);
+        loop.execute(connection::open);
+    }
+
+    /** The threads accepting connections, with how many each has accepted. */
+    Acceptors getAcceptors() {
+        return acceptors;
+    }
+
+    /** Socket writes against messages written, over all clients. */
+    public WriteStats getWriteStats() {
+        return writeStats;
+    }
+
+    /** Connections, message rates, queue depths and broadcast latencies. */
+    ServerMetrics getMetrics() {
+        return metrics;
+    }
+
+    /** What compresses messages for the clients that ask, or null if compression is off. */
+    MessageCompressor getCompressor() {
+        return compressor;
+    }
+
+    /** What watches the clients for silence, or null if nothing does. */
+    Heartbeats getHeartbeats() {
+        return heartbeats;
+    }
+
+    /** The names in use, with counters of how contended reserving them has been. */
+    NameRegistry<?> getNames() {
+        return names;
+    }
+
+    /** The other nodes of the cluster, or null if the server runs on its own. */
+    Federation getFederation() {
+        return federation;
+    }
+
+    /**
+     * Stops accepting clients, closes every connection, leaves the cluster, closes
+     * the transcript and stops serving metrics and heartbeats.
+     */
+    public void shutdown() {
+        acceptors.close();
+        if (tlsAcceptors != null) {
+            tlsAcceptors.close();
+        }
+        if (webSocketAcceptors != null) {
+            webSocketAcceptors.close();
+        }
+        if (federation != null) {
+            federation.shutdown();
+        }
+        if (transcript != null) {
+            transcript.close();
+        }
+        if (metricsEndpoint != null) {
+            metricsEndpoint.stop();
+        }
+        metrics.close();
+        if (heartbeats != null) {
+            heartbeats.close();
+        }
+        for (EventLoop loop : loops) {
+            if (loop != null) {
+                loop.shutdown();
+            }
+        }
+    }
+
+    void connected(NioConnection connection) {
+        connection.send(SUBMITNAME);
+    }
+
+    /**
+     * Handles one line from a client, as decoded by its LineDecoder. An ordinary
+     * message is broadcast straight from the line's bytes; only names and commands
+     * are turned into Strings.
+     */
+    void lineReceived(NioConnection connection, ByteBuffer line) {
+        if (connection.getName() != null && !LineDecoder.startsWith(line, '/')) {
+            if (admit(connection, line.remaining())) {
+                metrics.received();
+                connection.getRoom().broadcast(connection.getMessagePrefix(), line);
+            }
+        } else {
+            lineReceived(connection, LineDecoder.decode(line));
+        }
+    }
+
+    /**
+     * Handles one line from a client. Until a unique name has been accepted every line
+     * is a name submission; afterwards every line is a message to broadcast.
+     */
+    void lineReceived(NioConnection connection, String line) {
+        if (connection.getName() == null) {
+            submitName(connection, line);
+        } else if (line.toLowerCase().startsWith("/quit")) {
+            connection.close();
+        } else if (line.toLowerCase().startsWith("/stats")) {
+            connection.send(EncodedMessage.of(FrameType.MESSAGE, "[server] outbound queue " + connection.getOutbound()
+                    + ", writes " + connection.getWriteStats() + ", server writes " + writeStats
+                    + ", " + names + (federation != null ? ", " + federation : "")));
+        } else if (line.toLowerCase().startsWith("/metrics")) {
+            connection.send(EncodedMessage.of(FrameType.MESSAGE, "[server] " + metrics.summary()));
+        } else if (!rooms.command(connection, line)
+                && admit(connection, EncodedMessage.encodedLength(line))) {
+            metrics.received();
+            connection.getRoom().broadcast(connection.getMessagePrefix(), line);
+        }
+    }
+
+    /**
+     * Has the connection's flood control decide on a message of the given length that
+     * the client said: pauses the connection's reads if it is throttled, tells the
+     * client if that got it muted, and closes it if it is to be disconnected.
+     *
+     * @return whether the message is to be said
+     */
+    private boolean admit(NioConnection connection, int length) {
+        FloodControl flood = connection.getFloodControl();
+        if (flood == null) {
+            return true;
+        }
+        FloodControl.Verdict verdict = flood.admit(System.nanoTime(), length, connection.getRoom().getLimit());
+        if (verdict == FloodControl.Verdict.DISCONNECT) {
+            metrics.flooded();
+            LOGGER.info(connection.getName() + " kept flooding while muted, disconnecting");
+            connection.close();
+            return false;
+        }
+        if (verdict == FloodControl.Verdict.MUTE) {
+            metrics.muted();
+            LOGGER.info(connection.getName() + " is flooding " + connection.getRoom().getName() + ", muted for "
+                    + flood.muteSeconds() + " s");
+            connection.send(EncodedMessage.of(FrameType.MESSAGE,
+                    "[server] you are muted for " + flood.muteSeconds() + " s for flooding"));
+        }
+        if (flood.pause() > 0) {
+            metrics.throttled();
+            connection.pauseReads(flood.pause());
+        }
+        return verdict == FloodControl.Verdict.SEND;
+    }
+
+    /**
+     * Handles one frame from a client that negotiated frames. NAME and SEND carry what
+     * a line would, so they are handled like one. This server keeps no sessions, so a
+     * client asking to resume one is asked for a name instead. COMPRESS is answered
+     * with the compression the client is going to get.
+     */
+    void frameReceived(NioConnection connection, Frame frame) {
+        switch (frame.getType()) {
+            case NAME:
+            case SEND:
+                lineReceived(connection, frame.getPayload());
+                break;
+            case RESUME:
+                if (connection.getName() == null) {
+                    connection.send(SUBMITNAME);
+                } else {
+                    connection.close();
+                }
+                break;
+            case QUIT:
+                connection.close();
+                break;
+            case PING:
+                connection.send(EncodedMessage.of(FrameType.PONG, frame.getPayload()));
+                break;
+            case PONG:
+                // The answer to a heartbeat, which only had to be heard.
+                break;
+            case COMPRESS:
+                boolean deflate = compressor != null && frame.getPayload().equals(MessageCompressor.DEFLATE);
+                connection.setCompression(deflate ? compressor : null);
+                connection.send(EncodedMessage.of(FrameType.COMPRESS, deflate ? MessageCompressor.DEFLATE : ""));
+                break;
+            default:
+                LOGGER.info("Unexpected " + frame.getType() + " frame, disconnecting " + connection.getName());
+                connection.close();
+        }
+    }
+
+    private void submitName(NioConnection connection, String name) {
+        if (!NameRegistry.isValidName(name) || !names.reserve(name, connection)) {
+            connection.send(SUBMITNAME);
+            return;
+        }
+        connection.setName(name);
+        LOGGER.info("A new user has joined: " + name);
+
+        // Entering the lobby lets everyone there know that the new person has joined.
+        connection.send(EncodedMessage.of(FrameType.NAMEACCEPTED, name));
+        rooms.enter(connection);
+    }
+
+    void tooSlow(NioConnection connection) {
+        LOGGER.info(connection.getName() + " is too slow, disconnecting (outbound queue "
+                + connection.getOutbound() + ")");
+    }
+
+    void disconnected(NioConnection connection) {
+        metrics.disconnected();
+        String name = connection.getName();
+        if (name == null) {
+            return;
+        }
+        names.release(name, connection);
+        long dropped = connection.getOutbound().dropped();
+        LOGGER.info(name + " has left the chat" + (dropped > 0 ? " (" + dropped + " messages dropped)" : ""));
+        rooms.exit(connection);
+    }
+}
@@ -0,0 +1,632 @@
+package basic_demo;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * One client of the NioChatServer. Reads are split into lines by a LineDecoder, or
+ * into frames once the client has sent FrameType.MAGIC, and handed to the server;
+ * writes go to a bounded OutboundQueue that is drained whenever the socket
+ * is writable. All socket I/O happens on the connection's event loop, but send()
+ * may be called from any thread, e.g. by a client on another loop broadcasting a
+ * message.
+ *
+ * Queued messages are not written one by one: the connection asks its loop for a
+ * flush at the end of the current iteration (or once the flush window has passed)
+ * and then writes everything queued by then in one gathering write.
+ *
+ * A client of the TLS port reads and writes through a TlsChannel instead of the
+ * socket. Its handshake is carried on by the same reads and flushes; beyond that,
+ * a read goes on while whole records are left over, and a flush first writes any
+ * records the socket had no room for.
+ *
+ * A client of the WebSocket port first sends an HTTP upgrade request, read through
+ * the LineDecoder, and then speaks the line protocol in WebSocket text messages (see
+ * WebSocket), read into the read buffer like frames. Everything queued for it goes
+ * out in the WebSocket form of the message, which its recipients share; only the
+ * server's answers to the handshake, PINGs and CLOSE are written on their own, ahead
+ * of the next batch.
+ *
+ * A client its FloodControl throttles has its reads paused: the connection stops
+ * reading from the socket and handing on what it read already until the pause is
+ * over, when the loop's flushes, which already wait for flush windows, hand it back.
+ *
+ * The server's Heartbeats watch the connection from open() to close(), on a thread
+ * of their own; a read only notes the time.
+ */
+class NioConnection implements EventLoop.KeyHandler, EventLoop.Flushable, RoomMember, Heartbeats.Client {
+
+    private final NioChatServer server;
+    private final EventLoop loop;
+    private final SocketChannel channel;
+    // The channel itself, or TLS on top of it.
+    private final ReadableByteChannel in;
+    private final GatheringByteChannel out;
+    private final TlsChannel tls;
+    private final boolean webSocket;
+    private SelectionKey key;
+
+    // Lines are read through the decoder; frames, once negotiated, into the read buffer.
+    private LineDecoder lines;
+    private ByteBuffer readBuffer;
+    private final OutboundQueue<EncodedMessage> outbound;
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+
+    // Messages being written, already off the queue so overflow can't drop them halfway.
+    private final WriteBatch batch;
+    private final WriteStats writeStats;
+    private final long flushWindowNanos;
+    private boolean flushPending;
+    private long firstPendingAt;
+
+    // Lines of the transcript on their way to the client, if it asked for any.
+    private CatchUp catchUp;
+
+    private boolean handshaken;
+    // The WebSocket upgrade request while it is being read.
+    private WebSocket.Handshake upgrade;
+    // The text message being reassembled from fragments, if any.
+    private ByteBuffer fragments;
+    // What the server answers a WebSocket client outside the queue, and whether to hang up after.
+    private final ArrayDeque<ByteBuffer> control = new ArrayDeque<>();
+    private boolean closeAfterControl;
+    private boolean negotiated;
+    private volatile boolean framed;
+    // Set once the client asked for compression.
+    private volatile MessageCompressor compression;
+    private volatile String name;
+    private volatile Room room;
+    private byte[] messagePrefix;
+    private volatile boolean closed;
+    private volatile boolean tooSlow;
+
+    // Keeps the client within its rate limits, or null if there are none.
+    private final FloodControl flood;
+    private boolean paused;
+    private long pausedUntil;
+    private final EventLoop.Flushable resume = this::resumeIfDue;
+
+    // When the client last sent anything, and what looks out for it going silent, if anything does.
+    private volatile long lastHeard = System.nanoTime();
+    private Heartbeats.Watch watch;
+
+    /**
+     * @param tls the channel's TLS, or null for a plain connection
+     * @param webSocket whether the client connected to the WebSocket port
+     */
+    NioConnection(NioChatServer server, EventLoop loop, SocketChannel channel, TlsChannel tls, boolean webSocket,
+                  ServerOptions options, WriteStats serverWriteStats, BufferPool readBuffers) {
+        this.server = server;
+        this.lines = new LineDecoder(readBuffers);
+        this.loop = loop;
+        this.channel = channel;
+        this.tls = tls;
+        this.webSocket = webSocket;
+        this.upgrade = webSocket ? new WebSocket.Handshake() : null;
+        this.in = tls != null ? tls : channel;
+        this.out = tls != null ? tls : channel;
+        this.outbound = new OutboundQueue<>(options.getQueueCapacity(), options.getOverflowPolicy());
+        this.writeStats = new WriteStats(serverWriteStats);
+        this.batch = new WriteBatch(options.getMaxBatch(), writeStats);
+        this.flushWindowNanos = options.getFlushWindowMicros() * 1000L;
+        this.flood = FloodControl.of(options);
+    }
+
+    /**
+     * Registers the channel for reads and greets the client. Runs on the loop thread.
+     */
+    void open() {
+        try {
+            key = loop.register(channel, SelectionKey.OP_READ, this);
+        } catch (IOException e) {
+            close();
+            return;
+        }
+        Heartbeats heartbeats = server.getHeartbeats();
+        if (heartbeats != null) {
+            watch = heartbeats.watch(this);
+        }
+        server.connected(this);
+    }
+
+    private EncodedMessage onWire(EncodedMessage message) {
+        if (webSocket) {
+            return message.webSocket();
+        }
+        if (!framed) {
+            return message;
+        }
+        MessageCompressor deflating = compression;
+        return deflating != null ? message.deflated(deflating) : message.framed();
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public Room getRoom() {
+        return room;
+    }
+
+    public void setRoom(Room room) {
+        this.room = room;
+    }
+
+    void setName(String name) {
+        this.name = name;
+        this.messagePrefix = EncodedMessage.encode(name + ": ");
+    }
+
+    /** Compresses the client's large messages from now on, or stops to if null. */
+    void setCompression(MessageCompressor compression) {
+        this.compression = compression;
+    }
+
+    /** The encoded start of everything this client says, "name: ". */
+    byte[] getMessagePrefix() {
+        return messagePrefix;
+    }
+
+    OutboundQueue<EncodedMessage> getOutbound() {
+        return outbound;
+    }
+
+    WriteStats getWriteStats() {
+        return writeStats;
+    }
+
+    public long lastHeard() {
+        return lastHeard;
+    }
+
+    // Framed and WebSocket clients answer a PING; a text client can't.
+    public boolean answersHeartbeats() {
+        return framed;
+    }
+
+    public boolean isLoggedIn() {
+        return name != null;
+    }
+
+    /**
+     * Sends the client a PING: a PING frame or line, or for a browser a WebSocket
+     * ping, which it answers without the page knowing.
+     */
+    public void heartbeat() {
+        if (!webSocket) {
+            send(Heartbeats.HEARTBEAT);
+            return;
+        }
+        loop.execute(() -> {
+            if (!closed) {
+                control.add(WebSocket.frame(WebSocket.PING, ByteBuffer.allocate(0)));
+                requestFlush();
+            }
+        });
+    }
+
+    public void reap() {
+        close();
+    }
+
+    /** What keeps the client within its rate limits, or null if there are none. */
+    FloodControl getFloodControl() {
+        return flood;
+    }
+
+    /**
+     * Stops reading from the client, and handing on what was read already, for the
+     * given time. Runs on the loop thread.
+     */
+    void pauseReads(long nanos) {
+        if (paused || closed) {
+            return;
+        }
+        paused = true;
+        pausedUntil = System.nanoTime() + nanos;
+        key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+        loop.flushLater(resume);
+    }
+
+    // Ends the pause once it is over: hands on what was read meanwhile, then reads on.
+    private long resumeIfDue(long now) {
+        if (closed) {
+            return 0;
+        }
+        if (pausedUntil - now > 0) {
+            return pausedUntil - now;
+        }
+        paused = false;
+        key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+        try {
+            if (webSocket) {
+                handleWebSocketFrames();
+            } else if (framed) {
+                handleFrames();
+            } else {
+                handleLines();
+            }
+            if (!paused && tls != null && tls.hasBufferedInput()) {
+                // Records that arrived before the pause, which the selector won't report.
+                read();
+            }
+        } catch (IOException e) {
+            close();
+        }
+        return 0;
+    }
+
+    public void handle(SelectionKey key) {
+        if (!key.isValid()) {
+            close();
+            return;
+        }
+        if (key.isReadable()) {
+            read();
+        }
+        if (key.isValid() && key.isWritable()) {
+            flush();
+        }
+    }
+
+    private void read() {
+        try {
+            do {
+                readOnce();
+            } while (!closed && !paused && tls != null && tls.hasBufferedInput());
+            if (!closed && tls != null && (tls.hasPendingOutput() || !handshaken && tls.handshakeNanos() >= 0)) {
+                // The handshake wants out, or is done and the greeting has been waiting for it.
+                handshaken = tls.handshakeNanos() >= 0;
+                requestFlush();
+            }
+        } catch (IOException e) {
+            // Includes a line or frame that is too long.
+            close();
+        }
+    }
+
+    private void readOnce() throws IOException {
+        if (framed) {
+            readFrames();
+            return;
+        }
+        if (lines.readFrom(in) < 0) {
+            close();
+            return;
+        }
+        lastHeard = System.nanoTime();
+        if (webSocket) {
+            readUpgrade();
+            return;
+        }
+        if (!negotiated && lines.peek() >= 0) {
+            // The first byte the client sends tells lines from frames.
+            negotiated = true;
+            if (lines.peek() == FrameType.MAGIC) {
+                framed = true;
+                byte[] unread = lines.drain();
+                lines = null;
+                readBuffer = ByteBuffer.allocate(Math.max(1024, unread.length));
+                readBuffer.put(unread, 1, unread.length - 1).flip();
+                handleFrames();
+                return;
+            }
+        }
+        handleLines();
+    }
+
+    private void handleLines() throws IOException {
+        ByteBuffer line;
+        while (!closed && !paused && (line = lines.nextLine()) != null) {
+            server.lineReceived(this, line);
+        }
+    }
+
+    // Reads the HTTP request, then answers it and switches to WebSocket frames.
+    private void readUpgrade() throws IOException {
+        ByteBuffer line;
+        while ((line = lines.nextLine()) != null) {
+            if (!upgrade.line(LineDecoder.decode(line))) {
+                continue;
+            }
+            control.add(upgrade.response());
+            if (!upgrade.isValid()) {
+                closeAfterControl = true;
+                upgrade = null;
+                requestFlush();
+                return;
+            }
+            upgrade = null;
+            // From here on reads go to the read buffer, as frames do.
+            framed = true;
+            byte[] unread = lines.drain();
+            lines = null;
+            readBuffer = ByteBuffer.allocate(Math.max(1024, unread.length));
+            readBuffer.put(unread).flip();
+            requestFlush();
+            handleWebSocketFrames();
+            return;
+        }
+    }
+
+    private void readFrames() throws IOException {
+        readBuffer.compact();
+        if (!readBuffer.hasRemaining()) {
+            if (readBuffer.capacity() >= FrameType.MAX_FRAME_LENGTH) {
+                throw new IOException("Frame exceeds " + FrameType.MAX_FRAME_LENGTH + " bytes");
+            }
+            ByteBuffer larger = ByteBuffer.allocate(Math.min(readBuffer.capacity() * 2, FrameType.MAX_FRAME_LENGTH));
+            readBuffer.flip();
+            larger.put(readBuffer);
+            readBuffer = larger;
+        }
+        int read = in.read(readBuffer);
+        readBuffer.flip();
+        if (read < 0) {
+            close();
+            return;
+        }
+        lastHeard = System.nanoTime();
+        if (webSocket) {
+            handleWebSocketFrames();
+        } else {
+            handleFrames();
+        }
+    }
+
+    /**
+     * Hands over the text of every complete WebSocket message, answers PING and
+     * CLOSE, and leaves the buffer at the start of the next frame.
+     */
+    private void handleWebSocketFrames() throws IOException {
+        WebSocket.ClientFrame frame;
+        while (!closed && !paused && !closeAfterControl
+                && (frame = WebSocket.read(readBuffer, FrameType.MAX_PAYLOAD_LENGTH)) != null) {
+            switch (frame.opcode) {
+                case WebSocket.TEXT:
+                case WebSocket.CONTINUATION:
+                    if ((frame.opcode == WebSocket.TEXT) != (fragments == null)) {
+                        throw new IOException("WebSocket message fragments out of order");
+                    }
+                    if (frame.fin && fragments == null) {
+                        server.lineReceived(this, frame.payload);
+                        break;
+                    }
+                    if (fragments == null) {
+                        fragments = ByteBuffer.allocate(FrameType.MAX_PAYLOAD_LENGTH);
+                    }
+                    if (frame.payload.remaining() > fragments.remaining()) {
+                        throw new IOException("WebSocket message exceeds " + FrameType.MAX_PAYLOAD_LENGTH + " bytes");
+                    }
+                    fragments.put(frame.payload);
+                    if (frame.fin) {
+                        ByteBuffer message = fragments.flip();
+                        fragments = null;
+                        server.lineReceived(this, message);
+                    }
+                    break;
+                case WebSocket.PING:
+                    control.add(WebSocket.frame(WebSocket.PONG, frame.payload));
+                    requestFlush();
+                    break;
+                case WebSocket.PONG:
+                    break;
+                case WebSocket.CLOSE:
+                    // Echo the status code, if any, and hang up.
+                    control.add(WebSocket.frame(WebSocket.CLOSE,
+                            frame.payload.limit(Math.min(2, frame.payload.limit()))));
+                    closeAfterControl = true;
+                    requestFlush();
+                    break;
+                default:
+                    throw new IOException("Unsupported WebSocket frame, opcode " + frame.opcode);
+            }
+        }
+    }
+
+    // Hands over every complete frame and leaves the buffer at the start of the next one.
+    private void handleFrames() {
+        while (!closed && !paused && readBuffer.remaining() >= FrameType.HEADER_LENGTH) {
+            int start = readBuffer.position();
+            FrameType type = FrameType.fromCode(readBuffer.get(start));
+            int length = readBuffer.getInt(start + 1);
+            if (type == null || length < 0 || length > FrameType.MAX_PAYLOAD_LENGTH) {
+                close();
+                return;
+            }
+            if (readBuffer.remaining() < FrameType.HEADER_LENGTH + length) {
+                return;
+            }
+            String payload = new String(readBuffer.array(), start + FrameType.HEADER_LENGTH, length,
+                    StandardCharsets.UTF_8);
+            readBuffer.position(start + FrameType.HEADER_LENGTH + length);
+            server.frameReceived(this, new Frame(type, payload));
+        }
+    }
+
+    /**
+     * Queues a message to be written to the client, as a frame if the client asked
+     * for frames, compressed if it asked for that too. Safe to call from any thread.
+     * A client whose queue overflows under the DISCONNECT policy is closed.
+     */
+    public void send(EncodedMessage message) {
+        if (closed) {
+            return;
+        }
+        if (!outbound.offer(onWire(message))) {
+            if (!tooSlow) {
+                tooSlow = true;
+                server.tooSlow(this);
+                close();
+            }
+            return;
+        }
+        if (loop.inEventLoop()) {
+            requestFlush();
+        } else if (flushScheduled.compareAndSet(false, true)) {
+            loop.execute(() -> {
+                flushScheduled.set(false);
+                requestFlush();
+            });
+        }
+    }
+
+    /**
+     * Starts a catch-up, which the flushes then write a chunk at a time, taking turns
+     * with the batches of live messages. Runs on the loop thread.
+     */
+    public void catchUp(EncodedMessage header, CatchUp catchUp) {
+        if (closed || this.catchUp != null) {
+            catchUp.close();
+            if (!closed) {
+                send(EncodedMessage.of(FrameType.MESSAGE, "[server] still catching up"));
+            }
+            return;
+        }
+        send(header);
+        this.catchUp = catchUp;
+    }
+
+    private void requestFlush() {
+        if (!flushPending && !closed) {
+            flushPending = true;
+            firstPendingAt = System.nanoTime();
+            loop.flushLater(this);
+        }
+    }
+
+    /**
+     * Called by the loop at the end of an iteration. Within the flush window output is
+     * held back, unless a full batch is already waiting.
+     */
+    public long flushIfDue(long now) {
+        long waited = now - firstPendingAt;
+        if (waited < flushWindowNanos && outbound.depth() < batch.capacity() && !closed) {
+            return flushWindowNanos - waited;
+        }
+        flushPending = false;
+        flush();
+        return 0;
+    }
+
+    private void flush() {
+        if (closed) {
+            return;
+        }
+        try {
+            if (tls != null && !tls.flush()) {
+                // Records the socket had no room for, or a handshake waiting on the client,
+                // which the next read carries on.
+                int ops = key.interestOps() & ~SelectionKey.OP_WRITE;
+                key.interestOps(tls.hasPendingOutput() ? ops | SelectionKey.OP_WRITE : ops);
+                return;
+            }
+            if (upgrade != null) {
+                // The greeting waits for the WebSocket handshake.
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+                return;
+            }
+            while (true) {
+                // A chunk of a catch-up that was cut short has to be finished first.
+                if (catchUp != null && catchUp.inChunk() && !catchUp.writeTo(out, wire())) {
+                    key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                    return;
+                }
+                // Then a batch cut short; only then can a control frame go between frames.
+                if (batch.isEmpty() && !writeControl()) {
+                    key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                    return;
+                }
+                if (closeAfterControl) {
+                    close();
+                    return;
+                }
+                if (batch.isEmpty()) {
+                    batch.fill(outbound);
+                }
+                boolean live = !batch.isEmpty();
+                if (live && !batch.writeTo(out)) {
+                    // The socket buffer is full, carry on when the selector says it is writable.
+                    key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                    return;
+                }
+                if (catchUp != null) {
+                    // One chunk of the catch-up for every batch of live messages.
+                    if (!catchUp.writeTo(out, wire())) {
+                        key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                        return;
+                    }
+                    if (catchUp.isDone()) {
+                        catchUp.close();
+                        catchUp = null;
+                    }
+                } else if (!live) {
+                    break;
+                }
+            }
+            if (tls != null && !tls.flush()) {
+                key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                return;
+            }
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+        } catch (IOException e) {
+            close();
+        }
+    }
+
+    private CatchUp.Wire wire() {
+        return webSocket ? CatchUp.Wire.WEB_SOCKET : framed ? CatchUp.Wire.FRAMES : CatchUp.Wire.LINES;
+    }
+
+    // Writes what the server answered a WebSocket client; false if the socket had no room.
+    private boolean writeControl() throws IOException {
+        ByteBuffer next;
+        while ((next = control.peek()) != null) {
+            out.write(next);
+            if (next.hasRemaining()) {
+                return false;
+            }
+            control.poll();
+        }
+        return true;
+    }
+
+    /**
+     * Closes the socket and lets the server know the client is gone. Called on the loop
+     * thread; asks the loop to do it otherwise.
+     */
+    public void close() {
+        if (!loop.inEventLoop()) {
+            loop.execute(this::close);
+            return;
+        }
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (watch != null) {
+            watch.cancel();
+        }
+        outbound.clear();
+        batch.clear();
+        if (catchUp != null) {
+            catchUp.close();
+            catchUp = null;
+        }
+        if (lines != null) {
+            lines.release();
+        }
+        if (key != null) {
+            key.cancel();
+        }
+        try { channel.close(); } catch (IOException e) {}
+        server.disconnected(this);
+    }
+}
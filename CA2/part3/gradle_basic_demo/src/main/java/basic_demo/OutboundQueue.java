@@ -0,0 +1,103 @@
+package basic_demo;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The messages waiting to be written to one client. Any thread may offer messages,
+ * while only the client's own writer takes them, so a broadcast never waits for a
+ * slow socket: it costs one enqueue per recipient. The queue is bounded, and what
+ * happens to a message that does not fit is decided by the OverflowPolicy.
+ *
+ * The writer must take a message off the queue before writing it, so that
+ * DROP_OLDEST can never discard a message that is halfway onto the wire.
+ */
+class OutboundQueue<T> {
+
+    private final ArrayBlockingQueue<T> queue;
+    private final OverflowPolicy policy;
+    private final AtomicLong enqueued = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+
+    OutboundQueue(int capacity, OverflowPolicy policy) {
+        this.queue = new ArrayBlockingQueue<>(capacity);
+        this.policy = policy;
+    }
+
+    /**
+     * Queues a message, applying the overflow policy if the queue is full.
+     *
+     * @return false if the queue overflowed and the policy is to disconnect
+     */
+    boolean offer(T message) {
+        if (queue.offer(message)) {
+            enqueued.incrementAndGet();
+            return true;
+        }
+        switch (policy) {
+            case DROP_NEWEST:
+                dropped.incrementAndGet();
+                return true;
+            case DROP_OLDEST:
+                do {
+                    if (queue.poll() != null) {
+                        dropped.incrementAndGet();
+                    }
+                } while (!queue.offer(message));
+                enqueued.incrementAndGet();
+                return true;
+            default:
+                dropped.incrementAndGet();
+                return false;
+        }
+    }
+
+    /** Returns the next message, or null if there is none. */
+    T poll() {
+        return queue.poll();
+    }
+
+    /** Waits for the next message. */
+    T take() throws InterruptedException {
+        return queue.take();
+    }
+
+    /** Waits up to the timeout for the next message, returning null if none came. */
+    T poll(long timeout, TimeUnit unit) throws InterruptedException {
+        return queue.poll(timeout, unit);
+    }
+
+    boolean isEmpty() {
+        return queue.isEmpty();
+    }
+
+    void clear() {
+        queue.clear();
+    }
+
+    /** The number of messages currently waiting. */
+    int depth() {
+        return queue.size();
+    }
+
+    int capacity() {
+        return queue.size() + queue.remainingCapacity();
+    }
+
+    /** The number of messages accepted into the queue so far. */
+    long enqueued() {
+        return enqueued.get();
+    }
+
+    /** The number of messages lost to the overflow policy so far. */
+    long dropped() {
+        return dropped.get();
+    }
+
+    @Override
+    public String toString() {
+        return "depth=" + depth() + "/" + capacity() + " enqueued=" + enqueued()
+                + " dropped=" + dropped() + " policy=" + policy;
+    }
+}
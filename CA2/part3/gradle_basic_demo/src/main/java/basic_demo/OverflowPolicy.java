@@ -0,0 +1,33 @@
+package basic_demo;
+
+/**
+ * What happens when a message is broadcast to a client whose outbound queue is
+ * already full, i.e. a client that reads slower than the room talks.
+ */
+public enum OverflowPolicy {
+
+    /** Discard the oldest queued message to make room for the new one. */
+    DROP_OLDEST,
+
+    /** Discard the new message and keep what is already queued. */
+    DROP_NEWEST,
+
+    /** Disconnect the slow client. */
+    DISCONNECT;
+
+    /**
+     * Parses a policy given on the command line, e.g. "drop-oldest".
+     */
+    public static OverflowPolicy fromString(String value) {
+        try {
+            return OverflowPolicy.valueOf(value.trim().toUpperCase().replace('-', '_'));
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Unknown overflow policy: " + value);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return name().toLowerCase().replace('_', '-');
+    }
+}
@@ -0,0 +1,161 @@
+package basic_demo;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.LogManager;
+
+/**
+ * The link from this node of a cluster to one other node. Messages to forward are
+ * queued, and a thread of the link's own connects to the peer and writes them out
+ * in batches, the same way a client's writer does. When the connection fails the
+ * thread reconnects with exponential backoff, and whatever was queued in the
+ * meantime follows once the link is back.
+ *
+ * Everything this node forwards to the peer goes through this one queue and this
+ * one connection, so the peer receives messages in the order they were said here:
+ * messages from the same sender never overtake each other.
+ *
+ * Forwarding is at most once. A peer that stays away long enough for the queue to
+ * fill up loses the oldest messages, and a message that had already been handed to
+ * the kernel when the connection broke is lost with it; a message is never sent
+ * twice. A peer that hangs up while the link is idle loses nothing, since the link
+ * notices at once and keeps what comes next for the new connection.
+ */
+final class PeerLink implements Runnable {
+
+    static final long MIN_BACKOFF_MILLIS = 100;
+    static final long MAX_BACKOFF_MILLIS = 5000;
+
+    private final static Logger LOGGER = LogManager.getLogger(PeerLink.class);
+
+    private final InetSocketAddress peer;
+    private final EncodedMessage hello;
+    private final OutboundQueue<EncodedMessage> queue;
+    private final WriteStats stats = new WriteStats();
+    private final WriteBatch batch;
+    private final long flushWindowNanos;
+    private final Thread thread;
+    private volatile boolean running = true;
+    private volatile boolean connected;
+    private volatile SocketChannel channel;
+
+    /**
+     * @param peer the peer port of the other node, resolved anew on every connect
+     * @param nodeName how this node introduces itself to the peer
+     */
+    PeerLink(InetSocketAddress peer, String nodeName, ServerOptions options) {
+        this.peer = peer;
+        this.hello = EncodedMessage.of(FrameType.PEER, nodeName).framed();
+        this.queue = new OutboundQueue<>(options.getQueueCapacity(), OverflowPolicy.DROP_OLDEST);
+        this.batch = new WriteBatch(options.getMaxBatch(), stats);
+        this.flushWindowNanos = options.getFlushWindowMicros() * 1000L;
+        this.thread = new Thread(this, "Peer link to " + peer.getHostString() + ":" + peer.getPort());
+        this.thread.setDaemon(true);
+    }
+
+    void start() {
+        thread.start();
+    }
+
+    /** Queues a RELAY frame for the peer. Never blocks. */
+    void forward(EncodedMessage message) {
+        queue.offer(message);
+    }
+
+    boolean isConnected() {
+        return connected;
+    }
+
+    OutboundQueue<EncodedMessage> getQueue() {
+        return queue;
+    }
+
+    WriteStats getWriteStats() {
+        return stats;
+    }
+
+    void shutdown() {
+        running = false;
+        thread.interrupt();
+        SocketChannel current = channel;
+        if (current != null) {
+            try { current.close(); } catch (IOException e) {}
+        }
+    }
+
+    public void run() {
+        long backoff = MIN_BACKOFF_MILLIS;
+        while (running) {
+            try (SocketChannel connection = SocketChannel.open(
+                    new InetSocketAddress(peer.getHostString(), peer.getPort()))) {
+                channel = connection;
+                connection.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                ByteBuffer greeting = hello.buffer();
+                while (greeting.hasRemaining()) {
+                    connection.write(greeting);
+                }
+                connected = true;
+                backoff = MIN_BACKOFF_MILLIS;
+                LOGGER.info("Linked to peer " + peer);
+                Thread.ofVirtual().name("Peer watcher " + peer).start(() -> watch(connection));
+
+                while (running) {
+                    // A batch left over from a broken connection goes out first.
+                    if (batch.isEmpty()) {
+                        batch.fill(queue, flushWindowNanos);
+                    }
+                    while (!batch.writeTo(connection)) {
+                        // A blocking channel may still write only part of a large batch.
+                    }
+                }
+            } catch (InterruptedException e) {
+                return;
+            } catch (IOException e) {
+                batch.rewind();
+                if (connected && running) {
+                    LOGGER.info("Lost the link to peer " + peer + ": " + e.getMessage());
+                }
+            } finally {
+                connected = false;
+                channel = null;
+            }
+            try {
+                Thread.sleep(backoff);
+            } catch (InterruptedException e) {
+                return;
+            }
+            backoff = Math.min(backoff * 2, MAX_BACKOFF_MILLIS);
+        }
+    }
+
+    /**
+     * Waits for the peer to hang up, and then closes the connection. The peer never
+     * sends anything on a link, but without this a link that is idle would only find
+     * out it is broken by writing to it, and whatever it wrote would be lost.
+     */
+    private void watch(SocketChannel connection) {
+        ByteBuffer discard = ByteBuffer.allocate(64);
+        try {
+            while (connection.read(discard) >= 0) {
+                discard.clear();
+            }
+            LOGGER.info("Peer " + peer + " hung up");
+        } catch (IOException e) {
+            // Closed by the link itself.
+        } finally {
+            connected = false;
+            try { connection.close(); } catch (IOException e) {}
+        }
+    }
+
+    @Override
+    public String toString() {
+        return peer.getHostString() + ":" + peer.getPort() + (connected ? " up" : " down")
+                + " queue " + queue.depth() + " dropped " + queue.dropped();
+    }
+}
@@ -0,0 +1,49 @@
+package basic_demo;
+
+/**
+ * A limit on messages per second and bytes per second, kept in a TokenBucket each:
+ * one for a client, or one that the members of a room share.
+ */
+final class RateLimit {
+
+    // Either may be null, for no limit on it.
+    private final TokenBucket messages;
+    private final TokenBucket bytes;
+
+    private RateLimit(TokenBucket messages, TokenBucket bytes) {
+        this.messages = messages;
+        this.bytes = bytes;
+    }
+
+    /**
+     * A limit that lets through messagesPerSecond, in bursts of up to burst messages,
+     * and kilobytesPerSecond, in bursts of up to a second's worth, or null if both
+     * rates are 0, for no limit at all.
+     */
+    static RateLimit of(int messagesPerSecond, int burst, int kilobytesPerSecond) {
+        if (messagesPerSecond <= 0 && kilobytesPerSecond <= 0) {
+            return null;
+        }
+        return new RateLimit(
+                messagesPerSecond > 0 ? new TokenBucket(messagesPerSecond, Math.max(1, burst)) : null,
+                kilobytesPerSecond > 0 ? new TokenBucket(kilobytesPerSecond * 1024.0, kilobytesPerSecond * 1024.0)
+                        : null);
+    }
+
+    /** The limit of a room, as the options set it, or null if rooms have none. */
+    static RateLimit ofRoom(ServerOptions options) {
+        return of(options.getRoomRateLimit(), options.getRoomRateLimit(), options.getRoomRateLimitKilobytes());
+    }
+
+    /**
+     * Counts a message of the given length against the limit, whether it is within
+     * it or not.
+     *
+     * @return 0 if it is within the limit, otherwise the nanoseconds until the limit
+     *         is caught up with
+     */
+    long reserve(long now, int length) {
+        long wait = messages != null ? messages.reserve(now, 1) : 0;
+        return bytes != null ? Math.max(wait, bytes.reserve(now, length)) : wait;
+    }
+}
@@ -0,0 +1,216 @@
+package basic_demo;
+
+import java.nio.ByteBuffer;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A chat room and the index of its members. A message said in a room is encoded
+ * once and queued for the room's members only, so its cost grows with the room
+ * rather than with the whole server. Members come and go through a concurrent set,
+ * so a join or a leave never holds up a broadcast, in this room or any other.
+ *
+ * On a server that is part of a cluster, everything said in a room is also handed
+ * to the Relay, which forwards it to the other nodes; what they forward in turn is
+ * only delivered to the local members.
+ *
+ * A room with a RoomHistory keeps the last messages said in it and replays them to
+ * a member that joins. Keeping a message and queueing it for the members then
+ * happen under one lock, as do adding a member and replaying the history, so a
+ * newcomer gets every message exactly once: either in the replay or live, after
+ * it. The lock is a ReentrantLock rather than a monitor, so virtual threads
+ * waiting for it don't pin their carriers.
+ *
+ * The member is added before the replay, so that one the replay disconnects is
+ * taken out again like any other. A room that is removed for being empty is
+ * retired under the same lock, and can't be joined any more.
+ *
+ * A room with a MessageLog also appends every message to it under that lock, so
+ * the transcript has the messages in the order the members got them. Forcing the
+ * log out to the disk, when every message is to be forced, waits until the lock is
+ * released, so the room's other broadcasts don't queue up behind the disk.
+ *
+ * Given a LatencyHistogram, a room times every message from the moment it takes it
+ * until the last of its members has had it written (see Delivery).
+ *
+ * A room with a RateLimit counts what its members say against it (see
+ * FloodControl), with a compare-and-set rather than the room's lock.
+ */
+final class Room {
+
+    /**
+     * Takes messages said in a room to the other nodes of a cluster.
+     */
+    interface Relay {
+        void forward(Room room, EncodedMessage message);
+    }
+
+    private static final byte[] NO_PREFIX = new byte[0];
+
+    private final String name;
+    private final Relay relay;
+    private final Set<RoomMember> members = ConcurrentHashMap.newKeySet();
+    private final RoomHistory history;
+    private final MessageLog log;
+    private final LatencyHistogram latency;
+    private final RateLimit limit;
+    private final ReentrantLock lock = new ReentrantLock();
+    // Whether the room was removed for being empty; guarded by the lock.
+    private boolean retired;
+
+    Room(String name) {
+        this(name, null, null, null, null);
+    }
+
+    /**
+     * @param relay where to forward what is said here, or null if not in a cluster
+     * @param history what to keep for newcomers, or null to keep nothing
+     * @param log the room's transcript, or null to keep none
+     * @param latency where to record how long messages take to reach every member, or
+     *                null to not time them
+     */
+    Room(String name, Relay relay, RoomHistory history, MessageLog log, LatencyHistogram latency) {
+        this(name, relay, history, log, latency, null);
+    }
+
+    /**
+     * @param limit what the members may say in the room together, or null for no limit
+     */
+    Room(String name, Relay relay, RoomHistory history, MessageLog log, LatencyHistogram latency,
+         RateLimit limit) {
+        this.name = name;
+        this.relay = relay;
+        this.history = history;
+        this.log = log;
+        this.latency = latency;
+        this.limit = limit;
+    }
+
+    /** What the members may say in the room together, or null if there is no limit. */
+    RateLimit getLimit() {
+        return limit;
+    }
+
+    /** The room's transcript, or null if it has none. */
+    MessageLog getLog() {
+        return log;
+    }
+
+    String getName() {
+        return name;
+    }
+
+    /**
+     * Adds the member and queues the room's history for it.
+     *
+     * @return false if the room was retired and the member not added
+     */
+    boolean add(RoomMember member) {
+        lock.lock();
+        try {
+            if (retired) {
+                return false;
+            }
+            members.add(member);
+            if (history != null) {
+                history.replayTo(member);
+            }
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Retires the room if it has no members, so that nobody can join it any more.
+     *
+     * @return whether it is retired
+     */
+    boolean retireIfEmpty() {
+        lock.lock();
+        try {
+            retired = members.isEmpty();
+            return retired;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void remove(RoomMember member) {
+        members.remove(member);
+    }
+
+    boolean isEmpty() {
+        return members.isEmpty();
+    }
+
+    int size() {
+        return members.size();
+    }
+
+    /** Queues the message for every member, and for the other nodes if there are any. */
+    void broadcast(EncodedMessage message) {
+        deliver(message);
+        if (relay != null) {
+            relay.forward(this, message);
+        }
+    }
+
+    /**
+     * Queues the message for the members on this node only, and keeps it in the
+     * history and the transcript.
+     */
+    void deliver(EncodedMessage message) {
+        Delivery delivery = latency != null ? message.track(latency) : null;
+        if (history == null && log == null) {
+            fanOut(message, delivery);
+            return;
+        }
+        lock.lock();
+        try {
+            if (log != null) {
+                log.append(message);
+            }
+            if (history != null) {
+                history.add(message);
+            }
+            fanOut(message, delivery);
+        } finally {
+            lock.unlock();
+        }
+        if (log != null) {
+            log.commit();
+        }
+    }
+
+    private void fanOut(EncodedMessage message, Delivery delivery) {
+        int recipients = 0;
+        for (RoomMember member : members) {
+            member.send(message);
+            recipients++;
+        }
+        if (delivery != null) {
+            delivery.queued(recipients);
+        }
+    }
+
+    /** Says something in the room on behalf of the server, e.g. "bob has joined". */
+    void announce(String text) {
+        broadcast(NO_PREFIX, text);
+    }
+
+    void broadcast(byte[] prefix, String text) {
+        broadcast(EncodedMessage.of(FrameType.MESSAGE, prefix, text, members.size()));
+    }
+
+    // The same for text that is still in the bytes it was received in.
+    void broadcast(byte[] prefix, ByteBuffer text) {
+        broadcast(EncodedMessage.of(FrameType.MESSAGE, prefix, text, members.size()));
+    }
+
+    @Override
+    public String toString() {
+        return name + " (" + size() + ")";
+    }
+}
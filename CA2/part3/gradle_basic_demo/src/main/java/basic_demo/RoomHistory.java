@@ -0,0 +1,70 @@
+package basic_demo;
+
+/**
+ * The last messages said in a room, replayed to whoever joins it. The history is a
+ * ring of the EncodedMessages the room already broadcast: keeping a message costs
+ * a reference, and replaying it queues that same message for the newcomer, whose
+ * writer sends the shared bytes through a view of its own, so a replay copies
+ * nothing however many clients join.
+ *
+ * A history holds at most maxLines messages and maxBytes bytes of them, the oldest
+ * giving way first, so the memory a room can pin down is bounded whatever its
+ * members say. It is not thread safe; the Room guards it.
+ */
+final class RoomHistory {
+
+    static final int DEFAULT_LINES = 50;
+    static final int DEFAULT_BYTES = 64 * 1024;
+
+    private final EncodedMessage[] ring;
+    private final long maxBytes;
+    private int head;
+    private int size;
+    private long bytes;
+
+    RoomHistory(int maxLines, long maxBytes) {
+        this.ring = new EncodedMessage[maxLines];
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Keeps the message, dropping the oldest ones as needed to stay within bounds. A
+     * message larger than the whole byte budget is not kept.
+     */
+    void add(EncodedMessage message) {
+        int length = message.length();
+        if (ring.length == 0 || length > maxBytes) {
+            return;
+        }
+        while (size == ring.length || bytes + length > maxBytes) {
+            removeOldest();
+        }
+        ring[(head + size) % ring.length] = message;
+        size++;
+        bytes += length;
+    }
+
+    /** Queues every kept message for the member, oldest first. */
+    void replayTo(RoomMember member) {
+        for (int i = 0; i < size; i++) {
+            member.send(ring[(head + i) % ring.length]);
+        }
+    }
+
+    private void removeOldest() {
+        bytes -= ring[head].length();
+        ring[head] = null;
+        head = (head + 1) % ring.length;
+        size--;
+    }
+
+    /** The number of messages kept. */
+    int size() {
+        return size;
+    }
+
+    /** The bytes of the messages kept, in their text form. */
+    long bytes() {
+        return bytes;
+    }
+}
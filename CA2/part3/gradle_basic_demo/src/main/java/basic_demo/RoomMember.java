@@ -0,0 +1,24 @@
+package basic_demo;
+
+/**
+ * A client as the rooms see it: something with a name, a current room and a
+ * queue to send messages to. Implemented by the connections of both servers.
+ */
+interface RoomMember {
+
+    String getName();
+
+    /** The room the client is in, or null before it has entered one. */
+    Room getRoom();
+
+    void setRoom(Room room);
+
+    /** Queues a message for the client; must not block. */
+    void send(EncodedMessage message);
+
+    /**
+     * Sends the header and then the lines of the catch-up, without holding up the
+     * messages queued for the client meanwhile. Closes the catch-up when done.
+     */
+    void catchUp(EncodedMessage header, CatchUp catchUp);
+}
@@ -0,0 +1,258 @@
+package basic_demo;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+/**
+ * All the rooms of a server, by name. Every client enters the lobby once its name
+ * is accepted and can then move between rooms with the room commands:
+ *
+ *  - "/join name" moves to the room, creating it if need be,
+ *  - "/leave" goes back to the lobby,
+ *  - "/rooms" lists the rooms and how many are in them,
+ *  - "/since [line]" replays the room's transcript from the given line on, or from
+ *    where it was when the client last left the room.
+ *
+ * A client is in one room at a time, and what it says goes to that room only. A
+ * room other than the lobby disappears when its last member leaves, releasing its
+ * transcript, and there are never many more rooms than the configured maximum, so
+ * a client can't make the server open a log for every name it can think of. Rooms are
+ * created and removed with atomic map operations on their name alone, so even
+ * thousands of rooms coming and going don't get in each other's way.
+ *
+ * Every room keeps a bounded RoomHistory of its last messages, which a client
+ * receives as soon as it enters the room, and, given a Transcript, a log of all
+ * of them on disk, and, given room limits, a RateLimit of its own.
+ */
+final class RoomRegistry {
+
+    static final String LOBBY = "lobby";
+
+    // Longest room name accepted, and most rooms listed by "/rooms".
+    static final int MAX_NAME_LENGTH = 64;
+    static final int MAX_LISTED = 100;
+    static final int DEFAULT_MAX_ROOMS = 1000;
+
+    private final ConcurrentHashMap<String, Room> rooms = new ConcurrentHashMap<>();
+    private final Room.Relay relay;
+    private final int historyLines;
+    private final int historyBytes;
+    private final Transcript transcript;
+    private final LatencyHistogram latency;
+    private final Supplier<RateLimit> limits;
+    private final int maxRooms;
+    private final Room lobby;
+
+    RoomRegistry() {
+        this(null, RoomHistory.DEFAULT_LINES, RoomHistory.DEFAULT_BYTES, null, null, () -> null, DEFAULT_MAX_ROOMS);
+    }
+
+    /**
+     * @param relay takes everything said in a room to the other nodes of a cluster,
+     *              or null if the server runs on its own
+     * @param historyLines how many messages each room replays to newcomers, 0 for none
+     * @param historyBytes the most bytes of messages each room keeps for newcomers
+     * @param transcript where the rooms log what is said in them, or null
+     * @param latency where the rooms record how long their broadcasts take, or null
+     * @param limits makes the RateLimit of every new room, which may be null for none
+     * @param maxRooms how many rooms there may be, the lobby included, before "/join"
+     *                 refuses to create another
+     */
+    RoomRegistry(Room.Relay relay, int historyLines, int historyBytes, Transcript transcript,
+                 LatencyHistogram latency, Supplier<RateLimit> limits, int maxRooms) {
+        this.relay = relay;
+        this.historyLines = historyLines;
+        this.historyBytes = historyBytes;
+        this.transcript = transcript;
+        this.latency = latency;
+        this.limits = limits;
+        this.maxRooms = maxRooms;
+        this.lobby = newRoom(LOBBY);
+        rooms.put(LOBBY, lobby);
+    }
+
+    private Room newRoom(String name) {
+        return new Room(name, relay, historyLines > 0 ? new RoomHistory(historyLines, historyBytes) : null,
+                transcript != null ? transcript.log(name) : null, latency, limits.get());
+    }
+
+    Room lobby() {
+        return lobby;
+    }
+
+    /** Returns the room with the given name, or null if there is none. */
+    Room get(String name) {
+        return rooms.get(name);
+    }
+
+    /** The number of rooms, the lobby included. */
+    int size() {
+        return rooms.size();
+    }
+
+    /**
+     * Puts a client whose name was just accepted into the lobby.
+     */
+    void enter(RoomMember member) {
+        join(member, lobby.getName());
+    }
+
+    /**
+     * Takes a client that is leaving the chat out of its room.
+     */
+    void exit(RoomMember member) {
+        Room room = member.getRoom();
+        if (room != null) {
+            leave(member, room);
+            member.setRoom(null);
+        }
+    }
+
+    /**
+     * Carries out a room command.
+     *
+     * @return false if the line is not a room command
+     */
+    boolean command(RoomMember member, String line) {
+        String lower = line.toLowerCase();
+        if (lower.startsWith("/rooms")) {
+            reply(member, "rooms: " + list());
+        } else if (lower.startsWith("/join")) {
+            String name = line.substring("/join".length()).trim();
+            if (name.startsWith("#")) {
+                name = name.substring(1);
+            }
+            if (!isValidName(name)) {
+                reply(member, "not a room name: \"" + name + "\"");
+            } else if (!rooms.containsKey(name) && rooms.size() >= maxRooms) {
+                // Checked without a lock, so a few joins at once may go slightly over.
+                reply(member, "there are too many rooms to open " + name + ", join one of them instead");
+            } else if (!name.equals(member.getRoom().getName())) {
+                move(member, name);
+            }
+        } else if (lower.startsWith("/leave")) {
+            if (member.getRoom() != lobby) {
+                move(member, LOBBY);
+            }
+        } else if (lower.startsWith("/since")) {
+            since(member, line.substring("/since".length()).trim());
+        } else {
+            return false;
+        }
+        return true;
+    }
+
+    static boolean isValidName(String name) {
+        if (name.isEmpty() || name.length() > MAX_NAME_LENGTH) {
+            return false;
+        }
+        for (int i = 0; i < name.length(); i++) {
+            if (Character.isWhitespace(name.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void since(RoomMember member, String argument) {
+        Room room = member.getRoom();
+        MessageLog log = room.getLog();
+        if (log == null) {
+            reply(member, room.getName() + " keeps no transcript");
+            return;
+        }
+        long sequence;
+        if (argument.isEmpty()) {
+            sequence = log.departure(member.getName());
+            if (sequence < 0) {
+                reply(member, room.getName() + " is at line " + log.nextSequence());
+                return;
+            }
+        } else {
+            try {
+                sequence = Long.parseLong(argument);
+            } catch (NumberFormatException e) {
+                reply(member, "not a line number: \"" + argument + "\"");
+                return;
+            }
+        }
+        CatchUp catchUp;
+        try {
+            catchUp = log.since(sequence);
+        } catch (IOException e) {
+            reply(member, "the transcript of " + room.getName() + " can't be read");
+            return;
+        }
+        if (catchUp == null) {
+            reply(member, "nothing since line " + sequence + " in " + room.getName()
+                    + ", which is at line " + log.nextSequence());
+            return;
+        }
+        member.catchUp(EncodedMessage.of(FrameType.MESSAGE, "[server] lines " + catchUp.from() + " to "
+                + (catchUp.to() - 1) + " of " + room.getName() + " follow"), catchUp);
+    }
+
+    private void move(RoomMember member, String name) {
+        leave(member, member.getRoom());
+        Room room = join(member, name);
+        reply(member, "you are in " + room);
+    }
+
+    // Like logging in, the members already there hear of the newcomer before it is added.
+    // A room that is new here still announces it, for its members on other nodes. The
+    // member's room is set first, so that should the replay of the history disconnect
+    // it, it leaves this room rather than the one it came from.
+    private Room join(RoomMember member, String name) {
+        while (true) {
+            Room room = rooms.get(name);
+            if (room == null) {
+                Room created = newRoom(name);
+                room = rooms.putIfAbsent(name, created);
+                if (room == null) {
+                    room = created;
+                }
+            }
+            room.announce(member.getName() + " has joined");
+            member.setRoom(room);
+            if (room.add(member)) {
+                return room;
+            }
+            // Its last member left meanwhile and it was removed; open it again.
+        }
+    }
+
+    private void leave(RoomMember member, Room room) {
+        room.remove(member);
+        room.announce(member.getName() + " has left");
+        if (room.getLog() != null) {
+            room.getLog().departed(member.getName());
+        }
+        if (room != lobby) {
+            // Only drop the room if nobody joined it in the meantime.
+            Room left = rooms.computeIfPresent(room.getName(),
+                    (key, current) -> current == room && current.retireIfEmpty() ? null : current);
+            if (left == null && transcript != null) {
+                transcript.release(room.getName());
+            }
+        }
+    }
+
+    private String list() {
+        List<String> listed = new ArrayList<>();
+        for (Room room : rooms.values()) {
+            if (listed.size() == MAX_LISTED) {
+                listed.add("and " + (rooms.size() - MAX_LISTED) + " more");
+                break;
+            }
+            listed.add(room.toString());
+        }
+        return String.join(", ", listed);
+    }
+
+    private static void reply(RoomMember member, String text) {
+        member.send(EncodedMessage.of(FrameType.MESSAGE, "[server] " + text));
+    }
+}
@@ -0,0 +1,308 @@
+package basic_demo;
+
+import java.util.Locale;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+import java.util.stream.IntStream;
+
+/**
+ * What a chat server measures about itself:
+ *
+ *  - the clients connected right now and the connections accepted,
+ *  - the messages received from clients, and the messages and bytes written to them,
+ *  - how many messages wait in the clients' outbound queues, and the longest queue,
+ *  - how long a broadcast takes from being read until the last member of its room
+ *    has it on their socket, in a LatencyHistogram,
+ *  - for TLS clients, how many handshakes were full and how many resumed a session,
+ *    and how long they took,
+ *  - with compression, how many messages went out compressed, by how much they
+ *    shrank and how long compressing one took (see MessageCompressor),
+ *  - with rate limits, how many messages were throttled, and how many clients were
+ *    muted and disconnected for flooding (see FloodControl),
+ *  - how many heartbeats the server sent, and how many silent connections it closed
+ *    (see Heartbeats).
+ *
+ * A client gets a summary with the "/metrics" command, and a MetricsEndpoint serves
+ * all of it to Prometheus. The counters are LongAdders, so the threads bumping them
+ * don't contend, and the queue depths are only gathered when somebody asks. The
+ * rates per second are worked out from the counters once a second by a background
+ * thread, so nothing on the path of a message does any arithmetic for them.
+ */
+final class ServerMetrics {
+
+    private static final long SAMPLE_MILLIS = 1000;
+
+    private final WriteStats writeStats;
+    private final Supplier<IntStream> queueDepths;
+    private final MessageCompressor compressor;
+    private final LongAdder accepted = new LongAdder();
+    private final LongAdder disconnected = new LongAdder();
+    private final LongAdder received = new LongAdder();
+    private final LatencyHistogram broadcastLatency = new LatencyHistogram();
+    private final LongAdder fullHandshakes = new LongAdder();
+    private final LongAdder resumedHandshakes = new LongAdder();
+    private final LatencyHistogram handshakeLatency = new LatencyHistogram();
+    private final LongAdder throttled = new LongAdder();
+    private final LongAdder muted = new LongAdder();
+    private final LongAdder flooded = new LongAdder();
+    private final LongAdder heartbeats = new LongAdder();
+    private final LongAdder reaped = new LongAdder();
+    private final ScheduledExecutorService sampler;
+
+    // The counters at the last sample; only the sampler thread touches them.
+    private long sampledAt = System.nanoTime();
+    private long lastAccepted;
+    private long lastReceived;
+    private long lastWritten;
+    private long lastBytes;
+
+    private volatile double acceptRate;
+    private volatile double receiveRate;
+    private volatile double writeRate;
+    private volatile double byteRate;
+
+    /**
+     * @param writeStats the server-wide write counters, for the messages and bytes out
+     * @param queueDepths the outbound queue depths of the clients, read on demand
+     * @param compressor the server's compressor, or null if it compresses nothing
+     */
+    ServerMetrics(WriteStats writeStats, Supplier<IntStream> queueDepths, MessageCompressor compressor) {
+        this.writeStats = writeStats;
+        this.queueDepths = queueDepths;
+        this.compressor = compressor;
+        this.sampler = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "Metrics sampler");
+            thread.setDaemon(true);
+            return thread;
+        });
+        sampler.scheduleAtFixedRate(this::sample, SAMPLE_MILLIS, SAMPLE_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    void accepted() {
+        accepted.increment();
+    }
+
+    void disconnected() {
+        disconnected.increment();
+    }
+
+    /** Counts a message a client said. */
+    void received() {
+        received.increment();
+    }
+
+    /** Counts a finished TLS handshake. */
+    void handshake(TlsChannel tls) {
+        (tls.isResumed() ? resumedHandshakes : fullHandshakes).increment();
+        handshakeLatency.record(tls.handshakeNanos());
+    }
+
+    /** Counts a message after which its sender was throttled. */
+    void throttled() {
+        throttled.increment();
+    }
+
+    /** Counts a client muted for flooding. */
+    void muted() {
+        muted.increment();
+    }
+
+    /** Counts a client disconnected for flooding. */
+    void flooded() {
+        flooded.increment();
+    }
+
+    /** Counts a PING sent to a client that had been silent. */
+    void heartbeat() {
+        heartbeats.increment();
+    }
+
+    /** Counts a connection closed for being silent too long. */
+    void reaped() {
+        reaped.increment();
+    }
+
+    long heartbeatsSent() {
+        return heartbeats.sum();
+    }
+
+    long idleReaped() {
+        return reaped.sum();
+    }
+
+    long throttledMessages() {
+        return throttled.sum();
+    }
+
+    long mutedClients() {
+        return muted.sum();
+    }
+
+    long floodDisconnects() {
+        return flooded.sum();
+    }
+
+    long fullHandshakes() {
+        return fullHandshakes.sum();
+    }
+
+    long resumedHandshakes() {
+        return resumedHandshakes.sum();
+    }
+
+    /** Where the rooms record how long their broadcasts take. */
+    LatencyHistogram getBroadcastLatency() {
+        return broadcastLatency;
+    }
+
+    long activeConnections() {
+        return accepted.sum() - disconnected.sum();
+    }
+
+    long acceptedConnections() {
+        return accepted.sum();
+    }
+
+    long messagesReceived() {
+        return received.sum();
+    }
+
+    private void sample() {
+        long now = System.nanoTime();
+        double seconds = (now - sampledAt) / 1e9;
+        long acceptedNow = accepted.sum();
+        long receivedNow = received.sum();
+        long writtenNow = writeStats.messages();
+        long bytesNow = writeStats.bytes();
+        acceptRate = (acceptedNow - lastAccepted) / seconds;
+        receiveRate = (receivedNow - lastReceived) / seconds;
+        writeRate = (writtenNow - lastWritten) / seconds;
+        byteRate = (bytesNow - lastBytes) / seconds;
+        sampledAt = now;
+        lastAccepted = acceptedNow;
+        lastReceived = receivedNow;
+        lastWritten = writtenNow;
+        lastBytes = bytesNow;
+    }
+
+    /** One line for the "/metrics" command; latencies in microseconds. */
+    String summary() {
+        LatencyHistogram.Snapshot latency = broadcastLatency.snapshot();
+        int[] depths = queueDepths.get().toArray();
+        String summary = String.format(Locale.ROOT, "connections=%d accepted=%d accepts/s=%.1f in=%d in/s=%.1f out=%d out/s=%.1f"
+                        + " bytes=%d bytes/s=%.0f queued=%d max queue=%d"
+                        + " broadcast latency p50=%dus p99=%dus p999=%dus max=%dus (%d broadcasts)",
+                activeConnections(), acceptedConnections(), acceptRate, messagesReceived(), receiveRate,
+                writeStats.messages(), writeRate, writeStats.bytes(), byteRate,
+                IntStream.of(depths).sum(), IntStream.of(depths).max().orElse(0),
+                latency.valueAt(0.5) / 1000, latency.valueAt(0.99) / 1000, latency.valueAt(0.999) / 1000,
+                latency.max() / 1000, latency.count());
+        if (fullHandshakes() + resumedHandshakes() > 0) {
+            LatencyHistogram.Snapshot handshakes = handshakeLatency.snapshot();
+            summary += String.format(Locale.ROOT, " tls handshakes full=%d resumed=%d p50=%dus p99=%dus",
+                    fullHandshakes(), resumedHandshakes(), handshakes.valueAt(0.5) / 1000,
+                    handshakes.valueAt(0.99) / 1000);
+        }
+        if (compressor != null && compressor.compressed() + compressor.incompressible() > 0) {
+            summary += String.format(Locale.ROOT, " compressed=%d incompressible=%d ratio=%.2f compress=%dus/message",
+                    compressor.compressed(), compressor.incompressible(), compressor.ratio(),
+                    compressor.nanosPerMessage() / 1000);
+        }
+        if (throttledMessages() + mutedClients() > 0) {
+            summary += String.format(Locale.ROOT, " throttled=%d muted=%d flood disconnects=%d",
+                    throttledMessages(), mutedClients(), floodDisconnects());
+        }
+        if (heartbeatsSent() + idleReaped() > 0) {
+            summary += String.format(Locale.ROOT, " heartbeats=%d idle disconnects=%d",
+                    heartbeatsSent(), idleReaped());
+        }
+        return summary;
+    }
+
+    /** Everything, in the Prometheus text exposition format. */
+    String toPrometheus() {
+        StringBuilder out = new StringBuilder();
+        int[] depths = queueDepths.get().toArray();
+        metric(out, "chat_connections_active", "gauge", "Clients connected right now.", activeConnections());
+        metric(out, "chat_connections_accepted_total", "counter", "Connections accepted.", acceptedConnections());
+        metric(out, "chat_connections_accepted_per_second", "gauge", "Connections accepted over the last second.",
+                acceptRate);
+        metric(out, "chat_messages_received_total", "counter", "Messages received from clients.",
+                messagesReceived());
+        metric(out, "chat_messages_received_per_second", "gauge", "Messages received over the last second.",
+                receiveRate);
+        metric(out, "chat_messages_written_total", "counter", "Messages written to clients.", writeStats.messages());
+        metric(out, "chat_messages_written_per_second", "gauge", "Messages written over the last second.",
+                writeRate);
+        metric(out, "chat_socket_writes_total", "counter", "Socket writes to clients.", writeStats.writes());
+        metric(out, "chat_bytes_written_total", "counter", "Bytes written to clients.", writeStats.bytes());
+        metric(out, "chat_outbound_queued_messages", "gauge", "Messages waiting in the clients' outbound queues.",
+                IntStream.of(depths).sum());
+        metric(out, "chat_outbound_queue_depth_max", "gauge", "The longest outbound queue of a client.",
+                IntStream.of(depths).max().orElse(0));
+        metric(out, "chat_tls_handshakes_full_total", "counter", "TLS handshakes that started a new session.",
+                fullHandshakes());
+        metric(out, "chat_tls_handshakes_resumed_total", "counter", "TLS handshakes that resumed a session.",
+                resumedHandshakes());
+        metric(out, "chat_messages_throttled_total", "counter",
+                "Messages after which the server stopped reading from their sender for a while.",
+                throttledMessages());
+        metric(out, "chat_clients_muted_total", "counter", "Clients muted for flooding.", mutedClients());
+        metric(out, "chat_flood_disconnects_total", "counter", "Clients disconnected for flooding.",
+                floodDisconnects());
+        metric(out, "chat_heartbeats_total", "counter", "PINGs sent to clients that had been silent.",
+                heartbeatsSent());
+        metric(out, "chat_idle_disconnects_total", "counter", "Connections closed for being silent too long.",
+                idleReaped());
+        if (compressor != null) {
+            metric(out, "chat_compressed_messages_total", "counter", "Messages sent compressed, once each.",
+                    compressor.compressed());
+            metric(out, "chat_incompressible_messages_total", "counter",
+                    "Messages over the compression threshold that did not get smaller.", compressor.incompressible());
+            metric(out, "chat_compression_bytes_in_total", "counter", "Bytes of the messages sent compressed.",
+                    compressor.bytesIn());
+            metric(out, "chat_compression_bytes_out_total", "counter", "Those bytes once compressed.",
+                    compressor.bytesOut());
+            metric(out, "chat_compression_ratio", "gauge", "Bytes in over bytes out of the messages compressed.",
+                    compressor.ratio());
+            metric(out, "chat_compression_seconds_total", "counter", "Time spent compressing messages.",
+                    seconds(compressor.nanos()));
+        }
+
+        summary(out, "chat_broadcast_latency_seconds",
+                "Time from reading a message to writing it to the last member of its room.",
+                broadcastLatency.snapshot());
+        summary(out, "chat_tls_handshake_seconds", "Time from a TLS client's first bytes to a finished handshake.",
+                handshakeLatency.snapshot());
+        return out.toString();
+    }
+
+    private static void summary(StringBuilder out, String name, String help, LatencyHistogram.Snapshot latency) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(" summary\n");
+        for (String quantile : new String[] {"0.5", "0.99", "0.999"}) {
+            out.append(name).append("{quantile=\"").append(quantile).append("\"} ")
+                    .append(seconds(latency.valueAt(Double.parseDouble(quantile)))).append('\n');
+        }
+        out.append(name).append("_sum ").append(seconds(latency.sum())).append('\n');
+        out.append(name).append("_count ").append(latency.count()).append('\n');
+    }
+
+    private static void metric(StringBuilder out, String name, String type, String help, Number value) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+        out.append(name).append(' ').append(value).append('\n');
+    }
+
+    private static double seconds(long nanos) {
+        return nanos / 1e9;
+    }
+
+    /** Stops the sampler thread. */
+    void close() {
+        sampler.shutdownNow();
+    }
+}
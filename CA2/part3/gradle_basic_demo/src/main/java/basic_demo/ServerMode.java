@@ -0,0 +1,27 @@
+package basic_demo;
+
+/**
+ * The ways the chat server can service its clients.
+ */
+public enum ServerMode {
+
+    /** One pooled platform thread per connected client (the original server). */
+    THREADS,
+
+    /** One virtual thread per connected client, with the same blocking handler. */
+    VIRTUAL,
+
+    /** A few selector-driven event loops shared by all connected clients. */
+    NIO;
+
+    /**
+     * Parses a mode given on the command line, e.g. "nio" or "threads".
+     */
+    public static ServerMode fromString(String value) {
+        try {
+            return ServerMode.valueOf(value.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Unknown server mode: " + value);
+        }
+    }
+}
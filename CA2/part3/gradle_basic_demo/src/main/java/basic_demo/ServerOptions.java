@@ -0,0 +1,657 @@
+package basic_demo;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The settings the chat server is launched with. The first command line argument
+ * is always the port; everything after it is an optional "--name=value" pair,
+ * for example:
+ *
+ *     59001 --mode=nio --event-loops=4 --queue-capacity=256 --overflow=drop-oldest
+ *           --acceptors=4 --accept-backlog=1024
+ *           --max-batch=64 --flush-window-us=200
+ *           --peer-port=7001 --peers=localhost:7002,localhost:7003
+ *           --history=50 --history-kb=64 --max-rooms=1000
+ *           --log-dir=transcripts --log-segment-mb=16 --log-retain-segments=8
+ *           --log-fsync=interval --log-fsync-ms=1000
+ *           --metrics-port=9100
+ *           --session-grace-ms=30000 --session-replay=1000
+ *           --tls-port=59443 --tls-keystore=chat.p12 --tls-password=changeit
+ *           --tls-session-cache=20000 --tls-session-timeout-s=3600
+ *           --compress-min-bytes=1024 --compress-level=1
+ *           --ws-port=8080
+ *           --rate-limit=5 --rate-burst=10 --rate-limit-kb=64
+ *           --room-rate-limit=200 --room-rate-limit-kb=1024 --mute-after=20 --mute-s=60
+ *           --heartbeat-s=30 --idle-timeout-s=90
+ */
+public class ServerOptions {
+
+    private int port;
+    private ServerMode mode = ServerMode.THREADS;
+    private int eventLoops = Runtime.getRuntime().availableProcessors();
+    private int acceptors = 1;
+    private int acceptBacklog = 1024;
+    private int queueCapacity = 1024;
+    private OverflowPolicy overflowPolicy = OverflowPolicy.DISCONNECT;
+    private int maxBatch = 64;
+    private int flushWindowMicros = 0;
+    private int peerPort = 0;
+    private List<InetSocketAddress> peers = new ArrayList<>();
+    private int historyLines = RoomHistory.DEFAULT_LINES;
+    private int historyKilobytes = RoomHistory.DEFAULT_BYTES / 1024;
+    private int maxRooms = RoomRegistry.DEFAULT_MAX_ROOMS;
+    private String logDirectory;
+    private int logSegmentMegabytes = 16;
+    private int logRetainedSegments = 8;
+    private FsyncPolicy logFsync = FsyncPolicy.INTERVAL;
+    private int logFsyncMillis = 1000;
+    private int metricsPort = 0;
+    private int sessionGraceMillis = 30_000;
+    private int sessionReplayLines = Session.DEFAULT_REPLAY_LINES;
+    private int tlsPort = 0;
+    private String tlsKeystore;
+    private String tlsPassword = "";
+    private int tlsSessionCache = 20_000;
+    private int tlsSessionTimeoutSeconds = 3600;
+    private int compressMinBytes = MessageCompressor.DEFAULT_MIN_BYTES;
+    private int compressLevel = MessageCompressor.DEFAULT_LEVEL;
+    private int webSocketPort = 0;
+    private int rateLimit = 0;
+    private int rateBurst = FloodControl.DEFAULT_BURST;
+    private int rateLimitKilobytes = 0;
+    private int roomRateLimit = 0;
+    private int roomRateLimitKilobytes = 0;
+    private int muteAfter = FloodControl.DEFAULT_STRIKES;
+    private int muteSeconds = FloodControl.DEFAULT_MUTE_SECONDS;
+    private int heartbeatSeconds = 0;
+    private int idleTimeoutSeconds = 0;
+
+    public ServerOptions(int port) {
+        this.port = port;
+    }
+
+    /**
+     * Builds the options from the command line arguments given to ChatServerApp.
+     *
+     * @throws IllegalArgumentException if an option is unknown or malformed
+     */
+    public static ServerOptions parse(String[] args) {
+        if (args.length < 1) {
+            throw new IllegalArgumentException("Pass the server port as the first command line argument");
+        }
+        ServerOptions options = new ServerOptions(parseInt("port", args[0]));
+        for (int i = 1; i < args.length; i++) {
+            String arg = args[i];
+            int separator = arg.indexOf('=');
+            if (!arg.startsWith("--") || separator < 0) {
+                throw new IllegalArgumentException("Options must look like --name=value: " + arg);
+            }
+            options.set(arg.substring(2, separator), arg.substring(separator + 1));
+        }
+        if (options.tlsPort > 0 && options.tlsKeystore == null) {
+            throw new IllegalArgumentException("Option tls-port needs a --tls-keystore");
+        }
+        if (options.webSocketPort > 0 && options.mode != ServerMode.NIO) {
+            throw new IllegalArgumentException("Option ws-port needs --mode=nio");
+        }
+        return options;
+    }
+
+    private void set(String name, String value) {
+        switch (name) {
+            case "mode":
+                mode = ServerMode.fromString(value);
+                break;
+            case "event-loops":
+                eventLoops = parsePositive(name, value);
+                break;
+            case "acceptors":
+                acceptors = parsePositive(name, value);
+                break;
+            case "accept-backlog":
+                acceptBacklog = parsePositive(name, value);
+                break;
+            case "queue-capacity":
+                queueCapacity = parsePositive(name, value);
+                break;
+            case "overflow":
+                overflowPolicy = OverflowPolicy.fromString(value);
+                break;
+            case "max-batch":
+                maxBatch = parsePositive(name, value);
+                break;
+            case "flush-window-us":
+                flushWindowMicros = parseInt(name, value);
+                break;
+            case "peer-port":
+                peerPort = parsePositive(name, value);
+                break;
+            case "peers":
+                peers = parseAddresses(name, value);
+                break;
+            case "history":
+                historyLines = parseInt(name, value);
+                break;
+            case "history-kb":
+                historyKilobytes = parsePositive(name, value);
+                break;
+            case "max-rooms":
+                maxRooms = parsePositive(name, value);
+                break;
+            case "log-dir":
+                logDirectory = value;
+                break;
+            case "log-segment-mb":
+                logSegmentMegabytes = parsePositive(name, value);
+                break;
+            case "log-retain-segments":
+                logRetainedSegments = parsePositive(name, value);
+                break;
+            case "log-fsync":
+                logFsync = FsyncPolicy.fromString(value);
+                break;
+            case "log-fsync-ms":
+                logFsyncMillis = parsePositive(name, value);
+                break;
+            case "metrics-port":
+                metricsPort = parsePositive(name, value);
+                break;
+            case "session-grace-ms":
+                sessionGraceMillis = parseNonNegative(name, value);
+                break;
+            case "session-replay":
+                sessionReplayLines = parsePositive(name, value);
+                break;
+            case "tls-port":
+                tlsPort = parsePositive(name, value);
+                break;
+            case "tls-keystore":
+                tlsKeystore = value;
+                break;
+            case "tls-password":
+                tlsPassword = value;
+                break;
+            case "tls-session-cache":
+                tlsSessionCache = parseNonNegative(name, value);
+                break;
+            case "tls-session-timeout-s":
+                tlsSessionTimeoutSeconds = parseNonNegative(name, value);
+                break;
+            case "compress-min-bytes":
+                compressMinBytes = parseNonNegative(name, value);
+                break;
+            case "ws-port":
+                webSocketPort = parsePositive(name, value);
+                break;
+            case "compress-level":
+                compressLevel = parsePositive(name, value);
+                if (compressLevel > 9) {
+                    throw new IllegalArgumentException("Option " + name + " must be at most 9: " + value);
+                }
+                break;
+            case "rate-limit":
+                rateLimit = parseInt(name, value);
+                break;
+            case "rate-burst":
+                rateBurst = parsePositive(name, value);
+                break;
+            case "rate-limit-kb":
+                rateLimitKilobytes = parseInt(name, value);
+                break;
+            case "room-rate-limit":
+                roomRateLimit = parseInt(name, value);
+                break;
+            case "room-rate-limit-kb":
+                roomRateLimitKilobytes = parseInt(name, value);
+                break;
+            case "mute-after":
+                muteAfter = parsePositive(name, value);
+                break;
+            case "mute-s":
+                muteSeconds = parsePositive(name, value);
+                break;
+            case "heartbeat-s":
+                heartbeatSeconds = parseNonNegative(name, value);
+                break;
+            case "idle-timeout-s":
+                idleTimeoutSeconds = parseNonNegative(name, value);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown option: --" + name);
+        }
+    }
+
+    static int parseInt(String name, String value) {
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Option " + name + " expects a number: " + value);
+        }
+    }
+
+    static List<InetSocketAddress> parseAddresses(String name, String value) {
+        List<InetSocketAddress> addresses = new ArrayList<>();
+        for (String address : value.split(",")) {
+            int separator = address.lastIndexOf(':');
+            if (separator < 1) {
+                throw new IllegalArgumentException("Option " + name + " expects host:port pairs: " + value);
+            }
+            addresses.add(InetSocketAddress.createUnresolved(address.substring(0, separator).trim(),
+                    parsePositive(name, address.substring(separator + 1))));
+        }
+        return addresses;
+    }
+
+    // For the settings that 0 turns off.
+    static int parseNonNegative(String name, String value) {
+        int parsed = parseInt(name, value);
+        if (parsed < 0) {
+            throw new IllegalArgumentException("Option " + name + " must be at least 0: " + value);
+        }
+        return parsed;
+    }
+
+    static int parsePositive(String name, String value) {
+        int parsed = parseInt(name, value);
+        if (parsed < 1) {
+            throw new IllegalArgumentException("Option " + name + " must be at least 1: " + value);
+        }
+        return parsed;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    public ServerMode getMode() {
+        return mode;
+    }
+
+    public void setMode(ServerMode mode) {
+        this.mode = mode;
+    }
+
+    public int getEventLoops() {
+        return eventLoops;
+    }
+
+    public void setEventLoops(int eventLoops) {
+        this.eventLoops = eventLoops;
+    }
+
+    /**
+     * How many threads accept connections (see Acceptors), each handing them to a
+     * group of handlers of its own.
+     */
+    public int getAcceptors() {
+        return acceptors;
+    }
+
+    public void setAcceptors(int acceptors) {
+        this.acceptors = acceptors;
+    }
+
+    /**
+     * How many connections the kernel may hold for each listening socket before they
+     * are accepted. The operating system may cap it (net.core.somaxconn on Linux).
+     */
+    public int getAcceptBacklog() {
+        return acceptBacklog;
+    }
+
+    public void setAcceptBacklog(int acceptBacklog) {
+        this.acceptBacklog = acceptBacklog;
+    }
+
+    /** How many messages may wait for a client before the overflow policy applies. */
+    public int getQueueCapacity() {
+        return queueCapacity;
+    }
+
+    public void setQueueCapacity(int queueCapacity) {
+        this.queueCapacity = queueCapacity;
+    }
+
+    public OverflowPolicy getOverflowPolicy() {
+        return overflowPolicy;
+    }
+
+    public void setOverflowPolicy(OverflowPolicy overflowPolicy) {
+        this.overflowPolicy = overflowPolicy;
+    }
+
+    /**
+     * How many queued messages may be coalesced into one socket write. 1 writes every
+     * message on its own.
+     */
+    public int getMaxBatch() {
+        return maxBatch;
+    }
+
+    public void setMaxBatch(int maxBatch) {
+        this.maxBatch = maxBatch;
+    }
+
+    /**
+     * How long output may be held back, after the first message is queued, waiting for
+     * more messages to write along with it. 0 writes whatever is queued straight away.
+     */
+    public int getFlushWindowMicros() {
+        return flushWindowMicros;
+    }
+
+    public void setFlushWindowMicros(int flushWindowMicros) {
+        this.flushWindowMicros = flushWindowMicros;
+    }
+
+    /**
+     * The port other nodes of a cluster link to, or 0 if the server is not part of one.
+     */
+    public int getPeerPort() {
+        return peerPort;
+    }
+
+    public void setPeerPort(int peerPort) {
+        this.peerPort = peerPort;
+    }
+
+    /** The peer ports of the other nodes of the cluster. */
+    public List<InetSocketAddress> getPeers() {
+        return peers;
+    }
+
+    public void setPeers(List<InetSocketAddress> peers) {
+        this.peers = peers;
+    }
+
+    /**
+     * How many of its last messages a room replays to a client that joins it. 0
+     * keeps no history.
+     */
+    public int getHistoryLines() {
+        return historyLines;
+    }
+
+    public void setHistoryLines(int historyLines) {
+        this.historyLines = historyLines;
+    }
+
+    /** The most a room's history may hold, in kilobytes of messages. */
+    public int getHistoryKilobytes() {
+        return historyKilobytes;
+    }
+
+    public void setHistoryKilobytes(int historyKilobytes) {
+        this.historyKilobytes = historyKilobytes;
+    }
+
+    /** How many rooms there may be at once, the lobby included. */
+    public int getMaxRooms() {
+        return maxRooms;
+    }
+
+    public void setMaxRooms(int maxRooms) {
+        this.maxRooms = maxRooms;
+    }
+
+    /**
+     * Where the rooms' transcripts are written, or null (the default) to keep none.
+     */
+    public String getLogDirectory() {
+        return logDirectory;
+    }
+
+    public void setLogDirectory(String logDirectory) {
+        this.logDirectory = logDirectory;
+    }
+
+    /** The size of a transcript segment file. */
+    public int getLogSegmentMegabytes() {
+        return logSegmentMegabytes;
+    }
+
+    public void setLogSegmentMegabytes(int logSegmentMegabytes) {
+        this.logSegmentMegabytes = logSegmentMegabytes;
+    }
+
+    /** How many segments of each room's transcript are kept; older ones are deleted. */
+    public int getLogRetainedSegments() {
+        return logRetainedSegments;
+    }
+
+    public void setLogRetainedSegments(int logRetainedSegments) {
+        this.logRetainedSegments = logRetainedSegments;
+    }
+
+    public FsyncPolicy getLogFsync() {
+        return logFsync;
+    }
+
+    public void setLogFsync(FsyncPolicy logFsync) {
+        this.logFsync = logFsync;
+    }
+
+    /** How often transcripts are forced to disk under the INTERVAL policy. */
+    public int getLogFsyncMillis() {
+        return logFsyncMillis;
+    }
+
+    public void setLogFsyncMillis(int logFsyncMillis) {
+        this.logFsyncMillis = logFsyncMillis;
+    }
+
+    /**
+     * The local port the metrics are served on over HTTP, or 0 (the default) to not
+     * serve them.
+     */
+    public int getMetricsPort() {
+        return metricsPort;
+    }
+
+    public void setMetricsPort(int metricsPort) {
+        this.metricsPort = metricsPort;
+    }
+
+    /**
+     * How long a framed client whose connection dropped keeps its name, rooms and
+     * messages, waiting for it to resume its session. 0 gives clients no sessions.
+     */
+    public int getSessionGraceMillis() {
+        return sessionGraceMillis;
+    }
+
+    public void setSessionGraceMillis(int sessionGraceMillis) {
+        this.sessionGraceMillis = sessionGraceMillis;
+    }
+
+    /** How many of the last MESSAGE frames written to a client can be sent again on resuming. */
+    public int getSessionReplayLines() {
+        return sessionReplayLines;
+    }
+
+    public void setSessionReplayLines(int sessionReplayLines) {
+        this.sessionReplayLines = sessionReplayLines;
+    }
+
+    /**
+     * The port TLS clients connect to, alongside the plain port, or 0 (the default) to
+     * only listen on the plain one. Needs a keystore.
+     */
+    public int getTlsPort() {
+        return tlsPort;
+    }
+
+    public void setTlsPort(int tlsPort) {
+        this.tlsPort = tlsPort;
+    }
+
+    /** The keystore file, PKCS12 or JKS, with the server's key and certificate. */
+    public String getTlsKeystore() {
+        return tlsKeystore;
+    }
+
+    public void setTlsKeystore(String tlsKeystore) {
+        this.tlsKeystore = tlsKeystore;
+    }
+
+    /** The password of the keystore and of the key in it. */
+    public String getTlsPassword() {
+        return tlsPassword;
+    }
+
+    public void setTlsPassword(String tlsPassword) {
+        this.tlsPassword = tlsPassword;
+    }
+
+    /**
+     * How many TLS sessions the server remembers for clients to resume, 0 for no limit.
+     */
+    public int getTlsSessionCache() {
+        return tlsSessionCache;
+    }
+
+    public void setTlsSessionCache(int tlsSessionCache) {
+        this.tlsSessionCache = tlsSessionCache;
+    }
+
+    /** How long a TLS session can be resumed for after its full handshake, 0 for ever. */
+    public int getTlsSessionTimeoutSeconds() {
+        return tlsSessionTimeoutSeconds;
+    }
+
+    public void setTlsSessionTimeoutSeconds(int tlsSessionTimeoutSeconds) {
+        this.tlsSessionTimeoutSeconds = tlsSessionTimeoutSeconds;
+    }
+
+    /**
+     * The smallest MESSAGE payload, in bytes, that is sent compressed to the framed
+     * clients that asked for compression (see MessageCompressor), or 0 to send every
+     * message as it is.
+     */
+    public int getCompressMinBytes() {
+        return compressMinBytes;
+    }
+
+    public void setCompressMinBytes(int compressMinBytes) {
+        this.compressMinBytes = compressMinBytes;
+    }
+
+    /** The deflate level, from 1 (fastest) to 9 (smallest). */
+    public int getCompressLevel() {
+        return compressLevel;
+    }
+
+    public void setCompressLevel(int compressLevel) {
+        this.compressLevel = compressLevel;
+    }
+
+    /**
+     * The port browsers connect to over WebSocket, or 0 (the default) for none. Only
+     * the NIO server listens on it.
+     */
+    public int getWebSocketPort() {
+        return webSocketPort;
+    }
+
+    public void setWebSocketPort(int webSocketPort) {
+        this.webSocketPort = webSocketPort;
+    }
+
+    /**
+     * The messages per second a client may say, or 0 (the default) for no limit. A
+     * client over it is throttled, then muted, then disconnected (see FloodControl).
+     */
+    public int getRateLimit() {
+        return rateLimit;
+    }
+
+    public void setRateLimit(int rateLimit) {
+        this.rateLimit = rateLimit;
+    }
+
+    /** How many messages a client may say at once before the rate limit applies. */
+    public int getRateBurst() {
+        return rateBurst;
+    }
+
+    public void setRateBurst(int rateBurst) {
+        this.rateBurst = rateBurst;
+    }
+
+    /** The KB of messages per second a client may say, or 0 (the default) for no limit. */
+    public int getRateLimitKilobytes() {
+        return rateLimitKilobytes;
+    }
+
+    public void setRateLimitKilobytes(int rateLimitKilobytes) {
+        this.rateLimitKilobytes = rateLimitKilobytes;
+    }
+
+    /**
+     * The messages per second said in a room, by all its members together, or 0 (the
+     * default) for no limit. Members of a room over it are throttled.
+     */
+    public int getRoomRateLimit() {
+        return roomRateLimit;
+    }
+
+    public void setRoomRateLimit(int roomRateLimit) {
+        this.roomRateLimit = roomRateLimit;
+    }
+
+    /** The KB of messages per second said in a room, or 0 (the default) for no limit. */
+    public int getRoomRateLimitKilobytes() {
+        return roomRateLimitKilobytes;
+    }
+
+    public void setRoomRateLimitKilobytes(int roomRateLimitKilobytes) {
+        this.roomRateLimitKilobytes = roomRateLimitKilobytes;
+    }
+
+    /**
+     * How many times a client may be throttled in a row, regaining one a second,
+     * before it is muted, and then before it is disconnected.
+     */
+    public int getMuteAfter() {
+        return muteAfter;
+    }
+
+    public void setMuteAfter(int muteAfter) {
+        this.muteAfter = muteAfter;
+    }
+
+    /** How long a client that flooded its room stays muted. */
+    public int getMuteSeconds() {
+        return muteSeconds;
+    }
+
+    public void setMuteSeconds(int muteSeconds) {
+        this.muteSeconds = muteSeconds;
+    }
+
+    /**
+     * How long the server lets a client be silent before it sends it a PING, 0 (the
+     * default) for never (see Heartbeats).
+     */
+    public int getHeartbeatSeconds() {
+        return heartbeatSeconds;
+    }
+
+    public void setHeartbeatSeconds(int heartbeatSeconds) {
+        this.heartbeatSeconds = heartbeatSeconds;
+    }
+
+    /**
+     * How long a client that answers PINGs, or has yet to log in, may be silent
+     * before it is disconnected, 0 (the default) for ever.
+     */
+    public int getIdleTimeoutSeconds() {
+        return idleTimeoutSeconds;
+    }
+
+    public void setIdleTimeoutSeconds(int idleTimeoutSeconds) {
+        this.idleTimeoutSeconds = idleTimeoutSeconds;
+    }
+}
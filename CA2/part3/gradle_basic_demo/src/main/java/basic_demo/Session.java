@@ -0,0 +1,106 @@
+package basic_demo;
+
+import java.security.SecureRandom;
+import java.util.HexFormat;
+
+/**
+ * What a framed client needs to pick up where it left off after its connection
+ * drops: a token to prove who it is, and the MESSAGE frames last written to it,
+ * by sequence number.
+ *
+ * Every MESSAGE frame written to the client gets the next sequence number, counting
+ * from 1, in the order the frames go onto the wire. The numbers are not sent with
+ * the frames: the SESSION frame tells the client the number of the frame after it,
+ * and the client counts from there. A client that reconnects presents the token and
+ * the last number it saw, and is sent the frames after that one again.
+ *
+ * The session keeps the last replayLines frames, as references to the messages the
+ * room already encoded, much like a RoomHistory. Frames that are written but not
+ * kept, such as the lines of a catch-up from the transcript, can't be replayed, so
+ * they break the run of frames kept: a replay only ever starts after them.
+ *
+ * Not thread safe; the client's writer lock guards it.
+ */
+final class Session {
+
+    static final int DEFAULT_REPLAY_LINES = 1000;
+
+    private static final int TOKEN_BYTES = 16;
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private final String token;
+    private final EncodedMessage[] ring;
+    // The sequence numbers of the oldest frame kept and of the next frame to be written.
+    private long first = 1;
+    private long next = 1;
+
+    Session(int replayLines) {
+        byte[] bytes = new byte[TOKEN_BYTES];
+        RANDOM.nextBytes(bytes);
+        this.token = HexFormat.of().formatHex(bytes);
+        this.ring = new EncodedMessage[Math.max(1, replayLines)];
+    }
+
+    String token() {
+        return token;
+    }
+
+    /** The sequence number the next MESSAGE frame will get. */
+    long nextSequence() {
+        return next;
+    }
+
+    /**
+     * Numbers and keeps a message that is about to be written. Only MESSAGE frames are
+     * numbered; anything else, e.g. a PONG, is ignored.
+     */
+    void sent(EncodedMessage message) {
+        if (message.getType() != FrameType.MESSAGE) {
+            return;
+        }
+        if (next - first == ring.length) {
+            ring[(int) (first % ring.length)] = null;
+            first++;
+        }
+        ring[(int) (next % ring.length)] = message;
+        next++;
+    }
+
+    /** Numbers frames that were written without being kept, forgetting every frame before them. */
+    void skip(long frames) {
+        if (frames <= 0) {
+            return;
+        }
+        for (long sequence = first; sequence < next; sequence++) {
+            ring[(int) (sequence % ring.length)] = null;
+        }
+        next += frames;
+        first = next;
+    }
+
+    /**
+     * Returns the sequence number a replay to a client that last saw lastSeen starts
+     * at: the frame after lastSeen if it is still kept, otherwise the oldest frame kept.
+     *
+     * @return the start, or -1 if the client claims to have seen frames never written
+     */
+    long replayFrom(long lastSeen) {
+        if (lastSeen < 0 || lastSeen >= next) {
+            return -1;
+        }
+        return Math.max(lastSeen + 1, first);
+    }
+
+    /** Returns the kept message with the given sequence number. */
+    EncodedMessage get(long sequence) {
+        if (sequence < first || sequence >= next) {
+            throw new IllegalArgumentException("Frame " + sequence + " is not kept");
+        }
+        return ring[(int) (sequence % ring.length)];
+    }
+
+    @Override
+    public String toString() {
+        return "next=" + next + " kept=" + (next - first);
+    }
+}
@@ -0,0 +1,165 @@
+package basic_demo;
+
+import java.io.Closeable;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.LockSupport;
+
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.LogManager;
+
+/**
+ * A hashed timing wheel (Varghese and Lauck): a ring of slots, each a list of the
+ * timeouts that fall due in it, and a thread that moves to the next slot every
+ * tick and runs whatever is due there. A timeout further away than one turn of the
+ * wheel waits in its slot for as many turns as it needs.
+ *
+ * Scheduling and cancelling a timeout both take constant time, however many there
+ * are, and the thread only ever looks at one slot per tick, so a hundred thousand
+ * connections with a timeout each cost a hundred thousand small objects rather
+ * than a hundred thousand entries of a priority queue, let alone threads. The
+ * price is precision: a timeout runs up to a tick late.
+ *
+ * Any thread may schedule and cancel. New timeouts are handed to the wheel's
+ * thread through a concurrent queue and put into their slot on the next tick;
+ * cancelled ones are only marked, and dropped when their slot comes round. Tasks
+ * run on the wheel's thread, so they must be short and must not block.
+ */
+final class TimingWheel implements Closeable, Runnable {
+
+    /**
+     * A task scheduled on the wheel.
+     */
+    static final class Timeout {
+        private final Runnable task;
+        private final long deadline;
+        // Turns of the wheel still to wait, and the next timeout in the slot; the wheel's thread's.
+        private long rounds;
+        private Timeout next;
+        private volatile boolean cancelled;
+
+        private Timeout(Runnable task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        /** Keeps the task from running, if it hasn't yet. */
+        void cancel() {
+            cancelled = true;
+        }
+
+        boolean isCancelled() {
+            return cancelled;
+        }
+    }
+
+    private final static Logger LOGGER = LogManager.getLogger(TimingWheel.class);
+
+    private final long tickNanos;
+    private final Timeout[] slots;
+    private final int mask;
+    private final Queue<Timeout> added = new ConcurrentLinkedQueue<>();
+    private final Thread thread;
+    private final long startedAt = System.nanoTime();
+    private volatile boolean running = true;
+
+    // The ticks gone by, and the timeouts in the slots; only the wheel's thread
+    // writes them, but pending() is read from any thread.
+    private long tick;
+    private volatile int pending;
+
+    /**
+     * @param tickNanos how far apart the slots are
+     * @param slots how many slots the wheel has, rounded up to a power of two
+     */
+    TimingWheel(String name, long tickNanos, int slots) {
+        this.tickNanos = tickNanos;
+        this.slots = new Timeout[Integer.highestOneBit(Math.max(1, slots - 1)) << 1];
+        this.mask = this.slots.length - 1;
+        this.thread = new Thread(this, name);
+        this.thread.setDaemon(true);
+    }
+
+    void start() {
+        thread.start();
+    }
+
+    /**
+     * Runs the task on the wheel's thread once the delay is over, give or take a
+     * tick.
+     */
+    Timeout schedule(Runnable task, long delayNanos) {
+        Timeout timeout = new Timeout(task, System.nanoTime() + Math.max(0, delayNanos));
+        added.add(timeout);
+        return timeout;
+    }
+
+    /** The timeouts waiting in the wheel, as of the last tick. */
+    int pending() {
+        return pending;
+    }
+
+    public void run() {
+        while (running) {
+            long wait;
+            while ((wait = startedAt + (tick + 1) * tickNanos - System.nanoTime()) > 0 && running) {
+                LockSupport.parkNanos(this, wait);
+            }
+            addScheduled();
+            expire(tick & mask);
+            tick++;
+        }
+    }
+
+    // Puts every timeout scheduled since the last tick into its slot.
+    private void addScheduled() {
+        Timeout timeout;
+        while ((timeout = added.poll()) != null) {
+            if (timeout.cancelled) {
+                continue;
+            }
+            // The first tick at or after the deadline; one already past goes in the current slot.
+            long due = Math.max(tick, (timeout.deadline - startedAt + tickNanos - 1) / tickNanos - 1);
+            timeout.rounds = (due - tick) / slots.length;
+            int slot = (int) (due & mask);
+            timeout.next = slots[slot];
+            slots[slot] = timeout;
+            pending++;
+        }
+    }
+
+    // Runs the timeouts of the slot that are due this turn, and drops the cancelled ones.
+    private void expire(long slot) {
+        Timeout previous = null;
+        Timeout timeout = slots[(int) slot];
+        while (timeout != null) {
+            Timeout next = timeout.next;
+            if (!timeout.cancelled && timeout.rounds > 0) {
+                timeout.rounds--;
+                previous = timeout;
+            } else {
+                if (previous == null) {
+                    slots[(int) slot] = next;
+                } else {
+                    previous.next = next;
+                }
+                timeout.next = null;
+                pending--;
+                if (!timeout.cancelled) {
+                    try {
+                        timeout.task.run();
+                    } catch (RuntimeException e) {
+                        LOGGER.error("Timer task failed", e);
+                    }
+                }
+            }
+            timeout = next;
+        }
+    }
+
+    /** Stops the wheel; whatever is still scheduled never runs. */
+    public void close() {
+        running = false;
+        LockSupport.unpark(thread);
+    }
+}
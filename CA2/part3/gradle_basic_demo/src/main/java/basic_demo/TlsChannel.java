@@ -0,0 +1,476 @@
+package basic_demo;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSession;
+
+/**
+ * A SocketChannel with TLS on top, done by an SSLEngine in whatever thread does the
+ * reading and writing rather than by an SSLSocket of its own. That keeps TLS inside
+ * the servers' existing I/O paths: a handler or writer thread of the ChatServer reads
+ * and writes it like the plain channel, blocking, and an event loop of the
+ * NioChatServer drives it without blocking, off the same selector as ever.
+ *
+ * The handshake happens on the first read or write. On a non-blocking channel either
+ * may return 0 before it is done and is simply called again once the socket is
+ * readable or writable. Two things are then different from a plain channel:
+ *
+ *  - a read may leave decrypted data, or whole records, behind that the socket will
+ *    not signal again (see hasBufferedInput()),
+ *  - a write may have encrypted more than the socket took (see flush()).
+ *
+ * Reading and writing may go on in different threads at once, as on a SocketChannel:
+ * each side has a lock of its own, and only the handshake takes both, read first.
+ * Locks, not monitors, so a virtual thread blocked in a read is not pinned.
+ *
+ * Closing the channel closes the socket without a close_notify; the chat protocol
+ * has QUIT for that, and nobody waits on one.
+ */
+final class TlsChannel implements ByteChannel, GatheringByteChannel {
+
+    // The header of a TLS record: type, version and a two byte length.
+    private static final int RECORD_HEADER = 5;
+    private static final ByteBuffer[] NOTHING = {ByteBuffer.allocate(0)};
+
+    private final SocketChannel channel;
+    private final SSLEngine engine;
+    private final Consumer<TlsChannel> onHandshake;
+    private final ReentrantLock readLock = new ReentrantLock();
+    private final ReentrantLock writeLock = new ReentrantLock();
+
+    // Guarded by readLock: records read but not yet decrypted, and what was decrypted
+    // but not yet read. Both are kept ready to be read from between calls.
+    private ByteBuffer netIn;
+    private ByteBuffer appIn;
+    private boolean inboundDone;
+
+    // Guarded by writeLock: records encrypted but not yet written.
+    private ByteBuffer netOut;
+
+    private boolean started;
+    private long startedAt;
+    private long startedNanos;
+    private volatile long handshakeNanos = -1;
+    private volatile boolean resumed;
+
+    private TlsChannel(SocketChannel channel, SSLEngine engine, Consumer<TlsChannel> onHandshake) {
+        this.channel = channel;
+        this.engine = engine;
+        this.onHandshake = onHandshake;
+        SSLSession session = engine.getSession();
+        this.netIn = ByteBuffer.allocate(session.getPacketBufferSize()).flip();
+        this.appIn = ByteBuffer.allocate(session.getApplicationBufferSize()).flip();
+        this.netOut = ByteBuffer.allocate(session.getPacketBufferSize()).flip();
+    }
+
+    /**
+     * The server's side of a connection it accepted.
+     *
+     * @param onHandshake told once the handshake is done, on the thread that finished it
+     */
+    static TlsChannel server(SocketChannel channel, SSLContext context, Consumer<TlsChannel> onHandshake) {
+        SSLEngine engine = context.createSSLEngine();
+        engine.setUseClientMode(false);
+        return new TlsChannel(channel, engine, onHandshake);
+    }
+
+    /**
+     * The client's side of a connection to host and port, which checks the server's
+     * certificate is for host. Connections to the same host and port through the same
+     * context resume the session of the last one, if the server still has it.
+     */
+    static TlsChannel client(SocketChannel channel, SSLContext context, String host, int port) {
+        SSLEngine engine = context.createSSLEngine(host, port);
+        engine.setUseClientMode(true);
+        SSLParameters parameters = engine.getSSLParameters();
+        parameters.setEndpointIdentificationAlgorithm("HTTPS");
+        engine.setSSLParameters(parameters);
+        return new TlsChannel(channel, engine, ignored -> {});
+    }
+
+    /** Whether the handshake resumed an earlier session instead of doing a full one. */
+    boolean isResumed() {
+        return resumed;
+    }
+
+    /** How long the handshake took from the first read or write, or -1 if it isn't done. */
+    long handshakeNanos() {
+        return handshakeNanos;
+    }
+
+    SSLSession getSession() {
+        return engine.getSession();
+    }
+
+    /**
+     * Carries the handshake on as far as the socket allows: to the end on a blocking
+     * channel, or until the socket has nothing to read or no room to write.
+     *
+     * @return whether the handshake is done
+     * @throws EOFException if the peer hung up before it was
+     */
+    private boolean handshake() throws IOException {
+        readLock.lock();
+        try {
+            writeLock.lock();
+            try {
+                if (handshakeNanos >= 0) {
+                    return true;
+                }
+                if (!started) {
+                    started = true;
+                    startedAt = System.currentTimeMillis();
+                    startedNanos = System.nanoTime();
+                    engine.beginHandshake();
+                }
+                // The records of a flight are written together once it is the peer's turn,
+                // not one write, and one round of Nagle's algorithm, each.
+                while (true) {
+                    switch (engine.getHandshakeStatus()) {
+                        case NEED_TASK:
+                            runTasks();
+                            break;
+                        case NEED_WRAP:
+                            wrap(NOTHING, 0, 1);
+                            break;
+                        case NEED_UNWRAP:
+                        case NEED_UNWRAP_AGAIN:
+                            if (!flushNetOut()) {
+                                return false;
+                            }
+                            if (!unwrap()) {
+                                if (inboundDone) {
+                                    throw new EOFException("Connection closed during the TLS handshake");
+                                }
+                                return false;
+                            }
+                            break;
+                        default:
+                            if (!flushNetOut()) {
+                                return false;
+                            }
+                            established();
+                            return true;
+                    }
+                }
+            } finally {
+                writeLock.unlock();
+            }
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    private void established() {
+        // A resumed session is the one an earlier handshake created; a full handshake
+        // creates its session as it goes.
+        resumed = engine.getSession().getCreationTime() < startedAt;
+        handshakeNanos = System.nanoTime() - startedNanos;
+        onHandshake.accept(this);
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = engine.getDelegatedTask()) != null) {
+            task.run();
+        }
+    }
+
+    /**
+     * Decrypts the next record into appIn, reading from the socket until a whole one
+     * has arrived. The record may hold no data at all, e.g. a session ticket.
+     *
+     * @return false if the socket has nothing more to read for now, or has ended
+     */
+    private boolean unwrap() throws IOException {
+        while (true) {
+            if (inboundDone) {
+                return false;
+            }
+            appIn.compact();
+            SSLEngineResult result;
+            try {
+                result = engine.unwrap(netIn, appIn);
+            } finally {
+                appIn.flip();
+            }
+            switch (result.getStatus()) {
+                case OK:
+                    return true;
+                case BUFFER_OVERFLOW:
+                    appIn = enlarge(appIn, appIn.remaining() + engine.getSession().getApplicationBufferSize());
+                    break;
+                case BUFFER_UNDERFLOW:
+                    if (!readRecords()) {
+                        return false;
+                    }
+                    break;
+                default:
+                    // The peer sent close_notify.
+                    inboundDone = true;
+                    return false;
+            }
+        }
+    }
+
+    // Reads more of the socket into netIn. Returns false if there was nothing to read.
+    private boolean readRecords() throws IOException {
+        int packetSize = engine.getSession().getPacketBufferSize();
+        if (netIn.capacity() < packetSize) {
+            netIn = enlarge(netIn, packetSize);
+        }
+        netIn.compact();
+        int read;
+        try {
+            read = channel.read(netIn);
+        } finally {
+            netIn.flip();
+        }
+        if (read < 0) {
+            inboundDone = true;
+            try {
+                engine.closeInbound();
+            } catch (SSLException e) {
+                // Closed without close_notify, which is how this protocol ends.
+            }
+        }
+        return read > 0;
+    }
+
+    /**
+     * Encrypts what it can of the given buffers into a record after whatever netOut
+     * already holds.
+     *
+     * @return the number of bytes of the buffers encrypted
+     */
+    private int wrap(ByteBuffer[] sources, int offset, int length) throws IOException {
+        while (true) {
+            netOut.compact();
+            SSLEngineResult result;
+            try {
+                result = engine.wrap(sources, offset, length, netOut);
+            } finally {
+                netOut.flip();
+            }
+            switch (result.getStatus()) {
+                case OK:
+                    if (result.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_TASK) {
+                        runTasks();
+                    }
+                    return result.bytesConsumed();
+                case BUFFER_OVERFLOW:
+                    netOut = enlarge(netOut, netOut.remaining() + engine.getSession().getPacketBufferSize());
+                    break;
+                case CLOSED:
+                    throw new ClosedChannelException();
+                default:
+                    throw new SSLException("Unexpected " + result.getStatus() + " from wrap");
+            }
+        }
+    }
+
+    // Writes what was encrypted. Returns false if the socket had no room for all of it.
+    private boolean flushNetOut() throws IOException {
+        while (netOut.hasRemaining()) {
+            if (channel.write(netOut) == 0 && !channel.isBlocking()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static ByteBuffer enlarge(ByteBuffer buffer, int capacity) {
+        return ByteBuffer.allocate(Math.max(capacity, buffer.capacity())).put(buffer).flip();
+    }
+
+    @Override
+    public int read(ByteBuffer destination) throws IOException {
+        if (handshakeNanos < 0 && !handshake()) {
+            return 0;
+        }
+        readLock.lock();
+        try {
+            while (!appIn.hasRemaining()) {
+                if (!unwrap()) {
+                    return inboundDone ? -1 : 0;
+                }
+                afterUnwrap();
+            }
+            int count = Math.min(appIn.remaining(), destination.remaining());
+            destination.put(destination.position(), appIn, appIn.position(), count);
+            destination.position(destination.position() + count);
+            appIn.position(appIn.position() + count);
+            return count;
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    // After the handshake the peer may still want an answer, e.g. to a key update.
+    private void afterUnwrap() throws IOException {
+        if (engine.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_TASK) {
+            runTasks();
+        }
+        if (engine.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_WRAP) {
+            writeLock.lock();
+            try {
+                if (flushNetOut()) {
+                    wrap(NOTHING, 0, 1);
+                    flushNetOut();
+                }
+            } finally {
+                writeLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Whether a read would return data without the socket being readable: decrypted
+     * data is left over, or at least one whole record is waiting to be decrypted.
+     */
+    boolean hasBufferedInput() {
+        readLock.lock();
+        try {
+            if (appIn.hasRemaining()) {
+                return true;
+            }
+            if (netIn.remaining() < RECORD_HEADER) {
+                return false;
+            }
+            int length = (netIn.get(netIn.position() + 3) & 0xff) << 8 | netIn.get(netIn.position() + 4) & 0xff;
+            return netIn.remaining() >= RECORD_HEADER + length;
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    @Override
+    public int write(ByteBuffer source) throws IOException {
+        return (int) write(new ByteBuffer[] {source}, 0, 1);
+    }
+
+    @Override
+    public long write(ByteBuffer[] sources) throws IOException {
+        return write(sources, 0, sources.length);
+    }
+
+    /**
+     * Encrypts and writes the buffers a record at a time. On a non-blocking channel it
+     * stops at the first record the socket has no room for, counting it as written;
+     * flush() writes the rest later.
+     */
+    @Override
+    public long write(ByteBuffer[] sources, int offset, int length) throws IOException {
+        if (handshakeNanos < 0 && !handshake()) {
+            return 0;
+        }
+        writeLock.lock();
+        try {
+            long written = 0;
+            while (flushNetOut() && remaining(sources, offset, length)) {
+                written += wrap(sources, offset, length);
+            }
+            return written;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    private static boolean remaining(ByteBuffer[] sources, int offset, int length) {
+        for (int i = offset; i < offset + length; i++) {
+            if (sources[i].hasRemaining()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Writes records encrypted earlier that the socket had no room for, carrying on
+     * with the handshake if it isn't done.
+     *
+     * @return whether nothing is left to write
+     */
+    boolean flush() throws IOException {
+        if (handshakeNanos < 0) {
+            return handshake();
+        }
+        writeLock.lock();
+        try {
+            return flushNetOut();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /** Whether a write left records behind for flush(). */
+    boolean hasPendingOutput() {
+        writeLock.lock();
+        try {
+            return netOut.hasRemaining();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * A blocking stream over the channel, for DataInputStream and LineDecoder, that
+     * takes no monitor (see the class comment).
+     */
+    InputStream inputStream() {
+        return new InputStream() {
+            @Override
+            public int read() throws IOException {
+                byte[] one = new byte[1];
+                return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+            }
+
+            @Override
+            public int read(byte[] bytes, int offset, int length) throws IOException {
+                if (length == 0) {
+                    return 0;
+                }
+                int read;
+                do {
+                    read = TlsChannel.this.read(ByteBuffer.wrap(bytes, offset, length));
+                } while (read == 0);
+                return read;
+            }
+
+            @Override
+            public void close() throws IOException {
+                TlsChannel.this.close();
+            }
+        };
+    }
+
+    @Override
+    public boolean isOpen() {
+        return channel.isOpen();
+    }
+
+    @Override
+    public void close() throws IOException {
+        engine.closeOutbound();
+        channel.close();
+    }
+
+    @Override
+    public String toString() {
+        return "TLS " + engine.getSession().getProtocol() + " " + channel;
+    }
+}
@@ -0,0 +1,105 @@
+package basic_demo;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.TrustManagerFactory;
+
+/**
+ * Builds the SSLContexts the servers and ChatConnection use for TLS (see TlsChannel)
+ * from a keystore file, PKCS12 or JKS, and makes self-signed keystores for trying
+ * TLS out locally, in tests and in benchmarks.
+ *
+ * The server's context keeps a cache of sessions, so that a client coming back can
+ * resume its last session with an abbreviated handshake instead of a full one: no
+ * certificate, no signature, one round trip. TLS 1.3 sessions come back through a
+ * ticket the client keeps instead, which the server does not have to remember, but
+ * their lifetime is the cache's timeout all the same.
+ */
+final class TlsContexts {
+
+    private TlsContexts() {
+    }
+
+    /**
+     * The context of a server presenting the key in the options' keystore, with the
+     * options' session cache size and timeout.
+     */
+    static SSLContext server(ServerOptions options) throws IOException {
+        return server(Path.of(options.getTlsKeystore()), options.getTlsPassword().toCharArray(),
+                options.getTlsSessionCache(), options.getTlsSessionTimeoutSeconds());
+    }
+
+    static SSLContext server(Path keystore, char[] password, int sessionCache, int sessionTimeoutSeconds)
+            throws IOException {
+        try {
+            KeyManagerFactory keys = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+            keys.init(load(keystore, password), password);
+            SSLContext context = SSLContext.getInstance("TLS");
+            context.init(keys.getKeyManagers(), null, null);
+            SSLSessionContext sessions = context.getServerSessionContext();
+            sessions.setSessionCacheSize(sessionCache);
+            sessions.setSessionTimeout(sessionTimeoutSeconds);
+            return context;
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Could not use the key in " + keystore, e);
+        }
+    }
+
+    /**
+     * The context of a client that trusts the certificates in the given keystore, such
+     * as a self-signed one, rather than the JDK's certificate authorities.
+     */
+    static SSLContext trusting(Path keystore, char[] password) throws IOException {
+        try {
+            TrustManagerFactory trust = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+            trust.init(load(keystore, password));
+            SSLContext context = SSLContext.getInstance("TLS");
+            context.init(null, trust.getTrustManagers(), null);
+            return context;
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Could not trust the certificates in " + keystore, e);
+        }
+    }
+
+    private static KeyStore load(Path keystore, char[] password) throws IOException, GeneralSecurityException {
+        return KeyStore.getInstance(keystore.toFile(), password);
+    }
+
+    /**
+     * Writes a PKCS12 keystore holding a new EC key and a certificate for it, signed
+     * by itself, for "localhost" and 127.0.0.1. Runs the JDK's keytool, as one would
+     * by hand.
+     *
+     * @throws IOException if keytool can't be run or fails
+     */
+    static Path selfSigned(Path keystore, char[] password) throws IOException {
+        Files.deleteIfExists(keystore);
+        File keytool = new File(new File(System.getProperty("java.home"), "bin"), "keytool");
+        Process process = new ProcessBuilder(keytool.getPath(), "-genkeypair", "-alias", "chat",
+                "-keyalg", "EC", "-groupname", "secp256r1", "-validity", "30",
+                "-dname", "CN=localhost", "-ext", "SAN=dns:localhost,ip:127.0.0.1",
+                "-storetype", "PKCS12", "-keystore", keystore.toString(),
+                "-storepass", new String(password), "-keypass", new String(password))
+                .redirectErrorStream(true)
+                .start();
+        String output = new String(process.getInputStream().readAllBytes());
+        try {
+            if (process.waitFor() != 0) {
+                throw new IOException("keytool failed: " + output);
+            }
+        } catch (InterruptedException e) {
+            process.destroy();
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted waiting for keytool");
+        }
+        return keystore;
+    }
+}
@@ -0,0 +1,78 @@
+package basic_demo;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A token bucket: it holds up to a capacity of tokens, refills at a steady rate,
+ * and every message takes one or more tokens out of it.
+ *
+ * The bucket is kept as a single number, the time at which it will be full again
+ * (the "theoretical arrival time" of the generic cell rate algorithm), instead of
+ * a token count and the time it was last refilled. Taking tokens pushes that time
+ * out, and refilling is nothing but the clock passing it. So taking tokens is one
+ * compare-and-set, without a lock or a timer, and a bucket that is only used by
+ * one thread never sees that compare-and-set fail.
+ *
+ * Times are System.nanoTime() values, passed in so that a caller taking tokens
+ * from several buckets reads the clock once.
+ */
+final class TokenBucket {
+
+    private final double nanosPerToken;
+    private final long capacityNanos;
+    private final AtomicLong fullAt;
+
+    /**
+     * Constructs a full bucket.
+     *
+     * @param perSecond the tokens it regains per second
+     * @param capacity the most tokens it holds, i.e. the largest burst it allows
+     */
+    TokenBucket(double perSecond, double capacity) {
+        this.nanosPerToken = 1e9 / perSecond;
+        this.capacityNanos = (long) (capacity * nanosPerToken);
+        this.fullAt = new AtomicLong(System.nanoTime());
+    }
+
+    /**
+     * Takes the tokens, whether the bucket holds them or not. A bucket that runs
+     * short goes into debt, which later takers have to wait out too.
+     *
+     * @return 0 if the bucket held the tokens, otherwise the nanoseconds until it is
+     *         out of debt again
+     */
+    long reserve(long now, long tokens) {
+        long cost = (long) (tokens * nanosPerToken);
+        while (true) {
+            long current = fullAt.get();
+            long next = (current - now > 0 ? current : now) + cost;
+            if (fullAt.compareAndSet(current, next)) {
+                return Math.max(0, next - now - capacityNanos);
+            }
+        }
+    }
+
+    /**
+     * Takes the tokens if the bucket holds them.
+     *
+     * @return whether it did
+     */
+    boolean tryTake(long now, long tokens) {
+        long cost = (long) (tokens * nanosPerToken);
+        while (true) {
+            long current = fullAt.get();
+            long next = (current - now > 0 ? current : now) + cost;
+            if (next - now > capacityNanos) {
+                return false;
+            }
+            if (fullAt.compareAndSet(current, next)) {
+                return true;
+            }
+        }
+    }
+
+    /** Fills the bucket up, forgiving any debt. */
+    void fill(long now) {
+        fullAt.set(now);
+    }
+}
@@ -0,0 +1,130 @@
+package basic_demo;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.LogManager;
+
+/**
+ * The transcripts of all the rooms of a server, a MessageLog each in a directory
+ * of its own under the log directory. A room's log is opened the first time the
+ * room is created and released when the room empties (see release()), giving back
+ * its file and mapping; a room that is created again carries on with the same
+ * transcript, and the log remembers who left when.
+ *
+ * Under the INTERVAL fsync policy a single background thread forces every log that
+ * was appended to since the last round, so broadcasting never waits for the disk.
+ */
+final class Transcript implements Closeable {
+
+    private final static Logger LOGGER = LogManager.getLogger(Transcript.class);
+
+    private final Path directory;
+    private final int segmentBytes;
+    private final int retainedSegments;
+    private final FsyncPolicy fsync;
+    private final ConcurrentHashMap<String, MessageLog> logs = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService syncer;
+
+    Transcript(ServerOptions options) {
+        this.directory = Paths.get(options.getLogDirectory());
+        this.segmentBytes = options.getLogSegmentMegabytes() * 1024 * 1024;
+        this.retainedSegments = options.getLogRetainedSegments();
+        this.fsync = options.getLogFsync();
+        if (fsync == FsyncPolicy.INTERVAL) {
+            syncer = Executors.newSingleThreadScheduledExecutor(task -> {
+                Thread thread = new Thread(task, "Transcript sync");
+                thread.setDaemon(true);
+                return thread;
+            });
+            long interval = options.getLogFsyncMillis();
+            syncer.scheduleWithFixedDelay(this::sync, interval, interval, TimeUnit.MILLISECONDS);
+        } else {
+            syncer = null;
+        }
+    }
+
+    /**
+     * Returns the room's log, opening it on first use.
+     *
+     * @return the log, or null if it could not be opened, in which case the room goes
+     *         without a transcript
+     */
+    MessageLog log(String room) {
+        return logs.computeIfAbsent(room, name -> {
+            try {
+                return MessageLog.open(directory.resolve(directoryName(name)), segmentBytes, retainedSegments,
+                        fsync);
+            } catch (IOException e) {
+                LOGGER.error("Could not open the transcript of " + name + ": " + e.getMessage());
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Gives back the file and mapping of the log of a room that emptied. Should the
+     * room be in use again meanwhile, its next append opens the log again.
+     */
+    void release(String room) {
+        MessageLog log = logs.get(room);
+        if (log == null) {
+            return;
+        }
+        try {
+            log.release();
+        } catch (IOException e) {
+            LOGGER.error("Could not release the transcript of " + room + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Turns a room name into a directory name that is safe on any file system: letters,
+     * digits, '-' and '_' are kept and every other byte becomes "%XX", so a room can't
+     * be called ".." or "a/b" on disk.
+     */
+    static String directoryName(String room) {
+        StringBuilder name = new StringBuilder();
+        for (byte b : room.getBytes(StandardCharsets.UTF_8)) {
+            char c = (char) (b & 0xff);
+            if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '-' || c == '_') {
+                name.append(c);
+            } else {
+                name.append('%').append(String.format("%02X", b & 0xff));
+            }
+        }
+        return name.toString();
+    }
+
+    private void sync() {
+        for (MessageLog log : logs.values()) {
+            log.sync();
+        }
+    }
+
+    public void close() {
+        if (syncer != null) {
+            syncer.shutdownNow();
+        }
+        for (MessageLog log : logs.values()) {
+            try {
+                log.close();
+            } catch (IOException e) {
+                LOGGER.error("Could not close a transcript: " + e.getMessage());
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "transcript " + directory + " rooms=" + logs.size() + " fsync=" + fsync;
+    }
+}
@@ -0,0 +1,230 @@
+package basic_demo;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+
+/**
+ * The parts of the WebSocket protocol (RFC 6455) that browsers need to chat on the
+ * NioChatServer's WebSocket port: the HTTP upgrade, and the frames either way.
+ *
+ * Each text message carries one message of the "Chat Protocol" as a text client
+ * would send or get it, without the newline: the server sends "SUBMITNAME",
+ * "NAMEACCEPTED alice" and "MESSAGE bob: hi", and the client sends its name and
+ * then what it says. A text of several lines stays a single message. So a browser
+ * needs no more than
+ *
+ *     socket.onmessage = e => e.data === "SUBMITNAME" ? socket.send(name) : show(e.data);
+ *
+ * Frames from the server are never masked, so a message is framed once and the
+ * same bytes go to every WebSocket client it is broadcast to (see
+ * EncodedMessage.webSocket()). Frames from a client always are, and are unmasked
+ * in place, in the connection's read buffer.
+ *
+ * Not supported: binary messages, which end the connection, extensions and
+ * subprotocols, which are not offered, and TLS, for which a proxy in front of the
+ * port can do.
+ */
+final class WebSocket {
+
+    static final int CONTINUATION = 0x0;
+    static final int TEXT = 0x1;
+    static final int BINARY = 0x2;
+    static final int CLOSE = 0x8;
+    static final int PING = 0x9;
+    static final int PONG = 0xA;
+
+    private static final int FIN = 0x80;
+    private static final int MASKED = 0x80;
+    private static final int MAX_CONTROL_PAYLOAD = 125;
+    private static final String GUID = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
+
+    // A request with more header lines than this is not a browser's.
+    private static final int MAX_HEADERS = 100;
+
+    private WebSocket() {
+    }
+
+    /**
+     * The HTTP request that opens a WebSocket, read a line at a time.
+     */
+    static final class Handshake {
+
+        private int lines;
+        private boolean get;
+        private boolean upgrade;
+        private boolean version;
+        private String key;
+
+        /**
+         * Takes the next line of the request, without its line end.
+         *
+         * @return whether that was the empty line that ends the request
+         * @throws IOException if the request goes on for too long
+         */
+        boolean line(String line) throws IOException {
+            if (lines++ == 0) {
+                get = line.startsWith("GET ") && line.endsWith(" HTTP/1.1");
+                return false;
+            }
+            if (line.isEmpty()) {
+                return true;
+            }
+            if (lines > MAX_HEADERS) {
+                throw new IOException("WebSocket handshake of more than " + MAX_HEADERS + " lines");
+            }
+            int colon = line.indexOf(':');
+            if (colon > 0) {
+                String name = line.substring(0, colon).trim();
+                String value = line.substring(colon + 1).trim();
+                if (name.equalsIgnoreCase("Upgrade")) {
+                    upgrade = value.equalsIgnoreCase("websocket");
+                } else if (name.equalsIgnoreCase("Sec-WebSocket-Version")) {
+                    version = value.equals("13");
+                } else if (name.equalsIgnoreCase("Sec-WebSocket-Key")) {
+                    key = value;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * The server's answer to the complete request: switching protocols, or a 400
+         * for a request that doesn't ask for a WebSocket.
+         */
+        ByteBuffer response() {
+            if (!isValid()) {
+                return ascii("HTTP/1.1 400 Bad Request\r\nSec-WebSocket-Version: 13\r\n"
+                        + "Content-Length: 0\r\nConnection: close\r\n\r\n");
+            }
+            return ascii("HTTP/1.1 101 Switching Protocols\r\nUpgrade: websocket\r\nConnection: Upgrade\r\n"
+                    + "Sec-WebSocket-Accept: " + acceptKey(key) + "\r\n\r\n");
+        }
+
+        boolean isValid() {
+            return get && upgrade && version && key != null;
+        }
+    }
+
+    private static ByteBuffer ascii(String text) {
+        return ByteBuffer.wrap(text.getBytes(StandardCharsets.US_ASCII));
+    }
+
+    /** The Sec-WebSocket-Accept answer to a client's Sec-WebSocket-Key. */
+    static String acceptKey(String key) {
+        try {
+            MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+            byte[] digest = sha1.digest((key + GUID).getBytes(StandardCharsets.US_ASCII));
+            return Base64.getEncoder().encodeToString(digest);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("Every JDK has SHA-1", e);
+        }
+    }
+
+    /** The length of the header of an unmasked frame with the given payload length. */
+    static int headerLength(int payloadLength) {
+        return payloadLength <= MAX_CONTROL_PAYLOAD ? 2 : payloadLength <= 0xFFFF ? 4 : 10;
+    }
+
+    /** Puts the header of a final, unmasked frame, as a server sends them. */
+    static void putHeader(ByteBuffer buffer, int opcode, int payloadLength) {
+        buffer.put((byte) (FIN | opcode));
+        if (payloadLength <= MAX_CONTROL_PAYLOAD) {
+            buffer.put((byte) payloadLength);
+        } else if (payloadLength <= 0xFFFF) {
+            buffer.put((byte) 126).putShort((short) payloadLength);
+        } else {
+            buffer.put((byte) 127).putLong(payloadLength);
+        }
+    }
+
+    /** Whether the first byte of a frame is that of a final text frame. */
+    static boolean isText(byte first) {
+        return first == (byte) (FIN | TEXT);
+    }
+
+    /** A control frame, e.g. a PONG, with a copy of the payload's remaining bytes. */
+    static ByteBuffer frame(int opcode, ByteBuffer payload) {
+        ByteBuffer frame = ByteBuffer.allocate(headerLength(payload.remaining()) + payload.remaining());
+        putHeader(frame, opcode, payload.remaining());
+        return frame.put(payload.duplicate()).flip();
+    }
+
+    /** One frame from a client, its payload unmasked. */
+    static final class ClientFrame {
+        final int opcode;
+        final boolean fin;
+        // A view of the read buffer, valid until the next read.
+        final ByteBuffer payload;
+
+        private ClientFrame(int opcode, boolean fin, ByteBuffer payload) {
+            this.opcode = opcode;
+            this.fin = fin;
+            this.payload = payload;
+        }
+
+        boolean isControl() {
+            return (opcode & 0x8) != 0;
+        }
+    }
+
+    /**
+     * Reads the frame at the buffer's position, if the buffer holds all of it, and
+     * unmasks its payload in place.
+     *
+     * @return the frame, with the buffer positioned after it, or null if more bytes
+     *         are needed, with the buffer left as it was
+     * @throws IOException if the frame breaks the protocol or its payload is longer
+     *                     than maxPayload
+     */
+    static ClientFrame read(ByteBuffer buffer, int maxPayload) throws IOException {
+        int start = buffer.position();
+        if (buffer.remaining() < 2) {
+            return null;
+        }
+        int first = buffer.get(start) & 0xFF;
+        int second = buffer.get(start + 1) & 0xFF;
+        if ((first & 0x70) != 0) {
+            throw new IOException("WebSocket frame with reserved bits set");
+        }
+        if ((second & MASKED) == 0) {
+            throw new IOException("Unmasked WebSocket frame from a client");
+        }
+        int opcode = first & 0x0F;
+        boolean fin = (first & FIN) != 0;
+        long length = second & 0x7F;
+        int header = 2;
+        if (length == 126) {
+            if (buffer.remaining() < 4) {
+                return null;
+            }
+            length = buffer.getShort(start + 2) & 0xFFFF;
+            header = 4;
+        } else if (length == 127) {
+            if (buffer.remaining() < 10) {
+                return null;
+            }
+            length = buffer.getLong(start + 2);
+            header = 10;
+        }
+        if ((opcode & 0x8) != 0 && (length > MAX_CONTROL_PAYLOAD || !fin)) {
+            throw new IOException("WebSocket control frame that is too long or fragmented");
+        }
+        if (length < 0 || length > maxPayload) {
+            throw new IOException("WebSocket payload of " + length + " bytes exceeds " + maxPayload);
+        }
+        int payloadStart = start + header + 4;
+        if (buffer.limit() < payloadStart + length) {
+            return null;
+        }
+        int end = payloadStart + (int) length;
+        for (int i = payloadStart; i < end; i++) {
+            buffer.put(i, (byte) (buffer.get(i) ^ buffer.get(start + header + (i - payloadStart) % 4)));
+        }
+        buffer.position(end);
+        return new ClientFrame(opcode, fin, buffer.slice(payloadStart, (int) length));
+    }
+}
@@ -0,0 +1,133 @@
+package basic_demo;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Messages taken off a client's OutboundQueue to go out in a single gathering
+ * write, i.e. one system call and, with Nagle off, as few TCP segments as the
+ * bytes allow. A batch holding at most one message reproduces the old behaviour of
+ * one write per message.
+ *
+ * A batch that could only be partly written keeps what is left and takes no new
+ * messages until it has been written completely.
+ */
+final class WriteBatch {
+
+    // What a single gathering write may carry at most.
+    static final int MAX_BYTES = 64 * 1024;
+
+    private final ByteBuffer[] buffers;
+    // The message each buffer is a view of, told when it has been written.
+    private final EncodedMessage[] messages;
+    private final WriteStats stats;
+    private int first;
+    private int count;
+    private int bytes;
+
+    WriteBatch(int maxMessages, WriteStats stats) {
+        this.buffers = new ByteBuffer[maxMessages];
+        this.messages = new EncodedMessage[maxMessages];
+        this.stats = stats;
+    }
+
+    /** Hands every message in the batch that is not yet written to the action, in order. */
+    void forEach(Consumer<EncodedMessage> action) {
+        for (int i = first; i < count; i++) {
+            action.accept(messages[i]);
+        }
+    }
+
+    boolean isEmpty() {
+        return first == count;
+    }
+
+    /** The most messages the batch can hold. */
+    int capacity() {
+        return buffers.length;
+    }
+
+    boolean isFull() {
+        return count == buffers.length || bytes >= MAX_BYTES;
+    }
+
+    void add(EncodedMessage message) {
+        messages[count] = message;
+        buffers[count++] = message.buffer();
+        bytes += message.length();
+    }
+
+    /**
+     * Moves messages from the queue into the batch until either runs out.
+     */
+    void fill(OutboundQueue<EncodedMessage> queue) {
+        EncodedMessage message;
+        while (!isFull() && (message = queue.poll()) != null) {
+            add(message);
+        }
+    }
+
+    /**
+     * For a writer thread of its own: waits for a message, then gives others up to
+     * the flush window to join it, and returns once the batch is full or the window
+     * has passed.
+     */
+    void fill(OutboundQueue<EncodedMessage> queue, long flushWindowNanos) throws InterruptedException {
+        add(queue.take());
+        long deadline = System.nanoTime() + flushWindowNanos;
+        while (!isFull()) {
+            long remaining = deadline - System.nanoTime();
+            EncodedMessage next = remaining > 0
+                    ? queue.poll(remaining, TimeUnit.NANOSECONDS)
+                    : queue.poll();
+            if (next == null) {
+                break;
+            }
+            add(next);
+        }
+    }
+
+    /**
+     * Writes as much of the batch as the channel takes in one call.
+     *
+     * @return true if the whole batch has been written
+     */
+    boolean writeTo(GatheringByteChannel channel) throws IOException {
+        long written = channel.write(buffers, first, count - first);
+        stats.written(written);
+        while (first < count && !buffers[first].hasRemaining()) {
+            messages[first].written();
+            messages[first] = null;
+            buffers[first++] = null;
+            stats.messageWritten();
+        }
+        if (first < count) {
+            return false;
+        }
+        clear();
+        return true;
+    }
+
+    /**
+     * Starts a partly written message over from its beginning, for when the rest of
+     * the batch is going to be written to a new connection.
+     */
+    void rewind() {
+        if (first < count) {
+            buffers[first].rewind();
+        }
+    }
+
+    void clear() {
+        while (first < count) {
+            messages[first] = null;
+            buffers[first++] = null;
+        }
+        first = 0;
+        count = 0;
+        bytes = 0;
+    }
+}
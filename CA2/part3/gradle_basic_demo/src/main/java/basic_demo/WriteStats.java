@@ -0,0 +1,67 @@
+package basic_demo;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts socket writes against the messages they carry. Every write is a system
+ * call, so writes per message shows how well output is being coalesced. Each
+ * client has its own counters, which also add up into the server-wide ones they
+ * were created with; LongAdder keeps those shared totals cheap for the many writer
+ * threads.
+ */
+class WriteStats {
+
+    private final WriteStats total;
+    private final LongAdder writes = new LongAdder();
+    private final LongAdder messages = new LongAdder();
+    private final LongAdder bytes = new LongAdder();
+
+    /** Creates server-wide counters. */
+    WriteStats() {
+        this(null);
+    }
+
+    /** Creates counters for one client that also count towards the given totals. */
+    WriteStats(WriteStats total) {
+        this.total = total;
+    }
+
+    void written(long byteCount) {
+        writes.increment();
+        bytes.add(byteCount);
+        if (total != null) {
+            total.written(byteCount);
+        }
+    }
+
+    void messageWritten() {
+        messages.increment();
+        if (total != null) {
+            total.messageWritten();
+        }
+    }
+
+    long writes() {
+        return writes.sum();
+    }
+
+    long messages() {
+        return messages.sum();
+    }
+
+    long bytes() {
+        return bytes.sum();
+    }
+
+    /** System calls per message written, 1.0 when nothing is coalesced. */
+    double writesPerMessage() {
+        long written = messages();
+        return written == 0 ? 0 : (double) writes() / written;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("messages=%d writes=%d bytes=%d writes/message=%.3f",
+                messages(), writes(), bytes(), writesPerMessage());
+    }
+}
@@ -0,0 +1,98 @@
+package basic_demo;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class AcceptorsTest {
+
+    private static final int CLIENTS = 40;
+
+    @Test
+    public void testThreadServerSpreadsClientsOverAcceptors() throws Exception {
+        int port = TestChatClient.freePort();
+        ServerOptions options = new ServerOptions(port);
+        options.setAcceptors(4);
+        ChatServer server = new ChatServer(options);
+        TestChatClient.start(server);
+        joinAll(port, server.getAcceptors());
+    }
+
+    @Test
+    public void testNioServerSpreadsClientsOverAcceptors() throws Exception {
+        int port = TestChatClient.freePort();
+        ServerOptions options = new ServerOptions(port);
+        options.setEventLoops(2);
+        options.setAcceptors(3);
+        NioChatServer server = new NioChatServer(options);
+        TestChatClient.start(server);
+        try {
+            joinAll(port, server.getAcceptors());
+        } finally {
+            server.shutdown();
+        }
+    }
+
+    @Test
+    public void testEveryEventLoopBelongsToOneAcceptor() throws Exception {
+        EventLoop[] loops = new EventLoop[5];
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new EventLoop("Test loop " + i);
+            loops[i].start();
+        }
+        try {
+            EventLoop[][] groups = NioChatServer.group(loops, 2);
+            assertEquals(3, groups[0].length);
+            assertEquals(2, groups[1].length);
+            Set<EventLoop> seen = new HashSet<>();
+            for (EventLoop[] group : groups) {
+                for (EventLoop loop : group) {
+                    assertTrue(seen.add(loop));
+                }
+            }
+            assertEquals(loops.length, seen.size());
+
+            // More acceptors than loops: each still gets one.
+            EventLoop[][] shared = NioChatServer.group(new EventLoop[] {loops[0], loops[1]}, 3);
+            assertSame(loops[0], shared[0][0]);
+            assertSame(loops[1], shared[1][0]);
+            assertSame(loops[0], shared[2][0]);
+        } finally {
+            for (EventLoop loop : loops) {
+                loop.shutdown();
+            }
+        }
+    }
+
+    private static void joinAll(int port, Acceptors acceptors) throws Exception {
+        List<TestChatClient> clients = new ArrayList<>();
+        try {
+            for (int i = 0; i < CLIENTS; i++) {
+                clients.add(TestChatClient.join(port, "client" + i));
+            }
+            clients.get(0).send("hello");
+            clients.get(CLIENTS - 1).expect("MESSAGE client0: hello");
+
+            long total = 0;
+            int busy = 0;
+            for (int i = 0; i < acceptors.count(); i++) {
+                total += acceptors.accepted(i);
+                busy += acceptors.accepted(i) > 0 ? 1 : 0;
+            }
+            assertEquals(CLIENTS, total);
+            if (acceptors.reusesPort()) {
+                // The kernel hashes connections over the sockets; forty all landing on one
+                // would be a one in 10^20 chance.
+                assertTrue(acceptors.toString(), busy > 1);
+            }
+        } finally {
+            for (TestChatClient client : clients) {
+                client.close();
+            }
+        }
+    }
+}
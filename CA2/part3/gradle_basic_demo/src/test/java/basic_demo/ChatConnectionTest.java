@@ -0,0 +1,149 @@
+package basic_demo;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class ChatConnectionTest {
+
+    private static final int MESSAGES = 5000;
+
+    private NioChatServer server;
+    private int port;
+
+    @Before
+    public void startServer() throws Exception {
+        port = TestChatClient.freePort();
+        ServerOptions options = new ServerOptions(port);
+        options.setMode(ServerMode.NIO);
+        options.setEventLoops(2);
+        options.setQueueCapacity(2 * MESSAGES);
+        server = new NioChatServer(options);
+        TestChatClient.start(server);
+    }
+
+    @After
+    public void stopServer() {
+        server.shutdown();
+    }
+
+    // Counts down once for every message the given sender says.
+    private static class Counter implements ChatListener {
+        final CountDownLatch latch;
+        final String prefix;
+        final AtomicReference<String> last = new AtomicReference<>();
+
+        Counter(String sender, int expected) {
+            this.prefix = sender + ": ";
+            this.latch = new CountDownLatch(expected);
+        }
+
+        public void messageReceived(String message) {
+            if (message.startsWith(prefix)) {
+                last.set(message);
+                latch.countDown();
+            }
+        }
+    }
+
+    @Test
+    public void testChoosesAnotherNameWhenTaken() throws Exception {
+        try (TestChatClient bot = TestChatClient.join(port, "bot");
+             ChatConnection second = new ChatConnection("localhost", port, false, NameChooser.numbered("bot"),
+                     message -> { })) {
+            assertEquals("bot2", second.connect().get(5, TimeUnit.SECONDS));
+            assertEquals("bot2", second.getName());
+            bot.expect("MESSAGE bot2 has joined");
+        }
+    }
+
+    @Test
+    public void testGivingUpOnNamesDisconnects() throws Exception {
+        CountDownLatch disconnected = new CountDownLatch(1);
+        AtomicReference<IOException> cause = new AtomicReference<>();
+        try (TestChatClient bot = TestChatClient.join(port, "bot");
+             ChatConnection second = new ChatConnection("localhost", port, true, NameChooser.fixed("bot"),
+                     new ChatListener() {
+                         public void messageReceived(String message) {
+                         }
+
+                         public void disconnected(IOException e) {
+                             cause.set(e);
+                             disconnected.countDown();
+                         }
+                     })) {
+            try {
+                second.connect().get(5, TimeUnit.SECONDS);
+                fail("The name was taken");
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof IOException);
+            }
+            assertTrue(disconnected.await(5, TimeUnit.SECONDS));
+            assertNotNull(cause.get());
+            assertFalse(second.send("too late"));
+            // The one holding the name never noticed.
+            bot.send("still here");
+            bot.expect("MESSAGE bot: still here");
+        }
+    }
+
+    @Test
+    public void testLongestMessageReachesEveryone() throws Exception {
+        // The longest name and the longest line there can be, so the most the server sends on.
+        String name = "n".repeat(NameRegistry.MAX_NAME_LENGTH);
+        String text = "x".repeat(LineDecoder.MAX_LINE_LENGTH - 1);
+        Counter lines = new Counter(name, 1);
+        Counter frames = new Counter(name, 1);
+        try (ChatConnection textReceiver = new ChatConnection("localhost", port, false,
+                     NameChooser.fixed("lines"), lines);
+             ChatConnection framedReceiver = new ChatConnection("localhost", port, true,
+                     NameChooser.fixed("frames"), frames);
+             ChatConnection sender = new ChatConnection("localhost", port, false,
+                     NameChooser.fixed(name), message -> { })) {
+            textReceiver.connect().get(5, TimeUnit.SECONDS);
+            framedReceiver.connect().get(5, TimeUnit.SECONDS);
+            sender.connect().get(5, TimeUnit.SECONDS);
+            assertTrue(sender.send(text));
+            assertTrue(lines.latch.await(5, TimeUnit.SECONDS));
+            assertTrue(frames.latch.await(5, TimeUnit.SECONDS));
+            assertEquals(name + ": " + text, lines.last.get());
+            assertEquals(name + ": " + text, frames.last.get());
+        }
+    }
+
+    @Test
+    public void testThousandsOfTextMessages() throws Exception {
+        exchange(false);
+    }
+
+    @Test
+    public void testThousandsOfFramedMessages() throws Exception {
+        exchange(true);
+    }
+
+    private void exchange(boolean framed) throws Exception {
+        Counter counter = new Counter("sender", MESSAGES);
+        try (ChatConnection receiver = new ChatConnection("localhost", port, framed,
+                     NameChooser.fixed("receiver"), counter);
+             // Room for every message, however far the writer falls behind.
+             ChatConnection sender = new ChatConnection("localhost", port, framed,
+                     NameChooser.fixed("sender"), message -> { }, MESSAGES)) {
+            receiver.connect().get(5, TimeUnit.SECONDS);
+            // Until the name is accepted send() only queues; the sizing, not this wait, keeps it from failing.
+            sender.connect().get(5, TimeUnit.SECONDS);
+            for (int i = 0; i < MESSAGES; i++) {
+                assertTrue(sender.send("message " + i));
+            }
+            assertTrue("Only " + (MESSAGES - counter.latch.getCount()) + " arrived",
+                    counter.latch.await(20, TimeUnit.SECONDS));
+            assertEquals("sender: message " + (MESSAGES - 1), counter.last.get());
+        }
+    }
+}
@@ -0,0 +1,158 @@
+package basic_demo;
+
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+
+public class ChatServerTest {
+
+    private static int port;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    // Virtual threads are daemons, so the server does not outlive the test run.
+    @BeforeClass
+    public static void startServer() throws Exception {
+        port = TestChatClient.freePort();
+        TestChatClient.start(new ChatServer(port, true));
+    }
+
+    @Test
+    public void testVirtualThreadModeBroadcasts() throws Exception {
+        try (TestChatClient alice = TestChatClient.join(port, "alice");
+             TestChatClient bob = TestChatClient.join(port, "bob")) {
+            alice.expect("MESSAGE bob has joined");
+
+            alice.send("hi bob");
+            bob.expect("MESSAGE alice: hi bob");
+        }
+    }
+
+    @Test
+    public void testMoreClientsThanThePlatformPool() throws Exception {
+        TestChatClient[] idle = new TestChatClient[600];
+        try {
+            for (int i = 0; i < idle.length; i++) {
+                idle[i] = new TestChatClient(port);
+                idle[i].expect("SUBMITNAME");
+            }
+            try (TestChatClient last = TestChatClient.join(port, "last")) {
+                last.send("made it");
+                last.expect("MESSAGE last: made it");
+            }
+        } finally {
+            for (TestChatClient client : idle) {
+                if (client != null) {
+                    client.close();
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testFramedAndTextClientsShareTheRoom() throws Exception {
+        try (TestFramedClient alice = new TestFramedClient(port, "frank");
+             TestChatClient bob = TestChatClient.join(port, "tess")) {
+            alice.expect(FrameType.MESSAGE, "tess has joined");
+
+            alice.send(FrameType.SEND, "two\nlines");
+            bob.expect("MESSAGE frank: two");
+            assertEquals("MESSAGE frank: lines", bob.readLine());
+            alice.expect(FrameType.MESSAGE, "frank: two\nlines");
+
+            bob.send("hi");
+            alice.expect(FrameType.MESSAGE, "tess: hi");
+
+            alice.send(FrameType.PING, "42");
+            alice.expect(FrameType.PONG, "42");
+            alice.send(FrameType.QUIT, "");
+            bob.expect("MESSAGE frank has left");
+        }
+    }
+
+    @Test
+    public void testMessagesStayInTheirRoom() throws Exception {
+        try (TestChatClient alice = TestChatClient.join(port, "rita");
+             TestChatClient bob = TestChatClient.join(port, "rob")) {
+            alice.expect("MESSAGE rob has joined");
+
+            bob.send("/join #dev");
+            alice.expect("MESSAGE rob has left");
+            bob.expect("MESSAGE [server] you are in dev (1)");
+
+            // Once it comes back to rita the message has been queued for the whole lobby.
+            alice.send("lobby only");
+            alice.expect("MESSAGE rita: lobby only");
+            bob.send("/rooms");
+            String rooms = bob.readLine();
+            assertTrue(rooms, rooms.startsWith("MESSAGE [server] rooms: ") && rooms.contains("dev (1)"));
+
+            alice.send("/join dev");
+            bob.expect("MESSAGE rita has joined");
+            bob.send("in dev");
+            alice.expect("MESSAGE rob: in dev");
+
+            bob.send("/leave");
+            alice.expect("MESSAGE rob has left");
+        }
+    }
+
+    @Test
+    public void testHistoryIsReplayedOnJoin() throws Exception {
+        try (TestChatClient hana = TestChatClient.join(port, "hana")) {
+            hana.send("/join archive");
+            hana.expect("MESSAGE [server] you are in archive (1)");
+            hana.send("first");
+            hana.send("second");
+            hana.expect("MESSAGE hana: second");
+
+            try (TestChatClient ivo = TestChatClient.join(port, "ivo")) {
+                // The lobby's history comes first and ends with ivo's own arrival.
+                ivo.expect("MESSAGE ivo has joined");
+                ivo.send("/join archive");
+                assertEquals("MESSAGE hana has joined", ivo.readLine());
+                assertEquals("MESSAGE hana: first", ivo.readLine());
+                assertEquals("MESSAGE hana: second", ivo.readLine());
+                assertEquals("MESSAGE ivo has joined", ivo.readLine());
+                assertEquals("MESSAGE [server] you are in archive (2)", ivo.readLine());
+            }
+        }
+    }
+
+    @Test
+    public void testMetricsCommand() throws Exception {
+        try (TestChatClient jun = TestChatClient.join(port, "jun")) {
+            jun.expect("MESSAGE jun has joined");
+            jun.send("/metrics");
+            String reply = jun.readLine();
+            assertTrue(reply, reply.startsWith("MESSAGE [server] connections="));
+            assertTrue(reply, reply.contains(" broadcast latency p50="));
+        }
+    }
+
+    @Test
+    public void testSinceCatchesUpFromTheTranscript() throws Exception {
+        int logged = TestChatClient.freePort();
+        ServerOptions options = new ServerOptions(logged);
+        options.setMode(ServerMode.VIRTUAL);
+        options.setLogDirectory(folder.getRoot().getPath());
+        TestChatClient.start(new ChatServer(options));
+        try (TestFramedClient uma = new TestFramedClient(logged, "uma");
+             TestChatClient vic = TestChatClient.join(logged, "vic")) {
+            uma.expect(FrameType.MESSAGE, "vic has joined");
+            for (int i = 0; i < 100; i++) {
+                vic.send("line " + i);
+            }
+            uma.expect(FrameType.MESSAGE, "vic: line 99");
+
+            // A framed client gets the transcript's lines as frames.
+            uma.send(FrameType.SEND, "/since 2");
+            uma.expect(FrameType.MESSAGE, "[server] lines 2 to 101 of lobby follow");
+            uma.expect(FrameType.MESSAGE, "vic: line 0");
+            uma.expect(FrameType.MESSAGE, "vic: line 99");
+        }
+    }
+}
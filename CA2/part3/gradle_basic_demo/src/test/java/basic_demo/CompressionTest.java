@@ -0,0 +1,157 @@
+package basic_demo;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class CompressionTest {
+
+    // What people paste: many lines, mostly alike.
+    private static String log(int lines) {
+        StringBuilder log = new StringBuilder();
+        for (int i = 0; i < lines; i++) {
+            log.append("2026-10-17 12:00:").append(String.format("%02d", i % 60)).append(".").append(100 + i % 900)
+                    .append(" INFO  [pool-3-thread-").append(i % 8).append("] basic_demo.ChatServer - user")
+                    .append(i * 7 % 1000).append(" has joined the lobby\n");
+        }
+        return log.toString().trim();
+    }
+
+    private static ByteBuffer bytes(String text) {
+        return ByteBuffer.wrap(text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void testDeflateAndInflate() throws IOException {
+        MessageCompressor compressor = new MessageCompressor(1024, MessageCompressor.DEFAULT_LEVEL);
+        String log = log(100);
+        ByteBuffer payload = bytes(log);
+        byte[] compressed = compressor.deflate(payload);
+
+        assertEquals("The buffer is left as it was", 0, payload.position());
+        assertTrue(compressed.length * 4 < payload.remaining());
+        assertEquals(log, new String(MessageCompressor.inflate(compressed, FrameType.MAX_PAYLOAD_LENGTH),
+                StandardCharsets.UTF_8));
+        assertEquals(1, compressor.compressed());
+        assertEquals(payload.remaining(), compressor.bytesIn());
+        assertEquals(compressed.length, compressor.bytesOut());
+        assertTrue(compressor.ratio() > 4);
+    }
+
+    @Test
+    public void testSmallAndIncompressiblePayloadsStayAsTheyAre() {
+        MessageCompressor compressor = new MessageCompressor(1024, MessageCompressor.DEFAULT_LEVEL);
+        byte[] random = new byte[4096];
+        new Random(1).nextBytes(random);
+
+        assertNull(compressor.deflate(bytes("a message of about the length people type")));
+        assertNull(compressor.deflate(ByteBuffer.wrap(random)));
+        assertEquals(0, compressor.compressed());
+        assertEquals("Only the random one was tried", 1, compressor.incompressible());
+    }
+
+    @Test
+    public void testInflateStopsAtTheMaximumLength() {
+        MessageCompressor compressor = new MessageCompressor(1, MessageCompressor.DEFAULT_LEVEL);
+        byte[] zeros = compressor.deflate(ByteBuffer.allocate(1024 * 1024));
+        try {
+            MessageCompressor.inflate(zeros, FrameType.MAX_PAYLOAD_LENGTH);
+            fail("Inflated a megabyte into a frame");
+        } catch (IOException e) {
+            // Expected.
+        }
+    }
+
+    @Test
+    public void testMessageIsCompressedOnceForAllItsRecipients() {
+        MessageCompressor compressor = new MessageCompressor(1024, MessageCompressor.DEFAULT_LEVEL);
+        EncodedMessage message = EncodedMessage.of(FrameType.MESSAGE, EncodedMessage.encode("alice: "), log(100), 50);
+
+        EncodedMessage deflated = message.deflated(compressor);
+        assertTrue(deflated.isDeflated());
+        assertSame(deflated, message.deflated(compressor));
+        assertSame(deflated, message.framed().deflated(compressor));
+        assertSame(deflated, deflated.deflated(compressor));
+        assertEquals(1, compressor.compressed());
+
+        assertSame(message.framed(), deflated.framed());
+        assertEquals(FrameType.MESSAGE, deflated.getType());
+        assertEquals(message.framed().toString(), deflated.toString());
+        assertTrue(deflated.length() * 4 < message.framed().length());
+
+        EncodedMessage small = EncodedMessage.of(FrameType.MESSAGE, "hi");
+        assertSame(small.framed(), small.deflated(compressor));
+        EncodedMessage pong = EncodedMessage.of(FrameType.PONG, log(100));
+        assertSame(pong.framed(), pong.deflated(compressor));
+    }
+
+    @Test
+    public void testThreadServerCompressesForClientsThatAsk() throws Exception {
+        ServerOptions options = new ServerOptions(TestChatClient.freePort());
+        options.setMode(ServerMode.VIRTUAL);
+        ChatServer server = new ChatServer(options);
+        TestChatClient.start(server);
+        exchange(options.getPort(), server.getMetrics());
+    }
+
+    @Test
+    public void testNioServerCompressesForClientsThatAsk() throws Exception {
+        ServerOptions options = new ServerOptions(TestChatClient.freePort());
+        options.setMode(ServerMode.NIO);
+        options.setEventLoops(2);
+        NioChatServer server = new NioChatServer(options);
+        TestChatClient.start(server);
+        try {
+            exchange(options.getPort(), server.getMetrics());
+        } finally {
+            server.shutdown();
+        }
+    }
+
+    /**
+     * A framed client pastes a log, which two clients that asked for compression, one
+     * that did not and a text client all get, the first two from a single compression.
+     */
+    private void exchange(int port, ServerMetrics metrics) throws Exception {
+        String log = log(200);
+        CountDownLatch received = new CountDownLatch(3);
+        AtomicReference<String> broken = new AtomicReference<>();
+        ChatListener listener = message -> {
+            if (message.startsWith("sender: ")) {
+                if (!message.equals("sender: " + log)) {
+                    broken.set(message);
+                }
+                received.countDown();
+            }
+        };
+        try (TestChatClient text = TestChatClient.join(port, "text");
+             ChatConnection first = new ChatConnection("localhost", port, true, NameChooser.fixed("first"), listener);
+             ChatConnection second = new ChatConnection("localhost", port, true, NameChooser.fixed("second"),
+                     listener);
+             ChatConnection plain = new ChatConnection("localhost", port, true, NameChooser.fixed("plain"), listener);
+             ChatConnection sender = new ChatConnection("localhost", port, true, NameChooser.fixed("sender"),
+                     message -> { })) {
+            first.useCompression();
+            second.useCompression();
+            for (ChatConnection connection : new ChatConnection[] {first, second, plain, sender}) {
+                connection.connect().get(5, TimeUnit.SECONDS);
+            }
+            assertTrue(first.isCompressed());
+            assertFalse(plain.isCompressed());
+
+            assertTrue(sender.send(log));
+            assertTrue(received.await(5, TimeUnit.SECONDS));
+            assertNull(broken.get());
+            String[] lines = log.split("\n");
+            text.expect("MESSAGE sender: " + lines[lines.length - 1]);
+            assertTrue(metrics.summary(), metrics.summary().contains(" compressed=1 "));
+        }
+    }
+}
@@ -0,0 +1,49 @@
+package basic_demo;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.Pipe;
+import java.nio.channels.SelectionKey;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class EventLoopTest {
+
+    @Test
+    public void testFailingHandlerIsClosedAndTheLoopCarriesOn() throws Exception {
+        EventLoop loop = new EventLoop("Test loop");
+        loop.start();
+        Pipe pipe = Pipe.open();
+        try {
+            CountDownLatch closed = new CountDownLatch(1);
+            pipe.source().configureBlocking(false);
+            loop.execute(() -> {
+                try {
+                    loop.register(pipe.source(), SelectionKey.OP_READ, new EventLoop.KeyHandler() {
+                        public void handle(SelectionKey key) {
+                            throw new IllegalStateException("Broken handler");
+                        }
+
+                        public void close() {
+                            closed.countDown();
+                        }
+                    });
+                } catch (Exception e) {
+                    throw new AssertionError(e);
+                }
+            });
+            pipe.sink().write(ByteBuffer.wrap(new byte[] {1}));
+            assertTrue(closed.await(5, TimeUnit.SECONDS));
+
+            CountDownLatch ran = new CountDownLatch(1);
+            loop.execute(ran::countDown);
+            assertTrue(ran.await(5, TimeUnit.SECONDS));
+        } finally {
+            loop.shutdown();
+            pipe.sink().close();
+            pipe.source().close();
+        }
+    }
+}
@@ -0,0 +1,129 @@
+package basic_demo;
+
+import java.net.InetSocketAddress;
+import java.util.Collections;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class FederationTest {
+
+    private int portA;
+    private int portB;
+    private ServerOptions optionsB;
+    private NioChatServer nodeA;
+    private NioChatServer nodeB;
+
+    @Before
+    public void startCluster() throws Exception {
+        portA = TestChatClient.freePort();
+        portB = TestChatClient.freePort();
+        int peerPortA = TestChatClient.freePort();
+        int peerPortB = TestChatClient.freePort();
+        nodeA = new NioChatServer(node(portA, peerPortA, peerPortB));
+        optionsB = node(portB, peerPortB, peerPortA);
+        nodeB = new NioChatServer(optionsB);
+        TestChatClient.start(nodeA);
+        TestChatClient.start(nodeB);
+        awaitLinks(nodeA, 1);
+        awaitLinks(nodeB, 1);
+    }
+
+    @After
+    public void stopCluster() {
+        nodeA.shutdown();
+        nodeB.shutdown();
+    }
+
+    private static ServerOptions node(int port, int peerPort, int otherPeerPort) {
+        ServerOptions options = new ServerOptions(port);
+        options.setMode(ServerMode.NIO);
+        options.setEventLoops(1);
+        options.setPeerPort(peerPort);
+        options.setPeers(Collections.singletonList(InetSocketAddress.createUnresolved("localhost", otherPeerPort)));
+        return options;
+    }
+
+    private static void awaitLinks(NioChatServer node, int up) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (node.getFederation().linksUp() != up) {
+            assertTrue("links up: " + node.getFederation(), System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+    }
+
+    @Test
+    public void testMessagesReachOtherNodesOnce() throws Exception {
+        try (TestChatClient alice = TestChatClient.join(portA, "alice");
+             TestChatClient bob = TestChatClient.join(portB, "bob")) {
+            alice.expect("MESSAGE bob has joined");
+
+            alice.send("hello");
+            alice.send("done");
+            int hellos = 0;
+            String line;
+            while (!(line = bob.readLine()).equals("MESSAGE alice: done")) {
+                if (line.equals("MESSAGE alice: hello")) {
+                    hellos++;
+                }
+            }
+            assertEquals(1, hellos);
+
+            bob.send("hi from b");
+            alice.expect("MESSAGE bob: hi from b");
+        }
+    }
+
+    @Test
+    public void testRoomsSpanNodes() throws Exception {
+        try (TestChatClient alice = TestChatClient.join(portA, "alice");
+             TestChatClient bob = TestChatClient.join(portB, "bob");
+             TestChatClient carol = TestChatClient.join(portB, "carol")) {
+            alice.send("/join dev");
+            alice.expect("MESSAGE [server] you are in dev (1)");
+            bob.send("/join dev");
+            alice.expect("MESSAGE bob has joined");
+
+            alice.send("in dev");
+            bob.expect("MESSAGE alice: in dev");
+            carol.send("in the lobby");
+            bob.send("still in dev");
+            // Had carol's message reached dev, alice would have heard it before this.
+            alice.expect("MESSAGE bob: still in dev");
+        }
+    }
+
+    @Test
+    public void testMessagesFromOneSenderKeepTheirOrder() throws Exception {
+        try (TestChatClient alice = TestChatClient.join(portA, "alice");
+             TestChatClient bob = TestChatClient.join(portB, "bob")) {
+            alice.expect("MESSAGE bob has joined");
+
+            for (int i = 0; i < 500; i++) {
+                alice.send("message " + i);
+            }
+            bob.expect("MESSAGE alice: message 0");
+            for (int i = 1; i < 500; i++) {
+                assertEquals("MESSAGE alice: message " + i, bob.readLine());
+            }
+        }
+    }
+
+    @Test
+    public void testLinkComesBackAfterPeerRestarts() throws Exception {
+        nodeB.shutdown();
+        awaitLinks(nodeA, 0);
+        nodeB = new NioChatServer(optionsB);
+        TestChatClient.start(nodeB);
+
+        try (TestChatClient alice = TestChatClient.join(portA, "alice");
+             TestChatClient bob = TestChatClient.join(portB, "bob")) {
+            awaitLinks(nodeA, 1);
+            awaitLinks(nodeB, 1);
+            alice.send("welcome back");
+            bob.expect("MESSAGE alice: welcome back");
+        }
+    }
+}
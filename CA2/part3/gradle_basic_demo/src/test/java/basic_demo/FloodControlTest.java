@@ -0,0 +1,150 @@
+package basic_demo;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class FloodControlTest {
+
+    private static final long MILLIS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    @Test
+    public void testTokenBucket() {
+        TokenBucket bucket = new TokenBucket(10, 5);
+        long now = System.nanoTime();
+        for (int i = 0; i < 5; i++) {
+            assertEquals(0, bucket.reserve(now, 1));
+        }
+        assertFalse(bucket.tryTake(now, 1));
+        assertEquals(100 * MILLIS, bucket.reserve(now, 1));
+        assertEquals("Debt adds up", 200 * MILLIS, bucket.reserve(now, 1));
+
+        // A second later it has paid the debt and is full again, which is no more than five.
+        now += 1000 * MILLIS;
+        assertTrue(bucket.tryTake(now, 5));
+        assertFalse(bucket.tryTake(now, 1));
+        bucket.fill(now);
+        assertTrue(bucket.tryTake(now, 5));
+    }
+
+    @Test
+    public void testRateLimitOnBytes() {
+        RateLimit limit = RateLimit.of(0, 0, 1);
+        long now = System.nanoTime();
+        assertEquals(0, limit.reserve(now, 1024));
+        assertEquals(500 * MILLIS, limit.reserve(now, 512), MILLIS);
+        assertNull(RateLimit.of(0, 10, 0));
+    }
+
+    @Test
+    public void testThrottledThenMutedThenDisconnected() {
+        FloodControl flood = new FloodControl(RateLimit.of(10, 2, 0), 3, 1000 * MILLIS);
+        long now = System.nanoTime();
+        for (int i = 0; i < 2; i++) {
+            assertEquals(FloodControl.Verdict.SEND, flood.admit(now, 10, null));
+            assertEquals(0, flood.pause());
+        }
+        for (int strike = 1; strike <= 3; strike++) {
+            assertEquals(FloodControl.Verdict.SEND, flood.admit(now, 10, null));
+            assertEquals(strike * 100 * MILLIS, flood.pause());
+        }
+        assertEquals(FloodControl.Verdict.MUTE, flood.admit(now, 10, null));
+        for (int strike = 1; strike <= 3; strike++) {
+            assertEquals(FloodControl.Verdict.DROP, flood.admit(now, 10, null));
+        }
+        assertEquals(FloodControl.Verdict.DISCONNECT, flood.admit(now, 10, null));
+    }
+
+    @Test
+    public void testMuteEnds() {
+        FloodControl flood = new FloodControl(RateLimit.of(10, 1, 0), 1, 1000 * MILLIS);
+        long now = System.nanoTime();
+        assertEquals(FloodControl.Verdict.SEND, flood.admit(now, 10, null));
+        assertEquals(FloodControl.Verdict.SEND, flood.admit(now, 10, null));
+        assertEquals(FloodControl.Verdict.MUTE, flood.admit(now, 10, null));
+
+        // Within the limit, a muted client is dropped quietly until the mute ends.
+        now += 500 * MILLIS;
+        assertEquals(FloodControl.Verdict.DROP, flood.admit(now, 10, null));
+        now += 600 * MILLIS;
+        assertEquals(FloodControl.Verdict.SEND, flood.admit(now, 10, null));
+        assertEquals(0, flood.pause());
+    }
+
+    @Test
+    public void testBusyRoomThrottlesWithoutStrikes() {
+        RateLimit room = RateLimit.of(10, 10, 0);
+        FloodControl first = new FloodControl(null, 1, 1000 * MILLIS);
+        FloodControl second = new FloodControl(null, 1, 1000 * MILLIS);
+        long now = System.nanoTime();
+        for (int i = 0; i < 50; i++) {
+            assertEquals(FloodControl.Verdict.SEND, (i % 2 == 0 ? first : second).admit(now, 10, room));
+        }
+        assertEquals(400 * 100 * MILLIS / 10, second.pause());
+    }
+
+    @Test
+    public void testThreadServerStopsAFlood() throws Exception {
+        ServerOptions options = floodOptions();
+        options.setMode(ServerMode.VIRTUAL);
+        ChatServer server = new ChatServer(options);
+        TestChatClient.start(server);
+        flood(options.getPort(), server.getMetrics());
+    }
+
+    @Test
+    public void testNioServerStopsAFlood() throws Exception {
+        ServerOptions options = floodOptions();
+        options.setMode(ServerMode.NIO);
+        options.setEventLoops(2);
+        NioChatServer server = new NioChatServer(options);
+        TestChatClient.start(server);
+        try {
+            flood(options.getPort(), server.getMetrics());
+        } finally {
+            server.shutdown();
+        }
+    }
+
+    private static ServerOptions floodOptions() throws IOException {
+        ServerOptions options = new ServerOptions(TestChatClient.freePort());
+        options.setRateLimit(20);
+        options.setRateBurst(5);
+        options.setMuteAfter(5);
+        return options;
+    }
+
+    /**
+     * A client pastes far more lines than it may say: the room hears a few of them,
+     * then the client is muted, then disconnected.
+     */
+    private void flood(int port, ServerMetrics metrics) throws Exception {
+        try (TestChatClient reader = TestChatClient.join(port, "reader");
+             TestChatClient spam = TestChatClient.join(port, "spam")) {
+            for (int i = 0; i < 200; i++) {
+                spam.send("line " + i);
+            }
+            spam.expect("MESSAGE [server] you are muted for " + FloodControl.DEFAULT_MUTE_SECONDS
+                    + " s for flooding");
+            try {
+                while (spam.readLine() != null) {
+                    // Until the server hangs up.
+                }
+            } catch (IOException e) {
+                // Or resets the connection, with the rest of the paste unread.
+            }
+
+            int heard = 0;
+            String line;
+            while (!(line = reader.readLine()).equals("MESSAGE spam has left")) {
+                if (line.startsWith("MESSAGE spam: line ")) {
+                    heard++;
+                }
+            }
+            assertTrue("Heard " + heard, heard >= 5 && heard < 20);
+            assertTrue(metrics.summary(), metrics.summary().contains(" muted=1 flood disconnects=1"));
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package basic_demo;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class HeartbeatsTest {
+
+    private static final long MILLIS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    @Test
+    public void testTimingWheelRunsTimeoutsWhenDue() throws Exception {
+        // 16 slots of 10 ms: the last timeout waits in its slot for several turns.
+        TimingWheel wheel = new TimingWheel("Test wheel", 10 * MILLIS, 10);
+        wheel.start();
+        try {
+            List<String> ran = new CopyOnWriteArrayList<>();
+            CountDownLatch done = new CountDownLatch(3);
+            long start = System.nanoTime();
+            long[] delays = {500 * MILLIS, 30 * MILLIS, 80 * MILLIS};
+            String[] names = {"late", "early", "middle"};
+            for (int i = 0; i < delays.length; i++) {
+                long delay = delays[i];
+                String name = names[i];
+                wheel.schedule(() -> {
+                    ran.add(System.nanoTime() - start >= delay ? name : name + " ran early");
+                    done.countDown();
+                }, delay);
+            }
+            wheel.schedule(() -> ran.add("cancelled"), 50 * MILLIS).cancel();
+
+            assertTrue(done.await(5, TimeUnit.SECONDS));
+            assertEquals(List.of("early", "middle", "late"), ran);
+            assertEquals(0, wheel.pending());
+        } finally {
+            wheel.close();
+        }
+    }
+
+    @Test
+    public void testThreadServerPingsAndReaps() throws Exception {
+        ServerOptions options = heartbeatOptions();
+        options.setMode(ServerMode.VIRTUAL);
+        ChatServer server = new ChatServer(options);
+        TestChatClient.start(server);
+        pingAndReap(options.getPort(), server.getMetrics());
+    }
+
+    @Test
+    public void testNioServerPingsAndReaps() throws Exception {
+        ServerOptions options = heartbeatOptions();
+        options.setMode(ServerMode.NIO);
+        options.setEventLoops(2);
+        NioChatServer server = new NioChatServer(options);
+        TestChatClient.start(server);
+        try {
+            pingAndReap(options.getPort(), server.getMetrics());
+        } finally {
+            server.shutdown();
+        }
+    }
+
+    private static ServerOptions heartbeatOptions() throws IOException {
+        ServerOptions options = new ServerOptions(TestChatClient.freePort());
+        options.setHeartbeatSeconds(1);
+        options.setIdleTimeoutSeconds(2);
+        return options;
+    }
+
+    /**
+     * Four clients keep quiet: one that never logs in and a framed one that never
+     * answers are disconnected, while a framed one that answers its PINGs and a text
+     * one, which can't, are only pinged.
+     */
+    private void pingAndReap(int port, ServerMetrics metrics) throws Exception {
+        try (TestChatClient lurker = new TestChatClient(port);
+             TestChatClient text = TestChatClient.join(port, "text");
+             TestFramedClient answering = new TestFramedClient(port, "answering");
+             TestFramedClient silent = new TestFramedClient(port, "silent")) {
+            text.expect("PING");
+            answering.expect(FrameType.PING, "");
+            answering.send(FrameType.PONG, "");
+
+            assertTrue(hungUp(silent));
+            lurker.expect("SUBMITNAME");
+            assertNull(lurker.readLine());
+
+            // Answered a second time, past the idle timeout of the first PING.
+            answering.expect(FrameType.PING, "");
+            answering.send(FrameType.PONG, "");
+            answering.send(FrameType.SEND, "still here");
+            text.expect("MESSAGE answering: still here");
+            assertTrue(metrics.summary(), metrics.summary().contains(" idle disconnects=2"));
+        }
+    }
+
+    // Reads whatever comes, a PING and then nothing, until the server hangs up.
+    private static boolean hungUp(TestFramedClient client) {
+        try {
+            while (true) {
+                client.read();
+            }
+        } catch (IOException e) {
+            return !(e instanceof SocketTimeoutException);
+        }
+    }
+}
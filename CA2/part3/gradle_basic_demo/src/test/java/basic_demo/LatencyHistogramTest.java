@@ -0,0 +1,60 @@
+package basic_demo;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void testPercentilesStayWithinTheBucketError() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (long micros = 1; micros <= 1000; micros++) {
+            histogram.record(micros * 1000);
+        }
+        LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+        assertEquals(1000, snapshot.count());
+        assertEquals(500500000L, snapshot.sum());
+        assertWithin(500000, snapshot.valueAt(0.5));
+        assertWithin(990000, snapshot.valueAt(0.99));
+        assertWithin(999000, snapshot.valueAt(0.999));
+        assertWithin(1000000, snapshot.max());
+    }
+
+    // A percentile is the top of its bucket: never below the value, and at most 1/32 above.
+    private static void assertWithin(long expected, long actual) {
+        assertTrue(actual + " < " + expected, actual >= expected);
+        assertTrue(actual + " too far above " + expected, actual <= expected + expected / 32);
+    }
+
+    @Test
+    public void testSmallValuesAreExact() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(0);
+        histogram.record(7);
+        histogram.record(63);
+        LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+        assertEquals(0, snapshot.valueAt(0.1));
+        assertEquals(7, snapshot.valueAt(0.5));
+        assertEquals(63, snapshot.valueAt(1.0));
+    }
+
+    @Test
+    public void testEmptyAndOutOfRange() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.snapshot().valueAt(0.99));
+        histogram.record(Long.MAX_VALUE);
+        histogram.record(-5);
+        LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+        assertEquals(LatencyHistogram.MAX_VALUE, snapshot.max());
+        assertEquals(0, snapshot.valueAt(0.5));
+    }
+
+    @Test
+    public void testEveryBucketMapsBackToItsValues() {
+        for (long value = 0; value < 1 << 20; value += 7) {
+            int index = LatencyHistogram.indexOf(value);
+            assertTrue(value <= LatencyHistogram.highestValueAt(index));
+            assertTrue(index == 0 || value > LatencyHistogram.highestValueAt(index - 1));
+        }
+    }
+}
@@ -0,0 +1,56 @@
+package basic_demo;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class LineDecoderTest {
+
+    private static InputStream stream(String text) {
+        return new ByteArrayInputStream(text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String next(LineDecoder decoder, InputStream in) throws IOException {
+        ByteBuffer line = decoder.readLine(in);
+        return line == null ? null : LineDecoder.decode(line);
+    }
+
+    @Test
+    public void testSplitsOnNewlineAndCarriageReturnNewline() throws IOException {
+        LineDecoder decoder = new LineDecoder(new BufferPool(16, 1));
+        InputStream in = stream("alice\r\n\nsome longer line than the buffer\nçà\n");
+        assertEquals("alice", next(decoder, in));
+        assertEquals("", next(decoder, in));
+        assertEquals("some longer line than the buffer", next(decoder, in));
+        assertEquals("çà", next(decoder, in));
+        assertNull(next(decoder, in));
+    }
+
+    @Test
+    public void testRejectsLinesOverTheMaximum() throws IOException {
+        LineDecoder decoder = new LineDecoder(new BufferPool(8, 1), 32);
+        InputStream in = stream("short\n" + "x".repeat(40) + "\n");
+        assertEquals("short", next(decoder, in));
+        try {
+            decoder.readLine(in);
+            fail("A line longer than the maximum was accepted");
+        } catch (IOException expected) {
+        }
+    }
+
+    @Test
+    public void testBuffersGoBackToThePool() throws IOException {
+        BufferPool pool = new BufferPool(16, 4);
+        LineDecoder decoder = new LineDecoder(pool);
+        assertEquals("hi", next(decoder, stream("hi\n")));
+        decoder.release();
+        assertEquals(1, pool.idle());
+        new LineDecoder(pool);
+        assertEquals(0, pool.idle());
+    }
+}
@@ -0,0 +1,215 @@
+package basic_demo;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+
+public class MessageLogTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static EncodedMessage message(String text) {
+        return EncodedMessage.of(FrameType.MESSAGE, text);
+    }
+
+    private static String read(Path segment) throws Exception {
+        return new String(Files.readAllBytes(segment), StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void testNumbersEveryLine() throws Exception {
+        Path directory = folder.getRoot().toPath().resolve("lobby");
+        try (MessageLog log = MessageLog.open(directory, 1024, 4, FsyncPolicy.NONE)) {
+            assertEquals(0, log.append(message("one")));
+            assertEquals(1, log.append(EncodedMessage.of(FrameType.MESSAGE, new byte[0], "two\nthree", 1)));
+            assertEquals(3, log.append(message("four")));
+            assertEquals(4, log.nextSequence());
+        }
+        assertEquals("MESSAGE one\nMESSAGE two\nMESSAGE three\nMESSAGE four\n",
+                read(directory.resolve("00000000000000000000.log")));
+    }
+
+    @Test
+    public void testRollsAndDeletesOldSegments() throws Exception {
+        Path directory = folder.getRoot().toPath().resolve("lobby");
+        // "MESSAGE line N\n" is 15 bytes, so two fit in a segment.
+        try (MessageLog log = MessageLog.open(directory, 32, 2, FsyncPolicy.MESSAGE)) {
+            for (int i = 0; i < 7; i++) {
+                log.append(message("line " + i));
+            }
+            assertEquals(2, log.segments());
+            assertEquals(4, log.firstSequence());
+        }
+        File[] files = directory.toFile().listFiles();
+        assertEquals(2, files.length);
+        assertEquals("MESSAGE line 4\nMESSAGE line 5\n", read(directory.resolve("00000000000000000004.log")));
+        assertEquals("MESSAGE line 6\n", read(directory.resolve("00000000000000000006.log")));
+    }
+
+    @Test
+    public void testRecoversAfterACrash() throws Exception {
+        Path directory = folder.getRoot().toPath().resolve("lobby");
+        MessageLog crashed = MessageLog.open(directory, 1024, 4, FsyncPolicy.NONE);
+        crashed.append(message("kept"));
+        crashed.append(message("also kept"));
+        // Never closed, so the segment is still at full size; add half a line after the last one.
+        Path segment = directory.resolve("00000000000000000000.log");
+        try (RandomAccessFile file = new RandomAccessFile(segment.toFile(), "rw")) {
+            file.seek("MESSAGE kept\nMESSAGE also kept\n".length());
+            file.write("MESSAGE cut sh".getBytes(StandardCharsets.US_ASCII));
+        }
+
+        try (MessageLog log = MessageLog.open(directory, 1024, 4, FsyncPolicy.NONE)) {
+            assertEquals(2, log.nextSequence());
+            assertEquals(2, log.append(message("ok")));
+        }
+        assertEquals("MESSAGE kept\nMESSAGE also kept\nMESSAGE ok\n", read(segment));
+    }
+
+    private static String transfer(CatchUp catchUp, boolean framed) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        WritableByteChannel channel = Channels.newChannel(out);
+        try {
+            while (!catchUp.isDone()) {
+                assertTrue(catchUp.writeTo(channel, framed));
+            }
+        } finally {
+            catchUp.close();
+        }
+        return out.toString(StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void testSinceReadsAcrossSegments() throws Exception {
+        Path directory = folder.getRoot().toPath().resolve("lobby");
+        try (MessageLog log = MessageLog.open(directory, 32, 8, FsyncPolicy.NONE)) {
+            for (int i = 0; i < 5; i++) {
+                log.append(message("line " + i));
+            }
+            CatchUp catchUp = log.since(1);
+            assertEquals(1, catchUp.from());
+            assertEquals(5, catchUp.to());
+            assertEquals("MESSAGE line 1\nMESSAGE line 2\nMESSAGE line 3\nMESSAGE line 4\n",
+                    transfer(catchUp, false));
+            assertNull(log.since(5));
+        }
+    }
+
+    @Test
+    public void testSinceFramesLinesForFramedClients() throws Exception {
+        Path directory = folder.getRoot().toPath().resolve("lobby");
+        try (MessageLog log = MessageLog.open(directory, 1024, 8, FsyncPolicy.NONE)) {
+            log.append(message("hi"));
+            String frames = transfer(log.since(0), true);
+            assertEquals("\u0004\u0000\u0000\u0000\u0002hi", frames);
+        }
+    }
+
+    @Test
+    public void testRemembersDepartures() throws Exception {
+        try (MessageLog log = MessageLog.open(folder.getRoot().toPath(), 1024, 8, FsyncPolicy.NONE)) {
+            log.append(message("one"));
+            assertEquals(-1, log.departure("alice"));
+            log.departed("alice");
+            log.append(message("two"));
+            assertEquals(1, log.departure("alice"));
+        }
+    }
+
+    @Test
+    public void testReleasedLogCarriesOn() throws Exception {
+        Path directory = folder.getRoot().toPath().resolve("dev");
+        try (MessageLog log = MessageLog.open(directory, 1024, 8, FsyncPolicy.MESSAGE)) {
+            log.append(message("one"));
+            log.commit();
+            log.departed("alice");
+            log.release();
+            assertFalse(log.isOpen());
+            assertEquals("MESSAGE one\n", read(directory.resolve("00000000000000000000.log")));
+
+            assertEquals(1, log.append(message("two")));
+            assertTrue(log.isOpen());
+            assertEquals(1, log.departure("alice"));
+            assertEquals("MESSAGE one\nMESSAGE two\n", transfer(log.since(0), false));
+        }
+    }
+
+    @Test
+    public void testEmptyRoomReleasesItsLogAndRoomsAreCapped() throws Exception {
+        ServerOptions options = new ServerOptions(0);
+        options.setLogDirectory(folder.getRoot().getPath());
+        Transcript transcript = new Transcript(options);
+        try {
+            RoomRegistry rooms = new RoomRegistry(null, 0, 0, transcript, null, () -> null, 2);
+            Member alice = new Member("alice");
+            Member bob = new Member("bob");
+            rooms.enter(alice);
+            rooms.enter(bob);
+
+            assertTrue(rooms.command(alice, "/join dev"));
+            assertTrue(transcript.log("dev").isOpen());
+            rooms.command(bob, "/join ops");
+            assertEquals("MESSAGE [server] there are too many rooms to open ops, join one of them instead",
+                    bob.last);
+            assertSame(rooms.lobby(), bob.getRoom());
+
+            rooms.command(alice, "/leave");
+            assertNull(rooms.get("dev"));
+            assertFalse(transcript.log("dev").isOpen());
+            rooms.command(bob, "/join ops");
+            assertEquals("ops", bob.getRoom().getName());
+        } finally {
+            transcript.close();
+        }
+    }
+
+    // A member that only remembers the last thing it was sent.
+    private static class Member implements RoomMember {
+        private final String name;
+        private Room room;
+        String last;
+
+        Member(String name) {
+            this.name = name;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public Room getRoom() {
+            return room;
+        }
+
+        public void setRoom(Room room) {
+            this.room = room;
+        }
+
+        public void send(EncodedMessage message) {
+            last = message.toString();
+        }
+
+        public void catchUp(EncodedMessage header, CatchUp catchUp) {
+            catchUp.close();
+        }
+    }
+
+    @Test
+    public void testRoomNamesMakeSafeDirectories() {
+        assertEquals("dev_ops-2", Transcript.directoryName("dev_ops-2"));
+        assertEquals("%2E%2E", Transcript.directoryName(".."));
+        assertEquals("a%2Fb", Transcript.directoryName("a/b"));
+        assertEquals("caf%C3%A9", Transcript.directoryName("café"));
+    }
+}
@@ -0,0 +1,78 @@
+package basic_demo;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.swing.JTextArea;
+import javax.swing.SwingUtilities;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class MessageViewTest {
+
+    @BeforeClass
+    public static void headless() {
+        System.setProperty("java.awt.headless", "true");
+    }
+
+    @Test
+    public void testFlushAppendsEverythingQueuedInOneRefresh() throws Exception {
+        JTextArea area = new JTextArea();
+        MessageView view = new MessageView(area, 30, 100);
+        view.append("alice: hi");
+        view.append("bob: hello");
+        int[] taken = new int[2];
+        SwingUtilities.invokeAndWait(() -> {
+            taken[0] = view.flush();
+            taken[1] = view.flush();
+        });
+        assertEquals(2, taken[0]);
+        assertEquals(0, taken[1]);
+        assertEquals(1, view.refreshes());
+        assertEquals("alice: hi\nbob: hello\n", area.getText());
+    }
+
+    @Test
+    public void testKeepsOnlyTheScrollback() throws Exception {
+        JTextArea area = new JTextArea();
+        MessageView view = new MessageView(area, 30, 5);
+        for (int i = 0; i < 3; i++) {
+            view.append("line " + i);
+        }
+        SwingUtilities.invokeAndWait(view::flush);
+        for (int i = 3; i < 12; i++) {
+            view.append("line " + i);
+        }
+        SwingUtilities.invokeAndWait(view::flush);
+        assertEquals("line 7\nline 8\nline 9\nline 10\nline 11\n", area.getText());
+        // Lines 0 to 2 were shown and trimmed; 3 to 6 never made it in.
+        assertEquals(4, view.skipped());
+    }
+
+    @Test
+    public void testReportsRatesOnTheTimer() throws Exception {
+        JTextArea area = new JTextArea();
+        MessageView view = new MessageView(area, 50, 1000);
+        CountDownLatch reported = new CountDownLatch(1);
+        AtomicReference<String> stats = new AtomicReference<>();
+        view.setStatsListener(line -> {
+            stats.set(line);
+            reported.countDown();
+        });
+        SwingUtilities.invokeAndWait(view::start);
+        try {
+            for (int i = 0; i < 200; i++) {
+                view.append("message " + i);
+            }
+            assertTrue(reported.await(5, TimeUnit.SECONDS));
+        } finally {
+            SwingUtilities.invokeAndWait(view::stop);
+        }
+        assertTrue(stats.get(), stats.get().matches("\\d+ messages/s, \\d+ refreshes/s"));
+        assertTrue(view.refreshes() >= 1);
+        assertTrue(area.getText().endsWith("message 199\n"));
+    }
+}
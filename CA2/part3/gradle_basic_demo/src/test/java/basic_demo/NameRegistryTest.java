@@ -0,0 +1,62 @@
+package basic_demo;
+
+import java.util.Arrays;
+import java.util.Map;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class NameRegistryTest {
+
+    @Test
+    public void testNameCanOnlyBeReservedOnce() {
+        NameRegistry<String> names = new NameRegistry<>();
+        assertTrue(names.reserve("alice", "first"));
+        assertFalse(names.reserve("alice", "second"));
+        assertEquals("first", names.lookup("alice"));
+        assertEquals(1, names.reserved());
+        assertEquals(1, names.rejected());
+    }
+
+    @Test
+    public void testOnlyTheHolderReleasesAName() {
+        NameRegistry<String> names = new NameRegistry<>();
+        names.reserve("alice", "first");
+        assertFalse(names.release("alice", "second"));
+        assertTrue(names.contains("alice"));
+        assertTrue(names.release("alice", "first"));
+        assertTrue(names.reserve("alice", "second"));
+        assertEquals(1, names.released());
+    }
+
+    @Test
+    public void testLookupAllSkipsUnknownNames() {
+        NameRegistry<String> names = new NameRegistry<>();
+        names.reserve("alice", "a");
+        names.reserve("bob", "b");
+        Map<String, String> found = names.lookupAll(Arrays.asList("alice", "carol", "bob"));
+        assertEquals(2, found.size());
+        assertEquals("a", found.get("alice"));
+        assertEquals("b", found.get("bob"));
+    }
+
+    @Test
+    public void testConcurrentLoginsGetDistinctNames() throws InterruptedException {
+        NameRegistry<Thread> names = new NameRegistry<>();
+        Thread[] threads = new Thread[8];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread(() -> {
+                for (int n = 0; n < 1000; n++) {
+                    names.reserve("user" + n, Thread.currentThread());
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(1000, names.size());
+        assertEquals(1000, names.reserved());
+        assertEquals(7000, names.rejected());
+    }
+}
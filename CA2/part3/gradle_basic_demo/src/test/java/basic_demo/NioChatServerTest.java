@@ -0,0 +1,211 @@
+package basic_demo;
+
+import java.io.InputStream;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+
+public class NioChatServerTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private NioChatServer server;
+    private int port;
+
+    @Before
+    public void startServer() throws Exception {
+        port = TestChatClient.freePort();
+        server = new NioChatServer(port, 2);
+        TestChatClient.start(server);
+    }
+
+    @After
+    public void stopServer() {
+        server.shutdown();
+    }
+
+    @Test
+    public void testBroadcastReachesEveryClient() throws Exception {
+        try (TestChatClient alice = TestChatClient.join(port, "alice");
+             TestChatClient bob = TestChatClient.join(port, "bob")) {
+            alice.expect("MESSAGE bob has joined");
+
+            bob.send("hello");
+            alice.expect("MESSAGE bob: hello");
+            bob.expect("MESSAGE bob: hello");
+        }
+    }
+
+    @Test
+    public void testDuplicateNameIsRequestedAgain() throws Exception {
+        try (TestChatClient alice = TestChatClient.join(port, "alice");
+             TestChatClient other = new TestChatClient(port)) {
+            other.expect("SUBMITNAME");
+            other.send("alice");
+            assertEquals("SUBMITNAME", other.readLine());
+            other.send("");
+            assertEquals("SUBMITNAME", other.readLine());
+            other.send("c".repeat(NameRegistry.MAX_NAME_LENGTH + 1));
+            assertEquals("SUBMITNAME", other.readLine());
+            other.send("carol");
+            assertEquals("NAMEACCEPTED carol", other.readLine());
+            alice.expect("MESSAGE carol has joined");
+        }
+    }
+
+    @Test
+    public void testQuitAnnouncesDeparture() throws Exception {
+        try (TestChatClient alice = TestChatClient.join(port, "alice");
+             TestChatClient bob = TestChatClient.join(port, "bob")) {
+            // The lobby's history, replayed on joining, ends with bob's own arrival.
+            bob.expect("MESSAGE bob has joined");
+            bob.send("/quit");
+            assertNull(bob.readLine());
+            alice.expect("MESSAGE bob has left");
+        }
+    }
+
+    @Test
+    public void testFramedAndTextClientsShareTheRoom() throws Exception {
+        try (TestFramedClient alice = new TestFramedClient(port, "alice");
+             TestChatClient bob = TestChatClient.join(port, "bob")) {
+            alice.expect(FrameType.MESSAGE, "bob has joined");
+
+            alice.send(FrameType.SEND, "two\nlines");
+            bob.expect("MESSAGE alice: two");
+            assertEquals("MESSAGE alice: lines", bob.readLine());
+            alice.expect(FrameType.MESSAGE, "alice: two\nlines");
+
+            bob.send("hi");
+            alice.expect(FrameType.MESSAGE, "bob: hi");
+
+            alice.send(FrameType.PING, "42");
+            alice.expect(FrameType.PONG, "42");
+            alice.send(FrameType.QUIT, "");
+            bob.expect("MESSAGE alice has left");
+        }
+    }
+
+    @Test
+    public void testMessagesStayInTheirRoom() throws Exception {
+        try (TestChatClient alice = TestChatClient.join(port, "alice");
+             TestChatClient bob = TestChatClient.join(port, "bob")) {
+            alice.expect("MESSAGE bob has joined");
+
+            bob.send("/join #dev");
+            alice.expect("MESSAGE bob has left");
+            bob.expect("MESSAGE [server] you are in dev (1)");
+
+            // Once it comes back to alice the message has been queued for the whole lobby.
+            alice.send("lobby only");
+            alice.expect("MESSAGE alice: lobby only");
+            bob.send("/rooms");
+            String rooms = bob.readLine();
+            assertTrue(rooms, rooms.startsWith("MESSAGE [server] rooms: ") && rooms.contains("dev (1)"));
+
+            alice.send("/join dev");
+            bob.expect("MESSAGE alice has joined");
+            bob.send("in dev");
+            alice.expect("MESSAGE bob: in dev");
+
+            bob.send("/leave");
+            alice.expect("MESSAGE bob has left");
+        }
+    }
+
+    @Test
+    public void testHistoryIsReplayedOnJoin() throws Exception {
+        try (TestChatClient alice = TestChatClient.join(port, "alice")) {
+            alice.send("/join dev");
+            alice.expect("MESSAGE [server] you are in dev (1)");
+            alice.send("first");
+            alice.send("second");
+            alice.expect("MESSAGE alice: second");
+
+            try (TestChatClient bob = TestChatClient.join(port, "bob")) {
+                bob.expect("MESSAGE bob has joined");
+                bob.send("/join dev");
+                assertEquals("MESSAGE alice has joined", bob.readLine());
+                assertEquals("MESSAGE alice: first", bob.readLine());
+                assertEquals("MESSAGE alice: second", bob.readLine());
+                assertEquals("MESSAGE bob has joined", bob.readLine());
+                assertEquals("MESSAGE [server] you are in dev (2)", bob.readLine());
+            }
+        }
+    }
+
+    @Test
+    public void testSinceCatchesUpFromTheTranscript() throws Exception {
+        int logged = TestChatClient.freePort();
+        ServerOptions options = new ServerOptions(logged);
+        options.setMode(ServerMode.NIO);
+        options.setLogDirectory(folder.getRoot().getPath());
+        NioChatServer withLog = new NioChatServer(options);
+        TestChatClient.start(withLog);
+        try (TestChatClient alice = TestChatClient.join(logged, "alice")) {
+            try (TestChatClient bob = TestChatClient.join(logged, "bob")) {
+                alice.expect("MESSAGE bob has joined");
+                bob.send("/quit");
+                alice.expect("MESSAGE bob has left");
+            }
+            alice.send("while you were away");
+            alice.expect("MESSAGE alice: while you were away");
+
+            try (TestChatClient bob = TestChatClient.join(logged, "bob")) {
+                bob.expect("MESSAGE bob has joined");
+                bob.send("/since");
+                bob.expect("MESSAGE [server] lines 3 to 4 of lobby follow");
+                assertEquals("MESSAGE alice: while you were away", bob.readLine());
+                assertEquals("MESSAGE bob has joined", bob.readLine());
+
+                bob.send("/since 0");
+                bob.expect("MESSAGE [server] lines 0 to 4 of lobby follow");
+                assertEquals("MESSAGE alice has joined", bob.readLine());
+            }
+        } finally {
+            withLog.shutdown();
+        }
+    }
+
+    @Test
+    public void testMetricsAreServedOverHttp() throws Exception {
+        int measured = TestChatClient.freePort();
+        int metricsPort = TestChatClient.freePort();
+        ServerOptions options = new ServerOptions(measured);
+        options.setMode(ServerMode.NIO);
+        options.setMetricsPort(metricsPort);
+        NioChatServer withMetrics = new NioChatServer(options);
+        TestChatClient.start(withMetrics);
+        try (TestChatClient alice = TestChatClient.join(measured, "alice");
+             TestChatClient bob = TestChatClient.join(measured, "bob")) {
+            alice.expect("MESSAGE bob has joined");
+            bob.send("hello");
+            alice.expect("MESSAGE bob: hello");
+            bob.expect("MESSAGE bob: hello");
+
+            bob.send("/metrics");
+            String reply = bob.readLine();
+            assertTrue(reply, reply.startsWith("MESSAGE [server] connections=2 accepted=2 "));
+            assertTrue(reply, reply.contains(" in=1 "));
+
+            String scraped;
+            try (InputStream in = URI.create("http://localhost:" + metricsPort + MetricsEndpoint.PATH)
+                    .toURL().openStream()) {
+                scraped = new String(in.readAllBytes(), StandardCharsets.UTF_8);
+            }
+            assertTrue(scraped, scraped.contains("# TYPE chat_connections_active gauge\nchat_connections_active 2\n"));
+            assertTrue(scraped, scraped.contains("\nchat_messages_received_total 1\n"));
+            assertTrue(scraped, scraped.contains("\nchat_broadcast_latency_seconds{quantile=\"0.99\"} "));
+            assertFalse(scraped, scraped.contains("\nchat_broadcast_latency_seconds_count 0\n"));
+        } finally {
+            withMetrics.shutdown();
+        }
+    }
+}
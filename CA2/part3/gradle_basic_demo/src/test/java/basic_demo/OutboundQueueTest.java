@@ -0,0 +1,48 @@
+package basic_demo;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class OutboundQueueTest {
+
+    @Test
+    public void testDropOldestKeepsTheNewestMessages() {
+        OutboundQueue<String> queue = new OutboundQueue<>(2, OverflowPolicy.DROP_OLDEST);
+        assertTrue(queue.offer("a"));
+        assertTrue(queue.offer("b"));
+        assertTrue(queue.offer("c"));
+
+        assertEquals(2, queue.depth());
+        assertEquals(1, queue.dropped());
+        assertEquals("b", queue.poll());
+        assertEquals("c", queue.poll());
+    }
+
+    @Test
+    public void testDropNewestKeepsTheQueuedMessages() {
+        OutboundQueue<String> queue = new OutboundQueue<>(2, OverflowPolicy.DROP_NEWEST);
+        queue.offer("a");
+        queue.offer("b");
+        assertTrue(queue.offer("c"));
+
+        assertEquals(1, queue.dropped());
+        assertEquals(2, queue.enqueued());
+        assertEquals("a", queue.poll());
+        assertEquals("b", queue.poll());
+        assertNull(queue.poll());
+    }
+
+    @Test
+    public void testDisconnectReportsOverflow() {
+        OutboundQueue<String> queue = new OutboundQueue<>(1, OverflowPolicy.DISCONNECT);
+        assertTrue(queue.offer("a"));
+        assertFalse(queue.offer("b"));
+        assertEquals(1, queue.dropped());
+    }
+
+    @Test
+    public void testPolicyNamesMatchTheCommandLine() {
+        assertEquals(OverflowPolicy.DROP_OLDEST, OverflowPolicy.fromString("drop-oldest"));
+        assertEquals("drop-newest", OverflowPolicy.DROP_NEWEST.toString());
+    }
+}
@@ -0,0 +1,141 @@
+package basic_demo;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class RoomHistoryTest {
+
+    // Records what is replayed to it.
+    private static class Recorder implements RoomMember {
+        final List<EncodedMessage> received = new ArrayList<>();
+
+        public String getName() {
+            return "recorder";
+        }
+
+        public Room getRoom() {
+            return null;
+        }
+
+        public void setRoom(Room room) {
+        }
+
+        public void send(EncodedMessage message) {
+            received.add(message);
+        }
+
+        public void catchUp(EncodedMessage header, CatchUp catchUp) {
+            catchUp.close();
+        }
+    }
+
+    // Leaves the chat, as a connection whose queue overflows does, once it has had its fill.
+    private static class Overflowing implements RoomMember {
+        final String name;
+        final RoomRegistry rooms;
+        final int capacity;
+        int received;
+        boolean closed;
+        Room room;
+
+        Overflowing(String name, RoomRegistry rooms, int capacity) {
+            this.name = name;
+            this.rooms = rooms;
+            this.capacity = capacity;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public Room getRoom() {
+            return room;
+        }
+
+        public void setRoom(Room room) {
+            this.room = room;
+        }
+
+        public void send(EncodedMessage message) {
+            if (!closed && ++received > capacity) {
+                closed = true;
+                rooms.exit(this);
+            }
+        }
+
+        public void catchUp(EncodedMessage header, CatchUp catchUp) {
+            catchUp.close();
+        }
+    }
+
+    private static EncodedMessage message(String text) {
+        return EncodedMessage.of(FrameType.MESSAGE, text);
+    }
+
+    @Test
+    public void testKeepsTheLastLines() {
+        RoomHistory history = new RoomHistory(2, 1024);
+        EncodedMessage b = message("b");
+        EncodedMessage c = message("c");
+        history.add(message("a"));
+        history.add(b);
+        history.add(c);
+
+        Recorder recorder = new Recorder();
+        history.replayTo(recorder);
+        assertEquals(2, history.size());
+        // The very same messages, not copies of them.
+        assertSame(b, recorder.received.get(0));
+        assertSame(c, recorder.received.get(1));
+    }
+
+    @Test
+    public void testStaysWithinTheByteBudget() {
+        // "MESSAGE 12345\n" is 14 bytes, so only two fit in 30.
+        RoomHistory history = new RoomHistory(10, 30);
+        for (int i = 0; i < 5; i++) {
+            history.add(message("1234" + i));
+        }
+        assertEquals(2, history.size());
+        assertEquals(28, history.bytes());
+
+        Recorder recorder = new Recorder();
+        history.replayTo(recorder);
+        assertEquals("MESSAGE 12343", recorder.received.get(0).toString());
+        assertEquals("MESSAGE 12344", recorder.received.get(1).toString());
+    }
+
+    @Test
+    public void testMemberTheReplayDisconnectsLeavesTheRoom() {
+        RoomRegistry rooms = new RoomRegistry(null, 10, 1024, null, null, () -> null,
+                RoomRegistry.DEFAULT_MAX_ROOMS);
+        Overflowing first = new Overflowing("first", rooms, 100);
+        rooms.enter(first);
+        rooms.command(first, "/join a");
+        for (int i = 0; i < 5; i++) {
+            first.getRoom().announce("line " + i);
+        }
+
+        // Room for the lobby's history, but not for that of the room as well.
+        Overflowing second = new Overflowing("second", rooms, 5);
+        rooms.enter(second);
+        rooms.command(second, "/join a");
+        assertTrue(second.closed);
+        assertNull(second.getRoom());
+        assertEquals(1, rooms.get("a").size());
+
+        rooms.command(first, "/leave");
+        assertNull(rooms.get("a"));
+    }
+
+    @Test
+    public void testIgnoresAMessageLargerThanTheBudget() {
+        RoomHistory history = new RoomHistory(10, 10);
+        history.add(message("far too long for it"));
+        assertEquals(0, history.size());
+        assertEquals(0, history.bytes());
+    }
+}
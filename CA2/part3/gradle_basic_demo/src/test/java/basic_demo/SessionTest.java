@@ -0,0 +1,188 @@
+package basic_demo;
+
+import java.io.IOException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class SessionTest {
+
+    private static EncodedMessage message(String text) {
+        return EncodedMessage.of(FrameType.MESSAGE, text);
+    }
+
+    @Test
+    public void testNumbersAndKeepsTheLastMessages() {
+        Session session = new Session(3);
+        assertEquals(1, session.nextSequence());
+        for (int i = 1; i <= 5; i++) {
+            session.sent(message("m" + i));
+        }
+        session.sent(EncodedMessage.of(FrameType.PONG, "not numbered"));
+        assertEquals(6, session.nextSequence());
+
+        assertEquals(4, session.replayFrom(3));
+        assertEquals("MESSAGE m4", session.get(4).toString());
+        // Only the last three are kept.
+        assertEquals(3, session.replayFrom(0));
+        assertEquals(6, session.replayFrom(5));
+        assertEquals(-1, session.replayFrom(6));
+    }
+
+    @Test
+    public void testSkippedFramesBreakTheReplay() {
+        Session session = new Session(10);
+        session.sent(message("before"));
+        session.skip(0);
+        assertEquals(1, session.replayFrom(0));
+        session.skip(4);
+        session.sent(message("after"));
+        assertEquals(7, session.nextSequence());
+        assertEquals(6, session.replayFrom(0));
+        assertEquals("MESSAGE after", session.get(6).toString());
+    }
+
+    @Test
+    public void testResumeReplaysExactlyWhatWasMissed() throws Exception {
+        int port = start(30_000, Session.DEFAULT_REPLAY_LINES);
+        Recorder recorder = new Recorder();
+        try (ChatConnection alice = new ChatConnection("localhost", port, true, NameChooser.fixed("alice"), recorder);
+             TestChatClient bob = TestChatClient.join(port, "bob")) {
+            alice.connect().get(5, TimeUnit.SECONDS);
+            assertTrue(alice.hasSession());
+            bob.send("one");
+            recorder.expect("bob: one");
+
+            alice.drop();
+            assertTrue(recorder.disconnects.tryAcquire(5, TimeUnit.SECONDS));
+            bob.send("two");
+            bob.send("three");
+            assertTrue(alice.send("back"));
+            bob.expect("MESSAGE bob: three");
+
+            assertEquals("alice", alice.reconnect().get(5, TimeUnit.SECONDS));
+            assertEquals("bob: two", recorder.next());
+            assertEquals("bob: three", recorder.next());
+            assertEquals(Long.valueOf(0), recorder.resumes.poll(5, TimeUnit.SECONDS));
+
+            // The room never heard alice leave or come back.
+            assertEquals("MESSAGE alice: back", bob.readLine());
+            bob.send("four");
+            assertEquals("MESSAGE bob: four", bob.readLine());
+            assertEquals("alice: back", recorder.next());
+            assertEquals("bob: four", recorder.next());
+        }
+    }
+
+    @Test
+    public void testMessagesNoLongerKeptAreReportedLost() throws Exception {
+        int port = start(30_000, 2);
+        Recorder recorder = new Recorder();
+        try (ChatConnection alice = new ChatConnection("localhost", port, true, NameChooser.fixed("alice"), recorder);
+             TestChatClient bob = TestChatClient.join(port, "bob")) {
+            alice.connect().get(5, TimeUnit.SECONDS);
+            bob.send("ready");
+            recorder.expect("bob: ready");
+
+            alice.drop();
+            assertTrue(recorder.disconnects.tryAcquire(5, TimeUnit.SECONDS));
+            for (int i = 1; i <= 20; i++) {
+                bob.send("missed " + i);
+            }
+            bob.expect("MESSAGE bob: missed 20");
+            Thread.sleep(200);
+
+            // How many went into the dropped socket before a write failed, and so out of
+            // the two kept, depends on the network stack; the rest are still queued. Either
+            // way every message arrives once, in order, or is reported lost.
+            alice.reconnect().get(5, TimeUnit.SECONDS);
+            Long lost = recorder.resumes.poll(5, TimeUnit.SECONDS);
+            assertNotNull(lost);
+            for (long i = lost + 1; i <= 20; i++) {
+                assertEquals("bob: missed " + i, recorder.next());
+            }
+        }
+    }
+
+    @Test
+    public void testExpiredSessionLeavesTheRoom() throws Exception {
+        int port = start(300, Session.DEFAULT_REPLAY_LINES);
+        Recorder recorder = new Recorder();
+        try (ChatConnection alice = new ChatConnection("localhost", port, true, NameChooser.fixed("alice"), recorder);
+             TestChatClient bob = TestChatClient.join(port, "bob")) {
+            alice.connect().get(5, TimeUnit.SECONDS);
+            recorder.expect("bob has joined");
+
+            alice.drop();
+            bob.expect("MESSAGE alice has left");
+            assertTrue(recorder.disconnects.tryAcquire(5, TimeUnit.SECONDS));
+
+            // The server asks for a name instead, and the old one is free again.
+            assertEquals("alice", alice.reconnect().get(5, TimeUnit.SECONDS));
+            bob.expect("MESSAGE alice has joined");
+            assertNull(recorder.resumes.poll(200, TimeUnit.MILLISECONDS));
+        }
+    }
+
+    @Test
+    public void testQuitEndsTheSession() throws Exception {
+        int port = start(30_000, Session.DEFAULT_REPLAY_LINES);
+        Recorder recorder = new Recorder();
+        try (ChatConnection alice = new ChatConnection("localhost", port, true, NameChooser.fixed("alice"), recorder);
+             TestChatClient bob = TestChatClient.join(port, "bob")) {
+            alice.connect().get(5, TimeUnit.SECONDS);
+            recorder.expect("bob has joined");
+
+            alice.quit();
+            bob.expect("MESSAGE alice has left");
+            assertTrue(recorder.disconnects.tryAcquire(5, TimeUnit.SECONDS));
+            assertFalse(alice.hasSession());
+            assertFalse(alice.send("too late"));
+        }
+    }
+
+    private static int start(int graceMillis, int replayLines) throws Exception {
+        int port = TestChatClient.freePort();
+        ServerOptions options = new ServerOptions(port);
+        options.setMode(ServerMode.VIRTUAL);
+        options.setSessionGraceMillis(graceMillis);
+        options.setSessionReplayLines(replayLines);
+        TestChatClient.start(new ChatServer(options));
+        return port;
+    }
+
+    // Keeps everything a ChatConnection hears, for the test to take in order.
+    private static class Recorder implements ChatListener {
+        final BlockingQueue<String> messages = new LinkedBlockingQueue<>();
+        final BlockingQueue<Long> resumes = new LinkedBlockingQueue<>();
+        final Semaphore disconnects = new Semaphore(0);
+
+        public void messageReceived(String message) {
+            messages.add(message);
+        }
+
+        public void resumed(long lost) {
+            resumes.add(lost);
+        }
+
+        public void disconnected(IOException cause) {
+            disconnects.release();
+        }
+
+        String next() throws InterruptedException {
+            String message = messages.poll(5, TimeUnit.SECONDS);
+            assertNotNull("No message arrived", message);
+            return message;
+        }
+
+        void expect(String expected) throws InterruptedException {
+            while (!next().equals(expected)) {
+                // Not the one.
+            }
+        }
+    }
+}
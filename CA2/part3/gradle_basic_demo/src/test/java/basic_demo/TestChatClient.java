@@ -0,0 +1,76 @@
+package basic_demo;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A blocking line protocol client for the server tests.
+ */
+class TestChatClient implements Closeable {
+
+    private final Socket socket;
+    private final BufferedReader in;
+    private final PrintWriter out;
+
+    TestChatClient(int port) throws IOException {
+        socket = new Socket("localhost", port);
+        socket.setSoTimeout(5000);
+        in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+        out = new PrintWriter(socket.getOutputStream(), true, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Connects and completes the SUBMITNAME handshake with the given name.
+     */
+    static TestChatClient join(int port, String name) throws IOException {
+        TestChatClient client = new TestChatClient(port);
+        client.expect("SUBMITNAME");
+        client.send(name);
+        client.expect("NAMEACCEPTED " + name);
+        return client;
+    }
+
+    void send(String line) {
+        out.println(line);
+    }
+
+    String readLine() throws IOException {
+        return in.readLine();
+    }
+
+    /**
+     * Reads lines until the expected one arrives, failing if the stream ends first.
+     */
+    void expect(String expected) throws IOException {
+        String line;
+        while ((line = in.readLine()) != null) {
+            if (line.equals(expected)) {
+                return;
+            }
+        }
+        throw new AssertionError("Connection closed before receiving: " + expected);
+    }
+
+    public void close() throws IOException {
+        socket.close();
+    }
+
+    static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    static void start(Runnable server) throws InterruptedException {
+        Thread thread = new Thread(server, "Test chat server");
+        thread.setDaemon(true);
+        thread.start();
+        Thread.sleep(200);
+    }
+}
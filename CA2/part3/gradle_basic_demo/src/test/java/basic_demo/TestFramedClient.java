@@ -0,0 +1,65 @@
+package basic_demo;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A blocking client for the server tests that negotiates the binary protocol.
+ */
+class TestFramedClient implements Closeable {
+
+    private final Socket socket;
+    private final DataInputStream in;
+    private final DataOutputStream out;
+
+    /**
+     * Connects, switches to frames and completes the handshake with the given name.
+     */
+    TestFramedClient(int port, String name) throws IOException {
+        socket = new Socket("localhost", port);
+        socket.setSoTimeout(5000);
+        in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+
+        while (in.readByte() != '\n') {
+            // The text greeting, "SUBMITNAME".
+        }
+        out.writeByte(FrameType.MAGIC);
+        send(FrameType.NAME, name);
+        expect(FrameType.NAMEACCEPTED, name);
+    }
+
+    void send(FrameType type, String payload) throws IOException {
+        byte[] encoded = payload.getBytes(StandardCharsets.UTF_8);
+        out.writeByte(type.code());
+        out.writeInt(encoded.length);
+        out.write(encoded);
+        out.flush();
+    }
+
+    Frame read() throws IOException {
+        return Frame.read(in, FrameType.MAX_MESSAGE_LENGTH);
+    }
+
+    /**
+     * Reads frames until the expected one arrives, failing if the stream ends first.
+     */
+    void expect(FrameType type, String payload) throws IOException {
+        while (true) {
+            Frame frame = read();
+            if (frame.getType() == type && frame.getPayload().equals(payload)) {
+                return;
+            }
+        }
+    }
+
+    public void close() throws IOException {
+        socket.close();
+    }
+}
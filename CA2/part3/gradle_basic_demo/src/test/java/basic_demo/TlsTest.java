@@ -0,0 +1,132 @@
+package basic_demo;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.file.Path;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.SSLContext;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+
+public class TlsTest {
+
+    private static final char[] PASSWORD = "changeit".toCharArray();
+    // Enough to fill socket buffers, so writes are cut short halfway through records.
+    private static final int MESSAGES = 2000;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Path keystore;
+
+    @Before
+    public void createCertificate() throws IOException {
+        keystore = TlsContexts.selfSigned(folder.getRoot().toPath().resolve("chat.p12"), PASSWORD);
+    }
+
+    private ServerOptions options(ServerMode mode) throws IOException {
+        ServerOptions options = new ServerOptions(TestChatClient.freePort());
+        options.setMode(mode);
+        options.setEventLoops(2);
+        options.setQueueCapacity(2 * MESSAGES);
+        options.setTlsPort(TestChatClient.freePort());
+        options.setTlsKeystore(keystore.toString());
+        options.setTlsPassword(new String(PASSWORD));
+        return options;
+    }
+
+    // Loading the keystore can take a while; the TLS port is only bound after it.
+    private static void start(Runnable server, ServerOptions options) throws Exception {
+        TestChatClient.start(server);
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (true) {
+            try (Socket probe = new Socket()) {
+                probe.connect(new InetSocketAddress("localhost", options.getTlsPort()));
+                return;
+            } catch (IOException e) {
+                if (System.currentTimeMillis() > deadline) {
+                    throw e;
+                }
+                Thread.sleep(50);
+            }
+        }
+    }
+
+    @Test
+    public void testThreadServerOverTls() throws Exception {
+        ServerOptions options = options(ServerMode.VIRTUAL);
+        ChatServer server = new ChatServer(options);
+        start(server, options);
+        exchange(options, server.getMetrics());
+    }
+
+    @Test
+    public void testNioServerOverTls() throws Exception {
+        ServerOptions options = options(ServerMode.NIO);
+        NioChatServer server = new NioChatServer(options);
+        start(server, options);
+        try {
+            exchange(options, server.getMetrics());
+        } finally {
+            server.shutdown();
+        }
+    }
+
+    @Test
+    public void testUntrustedCertificateIsRefused() throws Exception {
+        ServerOptions options = options(ServerMode.NIO);
+        NioChatServer server = new NioChatServer(options);
+        start(server, options);
+        Path other = TlsContexts.selfSigned(folder.getRoot().toPath().resolve("other.p12"), PASSWORD);
+        try (ChatConnection client = new ChatConnection("localhost", options.getTlsPort(), true,
+                NameChooser.fixed("client"), message -> { })) {
+            client.useTls(TlsContexts.trusting(other, PASSWORD));
+            client.connect().get(5, TimeUnit.SECONDS);
+            fail("Connected to a server it does not trust");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause().toString(), e.getCause() instanceof IOException);
+        } finally {
+            server.shutdown();
+        }
+    }
+
+    /**
+     * A framed and a text client on the TLS port and a plain one on the other port all
+     * hear each other, and the second TLS client resumes the first one's session.
+     */
+    private void exchange(ServerOptions options, ServerMetrics metrics) throws Exception {
+        SSLContext context = TlsContexts.trusting(keystore, PASSWORD);
+        CountDownLatch received = new CountDownLatch(MESSAGES);
+        try (TestChatClient plain = TestChatClient.join(options.getPort(), "plain");
+             ChatConnection framed = new ChatConnection("localhost", options.getTlsPort(), true,
+                     NameChooser.fixed("framed"), message -> {
+                         if (message.startsWith("text: ")) {
+                             received.countDown();
+                         }
+                     });
+             ChatConnection text = new ChatConnection("localhost", options.getTlsPort(), false,
+                     NameChooser.fixed("text"), message -> { })) {
+            framed.useTls(context);
+            text.useTls(context);
+            framed.connect().get(5, TimeUnit.SECONDS);
+            text.connect().get(5, TimeUnit.SECONDS);
+            assertEquals(1, metrics.fullHandshakes());
+            assertEquals(1, metrics.resumedHandshakes());
+
+            for (int i = 0; i < MESSAGES; i++) {
+                assertTrue(text.send("message " + i));
+            }
+            assertTrue("Only " + (MESSAGES - received.getCount()) + " arrived",
+                    received.await(20, TimeUnit.SECONDS));
+            plain.expect("MESSAGE text: message " + (MESSAGES - 1));
+        }
+    }
+}
@@ -0,0 +1,243 @@
+package basic_demo;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+
+public class WebSocketTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private ServerOptions options;
+    private NioChatServer server;
+
+    @Before
+    public void startServer() throws Exception {
+        options = new ServerOptions(TestChatClient.freePort());
+        options.setMode(ServerMode.NIO);
+        options.setEventLoops(2);
+        options.setWebSocketPort(TestChatClient.freePort());
+        server = new NioChatServer(options);
+        TestChatClient.start(server);
+    }
+
+    @After
+    public void stopServer() {
+        server.shutdown();
+    }
+
+    /** A browser, as far as the server can tell: the JDK's WebSocket client. */
+    private static final class Browser implements java.net.http.WebSocket.Listener {
+        final BlockingQueue<String> received = new LinkedBlockingQueue<>();
+        private final StringBuilder text = new StringBuilder();
+        java.net.http.WebSocket socket;
+
+        static Browser connect(int port) throws Exception {
+            Browser browser = new Browser();
+            browser.socket = HttpClient.newHttpClient().newWebSocketBuilder()
+                    .buildAsync(URI.create("ws://localhost:" + port + "/"), browser)
+                    .get(5, TimeUnit.SECONDS);
+            return browser;
+        }
+
+        public CompletionStage<?> onText(java.net.http.WebSocket webSocket, CharSequence data, boolean last) {
+            text.append(data);
+            if (last) {
+                received.add(text.toString());
+                text.setLength(0);
+            }
+            webSocket.request(1);
+            return null;
+        }
+
+        String next() throws InterruptedException {
+            String message = received.poll(5, TimeUnit.SECONDS);
+            assertNotNull("Nothing arrived", message);
+            return message;
+        }
+
+        void expect(String expected) throws InterruptedException {
+            while (!next().equals(expected)) {
+                // Joins and the like.
+            }
+        }
+
+        void send(String text) {
+            socket.sendText(text, true).join();
+        }
+    }
+
+    @Test
+    public void testAcceptKey() {
+        // The example of RFC 6455.
+        assertEquals("s3pPLMBiTxaQ9kYGzzhZRbK+xOo=", WebSocket.acceptKey("dGhlIHNhbXBsZSBub25jZQ=="));
+    }
+
+    @Test
+    public void testBrowsersAndTcpClientsShareRooms() throws Exception {
+        Browser browser = Browser.connect(options.getWebSocketPort());
+        try (TestChatClient tcp = TestChatClient.join(options.getPort(), "tcp")) {
+            assertEquals("SUBMITNAME", browser.next());
+            browser.send("tcp");
+            assertEquals("SUBMITNAME", browser.next());
+            browser.send("web");
+            assertEquals("NAMEACCEPTED web", browser.next());
+
+            tcp.send("hello from tcp");
+            browser.expect("MESSAGE tcp: hello from tcp");
+            browser.send("hello from the web");
+            tcp.expect("MESSAGE web: hello from the web");
+
+            // A text of several lines is one WebSocket message, and several lines to a text client.
+            browser.send("first line\nsecond line");
+            tcp.expect("MESSAGE web: first line");
+            tcp.expect("MESSAGE web: second line");
+            tcp.send("/join lounge");
+            browser.send("/join lounge");
+            tcp.expect("MESSAGE web has joined");
+            tcp.send("in the lounge");
+            browser.expect("MESSAGE tcp: in the lounge");
+
+            // Fragments make a single message.
+            browser.socket.sendText("in ", false).join();
+            browser.socket.sendText("pieces", true).join();
+            tcp.expect("MESSAGE web: in pieces");
+        } finally {
+            browser.socket.abort();
+        }
+    }
+
+    @Test
+    public void testPingAndClose() throws Exception {
+        Browser browser = Browser.connect(options.getWebSocketPort());
+        assertEquals("SUBMITNAME", browser.next());
+        browser.socket.sendPing(ByteBuffer.wrap(new byte[] {1, 2, 3})).join();
+        browser.send("web");
+        assertEquals("NAMEACCEPTED web", browser.next());
+        browser.socket.sendClose(java.net.http.WebSocket.NORMAL_CLOSURE, "bye").get(5, TimeUnit.SECONDS);
+
+        // The name is free again once the server has hung up.
+        long deadline = System.currentTimeMillis() + 5000;
+        while (server.getNames().size() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+        assertEquals(0, server.getNames().size());
+    }
+
+    @Test
+    public void testSinceReplaysLinesTooLongForAShortHeader() throws Exception {
+        // A line of the transcript that needs the 8-byte length of a WebSocket frame.
+        ServerOptions logged = new ServerOptions(TestChatClient.freePort());
+        logged.setMode(ServerMode.NIO);
+        logged.setWebSocketPort(TestChatClient.freePort());
+        logged.setLogDirectory(folder.getRoot().getPath());
+        NioChatServer withLog = new NioChatServer(logged);
+        TestChatClient.start(withLog);
+        Browser browser = null;
+        try (TestChatClient tcp = TestChatClient.join(logged.getPort(), "tcp")) {
+            browser = Browser.connect(logged.getWebSocketPort());
+            assertEquals("SUBMITNAME", browser.next());
+            browser.send("web");
+            assertEquals("NAMEACCEPTED web", browser.next());
+            tcp.expect("MESSAGE web has joined");
+
+            String text = "x".repeat(LineDecoder.MAX_LINE_LENGTH - 10);
+            assertTrue(("MESSAGE tcp: " + text).length() > 0xFFFF);
+            tcp.send(text);
+            browser.expect("MESSAGE tcp: " + text);
+
+            browser.send("/since 0");
+            browser.expect("MESSAGE tcp: " + text);
+            browser.send("still connected");
+            tcp.expect("MESSAGE web: still connected");
+        } finally {
+            if (browser != null) {
+                browser.socket.abort();
+            }
+            withLog.shutdown();
+        }
+    }
+
+    @Test
+    public void testRequestThatIsNotAnUpgradeIsRefused() throws IOException {
+        try (Socket socket = new Socket("localhost", options.getWebSocketPort())) {
+            socket.setSoTimeout(5000);
+            OutputStream out = socket.getOutputStream();
+            out.write("GET / HTTP/1.1\r\nHost: localhost\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+            out.flush();
+            InputStream in = socket.getInputStream();
+            String response = new String(in.readAllBytes(), StandardCharsets.US_ASCII);
+            assertTrue(response, response.startsWith("HTTP/1.1 400 "));
+        }
+    }
+
+    @Test
+    public void testMessageIsFramedOnceForAllBrowsers() {
+        EncodedMessage message = EncodedMessage.of(FrameType.MESSAGE, EncodedMessage.encode("alice: "), "hi", 50);
+        EncodedMessage frame = message.webSocket();
+        assertSame(frame, message.webSocket());
+        assertSame(frame, message.framed().webSocket());
+        assertSame(message.framed(), frame.framed());
+        assertTrue(frame.isWebSocket());
+        assertEquals("MESSAGE alice: hi", frame.toString());
+
+        ByteBuffer bytes = frame.buffer();
+        assertEquals((byte) 0x81, bytes.get());
+        assertEquals("MESSAGE alice: hi".length(), bytes.get());
+        assertEquals("MESSAGE alice: hi", StandardCharsets.UTF_8.decode(bytes).toString());
+    }
+
+    @Test
+    public void testReadsMaskedFramesOfEveryLength() throws IOException {
+        byte[] mask = {0x12, 0x34, 0x56, 0x78};
+        for (int length : new int[] {0, 125, 126, 70_000}) {
+            byte[] payload = new byte[length];
+            for (int i = 0; i < length; i++) {
+                payload[i] = (byte) ('a' + i % 26);
+            }
+            ByteBuffer frame = ByteBuffer.allocate(length + 14);
+            frame.put((byte) 0x81);
+            if (length <= 125) {
+                frame.put((byte) (0x80 | length));
+            } else if (length <= 0xFFFF) {
+                frame.put((byte) (0x80 | 126)).putShort((short) length);
+            } else {
+                frame.put((byte) (0x80 | 127)).putLong(length);
+            }
+            frame.put(mask);
+            for (int i = 0; i < length; i++) {
+                frame.put((byte) (payload[i] ^ mask[i % 4]));
+            }
+            frame.flip();
+
+            ByteBuffer partial = frame.duplicate().limit(frame.limit() - 1);
+            assertNull(WebSocket.read(partial, 100_000));
+            assertEquals(0, partial.position());
+
+            WebSocket.ClientFrame read = WebSocket.read(frame, 100_000);
+            assertEquals(WebSocket.TEXT, read.opcode);
+            assertTrue(read.fin);
+            byte[] unmasked = new byte[read.payload.remaining()];
+            read.payload.get(unmasked);
+            assertArrayEquals(payload, unmasked);
+            assertFalse(frame.hasRemaining());
+        }
+    }
+}